@@ -0,0 +1,58 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void percentiles() {
+        Histogram histogram = new Histogram();
+        PercentileCalculator calc = new PercentileCalculator(histogram)
+                .addPercentile(50, "p50").addPercentile(99, "p99");
+        Assert.assertEquals(2, calc.getNames().size());
+        Assert.assertEquals(0L, calc.getData().get(0));
+
+        for (int i = 0; i < 98; i++) {
+            histogram.increment(3);
+        }
+        histogram.increment(100);
+        histogram.increment(1000);
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(4L, calc.getData().get(0));     // 3 falls in (2, 4]
+        Assert.assertEquals(128L, calc.getData().get(1));   // 100 falls in (64, 128]
+
+        // only values added after the reset are reported
+        calc.reset();
+        histogram.increment(1);
+        Assert.assertEquals(1L, calc.getData().get(0));
+        Assert.assertEquals(1L, calc.getData().get(1));
+    }
+
+    @Test
+    public void buckets() {
+        Assert.assertEquals(0, Histogram.bucket(-5));
+        Assert.assertEquals(0, Histogram.bucket(1));
+        Assert.assertEquals(1, Histogram.bucket(2));
+        Assert.assertEquals(2, Histogram.bucket(3));
+        Assert.assertEquals(2, Histogram.bucket(4));
+        Assert.assertEquals(10, Histogram.bucket(1024));
+        Assert.assertEquals(Histogram.NUM_BUCKETS - 1, Histogram.bucket(Long.MAX_VALUE));
+    }
+}
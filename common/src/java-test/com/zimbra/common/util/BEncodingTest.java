@@ -59,4 +59,21 @@ public class BEncodingTest {
         Assert.assertEquals(new TreeMap<Object, Object>(), decoded.get("yy"));
     }
 
+    @Test
+    public void numbers() throws Exception {
+        List<Object> decoded = BEncoding.decode("li0ei-42ei9223372036854775807ei-9223372036854775808ei+7ee");
+        Assert.assertEquals(0L, decoded.get(0));
+        Assert.assertEquals(-42L, decoded.get(1));
+        Assert.assertEquals(Long.MAX_VALUE, decoded.get(2));
+        Assert.assertEquals(Long.MIN_VALUE, decoded.get(3));
+        Assert.assertEquals(7L, decoded.get(4));
+
+        try {
+            BEncoding.decode("li4x2ee");
+            Assert.fail("malformed number should not decode");
+        } catch (BEncoding.BEncodingException e) {
+            Assert.assertTrue(e.getCause() instanceof NumberFormatException);
+        }
+    }
+
 }
@@ -81,6 +81,21 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_mysql_shutdown_timeout = KnownKey.newKey(60);
 
+    // maximum number of statements sent to the database in one JDBC batch
+    public static final KnownKey zimbra_db_batch_size = KnownKey.newKey(500);
+
+    // number of prepared statements kept open per pooled database connection, 0 to disable
+    public static final KnownKey zimbra_db_statement_cache_size = KnownKey.newKey(100);
+
+    // JDBC URL of a read replica for read-only mailbox queries, empty to read everything from the primary
+    public static final KnownKey zimbra_db_replica_url = KnownKey.newKey("");
+    public static final KnownKey zimbra_db_replica_pool_size = KnownKey.newKey(50);
+    // how long a mailbox read waits for the replica to apply the mailbox's last commit before reading the primary
+    public static final KnownKey zimbra_db_replica_max_wait_ms = KnownKey.newKey(100);
+
+    // number of SQL fingerprints written to sql_fingerprints.csv each stats period
+    public static final KnownKey zimbra_db_stats_top_queries = KnownKey.newKey(20);
+
     @Supported
     public static final KnownKey zimbra_ldap_userdn = KnownKey.newKey("uid=zimbra,cn=admins,cn=zimbra");
 
@@ -164,6 +179,21 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_mailbox_galsync_cache = KnownKey.newKey(10000);
 
+    public static final KnownKey zimbra_mailbox_item_cache_budget = KnownKey.newKey(0); // MB, 0 = 5% of max heap
+
+    public static final KnownKey zimbra_redolog_group_commit = KnownKey.newKey(false);
+    public static final KnownKey zimbra_redolog_recovery_threads = KnownKey.newKey(1);
+    public static final KnownKey zimbra_redolog_recovery_queue_capacity = KnownKey.newKey(100);
+
+    // set to false while servers older than this release still share the memcached item cache
+    @Reloadable
+    public static final KnownKey zimbra_mailbox_item_cache_compact_metadata = KnownKey.newKey(true);
+
+    public static final KnownKey zimbra_blob_mmap_threshold_kb = KnownKey.newKey(0);
+
+    public static final KnownKey zimbra_message_cache_max_mb = KnownKey.newKey(64);
+    public static final KnownKey zimbra_message_cache_expanded_max_mb = KnownKey.newKey(64);
+
     @Supported
     public static final KnownKey zimbra_mailbox_change_checkpoint_frequency = KnownKey.newKey(100);
 
@@ -175,12 +205,23 @@ public final class LC {
 
     public static final KnownKey zimbra_mailbox_lock_readwrite = KnownKey.newKey(true);
 
+    @Reloadable
+    public static final KnownKey zimbra_mailbox_lock_optimistic_read = KnownKey.newKey(true);
+
     @Supported
     public static final KnownKey zimbra_index_threads = KnownKey.newKey(10);
 
+    public static final KnownKey zimbra_index_batch_items_per_turn = KnownKey.newKey(500);
+    public static final KnownKey zimbra_index_lmtp_backpressure_queue_size = KnownKey.newKey(5000);
+
     @Supported
     public static final KnownKey zimbra_reindex_threads = KnownKey.newKey(10);
 
+    // threads shared by all mailboxes that fetch and tokenize items for indexing, 1 to tokenize on the indexing thread
+    public static final KnownKey zimbra_index_parse_threads = KnownKey.newKey(4);
+    // max items of one mailbox that are being tokenized or waiting to be written to the index
+    public static final KnownKey zimbra_index_parse_queue_depth = KnownKey.newKey(64);
+
     @Supported
     public static final KnownKey zimbra_index_max_readers = KnownKey.newKey(35);
 
@@ -196,6 +237,11 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_index_reader_cache_ttl = KnownKey.newKey(300);
 
+    // hits of recent searches kept for re-issued and paged searches, 0 to disable; entries expire after the ttl (s)
+    public static final KnownKey zimbra_search_result_cache_max_hits = KnownKey.newKey(20000);
+    public static final KnownKey zimbra_search_result_cache_max_hits_per_query = KnownKey.newKey(1000);
+    public static final KnownKey zimbra_search_result_cache_ttl = KnownKey.newKey(120);
+
     @Supported
     public static final KnownKey zimbra_index_deferred_items_failure_delay = KnownKey.newKey(300);
 
@@ -222,6 +268,16 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_index_lucene_use_compound_file = KnownKey.newKey(true);
 
+    // server-wide segment merge throttling, see com.zimbra.cs.index.MergeThrottle
+    public static final KnownKey zimbra_index_merge_threads = KnownKey.newKey(4);
+    public static final KnownKey zimbra_index_merge_max_concurrent = KnownKey.newKey(2);
+    // queued merges hold an index writer, so keep them well below zimbra_index_max_writers
+    public static final KnownKey zimbra_index_merge_queue_size = KnownKey.newKey(50);
+    public static final KnownKey zimbra_index_merge_max_mb_per_sec = KnownKey.newKey(0);
+    public static final KnownKey zimbra_index_merge_small_kb = KnownKey.newKey(1024);
+    public static final KnownKey zimbra_index_merge_busy_latency_ms = KnownKey.newKey(500);
+    public static final KnownKey zimbra_index_merge_max_defer_ms = KnownKey.newKey(300000);
+
     @Supported
     public static final KnownKey zimbra_index_lucene_max_buffered_docs = KnownKey.newKey(200);
 
@@ -236,9 +292,16 @@ public final class LC {
 
     @Supported
     public static final KnownKey zimbra_index_elasticsearch_url_base = KnownKey.newKey("http://localhost:9200/");
+    // an ElasticSearch _bulk request is sent once it holds this many documents or this many bytes, deletes by query
+    // are sent for at most this many items each
+    public static final KnownKey zimbra_index_elasticsearch_bulk_max_docs = KnownKey.newKey(500);
+    public static final KnownKey zimbra_index_elasticsearch_bulk_max_bytes = KnownKey.newKey(5 * 1024 * 1024);
+    // max _bulk requests of one indexer awaiting a response from ElasticSearch
+    public static final KnownKey zimbra_index_elasticsearch_bulk_max_in_flight = KnownKey.newKey(2);
 
     @Supported
     public static final KnownKey zimbra_index_wildcard_max_terms_expanded = KnownKey.newKey(20000);
+    public static final KnownKey zimbra_index_wildcard_cache_max_terms = KnownKey.newKey(50000);
 
     public static final KnownKey zimbra_index_rfc822address_max_token_length = KnownKey.newKey(256);
     public static final KnownKey zimbra_index_rfc822address_max_token_count = KnownKey.newKey(512);
@@ -686,6 +749,7 @@ public final class LC {
     // Default 3 days.  Without limit 1 server was needing to restart every 30 to 45 days
     public static final KnownKey imap_noninteractive_session_cache_maxage_days = KnownKey.newKey(3);
     public static final KnownKey imap_use_ehcache = KnownKey.newKey(true);
+    public static final KnownKey imap_session_cache_compress = KnownKey.newKey(false);
     public static final KnownKey imap_write_timeout = KnownKey.newKey(10);
     public static final KnownKey imap_write_chunk_size = KnownKey.newKey(8 * 1024);
     public static final KnownKey imap_thread_keep_alive_time = KnownKey.newKey(60);
@@ -695,6 +759,7 @@ public final class LC {
     public static final KnownKey imap_throttle_acct_limit = KnownKey.newKey(5000);
     public static final KnownKey imap_throttle_command_limit = KnownKey.newKey(25);
     public static final KnownKey imap_throttle_fetch = KnownKey.newKey(true);
+    public static final KnownKey imap_fetch_zero_copy = KnownKey.newKey(true);
     public static final KnownKey data_source_imap_reuse_connections = KnownKey.newKey(false);
 
     @Supported
@@ -910,6 +975,12 @@ public final class LC {
     public static final KnownKey conversation_max_age_ms = KnownKey.newKey(31 * Constants.MILLIS_PER_DAY);
     public static final KnownKey tombstone_max_age_ms = KnownKey.newKey(3 * Constants.MILLIS_PER_MONTH);
 
+    // log changed item ids per mailbox so that sync reads a range of the log instead of mail_item;
+    // requires the change_log table in every mailbox group
+    public static final KnownKey zimbra_change_log_enabled = KnownKey.newKey(false);
+    // number of most recent changes left in the change log when a mailbox is purged
+    public static final KnownKey zimbra_change_log_max_changes = KnownKey.newKey(100000);
+
     public static final KnownKey autoprov_initial_sleep_ms = KnownKey.newKey(5 * Constants.MILLIS_PER_MINUTE);
 
     @Supported
@@ -0,0 +1,85 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A <code>Counter</code> that also keeps the distribution of the values passed to
+ * {@link #increment(long)} in power-of-two buckets, so that percentiles can be
+ * reported alongside the average.
+ */
+public class Histogram
+extends Counter {
+
+    static final int NUM_BUCKETS = 64;
+
+    // bucket 0 holds values <= 1, bucket n holds values in (2^(n-1), 2^n]
+    private final AtomicLongArray mBuckets = new AtomicLongArray(NUM_BUCKETS);
+
+    @Override
+    public void increment(long value) {
+        mBuckets.getAndIncrement(bucket(value));
+        super.increment(value);
+    }
+
+    /**
+     * Returns a copy of the current bucket counts.
+     */
+    public long[] getBuckets() {
+        long[] buckets = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            buckets[i] = mBuckets.get(i);
+        }
+        return buckets;
+    }
+
+    @Override
+    public synchronized void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+        super.reset();
+    }
+
+    static int bucket(long value) {
+        return value <= 1 ? 0 : Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value - 1));
+    }
+
+    /**
+     * Returns the upper bound of the bucket that contains the given percentile of
+     * the values counted in <tt>buckets</tt>, or 0 if there are none.
+     */
+    public static long getPercentile(long[] buckets, double percentile) {
+        long count = 0;
+        for (long n : buckets) {
+            count += n;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return i == 0 ? 1 : 1L << Math.min(i, 62);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
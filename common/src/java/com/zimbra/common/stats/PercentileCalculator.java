@@ -0,0 +1,77 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reports percentiles of the values added to the wrapped <tt>Histogram</tt>
+ * between subsequent calls to {@link #reset}.
+ */
+public class PercentileCalculator
+implements Accumulator {
+
+    private Histogram mHistogram;
+    private long[] mLastBuckets = new long[Histogram.NUM_BUCKETS];
+    private List<Double> mPercentiles = new ArrayList<Double>();
+    private List<String> mNames = Collections.emptyList();
+
+    public PercentileCalculator(Histogram histogram) {
+        mHistogram = histogram;
+    }
+
+    /**
+     * Adds a stat with the given name whose value is the given percentile
+     * (0 - 100) of the values seen during the interval.
+     */
+    public PercentileCalculator addPercentile(double percentile, String name) {
+        mPercentiles.add(percentile);
+        List<String> names = new ArrayList<String>(mNames);
+        names.add(name);
+        mNames = Collections.unmodifiableList(names);
+        return this;
+    }
+
+    private synchronized long[] getDelta() {
+        long[] buckets = mHistogram.getBuckets();
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = Math.max(0, buckets[i] - mLastBuckets[i]);
+        }
+        return buckets;
+    }
+
+    ////////////// Accumulator implementation ///////////////////
+
+    public List<Object> getData() {
+        long[] delta = getDelta();
+        List<Object> data = new ArrayList<Object>(mPercentiles.size());
+        for (double percentile : mPercentiles) {
+            data.add(Histogram.getPercentile(delta, percentile));
+        }
+        return data;
+    }
+
+    public List<String> getNames() {
+        return mNames;
+    }
+
+    public synchronized void reset() {
+        mLastBuckets = mHistogram.getBuckets();
+    }
+}
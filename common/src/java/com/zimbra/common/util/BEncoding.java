@@ -134,7 +134,23 @@ public final class BEncoding {
     private static long readLong(char[] buffer, Offset offset, char terminator) {
         int start = offset.offset;
         while (buffer[offset.offset++] != terminator) ;
-        return Long.parseLong(new String(buffer, start, offset.offset - start - 1));
+        int end = offset.offset - 1;
+        // parse in place rather than allocating a String per number; anything unusual goes through
+        // Long.parseLong so that malformed input still surfaces as a NumberFormatException
+        boolean negative = end > start && buffer[start] == '-';
+        int pos = negative ? start + 1 : start;
+        if (pos == end || end - pos > 18) {
+            return Long.parseLong(new String(buffer, start, end - start));
+        }
+        long value = 0;
+        for (; pos < end; pos++) {
+            char c = buffer[pos];
+            if (c < '0' || c > '9') {
+                return Long.parseLong(new String(buffer, start, end - start));
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
     }
 
 }
@@ -25,6 +25,7 @@ DELETE FROM *{DATABASE_NAME}.open_conversation;
 DELETE FROM *{DATABASE_NAME}.appointment;
 DELETE FROM *{DATABASE_NAME}.appointment_dumpster;
 DELETE FROM *{DATABASE_NAME}.tombstone;
+DELETE FROM *{DATABASE_NAME}.change_log;
 DELETE FROM *{DATABASE_NAME}.pop3_message;
 DELETE FROM *{DATABASE_NAME}.imap_folder;
 DELETE FROM *{DATABASE_NAME}.imap_message;
@@ -199,6 +199,15 @@ CREATE TABLE *{DATABASE_NAME}.tombstone (
    CONSTRAINT fk_tombstone_mailbox_id FOREIGN KEY (mailbox_id) REFERENCES zimbra.mailbox(id)
 );
 
+CREATE TABLE *{DATABASE_NAME}.change_log (
+   mailbox_id  INTEGER NOT NULL,
+   change_id   INTEGER NOT NULL,
+   item_id     INTEGER NOT NULL,
+   change_mask INTEGER NOT NULL,
+
+   CONSTRAINT pk_change_log PRIMARY KEY (mailbox_id, change_id, item_id)
+);
+
 CREATE TABLE *{DATABASE_NAME}.pop3_message (
    mailbox_id     INTEGER NOT NULL,
    data_source_id CHAR(36) NOT NULL,
@@ -0,0 +1,224 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Conversation;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.Tag;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Unit test for {@link DbChangeLog}.
+ */
+public final class DbChangeLogTest {
+
+    private Mailbox mbox;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        LC.zimbra_change_log_enabled.setDefault(true);
+    }
+
+    @After
+    public void tearDown() {
+        LC.zimbra_change_log_enabled.setDefault(false);
+        LC.zimbra_change_log_max_changes.setDefault(100000);
+    }
+
+    private Message addMessage(String subject) throws Exception {
+        return mbox.addMessage(null, new ParsedMessage(("Subject: " + subject).getBytes(), false),
+                new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX), null);
+    }
+
+    private int getHorizon() throws Exception {
+        DbConnection conn = DbPool.getConnection(mbox);
+        try {
+            return DbChangeLog.getHorizon(conn, mbox, mbox.getLastChangeID());
+        } finally {
+            conn.closeQuietly();
+        }
+    }
+
+    /** Returns the modified item ids from the log, checking them against a scan of mail_item. */
+    private List<Integer> getModifiedItems(int lastSync) throws Exception {
+        List<Integer> logged = mbox.getModifiedItems(null, lastSync).getFirst();
+        LC.zimbra_change_log_enabled.setDefault(false);
+        try {
+            Assert.assertEquals(mbox.getModifiedItems(null, lastSync).getFirst(), logged);
+        } finally {
+            LC.zimbra_change_log_enabled.setDefault(true);
+        }
+        return logged;
+    }
+
+    @Test
+    public void sync() throws Exception {
+        int start = mbox.getLastChangeID();
+        Message msg1 = addMessage("one");
+        Assert.assertEquals("log starts at the first logged change", start, getHorizon());
+
+        int sync = mbox.getLastChangeID();
+        Message msg2 = addMessage("two");
+        mbox.alterTag(null, msg1.getId(), MailItem.Type.MESSAGE, Flag.FlagInfo.FLAGGED, true, null);
+        Assert.assertTrue(mbox.isChangeLogged(sync));
+
+        List<Integer> modified = getModifiedItems(sync);
+        Assert.assertTrue(modified.contains(msg1.getId()));
+        Assert.assertTrue(modified.contains(msg2.getId()));
+        Assert.assertEquals(2, mbox.getModifiedItemsCount(null, sync, 0, MailItem.Type.MESSAGE, null));
+
+        Assert.assertEquals(0, getModifiedItems(mbox.getLastChangeID()).size());
+    }
+
+    @Test
+    public void compact() throws Exception {
+        Message msg1 = addMessage("one");
+        int sync = mbox.getLastChangeID();
+        addMessage("two");
+        addMessage("three");
+
+        LC.zimbra_change_log_max_changes.setDefault(1);
+        mbox.purgeMessages(null);
+        int horizon = getHorizon();
+        Assert.assertEquals(mbox.getLastChangeID() - 1, horizon);
+
+        // syncs from before the horizon fall back to mail_item and still see every change
+        Assert.assertTrue(horizon > sync);
+        Assert.assertFalse(mbox.isChangeLogged(sync));
+        Assert.assertEquals(2, getModifiedItems(sync).size());
+
+        mbox.alterTag(null, msg1.getId(), MailItem.Type.MESSAGE, Flag.FlagInfo.FLAGGED, true, null);
+        Assert.assertEquals(1, getModifiedItems(horizon + 1).size());
+    }
+
+    @Test
+    public void restart() throws Exception {
+        int first = mbox.getLastChangeID();
+        Message msg1 = addMessage("one");
+        Assert.assertEquals(first, getHorizon());
+
+        // changes made while the log is disabled aren't in it, so the log is no longer used
+        LC.zimbra_change_log_enabled.setDefault(false);
+        int sync = mbox.getLastChangeID();
+        Message msg2 = addMessage("two");
+        Assert.assertEquals(DbChangeLog.NO_HORIZON, getHorizon());
+
+        // once re-enabled, the log starts over after those changes
+        LC.zimbra_change_log_enabled.setDefault(true);
+        int start = mbox.getLastChangeID();
+        mbox.alterTag(null, msg1.getId(), MailItem.Type.MESSAGE, Flag.FlagInfo.FLAGGED, true, null);
+        Assert.assertEquals(start, getHorizon());
+        Assert.assertFalse(mbox.isChangeLogged(sync));
+        List<Integer> modified = getModifiedItems(sync);
+        Assert.assertTrue(modified.contains(msg1.getId()));
+        Assert.assertTrue(modified.contains(msg2.getId()));
+        Assert.assertTrue(mbox.isChangeLogged(start));
+        Assert.assertEquals(1, getModifiedItems(start).size());
+    }
+
+    @Test
+    public void disabledWithoutTable() throws Exception {
+        LC.zimbra_change_log_enabled.setDefault(false);
+        String table = DbChangeLog.getChangeLogTableName(mbox);
+        DbConnection conn = DbPool.getConnection(mbox);
+        try {
+            conn.prepareStatement("ALTER TABLE " + table + " RENAME TO change_log_missing").executeUpdate();
+            conn.commit();
+            // with the log disabled, mailboxes work on databases that don't have the table
+            Message msg = addMessage("one");
+            mbox.alterTag(null, msg.getId(), MailItem.Type.MESSAGE, Flag.FlagInfo.FLAGGED, true, null);
+            Assert.assertTrue(mbox.getModifiedItems(null, 0).getFirst().contains(msg.getId()));
+        } finally {
+            conn.prepareStatement("ALTER TABLE " + table.substring(0, table.indexOf('.') + 1) +
+                    "change_log_missing RENAME TO change_log").executeUpdate();
+            conn.commit();
+            conn.closeQuietly();
+        }
+    }
+
+    @Test
+    public void renameTag() throws Exception {
+        Message msg = addMessage("one");
+        Tag tag = mbox.createTag(null, "before", (byte) 0);
+        mbox.alterTag(null, msg.getId(), MailItem.Type.MESSAGE, tag.getName(), true, null);
+        int sync = mbox.getLastChangeID();
+
+        // the tagged items are updated in bulk, not loaded
+        mbox.rename(null, tag.getId(), MailItem.Type.TAG, "after", Mailbox.ID_FOLDER_TAGS);
+        Assert.assertTrue(mbox.isChangeLogged(sync));
+        Assert.assertTrue(getModifiedItems(sync).contains(msg.getId()));
+    }
+
+    @Test
+    public void deleteTag() throws Exception {
+        Message msg = addMessage("one");
+        Tag tag = mbox.createTag(null, "doomed", (byte) 0);
+        mbox.alterTag(null, msg.getId(), MailItem.Type.MESSAGE, tag.getName(), true, null);
+        int sync = mbox.getLastChangeID();
+
+        mbox.delete(null, tag.getId(), MailItem.Type.TAG);
+        Assert.assertTrue(mbox.isChangeLogged(sync));
+        Assert.assertTrue(getModifiedItems(sync).contains(msg.getId()));
+    }
+
+    @Test
+    public void deleteFolder() throws Exception {
+        Folder folder = mbox.createFolder(null, "doomed", Mailbox.ID_FOLDER_USER_ROOT, new Folder.FolderOptions());
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        Message msg1 = mbox.addMessage(null, MailboxTestUtil.generateMessage("thread"), dopt, null);
+        mbox.addMessage(null, MailboxTestUtil.generateMessage("Re: thread"),
+                dopt.setConversationId(-msg1.getId()), null);
+        mbox.addMessage(null, MailboxTestUtil.generateMessage("Re: thread"),
+                dopt.setFolderId(folder.getId()).setConversationId(-msg1.getId()), null);
+        Conversation conv = mbox.getConversationById(null, mbox.getMessageById(null, msg1.getId()).getConversationId());
+        Assert.assertEquals(3, conv.getSize());
+        int sync = mbox.getLastChangeID();
+
+        // the conversation loses a message in a bulk update
+        mbox.delete(null, folder.getId(), MailItem.Type.FOLDER);
+        Assert.assertTrue(mbox.isChangeLogged(sync));
+        Assert.assertTrue(getModifiedItems(sync).contains(conv.getId()));
+    }
+}
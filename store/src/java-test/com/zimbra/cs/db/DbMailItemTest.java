@@ -16,6 +16,7 @@
  */
 package com.zimbra.cs.db;
 
+import java.sql.PreparedStatement;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -35,6 +36,7 @@ import com.zimbra.cs.account.MockProvisioning;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.db.DbMailItem.QueryParams;
 import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.mailbox.DeliveryOptions;
 import com.zimbra.cs.mailbox.Flag;
 import com.zimbra.cs.mailbox.Flag.FlagInfo;
 import com.zimbra.cs.mailbox.MailItem;
@@ -366,4 +368,52 @@ public final class DbMailItemTest {
         tombstones = DbMailItem.readTombstones(mbox, conn, 0, types);
         Assert.assertEquals(tombstones.size(), 12);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void batch() throws Exception {
+        int now = (int) (System.currentTimeMillis() / 1000);
+        PreparedStatement stmt = conn.prepareStatement("INSERT INTO mboxgroup1.tombstone " +
+                "(mailbox_id, sequence, date, type, ids) VALUES (?, ?, ?, ?, ?)");
+        try {
+            DbBatch batch = new DbBatch(stmt, 3);
+            for (int i = 1; i <= 7; i++) {
+                stmt.setInt(1, mbox.getId());
+                stmt.setInt(2, 100);
+                stmt.setInt(3, now);
+                stmt.setByte(4, MailItem.Type.MESSAGE.toByte());
+                stmt.setString(5, String.valueOf(i));
+                batch.add();
+            }
+            Assert.assertEquals(2, batch.getBatchCount());
+            batch.finish();
+            Assert.assertEquals(3, batch.getBatchCount());
+            batch.finish();
+            Assert.assertEquals(3, batch.getBatchCount());
+        } finally {
+            stmt.close();
+        }
+        List<Integer> tombstones = DbMailItem.readTombstones(mbox, conn, 0, EnumSet.of(MailItem.Type.MESSAGE));
+        Assert.assertEquals(7, tombstones.size());
+    }
+
+    @Test
+    public void tagMany() throws Exception {
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        int[] ids = new int[Db.getINClauseBatchSize() + 10]; // more than one IN chunk
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = mbox.addMessage(null, MailboxTestUtil.generateMessage("tag " + i), dopt, null).getId();
+        }
+
+        mbox.alterTag(null, ids, MailItem.Type.MESSAGE, "batched", true, null);
+        DbResults results = DbUtil.executeQuery(conn, "SELECT COUNT(*) FROM mboxgroup1.tagged_item" +
+                " WHERE mailbox_id = ? AND tag_id = ?", mbox.getId(), mbox.getTagByName(null, "batched").getId());
+        Assert.assertTrue(results.next());
+        Assert.assertEquals(ids.length, results.getInt(1));
+
+        mbox.alterTag(null, ids, MailItem.Type.MESSAGE, "batched", false, null);
+        results = DbUtil.executeQuery(conn, "SELECT COUNT(*) FROM mboxgroup1.tagged_item" +
+                " WHERE mailbox_id = ? AND tag_id = ?", mbox.getId(), mbox.getTagByName(null, "batched").getId());
+        Assert.assertTrue(results.next());
+        Assert.assertEquals(0, results.getInt(1));
+    }
+}
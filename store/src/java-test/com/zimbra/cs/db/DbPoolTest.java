@@ -0,0 +1,171 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.commons.dbcp.PoolingDataSource;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.Pair;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.util.TypedIdList;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Unit test for {@link DbPool}.
+ */
+public final class DbPoolTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @After
+    public void tearDown() {
+        LC.zimbra_db_replica_url.setDefault("");
+        LC.zimbra_db_replica_max_wait_ms.setDefault(100);
+        HSQLDB.setReplicatedPosition(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void statementCounters() throws Exception {
+        // the HSQLDB test pool leaves the statement cache off, so every request is a driver prepare
+        String sql = "SELECT COUNT(*) FROM mboxgroup1.mail_item WHERE mailbox_id = ?";
+        DbConnection conn = DbPool.getConnection();
+        try {
+            long requests = ZimbraPerf.COUNTER_DB_STMT_REQUESTS.getCount();
+            long prepares = ZimbraPerf.COUNTER_DB_STMT_PREPARE_US.getCount();
+            for (int i = 0; i < 3; i++) {
+                PreparedStatement stmt = conn.prepareStatement(sql);
+                stmt.setInt(1, i);
+                ResultSet rs = stmt.executeQuery();
+                Assert.assertTrue(rs.next());
+                rs.close();
+                stmt.close();
+            }
+            Assert.assertEquals(3, ZimbraPerf.COUNTER_DB_STMT_REQUESTS.getCount() - requests);
+            Assert.assertEquals(3, ZimbraPerf.COUNTER_DB_STMT_PREPARE_US.getCount() - prepares);
+        } finally {
+            conn.closeQuietly();
+        }
+    }
+
+    @Test
+    public void statementCache() throws Exception {
+        DbPool.PoolConfig pconfig = Db.getInstance().getPoolConfig();
+        GenericObjectPool pool = new GenericObjectPool(null, 1, GenericObjectPool.WHEN_EXHAUSTED_FAIL, -1, 1);
+        PoolingDataSource pds = DbPool.createDataSource(
+                new ZimbraConnectionFactory(pconfig.mConnectionUrl, pconfig.mDatabaseProperties), pool, 10, false);
+        String sql = "SELECT id FROM mboxgroup1.mail_item WHERE mailbox_id = ?";
+        DbConnection conn = new DbConnection(pds.getConnection());
+        try {
+            long requests = ZimbraPerf.COUNTER_DB_STMT_REQUESTS.getCount();
+            long prepares = ZimbraPerf.COUNTER_DB_STMT_PREPARE_US.getCount();
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            stmt.setMaxRows(1);
+            stmt.setFetchSize(1);
+            stmt.close();
+
+            // the second request is served from the cache, without the limits set by the first
+            stmt = conn.prepareStatement(sql);
+            Assert.assertEquals(2, ZimbraPerf.COUNTER_DB_STMT_REQUESTS.getCount() - requests);
+            Assert.assertEquals(1, ZimbraPerf.COUNTER_DB_STMT_PREPARE_US.getCount() - prepares);
+            Assert.assertEquals(0, stmt.getMaxRows());
+            Assert.assertEquals(0, stmt.getFetchSize());
+            stmt.setInt(1, 1);
+            stmt.executeQuery().close();
+            stmt.close();
+        } finally {
+            conn.getConnection().close();
+            pool.close();
+        }
+    }
+
+    @Test
+    public void hitRate() {
+        Assert.assertEquals(0.0, DbStats.getHitRate(0, 0), 0.0);
+        Assert.assertEquals(75.0, DbStats.getHitRate(4, 1), 0.0);
+        Assert.assertEquals(0.0, DbStats.getHitRate(1, 3), 0.0);
+    }
+
+    @Test
+    public void replicaRouting() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Assert.assertFalse("no replica configured", DbPool.hasReplica());
+        Assert.assertNull(DbPool.getReplicaConnection(null));
+
+        // the in-memory test database stands in for a replica whose replication position the test controls
+        LC.zimbra_db_replica_url.setDefault("jdbc:hsqldb:mem:zimbra");
+        LC.zimbra_db_replica_max_wait_ms.setDefault(0);
+        Message msg = mbox.addMessage(null, new ParsedMessage("From: test@zimbra.com".getBytes(), false),
+                new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX), null);
+        long position = Long.parseLong(mbox.getReplicationPosition());
+
+        // a replica behind the mailbox's last commit only serves lag-tolerant reads
+        HSQLDB.setReplicatedPosition(position - 1);
+        Assert.assertNull("read-your-writes", DbPool.getReplicaConnection(mbox));
+        DbConnection conn = DbPool.getReadConnection(mbox);
+        try {
+            Assert.assertFalse(conn.getConnection().isReadOnly());
+        } finally {
+            conn.closeQuietly();
+        }
+        conn = DbPool.getReadConnection(null);
+        try {
+            Assert.assertTrue("lag-tolerant reads", conn.getConnection().isReadOnly());
+        } finally {
+            conn.closeQuietly();
+        }
+
+        // once the replica has caught up, the mailbox reads from it too
+        HSQLDB.setReplicatedPosition(position);
+        conn = DbPool.getReadConnection(mbox);
+        try {
+            Assert.assertTrue(conn.getConnection().isReadOnly());
+        } finally {
+            conn.closeQuietly();
+        }
+
+        // a commit moves the mailbox ahead of the replica again
+        mbox.alterTag(null, msg.getId(), MailItem.Type.MESSAGE, Flag.FlagInfo.FLAGGED, true, null);
+        Assert.assertTrue(Long.parseLong(mbox.getReplicationPosition()) > position);
+        Assert.assertNull(DbPool.getReplicaConnection(mbox));
+        Pair<List<Integer>, TypedIdList> modified = mbox.getModifiedItems(null, 0);
+        Assert.assertTrue(modified.getFirst().contains(msg.getId()));
+    }
+}
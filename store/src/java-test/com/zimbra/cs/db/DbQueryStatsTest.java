@@ -0,0 +1,92 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.stats.Histogram;
+
+/**
+ * Unit test for {@link DbQueryStats}.
+ */
+public final class DbQueryStatsTest {
+
+    @After
+    public void tearDown() {
+        DebugPreparedStatement.setSlowSqlThreshold(Long.MAX_VALUE);
+        DbQueryStats.getInstance().getDataLines();
+    }
+
+    @Test
+    public void fingerprint() {
+        Assert.assertEquals("SELECT id FROM mboxgroup?.mail_item WHERE mailbox_id = ? AND id IN (?+)",
+                DbQueryStats.fingerprint("SELECT id FROM mboxgroup12.mail_item\n   WHERE mailbox_id = ? AND id IN (?, ?, ?)"));
+        Assert.assertEquals(DbQueryStats.fingerprint("SELECT * FROM t WHERE id IN (?,?)"),
+                DbQueryStats.fingerprint("SELECT * FROM t WHERE id IN (?, ?, ?, ?, ?)"));
+        Assert.assertEquals("UPDATE t SET name = ?, size = ? WHERE id = ?",
+                DbQueryStats.fingerprint("UPDATE t SET name = 'it''s', size = 12.5 WHERE id = 7"));
+        Assert.assertEquals("INSERT INTO t(a, b) VALUES (?+)+",
+                DbQueryStats.fingerprint("INSERT INTO t(a, b) VALUES (?, ?), (?, ?), (?, ?)"));
+        Assert.assertEquals("SELECT col1 FROM t2", DbQueryStats.fingerprint("SELECT col1 FROM t2"));
+    }
+
+    @Test
+    public void fingerprintCache() {
+        DbQueryStats stats = DbQueryStats.getInstance();
+        for (int i = 0; i < DbQueryStats.MAX_CACHED_SQL * 2; i++) {
+            stats.record("SELECT * FROM t WHERE id = " + i, 1);
+        }
+        // the cache keeps recent SQL rather than filling up with the first statements it saw
+        int last = DbQueryStats.MAX_CACHED_SQL * 2 - 1;
+        Assert.assertTrue(stats.isFingerprintCached("SELECT * FROM t WHERE id = " + last));
+        Assert.assertFalse(stats.isFingerprintCached("SELECT * FROM t WHERE id = 0"));
+        stats.record("SELECT * FROM t WHERE id = -1", 1);
+        Assert.assertTrue(stats.isFingerprintCached("SELECT * FROM t WHERE id = -1"));
+    }
+
+    @Test
+    public void top() {
+        DbQueryStats stats = DbQueryStats.getInstance();
+        stats.getDataLines();
+        DebugPreparedStatement.setSlowSqlThreshold(100);
+        Assert.assertFalse(stats.record("SELECT * FROM mboxgroup1.mail_item WHERE id IN (?, ?)", 50));
+        Assert.assertFalse(stats.record("SELECT * FROM mboxgroup2.mail_item WHERE id IN (?, ?, ?)", 70));
+        Assert.assertTrue(stats.record("DELETE FROM mboxgroup1.tombstone WHERE id = ?", 150000));
+
+        List<Map.Entry<String, Histogram>> top = stats.getTop(10);
+        Assert.assertEquals(2, top.size());
+        Assert.assertEquals("DELETE FROM mboxgroup?.tombstone WHERE id = ?", top.get(0).getKey());
+        Assert.assertEquals(2, top.get(1).getValue().getCount());
+        Assert.assertEquals(1, stats.getSlowQueryCount());
+        String[] jmx = stats.getTopQueries();
+        Assert.assertEquals(2, jmx.length);
+        Assert.assertTrue(jmx[0], jmx[0].startsWith("total_ms=150 count=1 "));
+
+        Collection<String> lines = stats.getDataLines();
+        Assert.assertEquals(2, lines.size());
+        Assert.assertEquals("1,150000,262144,262144,150,\"DELETE FROM mboxgroup?.tombstone WHERE id = ?\"",
+                lines.iterator().next());
+        Assert.assertNull("reset after the dump", stats.getDataLines());
+        Assert.assertEquals(0, stats.getSlowQueryCount());
+    }
+}
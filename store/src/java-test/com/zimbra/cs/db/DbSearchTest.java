@@ -16,6 +16,7 @@
  */
 package com.zimbra.cs.db;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
@@ -393,4 +394,26 @@ public final class DbSearchTest {
         Assert.assertEquals(103, result.get(1).getId());
         Assert.assertEquals(102, result.get(2).getId());
     }
+
+    @Test
+    public void indexIdRuns() throws Exception {
+        for (int id = 100; id < 120; id++) {
+            DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item " +
+                    "(mailbox_id, id, type, flags, date, size, tags, mod_metadata, mod_content, index_id) " +
+                    "VALUES(?, ?, ?, 0, ?, 0, 0, 0, 0, ?)", mbox.getId(), id, MailItem.Type.MESSAGE.toByte(), id, id);
+        }
+
+        DbSearchConstraints.Leaf constraints = new DbSearchConstraints.Leaf();
+        constraints.indexIds.addAll(Arrays.asList(101, 102, 103, 104, 107, 110, 111, 112, 118, 200));
+        Assert.assertEquals(7, DbSearch.countIdRunParameters(constraints.indexIds));
+
+        List<DbSearch.Result> result = new DbSearch(mbox).search(conn, constraints, SortBy.DATE_ASC, -1, -1,
+                DbSearch.FetchMode.ID);
+        Assert.assertEquals(9, result.size());
+        int[] expected = new int[] { 101, 102, 103, 104, 107, 110, 111, 112, 118 };
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i], result.get(i).getId());
+        }
+    }
+
 }
@@ -23,6 +23,7 @@ import java.sql.SQLException;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hsqldb.cmdline.SqlFile;
 
@@ -40,6 +41,17 @@ import com.zimbra.cs.mailbox.MailboxTestUtil;
  */
 public final class HSQLDB extends Db {
 
+    // replication positions count the commits that asked for one; the replica stand-in applies up to replicated
+    private static final AtomicLong committed = new AtomicLong();
+    private static volatile long replicated = Long.MAX_VALUE;
+
+    /**
+     * Makes a replica of this database behave as if it had applied transactions up to the position.
+     */
+    public static void setReplicatedPosition(long position) {
+        replicated = position;
+    }
+
     /**
      * Populates ZIMBRA and MBOXGROUP1 schema.
      */
@@ -146,6 +158,16 @@ public final class HSQLDB extends Db {
     /**
      * TODO
      */
+    @Override
+    public String getReplicationPosition(DbConnection conn) {
+        return String.valueOf(committed.incrementAndGet());
+    }
+
+    @Override
+    public boolean waitForReplication(DbConnection conn, String position, long timeoutMillis) {
+        return Long.parseLong(position) <= replicated;
+    }
+
     @Override
     String forceIndexClause(String index) {
         return "";
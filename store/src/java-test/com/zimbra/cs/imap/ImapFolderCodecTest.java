@@ -0,0 +1,178 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.mailbox.ItemIdentifier;
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+
+public class ImapFolderCodecTest {
+    private static final String ACCOUNT_ID = "12aa345b-2b47-44e6-8cb8-7fdfa18c1a9f";
+
+    private static ImapFolder folder(int count) {
+        ImapFlagCache tags = new ImapFlagCache();
+        tags.cache(new ImapFlag("work", "work", 64, 0, true, true, ImapFlag.VISIBLE));
+        tags.cache(new ImapFlag("to do", "todo:FLAG1", 65, 0, true, true, ImapFlag.VISIBLE));
+
+        ImapMessageSequence sequence = new ImapMessageSequence();
+        for (int i = 1; i <= count; i++) {
+            int uid = i * 3;
+            int id = i % 100 == 0 ? uid - 1 : uid;
+            int flags = i % 2 == 0 ? Flag.BITMASK_UNREAD : Flag.BITMASK_REPLIED;
+            String[] msgTags = i % 10 == 0 ? new String[] { "work" } : i % 25 == 0 ? new String[] { "work", "to do" } : null;
+            sequence.append(uid, id, flags, i % 7 == 0 ? ImapMessage.FLAG_RECENT : 0, msgTags);
+        }
+        return new ImapFolder(new ItemIdentifier(ACCOUNT_ID, 2), 42, null, ImapHandler.ITEM_TYPES, sequence, tags);
+    }
+
+    private static byte[] serialize(Object obj) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(obj);
+        oos.close();
+        return baos.toByteArray();
+    }
+
+    private static void assertSameFolder(ImapFolder expected, ImapFolder actual) {
+        Assert.assertEquals(expected.getItemIdentifier().accountId, actual.getItemIdentifier().accountId);
+        Assert.assertEquals(expected.getId(), actual.getId());
+        Assert.assertEquals(expected.getUIDValidity(), actual.getUIDValidity());
+        Assert.assertEquals(expected.getQuery(), actual.getQuery());
+        Assert.assertEquals(expected.getTypeConstraint(), actual.getTypeConstraint());
+        Assert.assertEquals(expected.getTagset().listNames(false), actual.getTagset().listNames(false));
+
+        ImapMessageSequence seq1 = expected.getSequence();
+        ImapMessageSequence seq2 = actual.getSequence();
+        Assert.assertEquals(seq1.size(), seq2.size());
+        for (int i = 0; i < seq1.size(); i++) {
+            Assert.assertEquals(seq1.getUid(i), seq2.getUid(i));
+            Assert.assertEquals(seq1.getId(i), seq2.getId(i));
+            Assert.assertEquals(seq1.getFlags(i), seq2.getFlags(i));
+            Assert.assertEquals(seq1.getSessionFlags(i), seq2.getSessionFlags(i));
+            Assert.assertArrayEquals(seq1.getTags(i), seq2.getTags(i));
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ImapFolder folder = folder(1000);
+        // changes held by attached messages must be written too
+        ImapMessage i4msg = folder.getBySequence(5);
+        i4msg.flags |= Flag.BITMASK_FLAGGED;
+        i4msg.tags = new String[] { "to do" };
+
+        ImapFolder copy = ImapFolderCodec.decode(ImapFolderCodec.encode(folder, false));
+        assertSameFolder(folder, copy);
+        Assert.assertSame(ImapHandler.ITEM_TYPES, copy.getTypeConstraint());
+        Assert.assertEquals("todo:FLAG1", copy.getTagset().getByZimbraName("to do").mImapName);
+
+        // item id lookups for messages whose id differs from their UID
+        Assert.assertEquals(300, copy.getById(299).imapUid);
+        Assert.assertEquals(15, copy.getById(15).imapUid);
+    }
+
+    @Test
+    public void searchFolder() throws Exception {
+        ImapFolder folder = new ImapFolder(new ItemIdentifier(ACCOUNT_ID, 300), -7, "in:inbox is:unread",
+                EnumSet.of(MailItem.Type.MESSAGE, MailItem.Type.CONTACT), new ImapMessageSequence(), new ImapFlagCache());
+        ImapFolder copy = ImapFolderCodec.decode(ImapFolderCodec.encode(folder, true));
+        assertSameFolder(folder, copy);
+        Assert.assertEquals(0, copy.getSize());
+    }
+
+    @Test
+    public void compression() throws Exception {
+        ImapFolder folder = folder(20000);
+        byte[] plain = ImapFolderCodec.encode(folder, false);
+        byte[] deflated = ImapFolderCodec.encode(folder, true);
+        Assert.assertTrue(deflated.length < plain.length);
+        assertSameFolder(folder, ImapFolderCodec.decode(deflated));
+    }
+
+    @Test
+    public void invalidData() throws Exception {
+        try {
+            ImapFolderCodec.decode(new byte[] { 'X', 'Y', 1, 0 });
+            Assert.fail("decoded garbage");
+        } catch (StreamCorruptedException expected) {
+        }
+
+        byte[] data = ImapFolderCodec.encode(folder(10), false);
+        data[2] = ImapFolderCodec.VERSION + 1;
+        try {
+            ImapFolderCodec.decode(data);
+            Assert.fail("decoded unknown version");
+        } catch (StreamCorruptedException expected) {
+        }
+
+        // Java serialization, as written by servers that predate the codec, is never deserialized
+        try {
+            ImapFolderCodec.decode(serialize(folder(10)));
+            Assert.fail("decoded Java serialization");
+        } catch (StreamCorruptedException expected) {
+        }
+        try {
+            ImapFolderCodec.decode(serialize(new Hacker("hacked")));
+            Assert.fail("decoded foreign object");
+        } catch (StreamCorruptedException expected) {
+        }
+    }
+
+    @Test
+    public void ehcacheSerializer() throws Exception {
+        ImapFolderCodec.EhcacheSerializer serializer = new ImapFolderCodec.EhcacheSerializer();
+        ImapFolder folder = folder(50);
+        ByteBuffer encoded = serializer.serialize(folder);
+
+        // Ehcache may hand back a slice of a larger buffer
+        ByteBuffer buffer = ByteBuffer.allocate(encoded.remaining() + 10);
+        buffer.position(5);
+        buffer.put(encoded.duplicate());
+        buffer.position(5);
+        buffer.limit(5 + encoded.remaining());
+        assertSameFolder(folder, serializer.read(buffer.slice()));
+        Assert.assertTrue(serializer.equals(folder, encoded));
+    }
+
+    /**
+     * Compares the encoded size of a large folder with Java serialization.
+     */
+    @Test
+    public void largeFolder() throws Exception {
+        ImapFolder folder = folder(200000);
+
+        byte[] java = serialize(folder);
+        byte[] plain = ImapFolderCodec.encode(folder, false);
+        byte[] deflated = ImapFolderCodec.encode(folder, true);
+        ImapFolder copy = ImapFolderCodec.decode(plain);
+
+        Assert.assertTrue(plain.length * 2 < java.length);
+        Assert.assertTrue(deflated.length * 4 < plain.length);
+        Assert.assertEquals(folder.getSize(), copy.getSize());
+    }
+}
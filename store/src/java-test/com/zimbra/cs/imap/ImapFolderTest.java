@@ -12,6 +12,8 @@ import org.junit.Test;
 
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.imap.ImapMessage.ImapMessageSet;
+import com.zimbra.cs.mailbox.Flag;
 import com.zimbra.cs.mailbox.MailItem.Type;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
@@ -61,4 +63,34 @@ public class ImapFolderTest {
         Assert.assertNotNull(i4set);
         Assert.assertEquals(3, i4set.size());
     }
+
+    @Test
+    public void releaseMessages() throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapPath path = new ImapPath("trash", creds);
+        ImapFolder i4folder = new ImapFolder(path, (byte) 0, new MockImapHandler());
+        for (int id = 1; id <= 3; id++) {
+            i4folder.cache(new ImapMessage(id, Type.MESSAGE, id + 10, 0, null), false);
+        }
+        i4folder.compact();
+
+        // a FETCH 1:* or SEARCH attaches every message
+        ImapMessageSet all = i4folder.getAllMessages();
+        ImapMessage saved = i4folder.getBySequence(1);
+        ImapMessage dirty = i4folder.getBySequence(2);
+        ImapMessage plain = i4folder.getBySequence(3);
+        plain.flags |= Flag.BITMASK_FLAGGED;
+        ImapMessageSet savedSet = new ImapMessageSet();
+        savedSet.add(saved);
+        i4folder.saveSearchResults(savedSet);
+        i4folder.dirtyMessage(dirty, 5);
+        Assert.assertEquals(3, all.size());
+
+        i4folder.releaseMessages();
+        Assert.assertSame(saved, i4folder.getBySequence(1));
+        Assert.assertSame(dirty, i4folder.getBySequence(2));
+        ImapMessage reloaded = i4folder.getBySequence(3);
+        Assert.assertNotSame(plain, reloaded);
+        Assert.assertTrue((reloaded.flags & Flag.BITMASK_FLAGGED) != 0);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,225 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+
+public class ImapMessageSequenceTest {
+
+    private static ImapMessage message(int id, int uid) {
+        return new ImapMessage(id, MailItem.Type.MESSAGE, uid, 0, null);
+    }
+
+    private static ImapMessageSequence sequence(int... uids) {
+        ImapMessageSequence sequence = new ImapMessageSequence();
+        for (int uid : uids) {
+            sequence.add(message(uid, uid));
+        }
+        return sequence;
+    }
+
+    private static byte[] serialize(Object obj) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(obj);
+        oos.close();
+        return baos.toByteArray();
+    }
+
+    private static ImapMessageSequence roundTrip(ImapMessageSequence sequence) throws Exception {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serialize(sequence)));
+        return (ImapMessageSequence) ois.readObject();
+    }
+
+    @Test
+    public void addAndLookup() {
+        ImapMessageSequence sequence = sequence(10, 20, 30);
+        Assert.assertEquals(3, sequence.size());
+        Assert.assertEquals(1, sequence.indexOfUid(20));
+        Assert.assertEquals(-3, sequence.indexOfUid(25));
+        Assert.assertEquals(-1, sequence.indexOfUid(5));
+
+        ImapMessage i4msg = sequence.get(2);
+        Assert.assertEquals(30, i4msg.imapUid);
+        Assert.assertEquals(3, i4msg.sequence);
+        Assert.assertSame(i4msg, sequence.get(2));
+    }
+
+    @Test
+    public void insertShiftsSequenceNumbers() {
+        ImapMessageSequence sequence = sequence(10, 30);
+        ImapMessage last = sequence.get(1);
+        ImapMessage middle = message(20, 20);
+        sequence.insert(1, middle);
+
+        Assert.assertEquals(3, sequence.size());
+        Assert.assertEquals(2, middle.sequence);
+        Assert.assertEquals(3, last.sequence);
+        Assert.assertEquals(2, sequence.indexOfUid(30));
+    }
+
+    @Test
+    public void indexOfId() {
+        ImapMessageSequence sequence = sequence(10, 20);
+        Assert.assertEquals(-1, sequence.indexOfId(15));
+
+        // copies moved back into the folder get a new UID but keep their item id
+        sequence.add(message(15, 30));
+        sequence.add(message(15, 40));
+        Assert.assertEquals(3, sequence.indexOfId(15));
+        Assert.assertEquals(-1, sequence.indexOfId(10));
+
+        for (int i = 0; i < 100; i++) {
+            sequence.add(message(1000 + i, 100 + i));
+        }
+        Assert.assertEquals(4 + 57, sequence.indexOfId(1057));
+    }
+
+    @Test
+    public void removeWithMoveAndTruncate() {
+        ImapMessageSequence sequence = sequence(10, 20, 30, 40);
+        ImapMessage last = sequence.get(3);
+        sequence.get(1).setExpunged(true);
+
+        int kept = 0;
+        for (int i = 0; i < sequence.size(); i++) {
+            if (!sequence.isExpunged(i)) {
+                sequence.move(i, kept++);
+            }
+        }
+        sequence.truncate(kept);
+
+        Assert.assertEquals(3, sequence.size());
+        Assert.assertEquals(30, sequence.getUid(1));
+        Assert.assertEquals(3, last.sequence);
+        Assert.assertSame(last, sequence.get(2));
+    }
+
+    @Test
+    public void compactKeepsState() {
+        ImapMessageSequence sequence = sequence(10, 20);
+        ImapMessage i4msg = sequence.get(1);
+        i4msg.flags |= Flag.BITMASK_FLAGGED;
+        i4msg.setAdded(true);
+        i4msg.tags = new String[] { "work" };
+
+        ImapFlag flagged = ImapFlagCache.getSystemFlags().getByImapName("\\Flagged");
+        Assert.assertTrue(sequence.matches(1, flagged));
+        Assert.assertFalse(sequence.matches(0, flagged));
+
+        sequence.compact();
+        Assert.assertNotSame(i4msg, sequence.peek(1));
+        Assert.assertTrue(sequence.matches(1, flagged));
+        Assert.assertTrue(sequence.isAdded(1));
+        Assert.assertArrayEquals(new String[] { "work" }, sequence.getTags(1));
+        Assert.assertNull(sequence.getTags(0));
+
+        // peek() must not attach anything
+        sequence.peek(0).flags |= Flag.BITMASK_FLAGGED;
+        Assert.assertFalse(sequence.matches(0, flagged));
+    }
+
+    @Test
+    public void compactKeepsPinnedMessages() {
+        ImapMessageSequence sequence = sequence(10, 20, 30);
+        sequence.compact();
+        Assert.assertFalse(sequence.hasAttached());
+
+        ImapMessage pinned = sequence.get(0);
+        ImapMessage dropped = sequence.get(2);
+        dropped.flags |= Flag.BITMASK_FLAGGED;
+        Assert.assertTrue(sequence.hasAttached());
+
+        Set<ImapMessage> keep = Sets.newIdentityHashSet();
+        keep.add(pinned);
+        sequence.compact(keep);
+        Assert.assertTrue(sequence.hasAttached());
+        Assert.assertSame(pinned, sequence.get(0));
+        Assert.assertNotSame(dropped, sequence.peek(2));
+        Assert.assertTrue(sequence.matches(2, ImapFlagCache.getSystemFlags().getByImapName("\\Flagged")));
+
+        sequence.compact(Collections.<ImapMessage>emptySet());
+        Assert.assertFalse(sequence.hasAttached());
+        Assert.assertNotSame(pinned, sequence.peek(0));
+    }
+
+    @Test
+    public void serialization() throws Exception {
+        ImapMessageSequence sequence = sequence(10, 20);
+        sequence.add(message(15, 30));
+        ImapMessage i4msg = sequence.get(1);
+        i4msg.flags |= Flag.BITMASK_UNREAD;
+        i4msg.setExpunged(true);
+        i4msg.tags = new String[] { "a", "b" };
+
+        ImapMessageSequence copy = roundTrip(sequence);
+        Assert.assertEquals(3, copy.size());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(sequence.getUid(i), copy.getUid(i));
+            Assert.assertEquals(sequence.getId(i), copy.getId(i));
+            Assert.assertEquals(sequence.getFlags(i), copy.getFlags(i));
+            Assert.assertEquals(sequence.getSessionFlags(i), copy.getSessionFlags(i));
+        }
+        Assert.assertTrue(copy.isExpunged(1));
+        Assert.assertArrayEquals(new String[] { "a", "b" }, copy.getTags(1));
+        Assert.assertNull(copy.getTags(2));
+        Assert.assertEquals(2, copy.indexOfId(15));
+
+        // the copy can keep growing
+        copy.add(message(40, 40));
+        Assert.assertEquals(3, copy.indexOfUid(40));
+    }
+
+    @Test
+    public void largeFolderFootprint() throws Exception {
+        int count = 200000;
+        ImapMessageSequence sequence = new ImapMessageSequence();
+        List<ImapMessage> list = new ArrayList<ImapMessage>(count);
+        for (int i = 1; i <= count; i++) {
+            ImapMessage i4msg = new ImapMessage(i + 1000, MailItem.Type.MESSAGE, i, Flag.BITMASK_UNREAD, null);
+            list.add(i4msg);
+            sequence.add(new ImapMessage(i4msg));
+        }
+        sequence.compact();
+
+        for (int i = 1; i <= count; i += 997) {
+            Assert.assertEquals(i - 1, sequence.indexOfUid(i));
+            Assert.assertEquals(i - 1, sequence.indexOfId(i + 1000));
+        }
+
+        int compactSize = serialize(sequence).length;
+        int listSize = serialize(list).length;
+        Assert.assertTrue("compact sequence " + compactSize + " bytes vs message list " + listSize + " bytes",
+                compactSize * 3 < listSize * 2);
+    }
+}
@@ -16,8 +16,11 @@
  */
 package com.zimbra.cs.imap;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
 
 import javax.mail.internet.MimeMessage;
 
@@ -31,8 +34,16 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.InputStreamWithSize;
 import com.zimbra.common.zmime.ZMimeMessage;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.imap.ImapPartSpecifier.BinaryDecodingException;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTest;
 import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.store.file.FileBlobStore;
 import com.zimbra.cs.util.JMSession;
 
 public class ImapPartSpecifierTest {
@@ -117,4 +128,62 @@ public class ImapPartSpecifierTest {
         checkBody(mm, "3.3", "MIME", "Content-Type: text/calendar; name=meeting.ics; method=REQUEST; charset=utf-8", "Content-Transfer-Encoding: 7bit");
 
     }
+
+    @Test
+    public void writeFromBlobFile() throws Exception {
+        System.setProperty("zimbra.native.required", "false");
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+        StoreManager original = StoreManager.getInstance();
+        StoreManager.setInstance(new FileBlobStore());
+        StoreManager.getInstance().startup();
+        try {
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+            Message msg = mbox.addMessage(null, MailboxTestUtil.generateMessage("zero copy"),
+                    MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+
+            checkFromBlobFile(msg, new ImapPartSpecifier("BODY", "", ""));
+            checkFromBlobFile(msg, new ImapPartSpecifier("BODY", "", "", 5, 20));
+            checkFromBlobFile(msg, new ImapPartSpecifier("BODY", "", "", 100000, 10));
+
+            // TLS connections, BINARY and sub-parts use the stream path
+            FileSendingHandler handler = new FileSendingHandler();
+            handler.startedTLS = true;
+            Assert.assertFalse(new ImapPartSpecifier("BODY", "", "").writeFromBlobFile(
+                    new PrintStream(handler.output), handler, msg));
+            handler = new FileSendingHandler();
+            Assert.assertFalse(new ImapPartSpecifier("BINARY", "", "").writeFromBlobFile(
+                    new PrintStream(handler.output), handler, msg));
+            Assert.assertFalse(new ImapPartSpecifier("BODY", "", "TEXT").writeFromBlobFile(
+                    new PrintStream(handler.output), handler, msg));
+
+            // a missing blob writes nothing, so the caller's stream path can report it as before
+            Message missing = mbox.addMessage(null, MailboxTestUtil.generateMessage("missing blob"),
+                    MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+            Assert.assertTrue(missing.getBlob().getLocalBlob().getFile().delete());
+            handler = new FileSendingHandler();
+            Assert.assertFalse(new ImapPartSpecifier("BODY", "", "").writeFromBlobFile(
+                    new PrintStream(handler.output), handler, missing));
+            Assert.assertEquals("", handler.output.toString());
+        } finally {
+            StoreManager.getInstance().shutdown();
+            StoreManager.setInstance(original);
+        }
+    }
+
+    private void checkFromBlobFile(Message msg, ImapPartSpecifier pspec) throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        pspec.write(new PrintStream(expected), expected, msg);
+
+        FileSendingHandler handler = new FileSendingHandler();
+        Assert.assertTrue(pspec.toString(), pspec.writeFromBlobFile(new PrintStream(handler.output), handler, msg));
+        Assert.assertEquals(pspec.toString(), expected.toString(), handler.output.toString());
+    }
+
+    private static class FileSendingHandler extends MockImapHandler {
+        // uses the base class's sendFile(), which copies through the handler's output
+        @Override
+        protected boolean supportsSendFile() {
+            return true;
+        }
+    }
 }
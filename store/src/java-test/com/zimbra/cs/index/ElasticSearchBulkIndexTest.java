@@ -0,0 +1,177 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.ContactConstants;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.index.elasticsearch.ElasticSearchIndex;
+import com.zimbra.cs.mailbox.Contact;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mime.ParsedContact;
+
+/**
+ * Unit test for the bulk indexer of {@link ElasticSearchIndex}, run against a stub HTTP server that records the
+ * requests it receives.
+ */
+public final class ElasticSearchBulkIndexTest {
+    private static final List<String> REQUESTS = Collections.synchronizedList(Lists.<String>newArrayList());
+    private static HttpServer server;
+    private static String urlBase;
+    private static int maxDocs;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                try (InputStream in = exchange.getRequestBody()) {
+                    byte[] buf = new byte[4096];
+                    for (int len = in.read(buf); len > 0; len = in.read(buf)) {
+                        body.write(buf, 0, len);
+                    }
+                }
+                REQUESTS.add(exchange.getRequestMethod() + " " +
+                        URLDecoder.decode(exchange.getRequestURI().toString(), "UTF-8") + "\n" +
+                        new String(body.toByteArray(), Charsets.UTF_8));
+                byte[] response = "{\"took\":1,\"errors\":false,\"items\":[]}".getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(response);
+                }
+            }
+        });
+        server.start();
+
+        urlBase = LC.zimbra_index_elasticsearch_url_base.value();
+        maxDocs = LC.zimbra_index_elasticsearch_bulk_max_docs.intValue();
+        LC.zimbra_index_elasticsearch_url_base.setDefault(
+                "http://localhost:" + server.getAddress().getPort() + "/");
+        LC.zimbra_index_elasticsearch_bulk_max_docs.setDefault(2);
+    }
+
+    @AfterClass
+    public static void destroy() {
+        server.stop(0);
+        LC.zimbra_index_elasticsearch_url_base.setDefault(urlBase);
+        LC.zimbra_index_elasticsearch_bulk_max_docs.setDefault(maxDocs);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        REQUESTS.clear();
+    }
+
+    @Test
+    public void bulk() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Folder folder = mbox.getFolderById(null, Mailbox.ID_FOLDER_CONTACTS);
+        ElasticSearchIndex index = new ElasticSearchIndex.Factory().getIndexStore(mbox);
+
+        Indexer indexer = index.openIndexer();
+        List<Integer> ids = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            Contact contact = mbox.createContact(null, new ParsedContact(Collections.singletonMap(
+                    ContactConstants.A_email, "bulk" + i + "@zimbra.com")), folder.getId(), null);
+            indexer.addDocument(folder, contact, contact.generateIndexData());
+            ids.add(contact.getId());
+        }
+        indexer.close();
+
+        List<String> bulks = Lists.newArrayList();
+        for (String request : REQUESTS) {
+            Assert.assertFalse(request, request.contains("_refresh") && !bulks.isEmpty());
+            if (request.startsWith("POST /" + mbox.getAccountId() + "/zimbra/_bulk")) {
+                bulks.add(request);
+            }
+        }
+        Assert.assertEquals(3, bulks.size());
+        // up to bulk_max_in_flight requests are sent concurrently, so they may arrive in any order
+        Collections.sort(bulks, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                return firstEmail(o1).compareTo(firstEmail(o2));
+            }
+
+            private String firstEmail(String request) {
+                return request.substring(request.indexOf("bulk", request.indexOf('\n')));
+            }
+        });
+        for (int i = 0; i < bulks.size(); i++) {
+            String[] lines = bulks.get(i).split("\n");
+            Assert.assertEquals(i < 2 ? 5 : 3, lines.length); // request line + action and source per document
+            Assert.assertEquals("{\"index\":{}}", lines[1]);
+            Assert.assertTrue(lines[2], lines[2].contains("bulk" + (i * 2) + "@zimbra.com"));
+        }
+
+        // one delete by query per bulk_max_docs items
+        REQUESTS.clear();
+        indexer = index.openIndexer();
+        indexer.deleteDocument(ids);
+        indexer.close();
+        Assert.assertEquals(3, REQUESTS.size());
+        for (int i = 0; i < REQUESTS.size(); i++) {
+            String expected = "DELETE /" + mbox.getAccountId() + "/zimbra/_query?q=" + LuceneFields.L_MAILBOX_BLOB_ID +
+                    ":(" + (i < 2 ? ids.get(i * 2) + " OR " + ids.get(i * 2 + 1) : ids.get(4)) + ")";
+            Assert.assertTrue(REQUESTS.get(i), REQUESTS.get(i).startsWith(expected));
+        }
+
+        // refreshed once on demand, not again until something is written
+        REQUESTS.clear();
+        index.getDocCount();
+        index.getDocCount();
+        int refreshes = 0;
+        for (String request : REQUESTS) {
+            if (request.contains("_refresh")) {
+                refreshes++;
+            }
+        }
+        Assert.assertEquals(1, refreshes);
+    }
+}
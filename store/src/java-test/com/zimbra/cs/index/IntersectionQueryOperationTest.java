@@ -85,4 +85,33 @@ public final class IntersectionQueryOperationTest {
         Assert.assertEquals("", query.toQueryString());
     }
 
+    @Test
+    public void stopWhenExhausted() throws Exception {
+        MockQueryResults results = new MockQueryResults(EnumSet.of(MailItem.Type.MESSAGE), SortBy.DATE_DESC);
+        MockQueryOperation op1 = new MockQueryOperation();
+        for (int i = 100; i > 0; i--) {
+            op1.add(new MessageHit(results, null, i, null, null, (long) i));
+        }
+        MockQueryOperation op2 = new MockQueryOperation();
+        op2.add(new MessageHit(results, null, 60, null, null, 60L));
+        op2.add(new MessageHit(results, null, 555, null, null, 55L)); // sort value matches, item doesn't
+        op2.add(new MessageHit(results, null, 50, null, null, 50L));
+
+        IntersectionQueryOperation intersection = new IntersectionQueryOperation();
+        intersection.addQueryOp(op1);
+        intersection.addQueryOp(op2);
+        intersection.begin(new QueryOperation.QueryContext(null, results, new SearchParams(), 10));
+
+        ZimbraHit hit = intersection.getNext();
+        Assert.assertEquals(60, hit.getItemId());
+        Assert.assertSame(results, hit.getResults());
+        Assert.assertEquals(60, intersection.getNext().getItemId());
+        Assert.assertEquals(50, intersection.getNext().getItemId());
+        Assert.assertEquals(50, intersection.getNext().getItemId());
+        Assert.assertNull(intersection.getNext());
+        // op2 ran dry at 50, so op1 must not be drained past the next group
+        Assert.assertEquals(52, op1.getFetched());
+        intersection.close();
+    }
+
 }
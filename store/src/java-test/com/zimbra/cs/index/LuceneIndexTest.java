@@ -16,6 +16,18 @@
  */
 package com.zimbra.cs.index;
 
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.mailbox.ContactConstants;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.mailbox.Contact;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mime.ParsedContact;
+
 /**
  * Unit test for {@link LuceneIndex}.
  */
@@ -27,4 +39,35 @@ public final class LuceneIndexTest extends AbstractIndexStoreTest {
         // Default for LC.zimbra_class_index_store_factory.value() is USUALLY this
         return "com.zimbra.cs.index.LuceneIndex$Factory";
     }
+
+    @Test
+    public void reopenSearcher() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        IndexStore index = mbox.index.getIndexStore();
+        Contact contact = mbox.createContact(null, new ParsedContact(Collections.singletonMap(
+                ContactConstants.A_email, "test1@zimbra.com")), Mailbox.ID_FOLDER_CONTACTS, null);
+        mbox.createContact(null, new ParsedContact(Collections.singletonMap(
+                ContactConstants.A_email, "test2@zimbra.com")), Mailbox.ID_FOLDER_CONTACTS, null);
+        mbox.index.indexDeferredItems();
+
+        ZimbraIndexSearcher searcher1 = index.openSearcher();
+        ZimbraIndexSearcher searcher2 = index.openSearcher();
+        Assert.assertSame("searcher is shared", searcher1, searcher2);
+        searcher2.close();
+
+        Indexer indexer = index.openIndexer();
+        indexer.deleteDocument(Collections.singletonList(contact.getId()));
+        indexer.close();
+
+        ZimbraIndexSearcher searcher3 = index.openSearcher();
+        Assert.assertNotSame("searcher is reopened after commit", searcher1, searcher3);
+        Assert.assertEquals("numDocs of reopened searcher", 1, searcher3.getIndexReader().numDocs());
+        Assert.assertEquals("numDocs of searcher in use", 2, searcher1.getIndexReader().numDocs());
+        searcher1.close();
+
+        ZimbraIndexSearcher searcher4 = index.openSearcher();
+        Assert.assertSame("reopened searcher is shared", searcher3, searcher4);
+        searcher4.close();
+        searcher3.close();
+    }
 }
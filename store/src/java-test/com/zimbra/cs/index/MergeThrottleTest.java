@@ -0,0 +1,166 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.stats.Counter;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for {@link MergeThrottle}.
+ */
+public final class MergeThrottleTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @After
+    public void tearDown() {
+        LC.zimbra_index_merge_max_concurrent.setDefault(2);
+        LC.zimbra_index_merge_busy_latency_ms.setDefault(500);
+        LC.zimbra_index_merge_max_defer_ms.setDefault(300000);
+        LC.zimbra_index_merge_small_kb.setDefault(1024);
+    }
+
+    private static Thread start(final MergeThrottle throttle, final long bytes, final List<Long> admitted) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                throttle.admit(bytes);
+                admitted.add(bytes);
+                throttle.release();
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void waitForWaiting(MergeThrottle throttle, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (throttle.getWaitingCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, throttle.getWaitingCount());
+    }
+
+    @Test
+    public void smallFirst() throws Exception {
+        LC.zimbra_index_merge_max_concurrent.setDefault(1);
+        MergeThrottle throttle = new MergeThrottle(1, 1, new Counter());
+        throttle.admit(1L);
+        Assert.assertEquals(1, throttle.getRunningCount());
+
+        List<Long> admitted = Collections.synchronizedList(new ArrayList<Long>());
+        Thread large = start(throttle, 100000000L, admitted);
+        waitForWaiting(throttle, 1);
+        Thread small = start(throttle, 1000L, admitted);
+        waitForWaiting(throttle, 2);
+
+        throttle.release();
+        large.join(10000);
+        small.join(10000);
+        Assert.assertEquals(Arrays.asList(1000L, 100000000L), admitted);
+        Assert.assertEquals(0, throttle.getRunningCount());
+    }
+
+    @Test
+    public void deferWhileBusy() throws Exception {
+        LC.zimbra_index_merge_busy_latency_ms.setDefault(500);
+        LC.zimbra_index_merge_max_defer_ms.setDefault(300);
+        LC.zimbra_index_merge_small_kb.setDefault(1);
+        Counter latency = new Counter();
+        latency.increment(1000L);
+        MergeThrottle throttle = new MergeThrottle(1, 1, latency);
+        Assert.assertTrue(throttle.isBusy());
+
+        // merges of small indexes aren't deferred
+        RAMDirectory dir = new RAMDirectory();
+        IndexOutput out = dir.createOutput("_0.cfs");
+        out.writeBytes(new byte[1000], 1000);
+        out.close();
+        long now = System.currentTimeMillis();
+        Assert.assertFalse(throttle.isDeferred(dir, now));
+
+        // merges of large indexes wait until the server quiets down, or at most max_defer_ms
+        out = dir.createOutput("_1.cfs");
+        out.writeBytes(new byte[1000], 1000);
+        out.close();
+        Assert.assertTrue(throttle.isDeferred(dir, now));
+        Assert.assertFalse(throttle.isDeferred(dir, now - 300));
+
+        // a merge already handed out by the writer only waits for a slot
+        long start = System.currentTimeMillis();
+        throttle.admit(100000000L);
+        throttle.release();
+        Assert.assertTrue(System.currentTimeMillis() - start < 300);
+    }
+
+    @Test
+    public void queueFull() throws Exception {
+        MergeThrottle throttle = new MergeThrottle(1, 1, new Counter());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        try {
+            Assert.assertTrue(throttle.submit(task));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            Assert.assertTrue(throttle.submit(task)); // waits for the merge thread
+            Assert.assertFalse(throttle.submit(task)); // skipped
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void notBusy() throws Exception {
+        Counter latency = new Counter();
+        latency.increment(10L);
+        MergeThrottle throttle = new MergeThrottle(1, 1, latency);
+        Assert.assertFalse(throttle.isBusy());
+
+        LC.zimbra_index_merge_busy_latency_ms.setDefault(0);
+        latency = new Counter();
+        latency.increment(1000L);
+        throttle = new MergeThrottle(1, 1, latency);
+        Assert.assertFalse(throttle.isBusy());
+    }
+}
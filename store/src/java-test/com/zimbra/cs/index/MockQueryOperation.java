@@ -0,0 +1,139 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+import com.zimbra.cs.mailbox.Mailbox;
+
+/**
+ * Mock implementation of {@link QueryOperation} for testing, returning a fixed list of hits.
+ */
+public final class MockQueryOperation extends QueryOperation {
+
+    private final List<ZimbraHit> hits = new ArrayList<ZimbraHit>();
+    private int next = 0;
+    private int fetched = 0;
+
+    public void add(ZimbraHit hit) {
+        hits.add(hit);
+    }
+
+    /**
+     * Returns the number of hits consumed with {@link #getNext()}.
+     */
+    public int getFetched() {
+        return fetched;
+    }
+
+    @Override
+    public long getCursorOffset() {
+        return -1;
+    }
+
+    @Override
+    public void resetIterator() {
+        next = 0;
+    }
+
+    @Override
+    public ZimbraHit getNext() {
+        if (next >= hits.size()) {
+            return null;
+        }
+        fetched++;
+        return hits.get(next++);
+    }
+
+    @Override
+    public ZimbraHit peekNext() {
+        return next < hits.size() ? hits.get(next) : null;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public List<QueryInfo> getResultInfo() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    String toQueryString() {
+        return "mock";
+    }
+
+    @Override
+    protected void begin(QueryContext ctx) {
+        context = ctx;
+    }
+
+    @Override
+    Set<QueryTarget> getQueryTargets() {
+        return ImmutableSet.of(QueryTarget.LOCAL);
+    }
+
+    @Override
+    QueryOperation ensureSpamTrashSetting(Mailbox mbox, boolean includeTrash, boolean includeSpam) {
+        return this;
+    }
+
+    @Override
+    boolean hasSpamTrashSetting() {
+        return true;
+    }
+
+    @Override
+    void forceHasSpamTrashSetting() {
+    }
+
+    @Override
+    boolean hasNoResults() {
+        return hits.isEmpty();
+    }
+
+    @Override
+    boolean hasAllResults() {
+        return false;
+    }
+
+    @Override
+    QueryOperation expandLocalRemotePart(Mailbox mbox) {
+        return this;
+    }
+
+    @Override
+    QueryOperation optimize(Mailbox mbox) {
+        return this;
+    }
+
+    @Override
+    protected QueryOperation combineOps(QueryOperation other, boolean union) {
+        return null;
+    }
+
+    @Override
+    protected void depthFirstRecurse(RecurseCallback cb) {
+        cb.recurseCallback(this);
+    }
+
+}
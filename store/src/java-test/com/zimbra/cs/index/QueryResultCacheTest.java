@@ -0,0 +1,186 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.soap.SoapProtocol;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.OperationContext;
+
+/**
+ * Unit test for {@link QueryResultCache}.
+ */
+public final class QueryResultCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, UUID.randomUUID().toString());
+        prov.createAccount("quick@zimbra.com", "secret", attrs);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private static void addMessages(Mailbox mbox, int count) throws Exception {
+        addMessages(mbox, count, "cache");
+    }
+
+    private static void addMessages(Mailbox mbox, int count, String subject) throws Exception {
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        for (int i = 0; i < count; i++) {
+            mbox.addMessage(null, MailboxTestUtil.generateMessage(subject + " " + i), dopt, null);
+        }
+    }
+
+    /**
+     * Reads a page of hits the way SearchRequest does.
+     */
+    private static List<ZimbraHit> search(Mailbox mbox, int offset, int limit, SearchParams.Fetch fetch)
+            throws Exception {
+        SearchParams params = new SearchParams();
+        params.setQueryString("in:inbox");
+        params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+        return search(mbox, params, offset, limit, fetch);
+    }
+
+    private static List<ZimbraHit> search(Mailbox mbox, SearchParams params, int offset, int limit,
+            SearchParams.Fetch fetch) throws Exception {
+        params.setSortBy(SortBy.DATE_DESC);
+        params.setOffset(offset);
+        params.setLimit(limit);
+        params.setFetchMode(fetch);
+        List<ZimbraHit> hits = new ArrayList<ZimbraHit>();
+        try (ZimbraQueryResults results = mbox.index.search(SoapProtocol.Soap12, new OperationContext(mbox), params)) {
+            ResultsPager pager = ResultsPager.create(results, params);
+            while (pager.hasNext() && hits.size() < limit) {
+                hits.add(pager.getNextHit());
+            }
+        }
+        return hits;
+    }
+
+    private static List<Integer> ids(List<ZimbraHit> hits) throws Exception {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (ZimbraHit hit : hits) {
+            ids.add(hit.getItemId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void reissue() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        addMessages(mbox, 10);
+
+        List<ZimbraHit> first = search(mbox, 0, 5, SearchParams.Fetch.NORMAL);
+        List<ZimbraHit> second = search(mbox, 0, 5, SearchParams.Fetch.NORMAL);
+        Assert.assertEquals(5, second.size());
+        Assert.assertEquals(ids(first), ids(second));
+        for (int i = 0; i < first.size(); i++) {
+            // each search builds its own hits
+            Assert.assertNotSame(first.get(i), second.get(i));
+            Assert.assertEquals(first.get(i).getSortField(SortBy.DATE_DESC),
+                    second.get(i).getSortField(SortBy.DATE_DESC));
+            Assert.assertEquals(first.get(i).getName(), second.get(i).getName());
+        }
+
+        // any change to the mailbox invalidates the cached hits
+        addMessages(mbox, 1);
+        List<ZimbraHit> third = search(mbox, 0, 5, SearchParams.Fetch.NORMAL);
+        Assert.assertEquals(5, third.size());
+        Assert.assertFalse(ids(first).contains(third.get(0).getItemId()));
+        Assert.assertEquals(11, search(mbox, 0, 100, SearchParams.Fetch.NORMAL).size());
+        Assert.assertEquals(11, search(mbox, 0, 100, SearchParams.Fetch.NORMAL).size());
+    }
+
+    @Test
+    public void pagePastCachedHits() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        addMessages(mbox, 30);
+
+        // a different fetch mode has its own entry, which serves as the reference
+        List<Integer> all = ids(search(mbox, 0, 100, SearchParams.Fetch.IDS));
+        Assert.assertEquals(30, all.size());
+
+        Assert.assertEquals(all.subList(0, 5), ids(search(mbox, 0, 5, SearchParams.Fetch.NORMAL)));
+        // runs the query again for the hits past the cached ones
+        Assert.assertEquals(all.subList(10, 15), ids(search(mbox, 10, 5, SearchParams.Fetch.NORMAL)));
+        Assert.assertEquals(all.subList(0, 5), ids(search(mbox, 0, 5, SearchParams.Fetch.NORMAL)));
+        Assert.assertEquals(all.subList(25, 30), ids(search(mbox, 25, 10, SearchParams.Fetch.NORMAL)));
+    }
+
+    @Test
+    public void conversations() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        addMessages(mbox, 3);
+
+        SearchParams params = new SearchParams();
+        params.setQueryString("in:inbox");
+        params.setTypes(EnumSet.of(MailItem.Type.CONVERSATION));
+        List<ZimbraHit> first = search(mbox, (SearchParams) params.clone(), 0, 10, SearchParams.Fetch.NORMAL);
+        List<ZimbraHit> second = search(mbox, (SearchParams) params.clone(), 0, 10, SearchParams.Fetch.NORMAL);
+        Assert.assertEquals(ids(first), ids(second));
+        for (int i = 0; i < first.size(); i++) {
+            ConversationHit expected = (ConversationHit) first.get(i);
+            ConversationHit actual = (ConversationHit) second.get(i);
+            Assert.assertEquals(expected.getNumMessageHits(), actual.getNumMessageHits());
+            Assert.assertEquals(expected.getFirstMessageHit().getItemId(), actual.getFirstMessageHit().getItemId());
+            Assert.assertSame(actual, actual.getFirstMessageHit().getConversationResult());
+        }
+    }
+
+    @Test
+    public void quickSearchWithDeferredItems() throws Exception {
+        // a mailbox of its own, out of reach of index batches the other tests may have left running
+        MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(
+                Provisioning.getInstance().getAccountByName("quick@zimbra.com"));
+        addMessages(mbox, 3, "deferred");
+
+        // a quick search doesn't index the deferred items, so its text hits must not be cached
+        SearchParams params = new SearchParams();
+        params.setQueryString("deferred");
+        params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+        params.setQuick(true);
+        Assert.assertEquals(0, search(mbox, (SearchParams) params.clone(), 0, 10, SearchParams.Fetch.NORMAL).size());
+        mbox.index.indexDeferredItems();
+        Assert.assertEquals(3, search(mbox, (SearchParams) params.clone(), 0, 10, SearchParams.Fetch.NORMAL).size());
+    }
+}
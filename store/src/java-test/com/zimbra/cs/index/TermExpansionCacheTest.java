@@ -0,0 +1,122 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for {@link TermExpansionCache}.
+ */
+public final class TermExpansionCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Test
+    public void narrowPrefix() throws Exception {
+        MockIndexReader reader = new MockIndexReader("jack", "joe", "john", "johnny", "jones", "kate");
+        TermExpansionCache cache = new TermExpansionCache(1000);
+
+        Assert.assertEquals(Arrays.asList("joe", "john", "johnny", "jones"), cache.expand(reader, "f", "jo", 10));
+        Assert.assertEquals(1, reader.enumerations);
+        // answered from the complete expansion of "jo"
+        Assert.assertEquals(Arrays.asList("john", "johnny"), cache.expand(reader, "f", "joh", 10));
+        Assert.assertEquals(Arrays.asList("johnny"), cache.expand(reader, "f", "johnn", 10));
+        Assert.assertEquals(Arrays.asList("joe", "john"), cache.expand(reader, "f", "jo", 2));
+        Assert.assertEquals(1, reader.enumerations);
+
+        // other fields don't share expansions
+        Assert.assertEquals(Arrays.asList("john", "johnny"), cache.expand(reader, "g", "joh", 10));
+        Assert.assertEquals(2, reader.enumerations);
+    }
+
+    @Test
+    public void limit() throws Exception {
+        MockIndexReader reader = new MockIndexReader("joe", "john", "johnny", "jones");
+        TermExpansionCache cache = new TermExpansionCache(1000);
+
+        Assert.assertEquals(Arrays.asList("joe", "john"), cache.expand(reader, "f", "jo", 2));
+        Assert.assertEquals(1, reader.enumerations);
+        // a truncated expansion can't answer a longer prefix or a higher limit
+        Assert.assertEquals(Arrays.asList("jones"), cache.expand(reader, "f", "jon", 2));
+        Assert.assertEquals(2, reader.enumerations);
+        Assert.assertEquals(Arrays.asList("joe", "john", "johnny"), cache.expand(reader, "f", "jo", 3));
+        Assert.assertEquals(3, reader.enumerations);
+    }
+
+    private static final class MockIndexReader implements ZimbraIndexReader {
+        private final TreeSet<String> terms = new TreeSet<String>();
+        private int enumerations = 0;
+
+        MockIndexReader(String... values) {
+            terms.addAll(Arrays.asList(values));
+        }
+
+        @Override
+        public int numDocs() {
+            return terms.size();
+        }
+
+        @Override
+        public int numDeletedDocs() {
+            return 0;
+        }
+
+        @Override
+        public TermFieldEnumeration getTermsForField(String field, String firstTermValue) {
+            enumerations++;
+            final Iterator<String> itr = terms.tailSet(firstTermValue).iterator();
+            return new TermFieldEnumeration() {
+                @Override
+                public boolean hasMoreElements() {
+                    return itr.hasNext();
+                }
+
+                @Override
+                public BrowseTerm nextElement() {
+                    return new BrowseTerm(itr.next(), 1);
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        @Override
+        public List<String> expandPrefix(String field, String prefix, int max) throws IOException {
+            return TermExpansionCache.enumerate(this, field, prefix, max).terms;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
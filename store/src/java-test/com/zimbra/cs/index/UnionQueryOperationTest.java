@@ -0,0 +1,63 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.EnumSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Unit test for {@link UnionQueryOperation}.
+ */
+public final class UnionQueryOperationTest {
+
+    @Test
+    public void merge() throws Exception {
+        MockQueryResults results = new MockQueryResults(EnumSet.of(MailItem.Type.MESSAGE), SortBy.DATE_DESC);
+        MockQueryOperation op1 = new MockQueryOperation();
+        MockQueryOperation op2 = new MockQueryOperation();
+        MockQueryOperation op3 = new MockQueryOperation();
+        for (int i = 100; i > 0; i--) {
+            (i % 3 == 0 ? op1 : i % 3 == 1 ? op2 : op3).add(new MessageHit(results, null, i, null, null, (long) i));
+        }
+        op3.add(new MessageHit(results, null, 1000, null, null, 1L)); // ties with op2's last hit
+
+        UnionQueryOperation union = new UnionQueryOperation();
+        union.add(op1);
+        union.add(op2);
+        union.add(op3);
+        union.begin(new QueryOperation.QueryContext(null, results, new SearchParams(), 10));
+
+        for (int i = 100; i > 0; i--) {
+            Assert.assertEquals(i, union.getNext().getItemId());
+        }
+        Assert.assertEquals(1000, union.getNext().getItemId());
+        Assert.assertFalse(union.hasNext());
+
+        union.resetIterator();
+        for (int i = 100; i > 90; i--) {
+            Assert.assertEquals(i, union.getNext().getItemId());
+        }
+        // the second pass only consumes the hits merged so far plus one lookahead
+        Assert.assertEquals(101 + 11, op1.getFetched() + op2.getFetched() + op3.getFetched());
+        union.close();
+    }
+
+}
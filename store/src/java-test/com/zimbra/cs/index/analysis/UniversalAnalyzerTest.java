@@ -18,6 +18,10 @@ package com.zimbra.cs.index.analysis;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.cjk.CJKAnalyzer;
@@ -200,6 +204,51 @@ public final class UniversalAnalyzerTest {
         testSTD(src);
     }
 
+    @Test
+    public void reuse() throws Exception {
+        String src = new String(ByteStreams.toByteArray(getClass().getResourceAsStream("wikipedia-zimbra.txt")),
+                Charsets.ISO_8859_1);
+        List<String> expected = tokens(universalAnalyzer.tokenStream(null, new StringReader(src)));
+        Assert.assertFalse(expected.isEmpty());
+
+        TokenStream first = universalAnalyzer.reusableTokenStream(null, new StringReader(src));
+        Assert.assertEquals(expected, tokens(first));
+        Assert.assertEquals(Arrays.asList("usa", "zimbra"),
+                tokens(universalAnalyzer.reusableTokenStream(null, new StringReader("U.S.A. the Zimbra's"))));
+        TokenStream second = universalAnalyzer.reusableTokenStream(null, new StringReader(src));
+        Assert.assertSame(first, second);
+        Assert.assertEquals(expected, tokens(second));
+
+        // each thread gets its own stream
+        final AtomicReference<TokenStream> other = new AtomicReference<TokenStream>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    other.set(universalAnalyzer.reusableTokenStream(null, new StringReader("")));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        Assert.assertNotNull(other.get());
+        Assert.assertNotSame(first, other.get());
+    }
+
+    private static List<String> tokens(TokenStream stream) throws IOException {
+        CharTermAttribute termAttr = stream.addAttribute(CharTermAttribute.class);
+        List<String> result = new ArrayList<String>();
+        stream.reset();
+        while (stream.incrementToken()) {
+            result.add(termAttr.toString());
+        }
+        stream.end();
+        stream.close();
+        return result;
+    }
+
     @Test
     public void japanese() throws Exception {
         testCJK("\u4e00");
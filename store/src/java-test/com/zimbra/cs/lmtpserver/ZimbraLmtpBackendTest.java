@@ -0,0 +1,116 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.lmtpserver;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.account.Key;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxIndex;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for {@link ZimbraLmtpBackend}.
+ */
+public final class ZimbraLmtpBackendTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, UUID.randomUUID().toString());
+        prov.createAccount("lmtp@zimbra.com", "secret", attrs);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private static LmtpReply deliver(String subject) throws Exception {
+        byte[] data = ("From: sender@example.com\r\nTo: lmtp@zimbra.com\r\nSubject: " + subject + "\r\n\r\nbody\r\n")
+                .getBytes("UTF-8");
+        LmtpEnvelope env = new LmtpEnvelope();
+        env.setSender(new LmtpAddress("<sender@example.com>", new String[] { "BODY", "SIZE" }, null));
+        LmtpAddress recipient = new LmtpAddress("<lmtp@zimbra.com>", null, null);
+        env.addLocalRecipient(recipient);
+        new ZimbraLmtpBackend(LmtpConfig.getInstance()).deliver(env, new ByteArrayInputStream(data), data.length);
+        return recipient.getDeliveryStatus();
+    }
+
+    @Test
+    public void tryAgainWhileIndexBackedUp() throws Exception {
+        Account account = Provisioning.getInstance().get(Key.AccountBy.name, "lmtp@zimbra.com");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(account);
+        int queueSize = LC.zimbra_index_lmtp_backpressure_queue_size.intValue();
+        int batchSize = account.getBatchedIndexingSize();
+        LC.zimbra_index_lmtp_backpressure_queue_size.setDefault(1);
+        final CountDownLatch started = new CountDownLatch(LC.zimbra_index_threads.intValue());
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            // hold every index thread, then queue this mailbox behind them
+            for (int i = 0; i < LC.zimbra_index_threads.intValue(); i++) {
+                mbox.index.submit(new MailboxIndex.IndexTask(mbox) {
+                    @Override
+                    protected void exec() throws Exception {
+                        started.countDown();
+                        release.await();
+                    }
+                });
+            }
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            account.setBatchedIndexingSize(1);
+            mbox.addMessage(null, MailboxTestUtil.generateMessage("queued"),
+                    new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX), null);
+            Assert.assertTrue(mbox.index.isBackedUp());
+
+            Assert.assertEquals(LmtpReply.TEMPORARY_FAILURE, deliver("held back"));
+            Assert.assertEquals(1, mbox.getItemIds(null, Mailbox.ID_FOLDER_INBOX).getIds(MailItem.Type.MESSAGE).size());
+
+            // once the mailbox has had its turn, mail is accepted again
+            release.countDown();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (mbox.index.isBackedUp() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assert.assertFalse(mbox.index.isBackedUp());
+            Assert.assertEquals(LmtpReply.DELIVERY_OK, deliver("accepted"));
+            Assert.assertEquals(2, mbox.getItemIds(null, Mailbox.ID_FOLDER_INBOX).getIds(MailItem.Type.MESSAGE).size());
+        } finally {
+            release.countDown();
+            account.setBatchedIndexingSize(batchSize);
+            LC.zimbra_index_lmtp_backpressure_queue_size.setDefault(queueSize);
+        }
+    }
+}
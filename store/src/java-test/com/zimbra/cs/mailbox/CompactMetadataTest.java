@@ -0,0 +1,139 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+
+/**
+ * Unit test for {@link CompactMetadata}.
+ */
+public class CompactMetadataTest {
+
+    private static final String ENCODED = "d1:ai1e4:aclmd1:gld1:ei0e1:g36:474b7021-cef6-469d-b5fb-54c96117efd1" +
+            "1:ri1e1:ti1eee2:gei0e2:iei0ee5:mdveri4e4:mseqi628e2:szi7596456e4:unxti744e1:vi10e2:vti5ee";
+
+    @Test
+    public void roundTrip() throws Exception {
+        Metadata meta = new Metadata(ENCODED);
+        meta.put("custom", "été 日本");
+        meta.put("neg", -3L);
+        meta.put("big", Long.MIN_VALUE);
+        meta.put("flag", true);
+
+        byte[] compact = meta.toByteArray();
+        Assert.assertTrue(compact.length < meta.toString().length());
+
+        Metadata decoded = new Metadata(compact);
+        Assert.assertEquals(meta.toString(), decoded.toString());
+        Assert.assertEquals("été 日本", decoded.get("custom"));
+        Assert.assertEquals(-3L, decoded.getLong("neg"));
+        Assert.assertEquals(Long.MIN_VALUE, decoded.getLong("big"));
+        Assert.assertTrue(decoded.getBool("flag"));
+        Assert.assertEquals(7596456L, decoded.getLong(Metadata.FN_TOTAL_SIZE));
+
+        MetadataList grants = decoded.getMap(Metadata.FN_RIGHTS_MAP).getList("g");
+        Assert.assertEquals(1, grants.size());
+        Assert.assertEquals("474b7021-cef6-469d-b5fb-54c96117efd1", grants.getMap(0).get("g"));
+    }
+
+    @Test
+    public void legacy() throws Exception {
+        Metadata meta = new Metadata(ENCODED.getBytes("UTF-8"));
+        Assert.assertEquals(628L, meta.getLong(Metadata.FN_MODSEQ));
+        Assert.assertFalse(meta.containsKey(Metadata.FN_MD_VERSION));
+        Assert.assertTrue(new Metadata((byte[]) null).isEmpty());
+    }
+
+    @Test
+    public void lazyNested() throws Exception {
+        Map<Object, Object> map = CompactMetadata.decode(new Metadata(ENCODED).toByteArray());
+        Object acl = map.get(Metadata.FN_RIGHTS_MAP);
+        Assert.assertTrue(acl instanceof Map);
+        Assert.assertEquals(3, ((Map<?, ?>) acl).size());
+        Assert.assertEquals(0L, ((Map<?, ?>) acl).get("ge"));
+    }
+
+    @Test
+    public void corrupt() throws Exception {
+        byte[] compact = new Metadata(ENCODED).toByteArray();
+        for (int length = 2; length < compact.length; length++) {
+            try {
+                new Metadata(Arrays.copyOf(compact, length));
+                Assert.fail("truncated at " + length);
+            } catch (ServiceException e) {
+                Assert.assertEquals(MailServiceException.INVALID_METADATA, e.getCode());
+            }
+        }
+    }
+
+    @Test
+    public void corruptNested() throws Exception {
+        Metadata meta = new Metadata();
+        meta.put("x", new Metadata().put("y", 1L));
+        byte[] compact = meta.toByteArray();
+        compact[compact.length - 2] = 99; // type byte of the nested value
+        try {
+            new Metadata(compact);
+            Assert.fail("corrupt nested map");
+        } catch (ServiceException e) {
+            Assert.assertEquals(MailServiceException.INVALID_METADATA, e.getCode());
+        }
+    }
+
+    @Test
+    public void concurrentExpand() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            final Map<Object, Object> map = CompactMetadata.decode(new Metadata(ENCODED).toByteArray());
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            Map<?, ?> acl = (Map<?, ?>) map.get(Metadata.FN_RIGHTS_MAP);
+                            List<?> grants = (List<?>) acl.get("g");
+                            Assert.assertEquals(1, grants.size());
+                            Assert.assertEquals(1L, ((Map<?, ?>) grants.get(0)).get("r"));
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+        }
+    }
+}
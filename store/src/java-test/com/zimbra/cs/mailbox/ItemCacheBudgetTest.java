@@ -0,0 +1,181 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+
+/**
+ * Unit test for {@link ItemCacheBudget}.
+ */
+public final class ItemCacheBudgetTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        ItemCacheBudget.unregisterAll();
+    }
+
+    @Test
+    public void weigh() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Folder.FolderOptions fopt = new Folder.FolderOptions().setDefaultView(MailItem.Type.DOCUMENT);
+        Folder small = mbox.createFolder(null, "a", fopt);
+        Folder large = mbox.createFolder(null, "a much longer folder name than the other one", fopt);
+
+        int smallWeight = ItemCacheBudget.weigh(small);
+        Assert.assertTrue(smallWeight > ItemCacheBudget.ITEM_OVERHEAD);
+        Assert.assertTrue(ItemCacheBudget.weigh(large) > smallWeight);
+    }
+
+    @Test
+    public void emptyCachesCountSeparately() throws Exception {
+        List<ConcurrentLinkedHashMap<Integer, Integer>> caches = new ArrayList<ConcurrentLinkedHashMap<Integer, Integer>>();
+        for (int i = 0; i < 5; i++) {
+            ConcurrentLinkedHashMap<Integer, Integer> cache = newCache();
+            ItemCacheBudget.register(cache, false);
+            caches.add(cache);
+        }
+        ItemCacheBudget.rebalance();
+        long expected = Math.max(ItemCacheBudget.getBudget() / caches.size(), ItemCacheBudget.minShare(false));
+        for (ConcurrentLinkedHashMap<Integer, Integer> cache : caches) {
+            Assert.assertTrue("capacity " + cache.capacity(), cache.capacity() <= expected);
+        }
+    }
+
+    @Test
+    public void manyMailboxesStayWithinBudget() throws Exception {
+        List<ConcurrentLinkedHashMap<Integer, Integer>> caches = new ArrayList<ConcurrentLinkedHashMap<Integer, Integer>>();
+        for (int i = 0; i < 500; i++) {
+            ConcurrentLinkedHashMap<Integer, Integer> cache = newCache();
+            ItemCacheBudget.register(cache, false);
+            caches.add(cache);
+            // fill each cache to whatever share it was handed when it was loaded
+            int weight = (int) Math.max(Math.min(cache.capacity() / 4, Integer.MAX_VALUE), 1);
+            for (int key = 0; cache.weightedSize() + weight <= cache.capacity(); key++) {
+                cache.put(key, weight);
+            }
+        }
+        ItemCacheBudget.rebalance();
+        long total = 0;
+        for (ConcurrentLinkedHashMap<Integer, Integer> cache : caches) {
+            Assert.assertTrue(cache.capacity() >= ItemCacheBudget.minShare(false));
+            total += cache.weightedSize();
+        }
+        // only the minimum shares may take the total over the budget
+        long limit = Math.max(ItemCacheBudget.getBudget(), caches.size() * ItemCacheBudget.minShare(false));
+        Assert.assertTrue("total " + total, total <= limit);
+        Assert.assertTrue(ItemCacheBudget.getWeightedSize() <= limit);
+    }
+
+    @Test
+    public void hotMailboxKeepsHits() throws Exception {
+        List<ConcurrentLinkedHashMap<Integer, Integer>> idle = new ArrayList<ConcurrentLinkedHashMap<Integer, Integer>>();
+        for (int i = 0; i < 5000; i++) {
+            ConcurrentLinkedHashMap<Integer, Integer> cache = newCache();
+            ItemCacheBudget.register(cache, false);
+            idle.add(cache);
+        }
+        ConcurrentLinkedHashMap<Integer, Integer> hot = newCache();
+        ItemCacheBudget.Tracker tracker = ItemCacheBudget.register(hot, false);
+        ItemCacheBudget.rebalance();
+
+        // far more mailboxes than the budget can split evenly, yet a few hundred items still fit
+        int items = LC.zimbra_mailbox_active_cache.intValue() / 2;
+        int hits = 0;
+        for (int round = 0; round < 3; round++) {
+            hits = 0;
+            for (int key = 0; key < items; key++) {
+                tracker.record();
+                if (hot.get(key) != null) {
+                    hits++;
+                } else {
+                    hot.put(key, ItemCacheBudget.AVERAGE_ITEM_WEIGHT);
+                }
+            }
+            ItemCacheBudget.rebalance();
+        }
+        Assert.assertEquals(items, hits);
+        Assert.assertTrue(hot.capacity() >= idle.get(0).capacity());
+    }
+
+    @Test
+    public void busyMailboxGetsMore() throws Exception {
+        long minShare = ItemCacheBudget.minShare(false);
+        List<ConcurrentLinkedHashMap<Integer, Integer>> idle = new ArrayList<ConcurrentLinkedHashMap<Integer, Integer>>();
+        for (long i = 0; i < Math.max(ItemCacheBudget.getBudget() / minShare / 2, 1); i++) {
+            ConcurrentLinkedHashMap<Integer, Integer> cache = newCache();
+            ItemCacheBudget.register(cache, false);
+            idle.add(cache);
+        }
+        ConcurrentLinkedHashMap<Integer, Integer> busy = newCache();
+        ItemCacheBudget.Tracker tracker = ItemCacheBudget.register(busy, false);
+        for (int i = 0; i < 1000; i++) {
+            tracker.record();
+        }
+        ItemCacheBudget.rebalance();
+        Assert.assertEquals(minShare, idle.get(0).capacity());
+        Assert.assertTrue("capacity " + busy.capacity(), busy.capacity() > 2 * minShare);
+
+        // the space goes back once the mailbox is idle
+        for (int i = 0; i < 20; i++) {
+            ItemCacheBudget.rebalance();
+        }
+        Assert.assertEquals(idle.get(0).capacity(), busy.capacity());
+    }
+
+    @Test
+    public void galSyncMinimum() throws Exception {
+        for (int i = 0; i < 5000; i++) {
+            ItemCacheBudget.register(newCache(), false);
+        }
+        ConcurrentLinkedHashMap<Integer, Integer> galSync = newCache();
+        ItemCacheBudget.register(galSync, true);
+        ItemCacheBudget.rebalance();
+        Assert.assertTrue(galSync.capacity() >=
+                (long) LC.zimbra_mailbox_galsync_cache.intValue() * ItemCacheBudget.AVERAGE_ITEM_WEIGHT);
+    }
+
+    private static ConcurrentLinkedHashMap<Integer, Integer> newCache() {
+        return new ConcurrentLinkedHashMap.Builder<Integer, Integer>().maximumWeightedCapacity(ItemCacheBudget.getBudget())
+                .weigher(new Weigher<Integer>() {
+                    @Override
+                    public int weightOf(Integer value) {
+                        return value;
+                    }
+                }).build();
+    }
+}
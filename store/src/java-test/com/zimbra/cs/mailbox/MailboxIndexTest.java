@@ -0,0 +1,175 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.index.SortBy;
+import com.zimbra.cs.index.ZimbraQueryResults;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Unit test for {@link MailboxIndex}.
+ */
+public final class MailboxIndexTest {
+    private static final int COUNT = 150; // more than the default parse queue depth
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private static List<Integer> addMessages(Mailbox mbox) throws Exception {
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < COUNT; i++) {
+            String subject = "pipeline " + i + (i % 3 == 0 ? " third" : "");
+            ids.add(mbox.addMessage(null, MailboxTestUtil.generateMessage(subject), dopt, null).getId());
+        }
+        return ids;
+    }
+
+    private static int count(Mailbox mbox, String query) throws Exception {
+        ZimbraQueryResults results = mbox.index.search(new OperationContext(mbox), query,
+                EnumSet.of(MailItem.Type.MESSAGE), SortBy.NONE, COUNT * 2);
+        try {
+            int count = 0;
+            while (results.hasNext()) {
+                results.getNext();
+                count++;
+            }
+            return count;
+        } finally {
+            results.close();
+        }
+    }
+
+    @Test
+    public void indexDeferredItems() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        addMessages(mbox);
+        mbox.index.indexDeferredItems();
+
+        Assert.assertEquals(COUNT, count(mbox, "subject:pipeline"));
+        Assert.assertEquals(COUNT / 3, count(mbox, "subject:third"));
+    }
+
+    @Test
+    public void indexLag() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        mbox.index.indexDeferredItems();
+        Assert.assertEquals(0, mbox.index.getIndexLagMillis());
+
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        mbox.addMessage(null, MailboxTestUtil.generateMessage("lag"), dopt, null);
+        Thread.sleep(10);
+        Assert.assertTrue(mbox.index.getIndexLagMillis() > 0);
+
+        mbox.index.indexDeferredItems();
+        Assert.assertEquals(0, mbox.index.getIndexLagMillis());
+        Assert.assertEquals(1, count(mbox, "subject:lag"));
+    }
+
+    @Test
+    public void indexLagOfOldestPending() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        mbox.index.indexDeferredItems();
+
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        int first = mbox.addMessage(null, MailboxTestUtil.generateMessage("first"), dopt, null).getId();
+        Thread.sleep(100);
+        mbox.addMessage(null, MailboxTestUtil.generateMessage("second"), dopt, null);
+        Thread.sleep(10);
+        long lag = mbox.index.getIndexLagMillis();
+        Assert.assertTrue(lag >= 100);
+
+        // the second item is still pending, so the lag is its age rather than 0
+        mbox.index.removeDeferredId(first);
+        long remaining = mbox.index.getIndexLagMillis();
+        Assert.assertTrue(remaining > 0);
+        Assert.assertTrue(remaining < lag);
+    }
+
+    @Test
+    public void batchTurns() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Account account = mbox.getAccount();
+        int perTurn = LC.zimbra_index_batch_items_per_turn.intValue();
+        int batchSize = account.getBatchedIndexingSize();
+        LC.zimbra_index_batch_items_per_turn.setDefault(10);
+        try {
+            account.setBatchedIndexingSize(Integer.MAX_VALUE);
+            DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+            for (int i = 0; i < 25; i++) {
+                mbox.addMessage(null, MailboxTestUtil.generateMessage("turn " + i), dopt, null);
+            }
+            long turns = ZimbraPerf.HISTOGRAM_IDX_LAG_MS.getCount(); // one per turn
+            account.setBatchedIndexingSize(1);
+            mbox.index.maybeIndexDeferredItems();
+
+            // each turn indexes 10 items and puts the mailbox back in the queue for the rest
+            long deadline = System.currentTimeMillis() + 60000;
+            while (mbox.index.getIndexLagMillis() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assert.assertEquals(0, mbox.index.getIndexLagMillis());
+            Assert.assertTrue(ZimbraPerf.HISTOGRAM_IDX_LAG_MS.getCount() - turns >= 3);
+            Assert.assertEquals(25, count(mbox, "subject:turn"));
+        } finally {
+            account.setBatchedIndexingSize(batchSize);
+            LC.zimbra_index_batch_items_per_turn.setDefault(perTurn);
+        }
+    }
+
+    @Test
+    public void reIndexById() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        List<Integer> ids = addMessages(mbox);
+        mbox.index.indexDeferredItems();
+
+        // ids of deleted items are skipped
+        mbox.delete(null, ids.get(10), MailItem.Type.MESSAGE);
+        mbox.index.startReIndexById(ids);
+        long deadline = System.currentTimeMillis() + 60000;
+        while (mbox.index.isReIndexInProgress() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertFalse(mbox.index.isReIndexInProgress());
+
+        Assert.assertEquals(COUNT - 1, count(mbox, "subject:pipeline"));
+        Assert.assertEquals(COUNT / 3, count(mbox, "subject:third"));
+    }
+}
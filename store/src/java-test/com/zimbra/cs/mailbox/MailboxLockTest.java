@@ -21,7 +21,9 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -34,6 +36,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.MockProvisioning;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.mailbox.Mailbox.FolderNode;
 import com.zimbra.cs.mailbox.MailboxLock.LockFailedException;
 import com.zimbra.cs.service.util.ItemId;
@@ -128,6 +131,108 @@ public class MailboxLockTest {
         Assert.assertEquals(0, holdCount);
     }
 
+    @Test
+    public void optimisticRead() throws ServiceException {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        long stamp = mbox.lock.tryOptimisticRead();
+        Assert.assertTrue(stamp != 0L);
+        Assert.assertTrue(mbox.lock.validate(stamp));
+
+        // readers don't invalidate the stamp
+        mbox.lock.lock(false);
+        mbox.lock.release();
+        Assert.assertTrue(mbox.lock.validate(stamp));
+
+        // no optimistic reads while a writer holds the lock, including nested holds
+        mbox.lock.lock(true);
+        Assert.assertEquals(0L, mbox.lock.tryOptimisticRead());
+        mbox.lock.lock(true);
+        mbox.lock.release();
+        Assert.assertEquals(0L, mbox.lock.tryOptimisticRead());
+        mbox.lock.release();
+        Assert.assertFalse(mbox.lock.validate(stamp));
+
+        stamp = mbox.lock.tryOptimisticRead();
+        Assert.assertTrue(stamp != 0L);
+        mbox.createFolder(null, "optimistic", new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
+        Assert.assertFalse(mbox.lock.validate(stamp));
+        Assert.assertEquals(0, mbox.getModifiedFolders(mbox.getLastChangeID()).size());
+        Assert.assertFalse(mbox.getModifiedFolders(mbox.getLastChangeID() - 1).isEmpty());
+    }
+
+    @Test
+    public void optimisticFolderReads() throws Exception {
+        final Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        final Folder folder = mbox.createFolder(null, "optimistic",
+                        new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
+        final Tag tag = mbox.createTag(null, "optimistic", (byte) 0);
+
+        // a reader holds the lock and a writer queues up behind it; new readers would normally queue behind the writer
+        final CountDownLatch readLocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread reader = new Thread("MailboxLockTest-OptimisticReader") {
+            @Override
+            public void run() {
+                mbox.lock.lock(false);
+                readLocked.countDown();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                }
+                mbox.lock.release();
+            }
+        };
+        Thread writer = new Thread("MailboxLockTest-OptimisticWriter") {
+            @Override
+            public void run() {
+                mbox.lock.lock(true);
+                mbox.lock.release();
+            }
+        };
+        reader.start();
+        readLocked.await();
+        writer.start();
+        while (!mbox.lock.hasQueuedThreads()) {
+            Thread.sleep(10);
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread lookups = new Thread("MailboxLockTest-OptimisticLookups") {
+            @Override
+            public void run() {
+                try {
+                    Assert.assertSame(folder, mbox.getFolderById(null, folder.getId()));
+                    Assert.assertSame(folder, mbox.getFolderByPath(null, "/optimistic"));
+                    Assert.assertTrue(mbox.getFolderList(null, SortBy.NONE).contains(folder));
+                    Assert.assertSame(tag, mbox.getTagById(null, tag.getId()));
+                    Assert.assertTrue(mbox.getTagList(null).contains(tag));
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        lookups.start();
+        lookups.join(5000);
+        boolean blocked = lookups.isAlive();
+        done.countDown();
+        lookups.join();
+        reader.join();
+        writer.join();
+        Assert.assertFalse("lookups queued behind the writer", blocked);
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // writes are visible to later optimistic reads, and misses still go through the locked path
+        mbox.rename(null, folder.getId(), MailItem.Type.FOLDER, "renamed", Mailbox.ID_FOLDER_USER_ROOT);
+        Assert.assertSame(folder, mbox.getFolderByPath(null, "/renamed"));
+        try {
+            mbox.getFolderByPath(null, "/optimistic");
+            Assert.fail("old path still resolves");
+        } catch (MailServiceException.NoSuchItemException e) {
+        }
+    }
+
     @Test
     public void multiAccess() throws ServiceException {
         final Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
@@ -0,0 +1,97 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+
+/**
+ * Unit test for {@link MessageCache}.
+ */
+public final class MessageCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void concurrentLoad() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        final Message msg = mbox.addMessage(null, MailboxTestUtil.generateMessage("test"),
+                MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+        MessageCache.purge(msg);
+        Assert.assertFalse(MessageCache.contains(msg.getDigest()));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<MimeMessage>> results = new ArrayList<Future<MimeMessage>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<MimeMessage>() {
+                    @Override
+                    public MimeMessage call() throws Exception {
+                        return MessageCache.getMimeMessage(msg, false);
+                    }
+                }));
+            }
+            MimeMessage first = results.get(0).get();
+            for (Future<MimeMessage> result : results) {
+                Assert.assertSame("all callers share one parsed message", first, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertTrue(MessageCache.contains(msg.getDigest()));
+        Assert.assertTrue(MessageCache.getDataSize() > 0);
+    }
+
+    @Test
+    public void expand() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg = mbox.addMessage(null, MailboxTestUtil.generateMessage("test"),
+                MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+        MimeMessage original = MessageCache.getMimeMessage(msg, false);
+        // nothing to convert in a plain text message, so the expanded variant is the original
+        Assert.assertSame(original, MessageCache.getMimeMessage(msg, true));
+
+        MessageCache.purge(msg);
+        Assert.assertFalse(MessageCache.contains(msg.getDigest()));
+        Assert.assertNotSame(original, MessageCache.getMimeMessage(msg, true));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.zimbra.cs.mailbox.MailboxOperation;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.TransactionId;
+import com.zimbra.cs.redolog.op.CopyItem;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+public class GroupCommitLogWriterTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private RedoLogManager mockRedoLogManager;
+    private File logfile;
+    private GroupCommitLogWriter logWriter;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mockRedoLogManager = EasyMock.createNiceMock(RedoLogManager.class);
+        logfile = folder.newFile("logfile");
+        logWriter = new GroupCommitLogWriter(mockRedoLogManager, logfile);
+    }
+
+    @Test
+    public void openLogClose() throws Exception {
+        Assert.assertTrue("file starts empty", logWriter.isEmpty());
+        logWriter.open();
+        Assert.assertTrue("file empty after open", logWriter.isEmpty());
+
+        RedoableOp op = EasyMock.createMockBuilder(RedoableOp.class)
+                            .withConstructor(MailboxOperation.Preview)
+                            .createMock();
+
+        logWriter.log(op, new ByteArrayInputStream("some bytes".getBytes()), false /* asynchronous */);
+        Assert.assertEquals("file size incorrect.", FileHeader.HEADER_LEN + 10, logWriter.getSize());
+        logWriter.flush();
+        Assert.assertEquals("bytes not on disk after flush", FileHeader.HEADER_LEN + 10, logfile.length());
+        logWriter.close();
+        final long createTime = logWriter.getCreateTime();
+
+        logWriter = new GroupCommitLogWriter(mockRedoLogManager, logfile);
+        Assert.assertEquals("file size incorrect.", FileHeader.HEADER_LEN + 10, logWriter.getSize());
+        logWriter.open();
+        Assert.assertEquals(createTime, logWriter.getCreateTime());
+        logWriter.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void logBeforeOpen() throws Exception {
+        logWriter.log(null, null, false);
+    }
+
+    @Test
+    public void concurrentSynchronousLog() throws Exception {
+        logWriter.open();
+        final int numThreads = 8;
+        final int opsPerThread = 50;
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < numThreads; t++) {
+            final int threadNum = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < opsPerThread; i++) {
+                            RedoableOp op = newOp(new TransactionId(threadNum, i));
+                            logWriter.log(op, op.getInputStream(), i % 2 == 0);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        logWriter.close();
+        Assert.assertEquals(logWriter.getSize(), logfile.length());
+
+        FileLogReader logReader = new FileLogReader(logfile);
+        logReader.open();
+        Set<TransactionId> seen = new HashSet<TransactionId>();
+        RedoableOp op;
+        while ((op = logReader.getNextOp()) != null) {
+            Assert.assertTrue("duplicate " + op.getTransactionId(), seen.add(op.getTransactionId()));
+        }
+        logReader.close();
+        Assert.assertEquals(numThreads * opsPerThread, seen.size());
+    }
+
+    private static RedoableOp newOp(TransactionId id) {
+        RedoableOp op = EasyMock.createMockBuilder(CopyItem.class)
+                            .withConstructor()
+                            .addMockedMethod("getTransactionId")
+                            .createMock();
+        EasyMock.expect(op.getTransactionId()).andStubReturn(id);
+        EasyMock.replay(op);
+        return op;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailboxOperation;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.RedoLogInput;
+import com.zimbra.cs.redolog.RedoLogOutput;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+public class ParallelRedoPlayerTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    private final Map<Integer, List<Integer>> played = new HashMap<Integer, List<Integer>>();
+    private final AtomicInteger finished = new AtomicInteger();
+
+    private class TestOp extends RedoableOp {
+        private final int seq;
+        private final int expectFinished;
+
+        TestOp(int mboxId, int seq, int expectFinished) {
+            super(MailboxOperation.Preview);
+            setMailboxId(mboxId);
+            this.seq = seq;
+            this.expectFinished = expectFinished;
+        }
+
+        @Override
+        public void redo() throws Exception {
+            if (expectFinished >= 0) {
+                Assert.assertEquals("ops queued before a server-wide op must be done", expectFinished, finished.get());
+            } else {
+                Thread.sleep(seq % 3);
+            }
+            synchronized (played) {
+                List<Integer> list = played.get(getMailboxId());
+                if (list == null) {
+                    list = new ArrayList<Integer>();
+                    played.put(getMailboxId(), list);
+                }
+                list.add(seq);
+            }
+            finished.incrementAndGet();
+        }
+
+        @Override
+        protected String getPrintableData() {
+            return "seq=" + seq;
+        }
+
+        @Override
+        protected void serializeData(RedoLogOutput out) throws IOException {
+        }
+
+        @Override
+        protected void deserializeData(RedoLogInput in) throws IOException {
+        }
+    }
+
+    @Test
+    public void orderAndBarriers() throws Exception {
+        ParallelRedoPlayer player = new ParallelRedoPlayer(false, true, false, false, 4, 10, false);
+        int submitted = 0;
+        try {
+            for (int seq = 0; seq < 200; seq++) {
+                if (seq % 50 == 49) {
+                    player.playOp(new TestOp(RedoableOp.MAILBOX_ID_ALL, seq, submitted));
+                } else {
+                    player.playOp(new TestOp(1 + seq % 7, seq, -1));
+                }
+                submitted++;
+            }
+        } finally {
+            player.shutdown();
+        }
+        Assert.assertEquals(submitted, finished.get());
+        for (List<Integer> seqs : played.values()) {
+            for (int i = 1; i < seqs.size(); i++) {
+                Assert.assertTrue("out of order: " + seqs, seqs.get(i - 1) < seqs.get(i));
+            }
+        }
+        Assert.assertEquals(4, played.get(RedoableOp.MAILBOX_ID_ALL).size());
+    }
+}
@@ -17,6 +17,7 @@
 
 package com.zimbra.cs.store;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -25,7 +26,10 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPOutputStream;
 
 import org.junit.After;
@@ -122,6 +126,102 @@ public class FileDescriptorCacheTest {
         assertEquals(2, fdc.getSize());
     }
 
+    @Test
+    public void mappedRead() throws Exception {
+        FileDescriptorCache fdc = new FileDescriptorCache(null).setMmapThreshold(1024);
+        byte[] content = new byte[4096];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        File file = writeRaw(content);
+
+        byte[] buf = new byte[100];
+        assertEquals(100, fdc.read(file.getPath(), content.length, 2000, buf, 0, buf.length));
+        assertArrayEquals(Arrays.copyOfRange(content, 2000, 2100), buf);
+        assertEquals(content.length, fdc.getMappedBytes());
+
+        // short read at the end of the file, then EOF
+        assertEquals(96, fdc.read(file.getPath(), content.length, 4000, buf, 0, buf.length));
+        assertEquals(-1, fdc.read(file.getPath(), content.length, 4096, buf, 0, buf.length));
+
+        fdc.remove(file.getPath());
+        assertEquals(0, fdc.getSize());
+        assertEquals(0, fdc.getMappedBytes());
+    }
+
+    @Test
+    public void deferredClose() throws Exception {
+        File file = writeRaw("Up The Junction".getBytes());
+        SharedFile sf = new SharedFile(file);
+
+        assertTrue(sf.aboutToRead());
+        assertFalse("in use", sf.retire());
+        assertFalse(sf.isClosed());
+        byte[] buf = new byte[2];
+        assertEquals(2, sf.read(0, buf, 0, buf.length));
+        assertTrue("last reader closes", sf.doneReading());
+        assertTrue(sf.isClosed());
+        assertFalse(sf.aboutToRead());
+    }
+
+    @Test
+    public void concurrentReads() throws Exception {
+        final FileDescriptorCache fdc = new FileDescriptorCache(null).setMaxSize(2);
+        final File[] files = new File[4];
+        final byte[][] contents = new byte[files.length][];
+        for (int i = 0; i < files.length; i++) {
+            contents[i] = ("Another Nail In My Heart " + i).getBytes();
+            files[i] = writeRaw(contents[i]);
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 2000; i++) {
+                            int n = (seed + i) % files.length;
+                            byte[] buf = new byte[contents[n].length];
+                            int numRead = fdc.read(files[n].getPath(), buf.length, 0, buf, 0, buf.length);
+                            assertEquals(buf.length, numRead);
+                            assertArrayEquals(contents[n], buf);
+                            if (i % 100 == 0) {
+                                fdc.remove(files[n].getPath());
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertTrue(fdc.getSize() <= 2);
+        fdc.shutdown();
+        assertEquals(0, fdc.getSize());
+    }
+
+    private File writeRaw(byte[] content) throws IOException {
+        File file = File.createTempFile(NAME_PREFIX, ".tmp");
+        tempFiles.add(file);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+        return file;
+    }
+
     private void write(File file, String content)
     throws IOException {
         OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
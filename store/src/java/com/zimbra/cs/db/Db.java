@@ -285,6 +285,26 @@ public abstract class Db {
     @SuppressWarnings("unused")
     public void enableStreaming(Statement stmt) throws SQLException {}
 
+    /**
+     * Returns the replication position of the database, covering every transaction committed so far, or
+     * <tt>null</tt> if the database can't tell.
+     */
+    @SuppressWarnings("unused")
+    public String getReplicationPosition(DbConnection conn) throws SQLException {
+        return null;
+    }
+
+    /**
+     * Waits for the replica behind <tt>conn</tt> to apply every transaction up to the replication position.
+     *
+     * @return <tt>true</tt> if the replica has reached the position, <tt>false</tt> if it didn't in time or the
+     * database can't tell
+     */
+    @SuppressWarnings("unused")
+    public boolean waitForReplication(DbConnection conn, String position, long timeoutMillis) throws SQLException {
+        return false;
+    }
+
     /** Generates a WHERE-type clause that evaluates to {@code expr1} if
      *  its value is non-<tt>NULL</tt> and {@code expr2} otherwise. */
     public static String clauseIFNULL(String expr1, String expr2) {
@@ -0,0 +1,79 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import com.zimbra.common.localconfig.LC;
+
+/**
+ * Groups executions of a {@link PreparedStatement} into JDBC batches of at most {@link LC#zimbra_db_batch_size}
+ * statements, so that a multi-item operation costs one round trip per batch instead of one per item. With
+ * {@code rewriteBatchedStatements} the MySQL and MariaDB drivers also collapse a batch of single-row INSERTs into
+ * one multi-row INSERT.
+ * <p>
+ * Bind the parameters as usual, then call {@link #add()} instead of {@code executeUpdate()}, and {@link #finish()}
+ * once all rows have been added. The caller still owns and closes the statement.
+ */
+public final class DbBatch {
+    private final PreparedStatement stmt;
+    private final int batchSize;
+    private int pending = 0;
+    private int batches = 0;
+
+    public DbBatch(PreparedStatement stmt) {
+        this(stmt, LC.zimbra_db_batch_size.intValue());
+    }
+
+    public DbBatch(PreparedStatement stmt, int batchSize) {
+        this.stmt = stmt;
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    /**
+     * Adds the current parameters to the batch, and sends the batch once it is full.
+     */
+    public void add() throws SQLException {
+        stmt.addBatch();
+        if (++pending >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the statements added since the last batch, if any.
+     */
+    public void finish() throws SQLException {
+        if (pending > 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Returns the number of batches sent to the database so far.
+     */
+    public int getBatchCount() {
+        return batches;
+    }
+
+    private void flush() throws SQLException {
+        stmt.executeBatch();
+        pending = 0;
+        batches++;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.mailbox.Mailbox;
+
+/**
+ * Append-only log of the items touched by each mailbox change, written in the same database transaction as the
+ * change itself.  Sync queries for "items modified since change N" read the range of the log after N and look up
+ * only those items, instead of range-scanning <tt>mail_item</tt> by <tt>mod_metadata</tt>.
+ * <p>
+ * Each mailbox's log has a horizon, kept in the row for item {@link #HORIZON_ITEM_ID}: every change after the
+ * horizon is in the log.  Syncs from before the horizon fall back to scanning <tt>mail_item</tt>.  Compaction drops
+ * the rows up to a new horizon, as <tt>mail_item.mod_metadata</tt> already holds each item's latest change.  Changes
+ * made while the log is disabled aren't logged, so a log that items have been modified past is not used again; the
+ * next logged change starts it over.  With the log disabled the table isn't touched at all.
+ *
+ * @see LC#zimbra_change_log_enabled
+ */
+public final class DbChangeLog {
+
+    public static final String TABLE_CHANGE_LOG = "change_log";
+
+    /** horizon of a mailbox that has no change log yet, i.e. no sync can be served from the log */
+    public static final int NO_HORIZON = Integer.MAX_VALUE;
+
+    private static final int HORIZON_ITEM_ID = 0;
+
+    private DbChangeLog() {
+    }
+
+    public static boolean isEnabled() {
+        return LC.zimbra_change_log_enabled.booleanValue();
+    }
+
+    public static String getChangeLogTableName(Mailbox mbox) {
+        return DbMailbox.qualifyTableName(mbox, TABLE_CHANGE_LOG);
+    }
+
+    /**
+     * Returns the change after which every change to the mailbox is in the log, or {@link #NO_HORIZON}.  The log has
+     * no horizon if an item was modified after the last logged change, up to and including <tt>lastChangeId</tt>,
+     * as happens when changes are made while the log is disabled.
+     */
+    public static int getHorizon(DbConnection conn, Mailbox mbox, int lastChangeId) throws ServiceException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement("SELECT change_id FROM " + getChangeLogTableName(mbox) +
+                    " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + "item_id = ?");
+            int pos = DbMailItem.setMailboxId(stmt, mbox, 1);
+            stmt.setInt(pos, HORIZON_ITEM_ID);
+            rs = stmt.executeQuery();
+            if (!rs.next()) {
+                return NO_HORIZON;
+            }
+            int horizon = rs.getInt(1);
+            rs.close();
+            stmt.close();
+
+            stmt = conn.prepareStatement("SELECT MAX(change_id) FROM " + getChangeLogTableName(mbox) +
+                    (DebugConfig.disableMailboxGroups ? "" : " WHERE mailbox_id = ?"));
+            DbMailItem.setMailboxId(stmt, mbox, 1);
+            rs = stmt.executeQuery();
+            int lastLogged = rs.next() ? Math.max(rs.getInt(1), horizon) : horizon;
+            rs.close();
+            stmt.close();
+
+            stmt = conn.prepareStatement("SELECT id FROM " + DbMailItem.getMailItemTableName(mbox) +
+                    " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + "mod_metadata > ? AND mod_metadata <= ?");
+            pos = DbMailItem.setMailboxId(stmt, mbox, 1);
+            stmt.setInt(pos++, lastLogged);
+            stmt.setInt(pos++, lastChangeId);
+            stmt.setMaxRows(1);
+            rs = stmt.executeQuery();
+            return rs.next() ? NO_HORIZON : horizon;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("reading change log horizon for mailbox " + mbox.getId(), e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
+
+    /**
+     * Starts the mailbox's log, dropping whatever is left of an earlier log; every change after <tt>horizon</tt> must
+     * be appended from now on.
+     */
+    public static void start(DbConnection conn, Mailbox mbox, int horizon) throws ServiceException {
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement("DELETE FROM " + getChangeLogTableName(mbox) +
+                    " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + "change_id <= ?");
+            int pos = DbMailItem.setMailboxId(stmt, mbox, 1);
+            stmt.setInt(pos, horizon);
+            stmt.executeUpdate();
+            stmt.close();
+
+            stmt = conn.prepareStatement("INSERT INTO " + getChangeLogTableName(mbox) +
+                    "(" + DbMailItem.MAILBOX_ID + "change_id, item_id, change_mask)" +
+                    " VALUES (" + DbMailItem.MAILBOX_ID_VALUE + "?, ?, 0)");
+            pos = DbMailItem.setMailboxId(stmt, mbox, 1);
+            stmt.setInt(pos++, horizon);
+            stmt.setInt(pos++, HORIZON_ITEM_ID);
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("starting change log for mailbox " + mbox.getId(), e);
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+    }
+
+    /**
+     * Returns the items whose <tt>mod_metadata</tt> is the given change, for changes that update items in bulk without
+     * loading them.
+     */
+    public static List<Integer> getModifiedItems(DbConnection conn, Mailbox mbox, int changeId)
+            throws ServiceException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement("SELECT id FROM " + DbMailItem.getMailItemTableName(mbox) +
+                    " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + "mod_metadata = ?");
+            int pos = DbMailItem.setMailboxId(stmt, mbox, 1);
+            stmt.setInt(pos, changeId);
+            rs = stmt.executeQuery();
+            List<Integer> ids = new ArrayList<Integer>();
+            while (rs.next()) {
+                ids.add(rs.getInt(1));
+            }
+            return ids;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("reading items modified by change " + changeId + " for mailbox " +
+                    mbox.getId(), e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
+
+    /**
+     * Logs the items touched by one change.
+     *
+     * @param changes item id to the {@link com.zimbra.cs.session.PendingModifications.Change} mask of what changed
+     */
+    public static void append(DbConnection conn, Mailbox mbox, int changeId, Map<Integer, Integer> changes)
+            throws ServiceException {
+        if (changes.isEmpty()) {
+            return;
+        }
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement("INSERT INTO " + getChangeLogTableName(mbox) +
+                    "(" + DbMailItem.MAILBOX_ID + "change_id, item_id, change_mask)" +
+                    " VALUES (" + DbMailItem.MAILBOX_ID_VALUE + "?, ?, ?)");
+            DbBatch batch = new DbBatch(stmt);
+            for (Map.Entry<Integer, Integer> entry : changes.entrySet()) {
+                int pos = DbMailItem.setMailboxId(stmt, mbox, 1);
+                stmt.setInt(pos++, changeId);
+                stmt.setInt(pos++, entry.getKey());
+                stmt.setInt(pos++, entry.getValue());
+                batch.add();
+            }
+            batch.finish();
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("logging change " + changeId + " for mailbox " + mbox.getId(), e);
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+    }
+
+    /**
+     * Drops the log entries up to and including change <tt>horizon</tt> and moves the horizon there.
+     *
+     * @return the number of entries dropped
+     */
+    public static int compact(DbConnection conn, Mailbox mbox, int horizon) throws ServiceException {
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement("DELETE FROM " + getChangeLogTableName(mbox) +
+                    " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + "change_id <= ? AND item_id <> ?");
+            int pos = DbMailItem.setMailboxId(stmt, mbox, 1);
+            stmt.setInt(pos++, horizon);
+            stmt.setInt(pos++, HORIZON_ITEM_ID);
+            int dropped = stmt.executeUpdate();
+            stmt.close();
+
+            stmt = conn.prepareStatement("UPDATE " + getChangeLogTableName(mbox) + " SET change_id = ?" +
+                    " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + "item_id = ?");
+            stmt.setInt(1, horizon);
+            pos = DbMailItem.setMailboxId(stmt, mbox, 2);
+            stmt.setInt(pos++, HORIZON_ITEM_ID);
+            stmt.executeUpdate();
+            return dropped;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("compacting change log for mailbox " + mbox.getId(), e);
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+    }
+
+    /**
+     * Returns a <tt>mail_item</tt> constraint that limits a query to the items logged after a change, for use in
+     * front of the <tt>mod_metadata</tt> constraint.  Bind it with {@link #setLoggedSince}.
+     */
+    static String loggedSince(Mailbox mbox) {
+        return "id IN (SELECT item_id FROM " + getChangeLogTableName(mbox) +
+                " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + "change_id > ?) AND ";
+    }
+
+    static int setLoggedSince(PreparedStatement stmt, Mailbox mbox, long lastSync, int pos) throws SQLException {
+        pos = DbMailItem.setMailboxId(stmt, mbox, pos);
+        stmt.setLong(pos++, lastSync);
+        return pos;
+    }
+}
@@ -672,13 +672,12 @@ public class DbMailItem {
 //                rs.close();
 //                stmt.close();
 //            }
-            int count = 0;
-            int batchSize = 500;
             String imapRenumber = mbox.isTrackingImap() ? ", imap_id = CASE WHEN imap_id IS NULL THEN NULL ELSE 0 END" : "";
             stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(folder) +
                 " SET folder_id = ?, prev_folders=?, mod_metadata = ?, change_date = ?" + imapRenumber +
                 " WHERE " + IN_THIS_MAILBOX_AND + "id = ?");
             int modseq = mbox.getOperationChangeID();
+            DbBatch batch = new DbBatch(stmt);
             for(int j = 0; j < msgs.size(); j++) {
                 int pos = 1;
                 stmt.setInt(pos++, folder.getId());
@@ -710,12 +709,9 @@ public class DbMailItem {
                 stmt.setInt(pos++, mbox.getOperationTimestamp());
                 pos = setMailboxId(stmt, mbox, pos);
                 stmt.setInt(pos++, msgs.get(j).getId());
-                stmt.addBatch();
-                if (++count % batchSize == 0) {
-                    stmt.executeBatch();
-                }
+                batch.add();
             }
-            stmt.executeBatch();
+            batch.finish();
             stmt.close();
             stmt = null;
         } catch (SQLException e) {
@@ -1365,13 +1361,18 @@ public class DbMailItem {
         DbConnection conn = mbox.getOperationConnection();
         PreparedStatement stmt = null;
         try {
+            int prepared = 0;
             for (int i = 0; i < itemIDs.size(); i += Db.getINClauseBatchSize()) {
                 int count = Math.min(Db.getINClauseBatchSize(), itemIDs.size() - i);
-                stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(mbox) +
-                            " SET unread = ?, mod_metadata = ?, change_date = ?" +
-                            " WHERE " + IN_THIS_MAILBOX_AND + "unread = ?" +
-                            "  AND " + DbUtil.whereIn("id", count) +
-                            "  AND " + typeIn(MailItem.Type.MESSAGE));
+                if (count != prepared) { // all chunks but the last share the same statement
+                    DbPool.closeStatement(stmt);
+                    stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(mbox) +
+                                " SET unread = ?, mod_metadata = ?, change_date = ?" +
+                                " WHERE " + IN_THIS_MAILBOX_AND + "unread = ?" +
+                                "  AND " + DbUtil.whereIn("id", count) +
+                                "  AND " + typeIn(MailItem.Type.MESSAGE));
+                    prepared = count;
+                }
                 int pos = 1;
                 stmt.setInt(pos++, unread ? 1 : 0);
                 stmt.setInt(pos++, mbox.getOperationChangeID());
@@ -1382,8 +1383,6 @@ public class DbMailItem {
                     stmt.setInt(pos++, itemIDs.get(index));
                 }
                 stmt.executeUpdate();
-                stmt.close();
-                stmt = null;
 
                 if (unread) {
                     DbTag.addTaggedItemEntries(mbox, Flag.ID_UNREAD, itemIDs.subList(i, i + count));
@@ -1793,59 +1792,63 @@ public class DbMailItem {
             return;
         }
 
-        for (Map.Entry<MailItem.Type, List<TypedIdList.ItemInfo>> entry : tombstones) {
-            MailItem.Type type = entry.getKey();
-            switch (type) {
-                case VIRTUAL_CONVERSATION:
-                    continue;
-            }
-
-            StringBuilder row = new StringBuilder();
-            for (TypedIdList.ItemInfo stone : entry.getValue()) {
-                // the list of tombstones is comma-delimited
-                row.append(row.length() == 0 ? "" : ",").append(stone.getId());
-                if (stone.getUuid() != null) {
-                    // a tombstone may either be ID or ID:UUID, so serialize accordingly
-                    row.append(':').append(stone.getUuid());
-                }
-
-                // catch overflows of TEXT values; since all chars are ASCII, no need to convert to UTF-8 for length check beforehand
-                if (row.length() > MAX_TEXT_LENGTH - 128) {
-                    writeTombstone(mbox, type, row.toString());
-                    row.setLength(0);
-                }
-            }
-
-            writeTombstone(mbox, type, row.toString());
-        }
-    }
-
-    private static void writeTombstone(Mailbox mbox, MailItem.Type type, String row) throws ServiceException {
-        if (Strings.isNullOrEmpty(row)) {
-            return;
-        }
-
         DbConnection conn = mbox.getOperationConnection();
         PreparedStatement stmt = null;
+        MailItem.Type type = null;
         try {
             String mailbox_id = DebugConfig.disableMailboxGroups ? "" : "mailbox_id, ";
             stmt = conn.prepareStatement("INSERT INTO " + getTombstoneTableName(mbox) +
                         "(" + mailbox_id + "sequence, date, type, ids)" +
                         " VALUES (" + MAILBOX_ID_VALUE + "?, ?, ?, ?)");
-            int pos = 1;
-            pos = setMailboxId(stmt, mbox, pos);
-            stmt.setInt(pos++, mbox.getOperationChangeID());
-            stmt.setInt(pos++, mbox.getOperationTimestamp());
-            stmt.setByte(pos++, type.toByte());
-            stmt.setString(pos++, row);
-            stmt.executeUpdate();
+            // one row per type, or more if the ids overflow a row; all of them are sent in one batch
+            DbBatch batch = new DbBatch(stmt);
+            for (Map.Entry<MailItem.Type, List<TypedIdList.ItemInfo>> entry : tombstones) {
+                type = entry.getKey();
+                switch (type) {
+                    case VIRTUAL_CONVERSATION:
+                        continue;
+                }
+
+                StringBuilder row = new StringBuilder();
+                for (TypedIdList.ItemInfo stone : entry.getValue()) {
+                    // the list of tombstones is comma-delimited
+                    row.append(row.length() == 0 ? "" : ",").append(stone.getId());
+                    if (stone.getUuid() != null) {
+                        // a tombstone may either be ID or ID:UUID, so serialize accordingly
+                        row.append(':').append(stone.getUuid());
+                    }
+
+                    // catch overflows of TEXT values; since all chars are ASCII, no need to convert to UTF-8 for length check beforehand
+                    if (row.length() > MAX_TEXT_LENGTH - 128) {
+                        addTombstone(stmt, batch, mbox, type, row.toString());
+                        row.setLength(0);
+                    }
+                }
+
+                addTombstone(stmt, batch, mbox, type, row.toString());
+            }
+            batch.finish();
         } catch (SQLException e) {
-            throw ServiceException.FAILURE("writing tombstones for " + type + "(s): " + row, e);
+            throw ServiceException.FAILURE("writing tombstones for " + type + "(s)", e);
         } finally {
             DbPool.closeStatement(stmt);
         }
     }
 
+    private static void addTombstone(PreparedStatement stmt, DbBatch batch, Mailbox mbox, MailItem.Type type,
+            String row) throws SQLException, ServiceException {
+        if (Strings.isNullOrEmpty(row)) {
+            return;
+        }
+        int pos = 1;
+        pos = setMailboxId(stmt, mbox, pos);
+        stmt.setInt(pos++, mbox.getOperationChangeID());
+        stmt.setInt(pos++, mbox.getOperationTimestamp());
+        stmt.setByte(pos++, type.toByte());
+        stmt.setString(pos++, row);
+        batch.add();
+    }
+
     public static List<Integer> readTombstones(Mailbox mbox, DbConnection conn, long lastSync, Set<MailItem.Type> types)
             throws ServiceException {
         List<Integer> tombstones = new ArrayList<Integer>();
@@ -2426,7 +2429,7 @@ public class DbMailItem {
 
         List<UnderlyingData> result = new ArrayList<UnderlyingData>();
 
-        DbConnection conn = mbox.getOperationConnection();
+        DbConnection conn = mbox.getReadOperationConnection();
         PreparedStatement stmt = null;
         ResultSet rs = null;
         try {
@@ -2746,15 +2749,17 @@ public class DbMailItem {
         if (Mailbox.isCachedType(type)) {
             throw ServiceException.INVALID_REQUEST("folders and tags must be retrieved from cache", null);
         }
+        boolean logged = mbox.isChangeLogged(lastSync);
         DbConnection conn = mbox.getOperationConnection();
         PreparedStatement stmt = null;
         try {
             String typeConstraint = type == MailItem.Type.UNKNOWN ? "type NOT IN " + NON_SYNCABLE_TYPES : typeIn(type);
             String dateConstraint = sinceDate > 0 ? "date > ? AND " : "";
+            String logConstraint = logged ? DbChangeLog.loggedSince(mbox) : "";
             StringBuilder buf = new StringBuilder();
             buf.append("SELECT id, type, folder_id, uuid, mod_metadata, prev_folders" +
                 " FROM " + getMailItemTableName(mbox) +
-                " WHERE " + IN_THIS_MAILBOX_AND + "mod_metadata > ? AND " + dateConstraint + typeConstraint +
+                " WHERE " + IN_THIS_MAILBOX_AND + logConstraint + "mod_metadata > ? AND " + dateConstraint + typeConstraint +
                 " ORDER BY mod_metadata, id");
             if (limit > 0 && Db.supports(Db.Capability.LIMIT_CLAUSE)) {
                 buf.append(" ").append(Db.getInstance().limit(limit));
@@ -2766,6 +2771,9 @@ public class DbMailItem {
             }
             int pos = 1;
             pos = setMailboxId(stmt, mbox, pos);
+            if (logged) {
+                pos = DbChangeLog.setLoggedSince(stmt, mbox, lastSync, pos);
+            }
             stmt.setLong(pos++, lastSync);
             if (sinceDate > 0) {
                 stmt.setInt(pos++, sinceDate);
@@ -2785,6 +2793,7 @@ public class DbMailItem {
         if (Mailbox.isCachedType(type)) {
             throw ServiceException.INVALID_REQUEST("folders and tags must be retrieved from cache", null);
         }
+        boolean logged = mbox.isChangeLogged(lastSync);
         DbConnection conn = mbox.getOperationConnection();
         PreparedStatement stmt = null;
         try {
@@ -2793,6 +2802,7 @@ public class DbMailItem {
                .append(getMailItemTableName(mbox))
                .append(" WHERE ")
                .append(IN_THIS_MAILBOX_AND)
+               .append(logged ? DbChangeLog.loggedSince(mbox) : "")
                .append("mod_metadata > ? AND ")
                .append(sinceDate > 0 ? "date > ? AND " : "")
                .append(type == MailItem.Type.UNKNOWN ? "type NOT IN " + NON_SYNCABLE_TYPES : typeIn(type));
@@ -2806,6 +2816,9 @@ public class DbMailItem {
             }
             int pos = 1;
             pos = setMailboxId(stmt, mbox, pos);
+            if (logged) {
+                pos = DbChangeLog.setLoggedSince(stmt, mbox, lastSync, pos);
+            }
             stmt.setLong(pos++, lastSync);
             if (sinceDate > 0) {
                 stmt.setInt(pos++, sinceDate);
@@ -28,8 +28,12 @@ import java.util.Properties;
 import org.apache.commons.dbcp.ConnectionFactory;
 import org.apache.commons.dbcp.PoolableConnectionFactory;
 import org.apache.commons.dbcp.PoolingDataSource;
+import org.apache.commons.pool.KeyedObjectPoolFactory;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.SystemUtil;
@@ -48,6 +52,8 @@ public class DbPool {
     private static String sRootUrl;
     private static String sLoggerRootUrl;
     private static GenericObjectPool sConnectionPool;
+    private static PoolingDataSource sReplicaDataSource;
+    private static GenericObjectPool sReplicaPool;
     private static boolean sIsInitialized;
 
     private static boolean isShutdown;
@@ -111,7 +117,14 @@ public class DbPool {
             }
         }
 
+        /**
+         * Returns a prepared statement, reusing one this connection has prepared before if the statement cache holds
+         * it. Closing the statement returns it to the cache.
+         *
+         * @see LC#zimbra_db_statement_cache_size
+         */
         public PreparedStatement prepareStatement(String sql) throws SQLException {
+            ZimbraPerf.COUNTER_DB_STMT_REQUESTS.increment();
             return new StatTrackingPreparedStatement(connection.prepareStatement(sql), sql);
         }
 
@@ -212,6 +225,8 @@ public class DbPool {
         boolean mSupportsStatsCallback;
         Properties mDatabaseProperties;
         byte whenExhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_BLOCK;
+        /** idle prepared statements kept per connection; 0 disables the statement cache */
+        int mStatementCacheSize = 0;
     }
 
     /**
@@ -282,8 +297,7 @@ public class DbPool {
         sConnectionPool = new GenericObjectPool(null, pconfig.mPoolSize, pconfig.whenExhaustedAction, -1, pconfig.mPoolSize);
         ConnectionFactory cfac = ZimbraConnectionFactory.getConnectionFactory(pconfig);
 
-        boolean defAutoCommit = false, defReadOnly = false;
-        new PoolableConnectionFactory(cfac, sConnectionPool, null, null, defReadOnly, defAutoCommit);
+        PoolingDataSource pds = createDataSource(cfac, sConnectionPool, pconfig.mStatementCacheSize, false);
 
         try {
             Class.forName(pconfig.mDriverClassName).newInstance(); //derby requires the .newInstance() call
@@ -294,9 +308,6 @@ public class DbPool {
         }
 
         try {
-            PoolingDataSource pds = new PoolingDataSource(sConnectionPool);
-            pds.setAccessToUnderlyingConnectionAllowed(true);
-
             Db.getInstance().startup(pds, pconfig.mPoolSize);
 
             sPoolingDataSource = pds;
@@ -305,12 +316,151 @@ public class DbPool {
             System.exit(1);
         }
 
-        if (pconfig.mSupportsStatsCallback)
+        if (pconfig.mSupportsStatsCallback) {
             ZimbraPerf.addStatsCallback(new DbStats());
+            DbQueryStats.getInstance().register(ZimbraPerf.CSV_DUMP_FREQUENCY);
+        }
 
         return sPoolingDataSource;
     }
 
+    /**
+     * Makes the pool hand out connections from the factory. Each pooled connection keeps up to
+     * <tt>statementCacheSize</tt> idle prepared statements, keyed by SQL text, or none if it is 0. When the cache is
+     * full, the statements idle the longest are closed to make room.
+     */
+    @VisibleForTesting
+    static PoolingDataSource createDataSource(ConnectionFactory cfac, GenericObjectPool pool, int statementCacheSize,
+            boolean readOnly) {
+        KeyedObjectPoolFactory stmtPoolFactory = null;
+        if (statementCacheSize > 0) {
+            stmtPoolFactory = new GenericKeyedObjectPoolFactory(null, -1, GenericKeyedObjectPool.WHEN_EXHAUSTED_GROW,
+                    0L, 1, statementCacheSize);
+        }
+        new PoolableConnectionFactory(cfac, pool, stmtPoolFactory, null, readOnly, false);
+
+        PoolingDataSource pds = new PoolingDataSource(pool);
+        pds.setAccessToUnderlyingConnectionAllowed(true);
+        return pds;
+    }
+
+    /**
+     * Initializes the read replica pool on first use.  Returns <tt>null</tt> if no replica is configured.
+     *
+     * @see LC#zimbra_db_replica_url
+     */
+    private static synchronized PoolingDataSource getReplicaPool() {
+        String url = LC.zimbra_db_replica_url.value();
+        if (url == null || url.isEmpty() || isShutdown)
+            return null;
+        if (sReplicaDataSource != null)
+            return sReplicaDataSource;
+
+        PoolConfig pconfig = Db.getInstance().getPoolConfig();
+        int size = LC.zimbra_db_replica_pool_size.intValue();
+        sReplicaPool = new GenericObjectPool(null, size, pconfig.whenExhaustedAction, -1, size);
+        ConnectionFactory cfac = new ZimbraConnectionFactory(url, pconfig.mDatabaseProperties);
+        // replica connections are read-only, so a misrouted write fails instead of diverging from the primary
+        sReplicaDataSource = createDataSource(cfac, sReplicaPool, pconfig.mStatementCacheSize, true);
+        ZimbraLog.dbconn.info("reading from replica %s (pool size %d)", url, size);
+        return sReplicaDataSource;
+    }
+
+    /**
+     * Returns <tt>true</tt> if a read replica is configured.
+     *
+     * @see LC#zimbra_db_replica_url
+     */
+    public static boolean hasReplica() {
+        return getReplicaPool() != null;
+    }
+
+    /**
+     * Returns a read replica connection for read-only queries, or <tt>null</tt> if they should go to the primary.  For
+     * a mailbox's reads the replica must have applied every commit to the mailbox, so that a client never reads data
+     * older than its own writes: the connection waits up to {@link LC#zimbra_db_replica_max_wait_ms} for the replica
+     * to reach the mailbox's replication position, and is not used if it doesn't, if the database can't report
+     * replication positions, or if the replica is unreachable.
+     *
+     * @param mbox the mailbox being read, or <tt>null</tt> for queries that tolerate replication lag
+     */
+    public static DbConnection getReplicaConnection(Mailbox mbox) throws ServiceException {
+        PoolingDataSource pool = getReplicaPool();
+        if (pool == null) {
+            return null;
+        }
+        String position = null;
+        if (mbox != null) {
+            position = getReplicationPosition(mbox);
+            if (position == null) {
+                return null;
+            }
+        }
+        long start = ZimbraPerf.STOPWATCH_DB_CONN.start();
+        Connection dbconn = null;
+        try {
+            dbconn = pool.getConnection();
+            if (dbconn.getAutoCommit() != false)
+                dbconn.setAutoCommit(false);
+            if (Db.supports(Db.Capability.READ_COMMITTED_ISOLATION))
+                dbconn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            DbConnection conn = new DbConnection(dbconn, mbox != null ? mbox.getId() : -1);
+            if (position != null && !Db.getInstance().waitForReplication(conn, position,
+                    LC.zimbra_db_replica_max_wait_ms.longValue())) {
+                ZimbraLog.dbconn.debug("read replica is behind mailbox %d; reading from the primary", mbox.getId());
+                dbconn.rollback();
+                dbconn.close();
+                return null;
+            }
+            ZimbraPerf.STOPWATCH_DB_CONN.stop(start);
+            return conn;
+        } catch (SQLException e) {
+            try {
+                if (dbconn != null && !dbconn.isClosed())
+                    dbconn.close();
+            } catch (SQLException e2) {
+                ZimbraLog.sqltrace.warn("DB connection close caught exception", e2);
+            }
+            ZimbraLog.dbconn.warn("unable to get read replica connection; reading from the primary", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the primary's replication position after the mailbox's last commit.  If the mailbox hasn't committed
+     * since it was loaded, the primary's current position covers its earlier commits.
+     */
+    private static String getReplicationPosition(Mailbox mbox) throws ServiceException {
+        String position = mbox.getReplicationPosition();
+        if (position != null) {
+            return position;
+        }
+        DbConnection conn = getConnection(mbox);
+        try {
+            position = Db.getInstance().getReplicationPosition(conn);
+        } catch (SQLException e) {
+            ZimbraLog.dbconn.warn("unable to get the replication position; reading from the primary", e);
+            return null;
+        } finally {
+            quietRollback(conn);
+            quietClose(conn);
+        }
+        return position != null ? mbox.initReplicationPosition(position) : null;
+    }
+
+    /**
+     * Returns a connection for read-only queries, from the read replica when {@link #getReplicaConnection(Mailbox)}
+     * returns one and from the primary pool otherwise.  Inside a mailbox transaction use
+     * {@link Mailbox#getReadOperationConnection()} instead.
+     */
+    public static DbConnection getReadConnection(Mailbox mbox) throws ServiceException {
+        if (!isInitialized()) {
+            throw ServiceException.FAILURE("Database connection pool not initialized.", null);
+        }
+        DbConnection conn = getReplicaConnection(mbox);
+        return conn != null ? conn : getConnection(mbox);
+    }
+
     /**
      * return a connection to use for the zimbra database.
      * This must not be called while thread also owns an open connection to a mailbox db.
@@ -534,6 +684,11 @@ public class DbPool {
      * @throws Exception
      */
     static synchronized void close() throws Exception {
+        if (sReplicaPool != null) {
+            sReplicaPool.close();
+            sReplicaPool = null;
+        }
+        sReplicaDataSource = null;
         if (sConnectionPool != null) {
             sConnectionPool.close();
             sConnectionPool = null;
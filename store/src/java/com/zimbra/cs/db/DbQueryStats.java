@@ -0,0 +1,263 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.management.ObjectName;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.stats.Histogram;
+import com.zimbra.common.stats.StatsDumper;
+import com.zimbra.common.stats.StatsDumperDataSource;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Per-statement latency for the database layer.  Every execution is filed under the fingerprint of its SQL, which
+ * is the SQL with literals, <tt>IN</tt> lists and mailbox group numbers collapsed, so that the many variants of one
+ * query add up.  Each fingerprint keeps a {@link Histogram} of execution times in microseconds.  The busiest
+ * fingerprints are written to <tt>sql_fingerprints.csv</tt> every stats period and are available over JMX.
+ */
+public final class DbQueryStats implements DbQueryStatsMBean, StatsDumperDataSource {
+
+    private static final DbQueryStats INSTANCE = new DbQueryStats();
+
+    /** executions of SQL that doesn't get its own fingerprint once the table is full */
+    static final String OTHER = "(other)";
+
+    private static final int MAX_FINGERPRINTS = 1000;
+    @VisibleForTesting
+    static final int MAX_CACHED_SQL = 5000;
+
+    private static final Pattern PATTERN_MBOXGROUP = Pattern.compile("mboxgroup\\d+");
+    private static final Pattern PATTERN_PARAM_LIST = Pattern.compile("\\(\\?(?: ?, ?\\?)+\\)");
+    private static final Pattern PATTERN_ROW_LIST = Pattern.compile("\\(\\?\\+\\)(?: ?, ?\\(\\?\\+\\))+");
+
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    // the most recently used SQL, so that new statements still get cached once the cache is full
+    private final Cache<String, String> fingerprints = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_SQL).build();
+    private final AtomicLong slowCount = new AtomicLong();
+    private boolean registered = false;
+
+    private DbQueryStats() {
+    }
+
+    public static DbQueryStats getInstance() {
+        return INSTANCE;
+    }
+
+    /** Starts the CSV dump and registers the JMX bean, once. */
+    synchronized void register(long dumpFrequency) {
+        if (registered) {
+            return;
+        }
+        registered = true;
+        StatsDumper.schedule(this, dumpFrequency);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("ZimbraCollaborationSuite:type=DatabaseQueries"));
+        } catch (Exception e) {
+            ZimbraLog.perf.warn("Unable to register JMX interface for database queries.", e);
+        }
+    }
+
+    /**
+     * Records one execution of the given SQL.
+     *
+     * @return <tt>true</tt> if the execution was slower than the slow SQL threshold
+     */
+    boolean record(String sql, long micros) {
+        getHistogram(getFingerprint(sql)).increment(micros);
+        if (micros / 1000 > DebugPreparedStatement.getSlowSqlThreshold()) {
+            slowCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private Histogram getHistogram(String fingerprint) {
+        Histogram histogram = histograms.get(fingerprint);
+        if (histogram == null) {
+            if (histograms.size() >= MAX_FINGERPRINTS) {
+                fingerprint = OTHER;
+                histogram = histograms.get(fingerprint);
+            }
+            if (histogram == null) {
+                histogram = new Histogram();
+                Histogram previous = histograms.putIfAbsent(fingerprint, histogram);
+                if (previous != null) {
+                    histogram = previous;
+                }
+            }
+        }
+        return histogram;
+    }
+
+    private String getFingerprint(String sql) {
+        String fingerprint = fingerprints.getIfPresent(sql);
+        if (fingerprint == null) {
+            fingerprint = fingerprint(sql);
+            fingerprints.put(sql, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    @VisibleForTesting
+    boolean isFingerprintCached(String sql) {
+        return fingerprints.getIfPresent(sql) != null;
+    }
+
+    /**
+     * Normalizes SQL into its fingerprint: whitespace is collapsed, string and numeric literals become <tt>?</tt>,
+     * lists of parameters become <tt>(?+)</tt>, repeated value rows become <tt>(?+)+</tt>, and <tt>mboxgroupN</tt>
+     * becomes <tt>mboxgroup?</tt>.
+     */
+    static String fingerprint(String sql) {
+        StringBuilder buf = new StringBuilder(sql.length());
+        boolean space = false;
+        for (int i = 0, len = sql.length(); i < len; i++) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = buf.length() > 0;
+                continue;
+            }
+            if (space) {
+                buf.append(' ');
+                space = false;
+            }
+            if (c == '\'') {
+                // skip to the closing quote; a doubled quote is an escaped one
+                for (i++; i < len; i++) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < len && sql.charAt(i + 1) == '\'') {
+                            i++;
+                        } else {
+                            break;
+                        }
+                    }
+                }
+                buf.append('?');
+            } else if (Character.isDigit(c) && !isIdentifierEnd(buf)) {
+                while (i + 1 < len && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.')) {
+                    i++;
+                }
+                buf.append('?');
+            } else {
+                buf.append(c);
+            }
+        }
+        String fingerprint = PATTERN_PARAM_LIST.matcher(buf).replaceAll("(?+)");
+        fingerprint = PATTERN_ROW_LIST.matcher(fingerprint).replaceAll("(?+)+");
+        return PATTERN_MBOXGROUP.matcher(fingerprint).replaceAll("mboxgroup?");
+    }
+
+    private static boolean isIdentifierEnd(StringBuilder buf) {
+        if (buf.length() == 0) {
+            return false;
+        }
+        char c = buf.charAt(buf.length() - 1);
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    /** Returns the fingerprints with the most total execution time, busiest first. */
+    List<Map.Entry<String, Histogram>> getTop(int n) {
+        List<Map.Entry<String, Histogram>> entries = new ArrayList<Map.Entry<String, Histogram>>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, Histogram>>() {
+            @Override
+            public int compare(Map.Entry<String, Histogram> e1, Map.Entry<String, Histogram> e2) {
+                long t1 = e1.getValue().getTotal(), t2 = e2.getValue().getTotal();
+                return t1 > t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        return entries.size() > n ? entries.subList(0, n) : entries;
+    }
+
+    ////////////// DbQueryStatsMBean implementation //////////////
+
+    @Override
+    public String[] getTopQueries() {
+        List<Map.Entry<String, Histogram>> top = getTop(LC.zimbra_db_stats_top_queries.intValue());
+        String[] lines = new String[top.size()];
+        for (int i = 0; i < lines.length; i++) {
+            Histogram histogram = top.get(i).getValue();
+            long[] buckets = histogram.getBuckets();
+            lines[i] = String.format("total_ms=%d count=%d avg_us=%d p50_us=%d p99_us=%d %s",
+                    histogram.getTotal() / 1000, histogram.getCount(), (long) histogram.getAverage(),
+                    Histogram.getPercentile(buckets, 50), Histogram.getPercentile(buckets, 99), top.get(i).getKey());
+        }
+        return lines;
+    }
+
+    @Override
+    public long getSlowQueryCount() {
+        return slowCount.get();
+    }
+
+    ////////////// StatsDumperDataSource implementation //////////////
+
+    @Override
+    public Collection<String> getDataLines() {
+        List<Map.Entry<String, Histogram>> top = getTop(LC.zimbra_db_stats_top_queries.intValue());
+        if (top.isEmpty()) {
+            return null;
+        }
+        List<String> dataLines = new ArrayList<String>(top.size());
+        for (Map.Entry<String, Histogram> entry : top) {
+            Histogram histogram = entry.getValue();
+            long[] buckets = histogram.getBuckets();
+            dataLines.add(String.format("%d,%d,%d,%d,%d,\"%s\"", histogram.getCount(), (long) histogram.getAverage(),
+                    Histogram.getPercentile(buckets, 50), Histogram.getPercentile(buckets, 99),
+                    histogram.getTotal() / 1000, entry.getKey().replace("\"", "\"\"")));
+        }
+        // start the next period from scratch; fingerprints that have gone quiet drop out of the table
+        histograms.clear();
+        slowCount.set(0);
+        return dataLines;
+    }
+
+    @Override
+    public String getFilename() {
+        return "sql_fingerprints.csv";
+    }
+
+    @Override
+    public String getHeader() {
+        return "exec_count,exec_us_avg,exec_us_p50,exec_us_p99,exec_ms_total,fingerprint";
+    }
+
+    @Override
+    public boolean hasTimestampColumn() {
+        return true;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+/**
+ * JMX view of {@link DbQueryStats}.  Values cover the current stats period, i.e. the time since the last
+ * <tt>sql_fingerprints.csv</tt> dump.
+ */
+public interface DbQueryStatsMBean {
+    /**
+     * Returns one line per SQL fingerprint, busiest first: total milliseconds, execution count, average, 50th and
+     * 99th percentile microseconds, and the fingerprint.
+     */
+    String[] getTopQueries();
+
+    /** Returns the number of executions that ran longer than the slow SQL threshold. */
+    long getSlowQueryCount();
+}
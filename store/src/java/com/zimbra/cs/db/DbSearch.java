@@ -21,6 +21,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -405,7 +406,7 @@ public final class DbSearch {
         }
         needAnd = needAnd | encode("mi.id", true, constraint.itemIds, needAnd);
         needAnd = needAnd | encode("mi.id", false, constraint.prohibitedItemIds, needAnd);
-        needAnd = needAnd | encode("mi.index_id", true, constraint.indexIds, needAnd);
+        needAnd = needAnd | encodeIdRuns("mi.index_id", constraint.indexIds, needAnd);
         if (constraint.cursorRange != null) {
             needAnd = needAnd | encodeCursorRange(constraint.cursorRange, needAnd);
         }
@@ -942,6 +943,88 @@ public final class DbSearch {
         return true;
     }
 
+    /**
+     * Encodes the ids as {@code IN} for the scattered ones and {@code BETWEEN} for each run of consecutive ids. Index
+     * ids of recently delivered mail tend to be contiguous, so this keeps the statement and the number of bind
+     * parameters small for large id sets.
+     */
+    private boolean encodeIdRuns(String column, Collection<Integer> ids, boolean and) {
+        if (ListUtil.isEmpty(ids)) {
+            return false;
+        }
+        List<Integer> singles = new ArrayList<Integer>();
+        List<Integer> runs = new ArrayList<Integer>(); // pairs of first, last
+        int[] sorted = sortIds(ids);
+        for (int i = 0; i < sorted.length; ) {
+            int end = endOfRun(sorted, i);
+            if (end - i >= MIN_ID_RUN) {
+                runs.add(sorted[i]);
+                runs.add(sorted[end - 1]);
+            } else {
+                for (int j = i; j < end; j++) {
+                    singles.add(sorted[j]);
+                }
+            }
+            i = end;
+        }
+        if (runs.isEmpty()) {
+            return encode(column, true, singles, and);
+        }
+        if (and) {sql.append(" AND "); }
+        sql.append('(');
+        boolean first = true;
+        if (!singles.isEmpty()) {
+            sql.append(DbUtil.whereIn(column, true, singles.size()));
+            params.addAll(singles);
+            first = false;
+        }
+        for (int i = 0; i < runs.size(); i += 2) {
+            if (!first) {
+                sql.append(" OR ");
+            }
+            sql.append(column).append(" BETWEEN ? AND ?");
+            params.add(runs.get(i));
+            params.add(runs.get(i + 1));
+            first = false;
+        }
+        sql.append(')');
+        return true;
+    }
+
+    private static final int MIN_ID_RUN = 3; // a run of 2 costs as many parameters as listing both
+
+    /**
+     * Returns the number of bind parameters {@link #encodeIdRuns(String, Collection, boolean)} uses for the ids.
+     */
+    public static int countIdRunParameters(Collection<Integer> ids) {
+        int count = 0;
+        int[] sorted = sortIds(ids);
+        for (int i = 0; i < sorted.length; ) {
+            int end = endOfRun(sorted, i);
+            count += end - i >= MIN_ID_RUN ? 2 : end - i;
+            i = end;
+        }
+        return count;
+    }
+
+    private static int[] sortIds(Collection<Integer> ids) {
+        int[] sorted = new int[ids.size()];
+        int i = 0;
+        for (Integer id : ids) {
+            sorted[i++] = id;
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static int endOfRun(int[] sorted, int start) {
+        int end = start + 1;
+        while (end < sorted.length && sorted[end] - sorted[end - 1] <= 1) { // duplicates stay in the run
+            end++;
+        }
+        return end;
+    }
+
     private boolean encode(String column, boolean bool, byte[] array) {
         return encode(column, bool, array, true);
     }
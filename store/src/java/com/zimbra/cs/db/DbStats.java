@@ -38,10 +38,25 @@ class DbStats implements RealtimeStatsCallback {
 
     private static Log sLog = LogFactory.getLog(DbStats.class);
     private static final Pattern PATTERN_BP_HIT_RATE = Pattern.compile("hit rate (\\d+)");
-    
-    public Map<String, Object> getStatData() {
+
+    private long lastRequests = 0;
+    private long lastPrepares = 0;
+    private long lastPrepareUs = 0;
+
+    public synchronized Map<String, Object> getStatData() {
         Map<String, Object> data = new HashMap<String, Object>();
 
+        // prepared statement cache, since the last call
+        long requests = ZimbraPerf.COUNTER_DB_STMT_REQUESTS.getCount();
+        long prepares = ZimbraPerf.COUNTER_DB_STMT_PREPARE_US.getCount();
+        long prepareUs = ZimbraPerf.COUNTER_DB_STMT_PREPARE_US.getTotal();
+        data.put(ZimbraPerf.RTS_DB_STMT_CACHE_HIT_RATE, getHitRate(requests - lastRequests, prepares - lastPrepares));
+        data.put(ZimbraPerf.RTS_DB_PREPARE_US_AVG,
+                prepares > lastPrepares ? (prepareUs - lastPrepareUs) / (prepares - lastPrepares) : 0L);
+        lastRequests = requests;
+        lastPrepares = prepares;
+        lastPrepareUs = prepareUs;
+
         try {
             data.put(ZimbraPerf.RTS_DB_POOL_SIZE, DbPool.getSize());
             
@@ -58,6 +73,17 @@ class DbStats implements RealtimeStatsCallback {
         return data;
     }
     
+    /**
+     * Returns the percentage of statement requests that didn't need the driver to prepare a statement. Statements
+     * prepared directly on the JDBC connection count as misses without a request, hence the floor.
+     */
+    static double getHitRate(long requests, long prepares) {
+        if (requests <= 0) {
+            return 0.0;
+        }
+        return Math.max(100.0 * (requests - prepares) / requests, 0.0);
+    }
+
     private static Integer parseBufferPoolHitRate(String innodbStatus)
     throws IOException {
         ZimbraLog.perf.debug("InnoDB status output:\n%s", innodbStatus);
@@ -419,11 +419,16 @@ public final class DbTag {
 
             String updateChangeID = altersModseq ? ", mod_metadata = ?, change_date = ?" : "";
 
+            int prepared = 0;
             for (int i = 0; i < itemIds.size(); i += Db.getINClauseBatchSize()) {
                 int count = Math.min(Db.getINClauseBatchSize(), itemIds.size() - i);
-                stmt = conn.prepareStatement("UPDATE " + DbMailItem.getMailItemTableName(mbox) +
-                        " SET " + primaryUpdate + updateChangeID +
-                        " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + sanityCheckAnd + DbUtil.whereIn("id", count));
+                if (count != prepared) { // all chunks but the last share the same statement
+                    DbPool.closeStatement(stmt);
+                    stmt = conn.prepareStatement("UPDATE " + DbMailItem.getMailItemTableName(mbox) +
+                            " SET " + primaryUpdate + updateChangeID +
+                            " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + sanityCheckAnd + DbUtil.whereIn("id", count));
+                    prepared = count;
+                }
                 int pos = 1;
                 // primary update
                 if (isFlag) {
@@ -449,8 +454,6 @@ public final class DbTag {
                     stmt.setInt(pos++, itemIds.get(index));
                 }
                 stmt.executeUpdate();
-                stmt.close();
-                stmt = null;
 
                 if (add) {
                     addTaggedItemEntries(mbox, tag.getId(), itemIds.subList(i, i + count));
@@ -465,29 +468,32 @@ public final class DbTag {
         }
     }
 
-    // FIXME: optimize into single query
     static void addTaggedItemEntries(Mailbox mbox, int tagId, List<Integer> itemIds) throws ServiceException {
         if (tagId < 0 && !Mailbox.REIFIED_FLAGS.contains(tagId))
             return;
+        if (itemIds.isEmpty())
+            return;
 
         DbConnection conn = mbox.getOperationConnection();
         PreparedStatement stmt = null;
 
         String command = Db.supports(Db.Capability.REPLACE_INTO) ? "REPLACE" : "INSERT";
-        for (int itemId : itemIds) {
-            try {
-                stmt = conn.prepareStatement(command + " INTO " + getTaggedItemTableName(mbox) +
-                        "(" + DbMailItem.MAILBOX_ID + "tag_id, item_id) VALUES (" + DbMailItem.MAILBOX_ID_VALUE + "?, ?)");
+        try {
+            stmt = conn.prepareStatement(command + " INTO " + getTaggedItemTableName(mbox) +
+                    "(" + DbMailItem.MAILBOX_ID + "tag_id, item_id) VALUES (" + DbMailItem.MAILBOX_ID_VALUE + "?, ?)");
+            DbBatch batch = new DbBatch(stmt);
+            for (int itemId : itemIds) {
                 int pos = 1;
                 pos = DbMailItem.setMailboxId(stmt, mbox, pos);
                 stmt.setInt(pos++, tagId);
                 stmt.setInt(pos++, itemId);
-                stmt.executeUpdate();
-            } catch (SQLException e) {
-                throw ServiceException.FAILURE("adding TAGGED_ITEM entries for tag: " + tagId + ", item: " + itemId, e);
-            } finally {
-                DbPool.closeStatement(stmt);
+                batch.add();
             }
+            batch.finish();
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("adding TAGGED_ITEM entries for tag: " + tagId + ", items: " + DbMailItem.getIdListForLogging(itemIds), e);
+        } finally {
+            DbPool.closeStatement(stmt);
         }
     }
 
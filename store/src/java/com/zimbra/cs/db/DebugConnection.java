@@ -21,6 +21,7 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.stats.ZimbraPerf;
 import org.apache.commons.dbcp.DelegatingConnection;
 
 class DebugConnection extends DelegatingConnection {
@@ -36,7 +37,18 @@ class DebugConnection extends DelegatingConnection {
     }
     
     public PreparedStatement prepareStatement(String sql) throws SQLException {
-        return new DebugPreparedStatement(this, mConn.prepareStatement(sql), sql);
+        long start = System.nanoTime();
+        PreparedStatement stmt = mConn.prepareStatement(sql);
+        recordPrepare(start);
+        return new DebugPreparedStatement(this, stmt, sql);
+    }
+
+    /**
+     * Records the time the driver took to prepare a statement. Statements served from the pooled statement cache
+     * never reach this connection, so this also counts cache misses.
+     */
+    static void recordPrepare(long startNanos) {
+        ZimbraPerf.COUNTER_DB_STMT_PREPARE_US.increment((System.nanoTime() - startNanos) / 1000L);
     }
 
     public void commit() throws SQLException {
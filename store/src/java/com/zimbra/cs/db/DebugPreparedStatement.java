@@ -35,6 +35,7 @@ import java.util.Calendar;
 import java.util.List;
 
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.Zimbra;
 
 import org.apache.commons.dbcp.DelegatingPreparedStatement;
@@ -77,6 +78,10 @@ class DebugPreparedStatement extends DelegatingPreparedStatement {
         sSlowSqlThreshold = millis;
     }
 
+    static long getSlowSqlThreshold() {
+        return sSlowSqlThreshold;
+    }
+
     private String getSql() {
         if (mSql == null) {
             return null;
@@ -124,7 +129,8 @@ class DebugPreparedStatement extends DelegatingPreparedStatement {
         long time = System.currentTimeMillis() - mStartTime;
         if (time > sSlowSqlThreshold) {
             String sql = getSql();
-            ZimbraLog.sqltrace.info("Slow execution (%dms): %s", time,  sql);
+            String command = ZimbraPerf.getCurrentCommand();
+            ZimbraLog.sqltrace.info("Slow execution (%dms%s): %s", time, command == null ? "" : ", " + command, sql);
         } else if (ZimbraLog.sqltrace.isDebugEnabled()) {
             String sql = getSql();
             ZimbraLog.sqltrace.debug(sql + " - " + time + "ms" + getHashCodeString());
@@ -16,7 +16,10 @@
  */
 package com.zimbra.cs.db;
 
+import java.sql.SQLException;
+
 import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.db.DbPool.DbConnection;
 
 
 public class MariaDB extends MySQL {
@@ -26,6 +29,17 @@ public class MariaDB extends MySQL {
         return new MariaDBConfig();
     }
 
+    @Override
+    public String getReplicationPosition(DbConnection conn) throws SQLException {
+        return queryReplication(conn, "SELECT @@GLOBAL.gtid_binlog_pos", null, 0L);
+    }
+
+    @Override
+    public boolean waitForReplication(DbConnection conn, String position, long timeoutMillis) throws SQLException {
+        // 0 once the GTID position is applied, -1 on timeout
+        return "0".equals(queryReplication(conn, "SELECT MASTER_GTID_WAIT(?, ?)", position, timeoutMillis));
+    }
+
     protected class MariaDBConfig extends MySQLConfig {
 
         @Override
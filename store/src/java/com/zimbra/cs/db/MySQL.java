@@ -144,6 +144,35 @@ public class MySQL extends Db {
         }
     }
 
+    @Override
+    public String getReplicationPosition(DbConnection conn) throws SQLException {
+        return queryReplication(conn, "SELECT @@GLOBAL.gtid_executed", null, 0L);
+    }
+
+    @Override
+    public boolean waitForReplication(DbConnection conn, String position, long timeoutMillis) throws SQLException {
+        // 0 once the GTID set is applied, 1 on timeout
+        return "0".equals(queryReplication(conn, "SELECT WAIT_FOR_EXECUTED_GTID_SET(?, ?)", position, timeoutMillis));
+    }
+
+    String queryReplication(DbConnection conn, String sql, String position, long timeoutMillis) throws SQLException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement(sql);
+            if (position != null) {
+                stmt.setString(1, position);
+                stmt.setDouble(2, timeoutMillis / 1000.0);
+            }
+            rs = stmt.executeQuery();
+            String result = rs.next() ? rs.getString(1) : null;
+            return result == null || result.isEmpty() ? null : result;
+        } finally {
+            conn.closeQuietly(rs);
+            conn.closeQuietly(stmt);
+        }
+    }
+
     protected class MySQLConfig extends DbPool.PoolConfig {
         MySQLConfig() {
             mDriverClassName = getDriverClassName();
@@ -153,6 +182,7 @@ public class MySQL extends Db {
             mLoggerUrl = null;
             mSupportsStatsCallback = true;
             mDatabaseProperties = getDBProperties();
+            mStatementCacheSize = LC.zimbra_db_statement_cache_size.intValue();
 
             // override pool size if specified in prefs
             String maxActive = (String) mDatabaseProperties.get("maxActive");
@@ -186,6 +216,7 @@ public class MySQL extends Db {
             props.put("useUnicode", "true");
             props.put("characterEncoding", "UTF-8");
             props.put("dumpQueriesOnException", "true");
+            props.put("rewriteBatchedStatements", "true"); // multi-row INSERTs for DbBatch
 
             // props.put("connectTimeout", "0");    // connect timeout in msecs
             // props.put("initialTimeout", "2");    // time to wait between re-connects
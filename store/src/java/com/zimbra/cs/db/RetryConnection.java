@@ -36,8 +36,10 @@ public class RetryConnection extends DebugConnection {
         AbstractRetry<PreparedStatement> exec = new AbstractRetry<PreparedStatement>() {
             @Override
             public ExecuteResult<PreparedStatement> execute() throws SQLException {
-                return new ExecuteResult<PreparedStatement>(
-                        new RetryPreparedStatement(conn, mConn.prepareStatement(sql), sql));
+                long start = System.nanoTime();
+                PreparedStatement stmt = mConn.prepareStatement(sql);
+                recordPrepare(start);
+                return new ExecuteResult<PreparedStatement>(new RetryPreparedStatement(conn, stmt, sql));
             }
         };
         return exec.doRetry().getResult();
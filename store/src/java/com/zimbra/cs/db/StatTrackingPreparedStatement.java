@@ -47,8 +47,9 @@ import com.zimbra.cs.stats.ZimbraPerf;
  * of database calls for various request types in zmstats CSV files.
  * The actual SQL query string can be passed in the constructor or via setQueryString,
  * since the actual SQL query can't reliably be retrieved from the PreparedStatement.
- * Calls to trackQueryStats happen in all "execute" methods that take no arguments;
+ * Calls to trackQueryStats happen in all "execute" methods, including executeBatch;
  * all other calls simply delegate to the wrapped PreparedStatement instance.
+ * Executions are also recorded per SQL fingerprint in {@link DbQueryStats}.
  *
  * Added for bug #56968
  * @author iraykin
@@ -57,6 +58,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
     private final PreparedStatement stmt;
     private String queryString;
     private ActivityTracker tracker = ZimbraPerf.SQL_TRACKER;
+    private boolean resetOnClose = false; // the statement may go back to the statement cache
 
     public StatTrackingPreparedStatement(PreparedStatement stmt) {
         this.stmt = stmt;
@@ -107,12 +109,14 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     private void trackQueryStats(String sql, long startTime) {
         if (sql != null) {
-            tracker.addStat(getQueryType(sql), startTime);
+            long micros = (System.nanoTime() - startTime) / 1000;
+            tracker.addElapsed(getQueryType(sql), micros / 1000);
+            DbQueryStats.getInstance().record(sql, micros);
         }
     }
     @Override
     public ResultSet executeQuery(String sql) throws SQLException {
-        long startTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
         ResultSet results = stmt.executeQuery(sql);
         trackQueryStats(sql, startTime);
         return results;
@@ -120,7 +124,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public int executeUpdate(String sql) throws SQLException {
-        long startTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
         int results = stmt.executeUpdate(sql);
         trackQueryStats(sql, startTime);
         return results;
@@ -128,6 +132,15 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public void close() throws SQLException {
+        if (resetOnClose) {
+            // don't let the next user of a cached statement inherit the limits set by this one
+            resetOnClose = false;
+            try {
+                stmt.setMaxRows(0);
+                stmt.setFetchSize(0);
+            } catch (SQLException ignore) {
+            }
+        }
         stmt.close();
     }
 
@@ -148,6 +161,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public void setMaxRows(int max) throws SQLException {
+        resetOnClose = true;
         stmt.setMaxRows(max);
     }
 
@@ -190,7 +204,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public boolean execute(String sql) throws SQLException {
-        long startTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
         boolean results = stmt.execute(sql);
         trackQueryStats(sql, startTime);
         return results;
@@ -223,6 +237,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public void setFetchSize(int rows) throws SQLException {
+        resetOnClose = true;
         stmt.setFetchSize(rows);
     }
 
@@ -253,7 +268,10 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public int[] executeBatch() throws SQLException {
-        return stmt.executeBatch();
+        long startTime = System.nanoTime();
+        int[] results = stmt.executeBatch();
+        trackQueryStats(queryString, startTime);
+        return results;
     }
 
     @Override
@@ -348,7 +366,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public ResultSet executeQuery() throws SQLException {
-        long startTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
         ResultSet results = stmt.executeQuery();
         trackQueryStats(queryString, startTime);
         return results;
@@ -356,7 +374,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public int executeUpdate() throws SQLException {
-        long startTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
         int results = stmt.executeUpdate();
         trackQueryStats(queryString, startTime);
         return results;
@@ -471,7 +489,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public boolean execute() throws SQLException {
-        long startTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
         boolean results = stmt.execute();
         trackQueryStats(queryString, startTime);
         return results;
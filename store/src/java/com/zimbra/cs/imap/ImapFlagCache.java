@@ -96,6 +96,14 @@ public class ImapFlagCache implements Iterable<ImapFlagCache.ImapFlag>, java.io.
             mListed = VISIBLE;
         }
 
+        ImapFlag(String name, String imapName, int id, long bitmask, boolean positive, boolean permanent,
+                boolean listed) {
+            mId   = id;        mBitmask   = bitmask;
+            mName = name;      mImapName  = imapName;
+            mPositive = positive;  mPermanent = permanent;
+            mListed = listed;
+        }
+
         private String normalize(String name, int id) {
             StringBuilder sb = new StringBuilder(name.length());
             for (int i = 0; i < name.length(); i++) {
@@ -113,8 +121,11 @@ public class ImapFlagCache implements Iterable<ImapFlagCache.ImapFlag>, java.io.
         }
 
         boolean matches(ImapMessage i4msg) {
+            return matches(i4msg.flags, i4msg.sflags, i4msg.tags);
+        }
+
+        boolean matches(int flags, short sflags, String[] tags) {
             if (mId > 0) {
-                String[] tags = i4msg.tags;
                 if (!ArrayUtil.isEmpty(tags)) {
                     for (String tag : tags) {
                         if (mName.equals(tag)) {
@@ -124,7 +135,7 @@ public class ImapFlagCache implements Iterable<ImapFlagCache.ImapFlag>, java.io.
                 }
                 return false;
             } else {
-                long mask = mId == 0 ? i4msg.sflags : i4msg.flags;
+                long mask = mId == 0 ? sflags : flags;
                 return (mask & mBitmask) != 0;
             }
         }
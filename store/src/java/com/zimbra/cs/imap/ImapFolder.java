@@ -21,11 +21,8 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListMap;
@@ -33,6 +30,7 @@ import java.util.concurrent.ConcurrentSkipListMap;
 import com.google.common.base.Function;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.zimbra.common.mailbox.BaseFolderInfo;
 import com.zimbra.common.mailbox.BaseItemInfo;
 import com.zimbra.common.mailbox.FolderStore;
@@ -59,7 +57,7 @@ import com.zimbra.cs.session.PendingModifications.Change;
  */
 public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Serializable {
     // Update serialVersionUID when changing any instance members. Otherwise serialization won't work correctly.
-    private static final long serialVersionUID = 3845968507901145794L;
+    private static final long serialVersionUID = -2101417916326718822L;
     public static final byte SELECT_READONLY  = 0x01;
     public static final byte SELECT_CONDSTORE = 0x02;
 
@@ -68,13 +66,12 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     private transient ImapListener session;
     private transient ImapPath path;
     private transient SessionData sessionData;
-    private transient Map<Integer, ImapMessage> messageIds;
 
     private final ItemIdentifier folderIdentifier;
     private final int uidValidity;
     private String query;
     private Set<MailItem.Type> typeConstraint = ImapHandler.ITEM_TYPES;
-    private final List<ImapMessage> sequence = new ArrayList<ImapMessage>();
+    private final ImapMessageSequence sequence;
     private final ImapFlagCache tags;   // operationally could be "transient", but that makes deserialization replay depend on magic
 
     // below this point are session-specific attributes of the folder SELECT state
@@ -120,9 +117,22 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         }
         this.mailboxStore = ImapMailboxStore.get(folder.getMailboxStore());
         this.folderIdentifier = this.mailboxStore.getTargetItemIdentifier(folder);
+        this.sequence = new ImapMessageSequence();
         this.tags = new ImapFlagCache();
     }
 
+    /** Rebuilds a folder read back from the session cache by {@link ImapFolderCodec}.
+     *  Like a deserialized folder, it has no path or session until restored. */
+    ImapFolder(ItemIdentifier folderIdentifier, int uidValidity, String query, Set<MailItem.Type> typeConstraint,
+            ImapMessageSequence sequence, ImapFlagCache tags) {
+        this.folderIdentifier = folderIdentifier;
+        this.uidValidity = uidValidity;
+        this.query = query;
+        this.typeConstraint = typeConstraint;
+        this.sequence = sequence;
+        this.tags = tags;
+    }
+
     protected void setInitialSize() {
         SessionData sdata = sessionData;
         if (sdata != null) {
@@ -285,18 +295,23 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         return sdata == null ? false : sdata.writable;
     }
 
+    /** Applies <tt>func</tt> to every message in the folder.  Messages that
+     *  haven't been accessed individually are passed as detached copies, so
+     *  <tt>func</tt> must not rely on changes to them being kept. */
     public synchronized void traverse(Function<ImapMessage, Void> func) {
         int prevUid = -1;
-        for (Iterator<ImapMessage> it = sequence.iterator(); it.hasNext();) {
-            ImapMessage i4msg = it.next();
-            if (i4msg.imapUid == prevUid) {
+        int kept = 0;
+        for (int i = 0; i < sequence.size(); i++) {
+            int uid = sequence.getUid(i);
+            if (uid == prevUid) {
                 ZimbraLog.imap.warn("duplicate UID %d in cached folder %s", prevUid, this.folderIdentifier);
-                it.remove();
             } else {
-                prevUid = i4msg.imapUid;
-                func.apply(i4msg);
+                prevUid = uid;
+                sequence.move(i, kept);
+                func.apply(sequence.peek(kept++));
             }
         }
+        sequence.truncate(kept);
     }
 
     public ImapPath getPath() {
@@ -336,20 +351,7 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
      *         and only if the key is found.
      * @see Collections#binarySearch(List, Object) */
     private int uidSearch(int uid) {
-        int low = 0;
-        int high = getSize() - 1;
-        while (low <= high) {
-            int mid = (low + high) >> 1;
-            int targetUid = sequence.get(mid).imapUid;
-            if (targetUid < uid) {
-                low = mid + 1;
-            } else if (targetUid > uid) {
-                high = mid - 1;
-            } else {
-                return mid;  // key found
-            }
-        }
-        return -(low + 1);  // key not found
+        return sequence.indexOfUid(uid);
     }
 
     /** Returns the ImapMessage with the given Zimbra item ID from the
@@ -360,27 +362,16 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         }
         // leverage the fact that by default, the message's item id and its IMAP uid are identical
         int seq = uidSearch(id);
-        if (seq >= 0 && seq < sequence.size()) {
-            ImapMessage i4msg = sequence.get(seq);
-            // slightly tricky: must check if message is expunged in order to catch the case of
-            //   using the web client to move the message out of the folder and back in before
-            //   the IMAP server can tell the client about the EXPUNGE from the first move
-            if (i4msg != null && i4msg.msgId == id && !i4msg.isExpunged()) {
-                return checkRemoved(i4msg);
-            }
+        // slightly tricky: must check if message is expunged in order to catch the case of
+        //   using the web client to move the message out of the folder and back in before
+        //   the IMAP server can tell the client about the EXPUNGE from the first move
+        if (seq >= 0 && sequence.getId(seq) == id && !sequence.isExpunged(seq)) {
+            return sequence.get(seq);
         }
 
-        // if item id and IMAP uid differ, the message goes in the "mMessageIds" map
-        if (messageIds == null) {
-            // lookup miss means we need to generate the item-id-to-imap-message mapping
-            messageIds = new HashMap<Integer, ImapMessage>();
-            for (ImapMessage i4msg : sequence) {
-                if (i4msg != null && i4msg.msgId != i4msg.imapUid) {
-                    messageIds.put(i4msg.msgId, i4msg);
-                }
-            }
-        }
-        return checkRemoved(messageIds.get(Integer.valueOf(id)));
+        // if item id and IMAP uid differ, fall back to the sequence's item id index
+        seq = sequence.indexOfId(id);
+        return seq < 0 || sequence.isExpunged(seq) ? null : sequence.get(seq);
     }
 
     /** Returns the ImapMessage with the given IMAP UID from the folder's
@@ -398,8 +389,10 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     /** Returns the ImapMessage with the given 1-based sequence number in the
      *  folder's {@link #sequence} message list. */
     protected ImapMessage getBySequence(int seq, boolean includeExpunged) {
-        ImapMessage i4msg = seq > 0 && seq <= getSize() ? sequence.get(seq - 1) : null;
-        return includeExpunged ? i4msg : checkRemoved(i4msg);
+        if (seq <= 0 || seq > getSize() || (!includeExpunged && sequence.isExpunged(seq - 1))) {
+            return null;
+        }
+        return sequence.get(seq - 1);
     }
 
     /** Returns the last ImapMessage in the folder's {@link #sequence}
@@ -408,16 +401,9 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         return getBySequence(getSize());
     }
 
-    /** Returns the passed-in ImapMessage, or <tt>null</tt> if the message has
-     *  already been expunged.*/
-    private ImapMessage checkRemoved(ImapMessage i4msg) {
-        return (i4msg == null || i4msg.isExpunged() ? null : i4msg);
-    }
-
     /** Adds the message to the folder.  Messages <b>must</b> be added in
      *  increasing IMAP UID order.  Added messages are appended to the end of
-     *  the folder's {@link #sequence} message list and inserted into the
-     *  {@link #mMessageIds} hash (if the latter hash has been instantiated).
+     *  the folder's {@link #sequence} message list.
      * @return true if message cached successfully without modification false if a renumber was required. */
     protected synchronized boolean cache(ImapMessage i4msg, boolean recent) {
         // provide the information missing from the DB search
@@ -432,21 +418,20 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
             }
         }
         // update the folder information
-        ImapMessage last = null;
-        if (sequence.size() > 0 && (last = sequence.get(sequence.size() - 1)).imapUid > i4msg.imapUid) {
-            ZimbraLog.imap.debug("adding out of order UID. prev: %s current: %s", last, i4msg);
+        int size = sequence.size();
+        int lastUid = size > 0 ? sequence.getUid(size - 1) : 0;
+        if (size > 0 && lastUid > i4msg.imapUid) {
+            ZimbraLog.imap.debug("adding out of order UID. prev: %s current: %s", sequence.peek(size - 1), i4msg);
             if (!insertOutOfOrder(i4msg)) {
                 return false;
             }
-        } else if (last != null && last.imapUid == i4msg.imapUid) {
+        } else if (size > 0 && lastUid == i4msg.imapUid) {
             //should never occur, log so we can learn more if it does
-            ZimbraLog.imap.warn("duplicate UID %s %s added to sequence", i4msg, last, new Exception());
-            sequence.set(sequence.size() - 1, i4msg);
-            setIndex(i4msg, sequence.size());
+            ZimbraLog.imap.warn("duplicate UID %s %s added to sequence", i4msg, sequence.peek(size - 1), new Exception());
+            sequence.set(size - 1, i4msg);
         } else {
             //normal case, last item has lower UID so just add to the end
             sequence.add(i4msg);
-            setIndex(i4msg, sequence.size());
         }
         // update the tag cache to include only the tags in the folder
         updateTagCache(i4msg);
@@ -454,16 +439,11 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     }
 
     private boolean insertOutOfOrder(ImapMessage i4msg) {
-        LinkedList<ImapMessage> shifted = new LinkedList<ImapMessage>();
         int idx  = sequence.size() - 1;
         while (idx > -1) {
-            ImapMessage prev = sequence.get(idx);
-            if (prev.imapUid <= i4msg.imapUid) {
+            if (sequence.getUid(idx) <= i4msg.imapUid) {
                 break;
-            } else if (prev.isAdded()) {
-                shifted.addFirst(prev);
-                //add to beginning so iteration below starts with lowest UID
-                //this is necessary to ensure that messageIds map holds the highest UID for a given msgId
+            } else if (sequence.isAdded(idx)) {
                 idx--;
             } else {
                 ZimbraLog.imap.warn("message added out of order occurs before message which is already visible to client. Must renumber %s", i4msg);
@@ -476,12 +456,8 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
                 return false;
             }
         }
-        idx++;
-        sequence.add(idx, i4msg);
-        setIndex(i4msg, idx + 1);
-        for (ImapMessage shiftedMsg : shifted) {
-            setIndex(shiftedMsg, shiftedMsg.sequence + 1);
-        }
+        // shifts the sequence numbers of the later, not yet visible, messages
+        sequence.insert(idx + 1, i4msg);
         return true;
     }
 
@@ -504,24 +480,10 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         }
     }
 
-    private void setIndex(ImapMessage i4msg, int position) {
-        i4msg.sequence = position;
-        if (messageIds != null) {
-            if (i4msg.msgId != i4msg.imapUid) {
-                messageIds.put(Integer.valueOf(i4msg.msgId), i4msg);
-            } else {
-                messageIds.remove(Integer.valueOf(i4msg.msgId));
-            }
-        }
-    }
-
     /** Cleans up all references to an ImapMessage from all the folder's data
      *  structures other than {@link #sequence}.  The {@link #sequence}
      *  cleanup must be done separately. */
     private void uncache(ImapMessage i4msg) {
-        if (messageIds != null) {
-            messageIds.remove(i4msg.msgId);
-        }
         SessionData sdata = sessionData;
         if (sdata != null) {
             sdata.dirtyMessages.remove(Integer.valueOf(i4msg.imapUid));
@@ -561,8 +523,9 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
             return;
         }
 
-        for (ImapMessage i4msg : sequence) {
-            if (i4msg != null && i4flag.matches(i4msg)) {
+        for (int i = 0; i < sequence.size(); i++) {
+            if (sequence.matches(i, i4flag)) {
+                ImapMessage i4msg = sequence.get(i);
                 dirtyMessage(i4msg, modseq);
 
                 List<String> tags = Lists.newArrayList(i4msg.tags);
@@ -598,6 +561,10 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         return tags;
     }
 
+    ImapMessageSequence getSequence() {
+        return sequence;
+    }
+
     protected void clearTagCache() {
         tags.clear();
     }
@@ -713,19 +680,18 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
 
     protected synchronized ImapMessageSet getAllMessages() {
         ImapMessageSet result = new ImapMessageSet();
-        if (getSize() > 0) {
-            result.addAll(sequence);
-            result.remove(null);
+        for (int i = 0; i < sequence.size(); i++) {
+            result.add(sequence.get(i));
         }
         return result;
     }
 
     protected synchronized ImapMessageSet getFlaggedMessages(ImapFlag i4flag) {
         ImapMessageSet result = new ImapMessageSet();
-        if (i4flag != null && getSize() > 0) {
-            for (ImapMessage i4msg : sequence) {
-                if (i4msg != null && i4flag.matches(i4msg)) {
-                    result.add(i4msg);
+        if (i4flag != null) {
+            for (int i = 0; i < sequence.size(); i++) {
+                if (sequence.matches(i, i4flag)) {
+                    result.add(sequence.get(i));
                 }
             }
         }
@@ -1079,31 +1045,55 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         }
         ZimbraLog.imap.debug("  ** iterating (collapseExpunged)");
 
-        boolean trimmed = false;
-        int seq = 1;
+        int kept = 0;
         List<Integer> removed = new ArrayList<Integer>();
-        for (ListIterator<ImapMessage> lit = sequence.listIterator(); lit.hasNext(); seq++) {
-            ImapMessage i4msg = lit.next();
-            if (i4msg.isExpunged()) {
+        for (int i = 0; i < sequence.size(); i++) {
+            if (sequence.isExpunged(i)) {
+                ImapMessage i4msg = sequence.get(i);
                 ZimbraLog.imap.debug("  ** removing: %s", i4msg);
-                // uncache() removes pointers to the message from mMessageIds;
-                //   if the message appears again in sequence, it *must* be later and the
-                //   subsequent call to setIndex() will correctly update the mMessageIds mapping
                 uncache(i4msg);
-                lit.remove();
                 // note that we can't send expunge notifications for messages the client doesn't know about yet...
                 if (!i4msg.isAdded()) {
-                    removed.add(byUID ? i4msg.imapUid : seq);
+                    removed.add(byUID ? i4msg.imapUid : kept + 1);
                 }
-                seq--;
-                trimmed = true;
-            } else if (trimmed) {
-                setIndex(i4msg, seq);
+            } else {
+                sequence.move(i, kept++);
             }
         }
+        sequence.truncate(kept);
         return removed;
     }
 
+    /** Drops the folder's per-message {@link ImapMessage} objects, keeping
+     *  only the compact representation.  Only safe when no other code holds
+     *  on to messages from this folder, e.g. right after it was loaded. */
+    protected synchronized void compact() {
+        sequence.compact();
+    }
+
+    /** Drops the per-message {@link ImapMessage} objects that commands
+     *  created, except those the session still refers to (dirty messages and
+     *  saved search results), so that a <tt>FETCH 1:*</tt> or <tt>SEARCH</tt>
+     *  doesn't leave every message expanded until the next SELECT.  Must be
+     *  called with the owning {@link ImapListener}'s monitor held, so that no
+     *  notification is updating a message while it is folded back. */
+    protected synchronized void releaseMessages() {
+        if (!sequence.hasAttached()) {
+            return;
+        }
+        Set<ImapMessage> keep = Sets.newIdentityHashSet();
+        SessionData sdata = sessionData;
+        if (sdata != null) {
+            if (sdata.savedSearchResults != null) {
+                keep.addAll(sdata.savedSearchResults);
+            }
+            for (DirtyMessage dirty : sdata.dirtyMessages.values()) {
+                keep.add(dirty.i4msg);
+            }
+        }
+        sequence.compact(keep);
+    }
+
     protected synchronized void restore(ImapListener sess, SessionData sdata)
             throws ImapSessionClosedException, ServiceException {
         session = sess;
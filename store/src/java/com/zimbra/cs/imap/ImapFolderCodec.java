@@ -0,0 +1,440 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.ehcache.spi.serialization.Serializer;
+import org.ehcache.spi.serialization.SerializerException;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.ItemIdentifier;
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Binary encoding of an {@link ImapFolder} for the IMAP session caches, used in place of Java serialization.
+ * <p>
+ * The encoding starts with a 4 byte header: the magic bytes {@code 'I' '4'}, a format version and a flags byte.  If
+ * {@link #FLAG_DEFLATE} is set, the rest of the data is Deflate-compressed.  Integers are written as varints, strings
+ * as length-prefixed UTF-8, and each message's UID as the difference from the previous message's UID, so a typical
+ * message takes 5 bytes.
+ * <p>
+ * Entries written by Java serialization before this codec existed are not decoded; cache keys include
+ * {@link #CACHE_KEY_VERSION}, so those entries are simply never looked up again and expire from the cache.
+ */
+public final class ImapFolderCodec {
+
+    private static final byte MAGIC_0 = 'I';
+    private static final byte MAGIC_1 = '4';
+    static final byte VERSION = 1;
+    static final byte FLAG_DEFLATE = 0x01;
+    private static final int HEADER_LENGTH = 4;
+
+    /**
+     * Part of every IMAP session cache key, so that servers using a different encoding (including ones from before
+     * this codec, which used Java serialization) never read each other's entries from a shared cache.
+     */
+    static final String CACHE_KEY_VERSION = "i4v" + VERSION;
+
+    private ImapFolderCodec() {
+    }
+
+    /** Encodes the folder, compressing it if {@code imap_session_cache_compress} is set. */
+    public static byte[] encode(ImapFolder folder) throws IOException {
+        return encode(folder, LC.imap_session_cache_compress.booleanValue());
+    }
+
+    public static byte[] encode(ImapFolder folder, boolean compress) throws IOException {
+        Output out = new Output(HEADER_LENGTH + 256 + folder.getSize() * 5);
+        out.writeByte(MAGIC_0);
+        out.writeByte(MAGIC_1);
+        out.writeByte(VERSION);
+        out.writeByte(compress ? FLAG_DEFLATE : 0);
+        synchronized (folder) {
+            writeFolder(out, folder);
+        }
+        return compress ? deflate(out.buf, out.length) : Arrays.copyOf(out.buf, out.length);
+    }
+
+    public static ImapFolder decode(byte[] data) throws IOException {
+        return decode(data, 0, data.length);
+    }
+
+    public static ImapFolder decode(byte[] data, int offset, int length) throws IOException {
+        if (length < HEADER_LENGTH || data[offset] != MAGIC_0 || data[offset + 1] != MAGIC_1) {
+            throw new StreamCorruptedException("not an encoded IMAP folder");
+        }
+        if (data[offset + 2] != VERSION) {
+            throw new StreamCorruptedException("unsupported IMAP folder encoding version " + data[offset + 2]);
+        }
+        Input in;
+        if ((data[offset + 3] & FLAG_DEFLATE) != 0) {
+            byte[] inflated = inflate(data, offset + HEADER_LENGTH, length - HEADER_LENGTH);
+            in = new Input(inflated, 0, inflated.length);
+        } else {
+            in = new Input(data, offset + HEADER_LENGTH, offset + length);
+        }
+        return readFolder(in);
+    }
+
+    /** Compresses everything after the header, which is copied as is. */
+    private static byte[] deflate(byte[] buf, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(buf, HEADER_LENGTH, length - HEADER_LENGTH);
+            deflater.finish();
+            Output out = new Output(Math.max(length / 4, 64));
+            System.arraycopy(buf, 0, out.buf, 0, HEADER_LENGTH);
+            out.length = HEADER_LENGTH;
+            while (!deflater.finished()) {
+                out.ensureCapacity(out.length + 8192);
+                out.length += deflater.deflate(out.buf, out.length, out.buf.length - out.length);
+            }
+            return Arrays.copyOf(out.buf, out.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int offset, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+            Output out = new Output(length * 4);
+            while (!inflater.finished()) {
+                out.ensureCapacity(out.length + 8192);
+                int n = inflater.inflate(out.buf, out.length, out.buf.length - out.length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("truncated compressed IMAP folder");
+                }
+                out.length += n;
+            }
+            return Arrays.copyOf(out.buf, out.length);
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("corrupt compressed IMAP folder: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void writeFolder(Output out, ImapFolder folder) {
+        ItemIdentifier ident = folder.getItemIdentifier();
+        out.writeString(ident.accountId);
+        out.writeVarInt(ident.id);
+        out.writeVarInt(ident.subPartId);
+        out.writeVarInt(folder.getUIDValidity());
+        out.writeString(folder.getQuery());
+
+        Set<MailItem.Type> types = folder.getTypeConstraint();
+        out.writeVarInt(types.size());
+        for (MailItem.Type type : types) {
+            out.writeByte(type.toByte());
+        }
+
+        List<ImapFlag> flags = new ArrayList<ImapFlag>();
+        for (ImapFlag i4flag : folder.getTagset()) {
+            flags.add(i4flag);
+        }
+        out.writeVarInt(flags.size());
+        for (ImapFlag i4flag : flags) {
+            out.writeString(i4flag.mName);
+            out.writeString(i4flag.mImapName);
+            out.writeVarInt(zigzag(i4flag.mId));
+            out.writeVarLong(i4flag.mBitmask);
+            out.writeByte((i4flag.mPositive ? 0x01 : 0) | (i4flag.mPermanent ? 0x02 : 0) | (i4flag.mListed ? 0x04 : 0));
+        }
+
+        writeSequence(out, folder.getSequence());
+    }
+
+    private static ImapFolder readFolder(Input in) throws IOException {
+        String accountId = in.readString();
+        int id = in.readVarInt();
+        int subPartId = in.readVarInt();
+        ItemIdentifier ident = new ItemIdentifier(accountId, id, subPartId);
+        int uidValidity = in.readVarInt();
+        String query = in.readString();
+
+        int count = in.readCount();
+        Set<MailItem.Type> types = EnumSet.noneOf(MailItem.Type.class);
+        for (int i = 0; i < count; i++) {
+            types.add(MailItem.Type.of((byte) in.readByte()));
+        }
+        if (types.equals(ImapHandler.ITEM_TYPES)) {
+            types = ImapHandler.ITEM_TYPES;
+        }
+
+        ImapFlagCache tags = new ImapFlagCache();
+        for (int i = in.readCount(); i > 0; i--) {
+            String name = in.readString();
+            String imapName = in.readString();
+            int tagId = unzigzag(in.readVarInt());
+            long bitmask = in.readVarLong();
+            int bits = in.readByte();
+            tags.cache(new ImapFlag(name, imapName, tagId, bitmask, (bits & 0x01) != 0, (bits & 0x02) != 0,
+                    (bits & 0x04) != 0));
+        }
+
+        return new ImapFolder(ident, uidValidity, query, types, readSequence(in), tags);
+    }
+
+    /**
+     * Each message is written as the zigzag-encoded UID delta, the zigzag-encoded difference between item id and UID
+     * (0 for almost all messages), the flags, the session flags and its tags as references into a string table that
+     * is built up as the messages are written.
+     */
+    private static void writeSequence(Output out, ImapMessageSequence sequence) {
+        int size = sequence.size();
+        out.writeVarInt(size);
+        Map<String, Integer> tagTable = new HashMap<String, Integer>();
+        int prevUid = 0;
+        for (int i = 0; i < size; i++) {
+            int uid = sequence.getUid(i);
+            out.ensureCapacity(out.length + 20);
+            out.writeVarInt(zigzag(uid - prevUid));
+            out.writeVarInt(zigzag(sequence.getId(i) - uid));
+            out.writeVarInt(sequence.getFlags(i));
+            out.writeVarInt(sequence.getSessionFlags(i) & 0xFFFF);
+            String[] msgTags = sequence.getTags(i);
+            if (msgTags == null) {
+                out.writeVarInt(0);
+            } else {
+                out.writeVarInt(msgTags.length + 1);
+                for (String tag : msgTags) {
+                    Integer ref = tagTable.get(tag);
+                    if (ref != null) {
+                        out.writeVarInt(ref + 1);
+                    } else {
+                        out.writeVarInt(0);
+                        out.writeString(tag);
+                        tagTable.put(tag, tagTable.size());
+                    }
+                }
+            }
+            prevUid = uid;
+        }
+    }
+
+    private static ImapMessageSequence readSequence(Input in) throws IOException {
+        int size = in.readCount();
+        ImapMessageSequence sequence = new ImapMessageSequence();
+        List<String> tagTable = new ArrayList<String>();
+        int uid = 0;
+        for (int i = 0; i < size; i++) {
+            uid += unzigzag(in.readVarInt());
+            int id = uid + unzigzag(in.readVarInt());
+            int flags = in.readVarInt();
+            short sflags = (short) in.readVarInt();
+            String[] msgTags = null;
+            int tagCount = in.readVarInt();
+            if (tagCount > 0) {
+                msgTags = new String[tagCount - 1];
+                for (int t = 0; t < msgTags.length; t++) {
+                    int ref = in.readVarInt();
+                    if (ref == 0) {
+                        msgTags[t] = in.readString();
+                        tagTable.add(msgTags[t]);
+                    } else if (ref <= tagTable.size()) {
+                        msgTags[t] = tagTable.get(ref - 1);
+                    } else {
+                        throw new StreamCorruptedException("invalid tag reference " + ref);
+                    }
+                }
+            }
+            sequence.append(uid, id, flags, sflags, msgTags);
+        }
+        return sequence;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Unsynchronized growable byte array; integers are unsigned LEB128 varints. */
+    private static final class Output {
+        byte[] buf;
+        int length;
+
+        Output(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void ensureCapacity(int capacity) {
+            if (capacity > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+            }
+        }
+
+        void writeByte(int b) {
+            ensureCapacity(length + 1);
+            buf[length++] = (byte) b;
+        }
+
+        void writeVarInt(int value) {
+            ensureCapacity(length + 5);
+            while ((value & ~0x7F) != 0) {
+                buf[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[length++] = (byte) value;
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(length + 10);
+            while ((value & ~0x7FL) != 0) {
+                buf[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[length++] = (byte) value;
+        }
+
+        /** Writes the UTF-8 length plus one, or 0 for <tt>null</tt>, followed by the UTF-8 bytes. */
+        void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(utf8.length + 1);
+            ensureCapacity(length + utf8.length);
+            System.arraycopy(utf8, 0, buf, length, utf8.length);
+            length += utf8.length;
+        }
+    }
+
+    private static final class Input {
+        private final byte[] buf;
+        private int pos;
+        private final int limit;
+
+        Input(byte[] buf, int pos, int limit) {
+            this.buf = buf;
+            this.pos = pos;
+            this.limit = limit;
+        }
+
+        int readByte() throws EOFException {
+            if (pos >= limit) {
+                throw new EOFException("truncated IMAP folder");
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("malformed varint");
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("malformed varint");
+        }
+
+        int readCount() throws IOException {
+            int count = readVarInt();
+            if (count < 0) {
+                throw new StreamCorruptedException("negative count " + count);
+            }
+            return count;
+        }
+
+        String readString() throws IOException {
+            int len = readCount();
+            if (len == 0) {
+                return null;
+            }
+            len--;
+            if (len > limit - pos) {
+                throw new EOFException("truncated IMAP folder");
+            }
+            String value = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return value;
+        }
+    }
+
+    /** Ehcache value serializer that stores IMAP folders in this encoding. */
+    public static final class EhcacheSerializer implements Serializer<ImapFolder> {
+        public EhcacheSerializer() {
+        }
+
+        /** Constructor Ehcache uses when the serializer is configured by class. */
+        public EhcacheSerializer(ClassLoader loader) {
+        }
+
+        @Override
+        public ByteBuffer serialize(ImapFolder folder) throws SerializerException {
+            try {
+                return ByteBuffer.wrap(encode(folder));
+            } catch (IOException e) {
+                throw new SerializerException("failed to encode IMAP folder", e);
+            }
+        }
+
+        @Override
+        public ImapFolder read(ByteBuffer buffer) throws SerializerException {
+            try {
+                if (buffer.hasArray()) {
+                    return decode(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                }
+                byte[] data = new byte[buffer.remaining()];
+                buffer.duplicate().get(data);
+                return decode(data);
+            } catch (IOException e) {
+                throw new SerializerException("failed to decode IMAP folder", e);
+            }
+        }
+
+        @Override
+        public boolean equals(ImapFolder folder, ByteBuffer buffer) throws SerializerException {
+            return serialize(folder).equals(buffer.duplicate());
+        }
+    }
+}
@@ -16,11 +16,14 @@
  */
 package com.zimbra.cs.imap;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.InetSocketAddress;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -119,6 +122,8 @@ import com.zimbra.cs.service.admin.AdminAccessControl;
 import com.zimbra.cs.service.admin.FlushCache;
 import com.zimbra.cs.service.mail.FolderAction;
 import com.zimbra.cs.service.util.ItemId;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.store.FileDescriptorCache;
 import com.zimbra.cs.util.AccountUtil;
 import com.zimbra.cs.util.BuildInfo;
 import com.zimbra.soap.admin.type.CacheEntrySelector;
@@ -234,6 +239,7 @@ public abstract class ImapHandler {
     private Set<ImapExtension> activeExtensions;
     private final ServerThrottle reqThrottle;
     private final ImapCommandThrottle commandThrottle;
+    private long zeroCopyBytes;
 
     private static final Set<String> THROTTLED_COMMANDS = ImmutableSet.of(
             "APPEND", "COPY", "CREATE", "EXAMINE", "FETCH", "LIST",
@@ -274,6 +280,60 @@ public abstract class ImapHandler {
     protected abstract boolean doSTARTTLS(String tag) throws IOException;
     protected abstract InetSocketAddress getLocalAddress();
 
+    /**
+     * Returns true if the transport can write file content to the client directly (see {@link #sendFile}).
+     */
+    protected boolean supportsSendFile() {
+        return false;
+    }
+
+    /**
+     * Writes {@code count} bytes of the leased file starting at {@code position} to the client, after any output
+     * already written.  Takes ownership of the lease, which must be closed once the bytes are written or the write
+     * fails.  This copies the bytes through {@link #output}; transports that {@link #supportsSendFile() support it}
+     * override it to send them straight from the file, bypassing the heap.
+     */
+    protected void sendFile(FileDescriptorCache.Lease file, long position, long count) throws IOException {
+        try {
+            WritableByteChannel target = Channels.newChannel(output);
+            for (long sent = 0; sent < count; ) {
+                long n = file.getChannel().transferTo(position + sent, count - sent, target);
+                if (n <= 0) {
+                    throw new EOFException("file ended after " + (position + sent) + " bytes");
+                }
+                sent += n;
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns true if message content may be sent from the blob file without passing through the JVM.  Only plain
+     * connections qualify, since TLS and SASL encryption need to see every byte.
+     */
+    boolean canSendFile() {
+        return LC.imap_fetch_zero_copy.booleanValue() && !startedTLS &&
+                (authenticator == null || !authenticator.isEncryptionEnabled()) && supportsSendFile();
+    }
+
+    void sendFileContent(FileDescriptorCache.Lease file, long position, long count) throws IOException {
+        if (count > 0) {
+            sendFile(file, position, count);
+            zeroCopyBytes += count;
+            ZimbraPerf.COUNTER_IMAP_ZERO_COPY_BYTES.increment(count);
+        } else {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns the number of bytes of message content this connection has sent straight from blob files.
+     */
+    public long getZeroCopyBytes() {
+        return zeroCopyBytes;
+    }
+
     protected ImapCredentials getCredentials() {
         return credentials;
     }
@@ -451,6 +511,17 @@ public abstract class ImapHandler {
         return true;
     }
 
+    /**
+     * Called by the transport once a command has completed, so that the selected folder can go back to its compact
+     * representation.
+     */
+    protected void releaseSelectedMessages() {
+        ImapListener i4selected = selectedFolderListener;
+        if (i4selected != null) {
+            i4selected.releaseMessages();
+        }
+    }
+
     protected boolean executeRequest(ImapRequest req) throws IOException, ImapException {
         boolean isProxied = imapProxy != null;
 
@@ -481,6 +552,7 @@ public abstract class ImapHandler {
         boolean byUID = false;
         req.skipSpace();
         String command = lastCommand = req.readATOM();
+        ZimbraPerf.setCurrentCommand("IMAP " + command);
         do {
             if (!THROTTLED_COMMANDS.contains(command)) {
                 commandThrottle.reset(); //we received a command that isn't throttle-aware; reset throttle counter for next pass
@@ -3938,7 +4010,9 @@ public abstract class ImapHandler {
                     if (!fullMessage.isEmpty()) {
                         for (ImapPartSpecifier pspec : fullMessage) {
                             result.print(empty ? "" : " ");
-                            pspec.write(result, output, item);
+                            if (!pspec.writeFromBlobFile(result, this, item)) {
+                                pspec.write(result, output, item);
+                            }
                             empty = false;
                         }
                     }
@@ -4678,6 +4752,9 @@ public abstract class ImapHandler {
             if (credentials != null) {
                 setLoggingContext();
                 ZimbraLog.imap.info("dropping connection for user " + credentials.getUsername() + " (LOGOUT)");
+                if (zeroCopyBytes > 0) {
+                    ZimbraLog.imap.debug("sent %d bytes of message content directly from blob files", zeroCopyBytes);
+                }
                 credentials.logout();
                 setCredentials(null);
             }
@@ -405,6 +405,16 @@ public abstract class ImapListener extends Session {
         return reload();
     }
 
+    /**
+     * Lets the folder, if it's paged in, drop the per-message objects the handler's last command created.
+     * Synchronized like notification processing, which updates those objects.
+     */
+    public synchronized void releaseMessages() {
+        if (mFolder instanceof ImapFolder) {
+            ((ImapFolder) mFolder).releaseMessages();
+        }
+    }
+
     public void closeFolder(boolean isUnregistering) {
         MANAGER.closeFolder(this, false);
     }
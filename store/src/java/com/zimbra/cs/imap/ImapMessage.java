@@ -151,6 +151,14 @@ public class ImapMessage implements Comparable<ImapMessage>, java.io.Serializabl
         this(hit.getItemId(), hit.getMailItemType(), hit.getImapUid(), hit.getFlagBitmask(), hit.getTags());
     }
 
+    ImapMessage(int id, int imapId, int flags, short sflags, String[] tags) {
+        this.msgId   = id;
+        this.imapUid = imapId;
+        this.sflags  = sflags;
+        this.flags   = flags;
+        this.tags    = tags;
+    }
+
     ImapMessage(ImapMessage i4msg) {
         this.msgId   = i4msg.msgId;
         this.imapUid = i4msg.imapUid;
@@ -0,0 +1,420 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Set;
+
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+
+/**
+ * The messages of an {@link ImapFolder} in IMAP sequence order, stored as parallel primitive arrays (UID, item id,
+ * flags, session flags) rather than one {@link ImapMessage} per message.
+ * <p>
+ * {@link ImapMessage} objects are only created for the messages a command actually touches, and are then kept as
+ * the authoritative copy of that message's mutable state until {@link #compact()} folds them back into the arrays,
+ * which the owning folder does at SELECT and again after every command.
+ * The serialized form contains just the arrays.
+ * <p>
+ * Not thread-safe; callers synchronize on the owning folder.
+ */
+final class ImapMessageSequence implements java.io.Serializable {
+    private static final long serialVersionUID = -4383628394839218127L;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private transient int size;
+    private transient int[] uids;
+    private transient int[] ids;
+    private transient int[] flags;
+    private transient short[] sflags;
+    /** Allocated the first time a tagged message is added. */
+    private transient String[][] tags;
+    private transient ImapMessage[] views;
+    /** Upper bound on the number of attached {@link ImapMessage} objects. */
+    private transient int attached;
+
+    /** Open-addressing index of item id to position, for messages whose item id differs from their UID. */
+    private transient int[] idKeys;
+    private transient int[] idPositions;
+
+    ImapMessageSequence() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        uids = new int[capacity];
+        ids = new int[capacity];
+        flags = new int[capacity];
+        sflags = new short[capacity];
+        views = new ImapMessage[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getUid(int index) {
+        return uids[index];
+    }
+
+    int getId(int index) {
+        return ids[index];
+    }
+
+    int getFlags(int index) {
+        ImapMessage view = views[index];
+        return view != null ? view.flags : flags[index];
+    }
+
+    short getSessionFlags(int index) {
+        ImapMessage view = views[index];
+        return view != null ? view.sflags : sflags[index];
+    }
+
+    String[] getTags(int index) {
+        ImapMessage view = views[index];
+        return view != null ? view.tags : tags == null ? null : tags[index];
+    }
+
+    boolean isExpunged(int index) {
+        return (getSessionFlags(index) & ImapMessage.FLAG_EXPUNGED) != 0;
+    }
+
+    boolean isAdded(int index) {
+        return (getSessionFlags(index) & ImapMessage.FLAG_ADDED) != 0;
+    }
+
+    boolean matches(int index, ImapFlag i4flag) {
+        return i4flag.matches(getFlags(index), getSessionFlags(index), getTags(index));
+    }
+
+    /**
+     * Returns the message at the given 0-based position, creating its {@link ImapMessage} if it doesn't have one
+     * yet.  The returned object stays attached to this sequence, so changes to it are kept.
+     */
+    ImapMessage get(int index) {
+        ImapMessage view = views[index];
+        if (view == null) {
+            view = new ImapMessage(ids[index], uids[index], flags[index], sflags[index],
+                    tags == null ? null : tags[index]);
+            view.sequence = index + 1;
+            views[index] = view;
+            attached++;
+        }
+        return view;
+    }
+
+    /**
+     * Returns the message at the given 0-based position without attaching a new {@link ImapMessage} to this
+     * sequence.  Changes to a returned object that wasn't already attached are not kept.
+     */
+    ImapMessage peek(int index) {
+        ImapMessage view = views[index];
+        if (view == null) {
+            view = new ImapMessage(ids[index], uids[index], flags[index], sflags[index],
+                    tags == null ? null : tags[index]);
+            view.sequence = index + 1;
+        }
+        return view;
+    }
+
+    /**
+     * Binary search for an IMAP UID.
+     * @return the 0-based position of the UID, or <tt>(-(<i>insertion point</i>) - 1)</tt> if it isn't present
+     * @see Arrays#binarySearch(int[], int, int, int) */
+    int indexOfUid(int uid) {
+        return Arrays.binarySearch(uids, 0, size, uid);
+    }
+
+    /**
+     * Returns the position of the last message with the given item id among the messages whose item id differs
+     * from their UID, or <tt>-1</tt>.
+     */
+    int indexOfId(int id) {
+        if (idKeys == null) {
+            buildIdIndex();
+        }
+        int mask = idKeys.length - 1;
+        for (int slot = hash(id) & mask; idKeys[slot] != 0; slot = (slot + 1) & mask) {
+            if (idKeys[slot] == id) {
+                return idPositions[slot];
+            }
+        }
+        return -1;
+    }
+
+    private void buildIdIndex() {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (ids[i] != uids[i]) {
+                count++;
+            }
+        }
+        int capacity = Integer.highestOneBit(Math.max(count, 4) * 2) * 2;
+        idKeys = new int[capacity];
+        idPositions = new int[capacity];
+        for (int i = 0; i < size; i++) {
+            if (ids[i] != uids[i]) {
+                indexId(i);
+            }
+        }
+    }
+
+    private void indexId(int index) {
+        int mask = idKeys.length - 1;
+        int slot = hash(ids[index]) & mask;
+        while (idKeys[slot] != 0 && idKeys[slot] != ids[index]) {
+            slot = (slot + 1) & mask;
+        }
+        idKeys[slot] = ids[index];
+        idPositions[slot] = index;
+    }
+
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** Appends a message, which becomes attached to this sequence. */
+    void add(ImapMessage i4msg) {
+        ensureCapacity(size + 1);
+        store(size++, i4msg);
+        if (idKeys != null && i4msg.msgId != i4msg.imapUid) {
+            if (size * 2 > idKeys.length) {
+                idKeys = null;
+            } else {
+                indexId(size - 1);
+            }
+        }
+    }
+
+    /** Appends a message without creating an {@link ImapMessage} for it. */
+    void append(int uid, int id, int flags, short sflags, String[] tags) {
+        ensureCapacity(size + 1);
+        uids[size] = uid;
+        ids[size] = id;
+        this.flags[size] = flags;
+        this.sflags[size] = sflags;
+        setTags(size, tags);
+        size++;
+        idKeys = null;
+    }
+
+    /** Inserts a message at the given 0-based position, shifting later messages up by one. */
+    void insert(int index, ImapMessage i4msg) {
+        ensureCapacity(size + 1);
+        int tail = size - index;
+        System.arraycopy(uids, index, uids, index + 1, tail);
+        System.arraycopy(ids, index, ids, index + 1, tail);
+        System.arraycopy(flags, index, flags, index + 1, tail);
+        System.arraycopy(sflags, index, sflags, index + 1, tail);
+        System.arraycopy(views, index, views, index + 1, tail);
+        if (tags != null) {
+            System.arraycopy(tags, index, tags, index + 1, tail);
+        }
+        size++;
+        store(index, i4msg);
+        for (int i = index + 1; i < size; i++) {
+            if (views[i] != null) {
+                views[i].sequence = i + 1;
+            }
+        }
+        idKeys = null;
+    }
+
+    /** Replaces the message at the given 0-based position. */
+    void set(int index, ImapMessage i4msg) {
+        store(index, i4msg);
+        idKeys = null;
+    }
+
+    /**
+     * Moves the message at position <tt>from</tt> down to position <tt>to</tt>, overwriting whatever was there.
+     * Used together with {@link #truncate} to remove messages in a single pass.
+     */
+    void move(int from, int to) {
+        if (from == to) {
+            return;
+        }
+        uids[to] = uids[from];
+        ids[to] = ids[from];
+        flags[to] = flags[from];
+        sflags[to] = sflags[from];
+        if (tags != null) {
+            tags[to] = tags[from];
+        }
+        views[to] = views[from];
+        if (views[to] != null) {
+            views[to].sequence = to + 1;
+        }
+        idKeys = null;
+    }
+
+    /** Drops all messages from the given 0-based position on. */
+    void truncate(int newSize) {
+        Arrays.fill(views, newSize, size, null);
+        if (tags != null) {
+            Arrays.fill(tags, newSize, size, null);
+        }
+        if (newSize != size) {
+            size = newSize;
+            idKeys = null;
+        }
+    }
+
+    /**
+     * Folds the state of all attached {@link ImapMessage} objects back into the arrays and detaches them.  Only
+     * safe when nothing else holds on to those objects.
+     */
+    void compact() {
+        sync();
+        Arrays.fill(views, 0, size, null);
+        attached = 0;
+    }
+
+    /**
+     * Like {@link #compact()}, but leaves the messages in {@code keep} (compared by identity) attached, since
+     * something else still holds on to them.
+     */
+    void compact(Set<ImapMessage> keep) {
+        sync();
+        attached = 0;
+        for (int i = 0; i < size; i++) {
+            ImapMessage view = views[i];
+            if (view != null) {
+                if (keep.contains(view)) {
+                    attached++;
+                } else {
+                    views[i] = null;
+                }
+            }
+        }
+    }
+
+    /** Returns true if any {@link ImapMessage} may currently be attached to this sequence. */
+    boolean hasAttached() {
+        return attached > 0;
+    }
+
+    private void sync() {
+        for (int i = 0; i < size; i++) {
+            ImapMessage view = views[i];
+            if (view != null) {
+                flags[i] = view.flags;
+                sflags[i] = view.sflags;
+                setTags(i, view.tags);
+            }
+        }
+    }
+
+    private void store(int index, ImapMessage i4msg) {
+        uids[index] = i4msg.imapUid;
+        ids[index] = i4msg.msgId;
+        flags[index] = i4msg.flags;
+        sflags[index] = i4msg.sflags;
+        setTags(index, i4msg.tags);
+        views[index] = i4msg;
+        i4msg.sequence = index + 1;
+        attached++;
+    }
+
+    private void setTags(int index, String[] value) {
+        if (tags == null) {
+            if (value == null) {
+                return;
+            }
+            tags = new String[uids.length][];
+        }
+        tags[index] = value;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= uids.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, uids.length + (uids.length >> 1));
+        uids = Arrays.copyOf(uids, newCapacity);
+        ids = Arrays.copyOf(ids, newCapacity);
+        flags = Arrays.copyOf(flags, newCapacity);
+        sflags = Arrays.copyOf(sflags, newCapacity);
+        views = Arrays.copyOf(views, newCapacity);
+        if (tags != null) {
+            tags = Arrays.copyOf(tags, newCapacity);
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        sync();
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeInt(uids[i]);
+            out.writeInt(ids[i]);
+            out.writeInt(flags[i]);
+            out.writeShort(sflags[i]);
+        }
+        // tags are rare, so only the tagged positions are written
+        int tagged = 0;
+        for (int i = 0; tags != null && i < size; i++) {
+            if (tags[i] != null) {
+                tagged++;
+            }
+        }
+        out.writeInt(tagged);
+        for (int i = 0; tagged > 0 && i < size; i++) {
+            if (tags[i] != null) {
+                out.writeInt(i);
+                out.writeInt(tags[i].length);
+                for (String tag : tags[i]) {
+                    out.writeUTF(tag);
+                }
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int count = in.readInt();
+        if (count < 0) {
+            throw new InvalidObjectException("negative size: " + count);
+        }
+        allocate(Math.max(count, INITIAL_CAPACITY));
+        for (int i = 0; i < count; i++) {
+            uids[i] = in.readInt();
+            ids[i] = in.readInt();
+            flags[i] = in.readInt();
+            sflags[i] = in.readShort();
+        }
+        size = count;
+        for (int tagged = in.readInt(); tagged > 0; tagged--) {
+            int index = in.readInt();
+            if (index < 0 || index >= count) {
+                throw new InvalidObjectException("tagged position out of range: " + index);
+            }
+            String[] value = new String[in.readInt()];
+            for (int i = 0; i < value.length; i++) {
+                value[i] = in.readUTF();
+            }
+            setTags(index, value);
+        }
+    }
+}
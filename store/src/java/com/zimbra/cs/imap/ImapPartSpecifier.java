@@ -37,7 +37,14 @@ import com.zimbra.common.util.InputStreamWithSize;
 import com.zimbra.common.util.StartOutOfBoundsException;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.BlobInputStream;
+import com.zimbra.cs.store.FileDescriptorCache;
+import com.zimbra.cs.store.MailboxBlob;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.store.file.FileBlobStore;
 
 class ImapPartSpecifier {
     static class BinaryDecodingException extends Exception {
@@ -180,6 +187,62 @@ class ImapPartSpecifier {
         }
     }
 
+    /**
+     * Writes the raw message, or an octet range of it, by sending the item's blob file straight to the client.
+     * Only applies to uncompressed blobs on a local volume and to connections that can send files directly.
+     *
+     * @return <tt>false</tt> if nothing was written and the caller should use {@link #write} instead
+     */
+    boolean writeFromBlobFile(PrintStream ps, ImapHandler handler, ZimbraMailItem zmi)
+    throws IOException, ServiceException {
+        if (!(zmi instanceof Message) || !isEntireMessage() || command.startsWith("BINARY") ||
+                !(StoreManager.getInstance() instanceof FileBlobStore) || !handler.canSendFile()) {
+            return false;
+        }
+        MailboxBlob mblob = ((Message) zmi).getBlob();
+        if (mblob == null) {
+            return false;
+        }
+        Blob blob = mblob.getLocalBlob();
+        long size = zmi.getSize();
+
+        // open the file before writing the literal's header, so that a missing blob is still handled by the stream
+        // path and doesn't cost the client its connection
+        FileDescriptorCache.Lease file;
+        try {
+            if (blob.isCompressed() || blob.getFile().length() != size) {
+                return false;
+            }
+            file = BlobInputStream.getFileDescriptorCache().open(blob.getFile().getPath(), size);
+        } catch (IOException e) {
+            ZimbraLog.imap.debug("unable to open blob for item %d; falling back to stream", ((Message) zmi).getId(), e);
+            return false;
+        }
+
+        long start = 0, length = size;
+        if (octetStart >= 0) {
+            start = Math.min(octetStart, size);
+            length = Math.max(0, Math.min(size, octetEnd) - start);
+        }
+
+        boolean sent = false;
+        try {
+            ps.print(this);
+            ps.print(" {");
+            ps.print(length);
+            ps.write('}');   /* } added to fix vim buggy brace matching code */
+            ps.write(ImapHandler.LINE_SEPARATOR_BYTES);
+            ps.flush();
+            handler.sendFileContent(file, start, length); // takes over the lease
+            sent = true;
+        } finally {
+            if (!sent) {
+                file.close();
+            }
+        }
+        return true;
+    }
+
     void write(PrintStream ps, OutputStream os, ZimbraMailItem zmi)
     throws IOException, BinaryDecodingException, ServiceException {
         write(ps, os, new ZimbraMailItemGettableInputStreamWithSize(zmi));
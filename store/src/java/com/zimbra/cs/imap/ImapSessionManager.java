@@ -359,6 +359,8 @@ final class ImapSessionManager {
             i4folder.setInitialSize();
             ZimbraLog.imap.debug("ImapSessionManager.openFolder.  Folder with id=%s added message list %s",
                     folderIdAsString, i4list);
+            // nothing references the loaded messages yet, so keep only the compact per-message columns
+            i4folder.compact();
 
             ImapListener session = null;
             try {
@@ -780,9 +782,11 @@ final class ImapSessionManager {
             acctId = "<unknown>";
         }
         if (active) { // use '_' as separator
-            return String.format("%s_%d_%d_%d", acctId, folder.getFolderIdInOwnerMailbox(), modseq, uvv);
+            return String.format("%s_%d_%d_%d_%s", acctId, folder.getFolderIdInOwnerMailbox(), modseq, uvv,
+                    ImapFolderCodec.CACHE_KEY_VERSION);
         } else { // use ':' as a separator
-            return String.format("%s:%d:%d:%d", acctId, folder.getFolderIdInOwnerMailbox(), modseq, uvv);
+            return String.format("%s:%d:%d:%d:%s", acctId, folder.getFolderIdInOwnerMailbox(), modseq, uvv,
+                    ImapFolderCodec.CACHE_KEY_VERSION);
         }
     }
 
@@ -28,6 +28,7 @@ import com.zimbra.cs.server.NioConnection;
 import com.zimbra.cs.server.NioHandler;
 import com.zimbra.cs.server.NioOutputStream;
 import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.store.FileDescriptorCache;
 
 final class NioImapHandler extends ImapHandler implements NioHandler {
     private final ImapConfig config;
@@ -137,6 +138,8 @@ final class NioImapHandler extends ImapHandler implements NioHandler {
                 return false;
             }
         } finally {
+            ZimbraPerf.setCurrentCommand(null);
+            releaseSelectedMessages();
             long elapsed = ZimbraPerf.STOPWATCH_IMAP.stop(start);
             if (lastCommand != null) {
                 ZimbraPerf.IMAP_TRACKER.addStat(lastCommand.toUpperCase(), start);
@@ -184,6 +187,16 @@ final class NioImapHandler extends ImapHandler implements NioHandler {
         ZimbraLog.addConnectionIdToContext(String.valueOf(connection.getId()));
     }
 
+    @Override
+    protected boolean supportsSendFile() {
+        return connection.isPlaintext();
+    }
+
+    @Override
+    protected void sendFile(FileDescriptorCache.Lease file, long position, long count) throws IOException {
+        ((NioOutputStream) output).writeFile(file.getChannel(), position, count, file);
+    }
+
     @Override
     protected void sendLine(String line, boolean flush) throws IOException {
         NioOutputStream out = (NioOutputStream) output;
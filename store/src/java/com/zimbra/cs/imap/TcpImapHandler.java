@@ -151,8 +151,10 @@ final class TcpImapHandler extends ProtocolHandler {
             delegate.sendBAD("Unknown Error");
             return false;
         } finally {
+            ZimbraPerf.setCurrentCommand(null);
             if (complete) {
                 clearRequest();
+                delegate.releaseSelectedMessages();
             }
         }
     }
@@ -27,11 +27,13 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.Term;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.db.Db;
@@ -103,6 +105,13 @@ public class DBQueryOperation extends QueryOperation {
 
     private DbSearch.FetchMode fetch = null;
     private QueryExecuteMode executeMode = null;
+    private String planReason = null; // the estimate that picked executeMode, for logging
+    private int luceneIdsPerQuery = 0; // how many Lucene ids to feed one LUCENE_FIRST query, adapts to id density
+    private long planNanos = 0;
+    private long luceneNanos = 0;
+    private int luceneChunks = 0;
+    private long dbNanos = 0;
+    private int dbQueries = 0;
 
     private static enum QueryExecuteMode {
         NO_RESULTS,
@@ -445,6 +454,12 @@ public class DBQueryOperation extends QueryOperation {
 
     @Override
     public void close() {
+        if (executeMode != null) {
+            ZimbraLog.search.debug("SearchPlan mode=%s,reason=%s,plan=%dms,lucene=%d/%dms,db=%d/%dms,hits=%d,query=%s",
+                    executeMode, planReason, TimeUnit.NANOSECONDS.toMillis(planNanos), luceneChunks,
+                    TimeUnit.NANOSECONDS.toMillis(luceneNanos), dbQueries, TimeUnit.NANOSECONDS.toMillis(dbNanos),
+                    hitsOffset, this);
+        }
         IOUtil.closeQuietly(luceneOp);
     }
 
@@ -510,6 +525,7 @@ public class DBQueryOperation extends QueryOperation {
                     }
 
                     if (executeMode == null) {
+                        long start = System.nanoTime();
                         if (hasNoResults()) {
                             executeMode = QueryExecuteMode.NO_RESULTS;
                         } else if (luceneOp == null) {
@@ -520,6 +536,9 @@ public class DBQueryOperation extends QueryOperation {
                         } else {
                             executeMode = QueryExecuteMode.LUCENE_FIRST;
                         }
+                        planNanos = System.nanoTime() - start;
+                        ZimbraLog.search.debug("SearchPlan mode=%s,reason=%s,elapsed=%dms", executeMode, planReason,
+                                TimeUnit.NANOSECONDS.toMillis(planNanos));
                     }
 
                     getNextChunk();
@@ -663,24 +682,44 @@ public class DBQueryOperation extends QueryOperation {
     }
 
     private void dbSearch(List<DbSearch.Result> results, SortBy sort, int offset, int size) throws ServiceException {
-        long start = System.currentTimeMillis();
+        long start = System.nanoTime();
         results.addAll(context.getMailbox().index.search(constraints, fetch, sort, offset, size,
                 context.getParams().inDumpster()));
-        ZimbraLog.search.debug("DBSearch elapsed=%d", System.currentTimeMillis() - start);
+        long elapsed = System.nanoTime() - start;
+        dbNanos += elapsed;
+        dbQueries++;
+        ZimbraLog.search.debug("DBSearch elapsed=%d", TimeUnit.NANOSECONDS.toMillis(elapsed));
+    }
+
+    private LuceneQueryOperation.LuceneResultsChunk luceneSearch(int max) {
+        long start = System.nanoTime();
+        LuceneQueryOperation.LuceneResultsChunk result = luceneOp.getNextResultsChunk(max);
+        luceneNanos += System.nanoTime() - start;
+        luceneChunks++;
+        return result;
     }
 
     private boolean shouldExecuteDbFirst() throws ServiceException {
         // look for item-id or conv-id query parts, if those are set, then we'll execute DB-FIRST
         DbSearchConstraints.Leaf top = getTopLeafConstraint();
         if (top.convId > 0 || !top.itemIds.isEmpty()) {
+            planReason = "item or conversation id";
             return true;
         }
 
-        if (luceneOp != null && luceneOp.shouldExecuteDbFirst()) {
-            return true;
+        if (luceneOp != null) {
+            boolean dbFirst = luceneOp.shouldExecuteDbFirst();
+            planReason = luceneOp.getPlanReason();
+            if (dbFirst) {
+                return true;
+            }
         }
 
-        return constraints.tryDbFirst(context.getMailbox());
+        if (constraints.tryDbFirst(context.getMailbox())) {
+            planReason = "selective db constraint";
+            return true;
+        }
+        return false;
     }
 
     private void noLuceneGetNextChunk(SortBy sort) throws ServiceException {
@@ -738,7 +777,7 @@ public class DBQueryOperation extends QueryOperation {
                     // we have to get ALL of the lucene hits for these ids.  There can very likely be more
                     // hits from Lucene then there are DB id's, so we just ask for a large number.
                     while (hasMore) {
-                        luceneChunk = luceneOp.getNextResultsChunk(MAX_HITS_PER_CHUNK*3);
+                        luceneChunk = luceneSearch(MAX_HITS_PER_CHUNK*3);
                         Set<Integer> indexIds = luceneChunk.getIndexIds();
                         if (indexIds.size() < MAX_HITS_PER_CHUNK*3) {
                             hasMore = false;
@@ -767,16 +806,18 @@ public class DBQueryOperation extends QueryOperation {
 
     private void luceneFirstGetNextChunk(SortBy sort) throws ServiceException {
         // do the Lucene op first, pass results to DB op
+        int batchSize = Db.getINClauseBatchSize();
+        if (luceneIdsPerQuery <= 0) {
+            luceneIdsPerQuery = batchSize;
+        }
         do {
             // DON'T set an sql LIMIT if we're asking for lucene hits!!!  If we did, then we wouldn't be
             // sure that we'd "consumed" all the Lucene-ID's, and therefore we could miss hits!
 
-            // limit in clause based on Db capabilities - bug 15511
-            luceneChunk = luceneOp.getNextResultsChunk(Math.min(Db.getINClauseBatchSize(), hitsPerChunk));
-
-            DbSearchConstraints.Leaf sc = getTopLeafConstraint();
-            sc.indexIds.clear();
-            sc.indexIds.addAll(luceneChunk.getIndexIds());
+            // limit in clause based on Db capabilities - bug 15511. Runs of consecutive ids are sent as ranges, so
+            // when the ids are dense we can ask for more of them per query without exceeding that limit.
+            luceneChunk = luceneSearch(Math.min(luceneIdsPerQuery, hitsPerChunk));
+            Set<Integer> indexIds = luceneChunk.getIndexIds();
 
             // exponentially expand the chunk size in case we have to go back to the DB
             hitsPerChunk *= 2;
@@ -784,13 +825,27 @@ public class DBQueryOperation extends QueryOperation {
                 hitsPerChunk = MAX_HITS_PER_CHUNK;
             }
 
-            if (sc.indexIds.size() == 0) {
+            if (indexIds.isEmpty()) {
                 // we know we got all the index-id's from lucene.  since we don't have a
                 // LIMIT clause, we can be assured that this query will get all the remaining results.
                 endOfHits = true;
             } else {
-                // must not ask for offset,limit here b/c of indexId constraints!,
-                dbSearch(dbHits, sort, -1, -1);
+                int params = DbSearch.countIdRunParameters(indexIds);
+                DbSearchConstraints.Leaf sc = getTopLeafConstraint();
+                if (params <= batchSize) {
+                    sc.indexIds.clear();
+                    sc.indexIds.addAll(indexIds);
+                    // must not ask for offset,limit here b/c of indexId constraints!,
+                    dbSearch(dbHits, sort, -1, -1);
+                } else {
+                    // too sparse for one query; slices in Lucene order keep the chunk in sort order
+                    for (List<Integer> slice : Iterables.partition(indexIds, batchSize)) {
+                        sc.indexIds.clear();
+                        sc.indexIds.addAll(slice);
+                        dbSearch(dbHits, sort, -1, -1);
+                    }
+                }
+                luceneIdsPerQuery = (int) Math.min(MAX_HITS_PER_CHUNK, (long) batchSize * indexIds.size() / params);
             }
         } while (dbHits.size() == 0 && !endOfHits);
     }
@@ -1021,7 +1076,7 @@ public class DBQueryOperation extends QueryOperation {
         if (offsetConstraints != null) {
             assert cursorOffset < 0 : cursorOffset;
             Mailbox mbox = context.getMailbox();
-            DbConnection conn = DbPool.getConnection(mbox);
+            DbConnection conn = DbPool.getReadConnection(mbox);
             try {
                 cursorOffset = new DbSearch(mbox, context.getParams().inDumpster()).countResults(conn, offsetConstraints);
             } finally {
@@ -1252,7 +1307,7 @@ public class DBQueryOperation extends QueryOperation {
     int getDbHitCount() throws ServiceException {
         if (dbHitCount < 0) {
             Mailbox mbox = context.getMailbox();
-            DbConnection conn = DbPool.getConnection(mbox);
+            DbConnection conn = DbPool.getReadConnection(mbox);
             try {
                 dbHitCount = new DbSearch(mbox, context.getParams().inDumpster()).countResults(conn, constraints);
             } finally {
@@ -36,6 +36,13 @@ public final class DocumentHit extends ZimbraHit {
         this.docItem = docItem;
     }
 
+    /**
+     * Returns the Lucene document the hit was read from, or null.
+     */
+    Document getLuceneDocument() {
+        return luceneDoc;
+    }
+
     @Override
     public int getConversationId() {
         return 0;
@@ -17,11 +17,15 @@
 package com.zimbra.cs.index;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Sets;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.util.IOUtil;
@@ -34,7 +38,8 @@ import com.zimbra.common.util.ZimbraLog;
  */
 public final class IntersectionQueryOperation extends CombiningQueryOperation {
     private boolean noHits = false;
-    private List<ZimbraHit> bufferedNext = new ArrayList<ZimbraHit>(1);
+    private boolean exhausted = false; // one of the sub-operations ran dry, nothing more can intersect
+    private Deque<ZimbraHit> bufferedNext = new ArrayDeque<ZimbraHit>();
     private HitGrouper messageGrouper[] = null;
 
     @Override
@@ -45,6 +50,7 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
     @Override
     public void resetIterator() throws ServiceException {
         bufferedNext.clear();
+        exhausted = false;
         for (int i = 0; i < messageGrouper.length; i++) {
             messageGrouper[i].resetIterator();
         }
@@ -55,100 +61,99 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
         if (noHits || !hasNext()) {
             return null;
         }
-        return bufferedNext.remove(0);
+        return bufferedNext.poll();
     }
 
     /**
-     * There can be multiple Hits with the same exact sort-field. This function does a complete N^2 intersection of all
-     * of the hits for a particular sort field.
-     *
-     * FIXME: this function is hideous, do _something_ with it.
+     * There can be multiple Hits with the same exact sort-field. This function buffers the next sort value on which
+     * every sub-operation agrees, and intersects the hits of that group by item id.
+     * <p>
+     * The sub-operations are already sorted, so whenever one of them has nothing for the current sort value we
+     * leapfrog the first one straight to that sub-operation's next sort value instead of walking it group by group,
+     * and once any sub-operation is exhausted we stop without draining the others.
      */
     void bufferNextHits() throws ServiceException {
-        if (bufferedNext.size() > 0) {
+        if (!bufferedNext.isEmpty() || exhausted) {
             return;
         }
+        ZimbraHit skipTo = null;
         TryAgain: while (true) {
+            if (skipTo != null) {
+                messageGrouper[0].skipBefore(skipTo);
+                skipTo = null;
+            }
             if (!messageGrouper[0].bufferNextHits()) {
+                exhausted = true;
                 return;
             }
             ZimbraLog.search.debug("MsgGrp0: %s", messageGrouper[0]);
             ZimbraHit curHit = messageGrouper[0].getGroupHit();
-            int msgId = messageGrouper[0].getCurMsgId();
 
-            // for every other op, buffer all the hits for this
-            // step....
+            // for every other op, buffer all the hits for this step....
             for (int i = 1; i < messageGrouper.length; i++) {
-                // TODO check if this group is FINISHED and if so, quick return out
                 if (!(messageGrouper[i].bufferNextHits(curHit))) {
-                    // no matches this grouper for that timestamp...go to top and try again
+                    // no matches this grouper for that sort value -- nothing before its next hit can match either
+                    skipTo = messageGrouper[i].peekNext();
+                    if (skipTo == null) {
+                        exhausted = true;
+                        return;
+                    }
                     continue TryAgain;
                 }
                 ZimbraLog.search.debug("MsgGrp[%d]: %s", i, messageGrouper[i]);
             }
 
-            List<Integer> seenMsgs = new ArrayList<Integer>();
-
-            do {
-                if (curHit != null && msgId > 0) {
-
-                    // okay, do the big intersection
-                    for (int i = 0; i < messageGrouper.length; i++) {
-                        messageGrouper[i].setMsgId(msgId);
-                        ZimbraHit hit = messageGrouper[i].getNextHit();
-                        while (hit != null) {
-                            if (!bufferedNext.contains(hit)) {
-                                boolean ok = true;
-                                for (int j = 0; ok && j < messageGrouper.length; j++) {
-                                    if (j != i) {
-                                        if (hit instanceof MessageHit) {
-                                            if (!messageGrouper[j].intersectWithBuffer((MessageHit) hit)) {
-                                                ok = false;
-                                            }
-                                        } else if (hit instanceof MessagePartHit) {
-                                            if (!messageGrouper[j].intersectWithBuffer((MessagePartHit) hit)) {
-                                                ok = false;
-                                            }
-                                        }
-                                    }
-                                } // intersect against every other group
-                                if (ok) {
-                                    bufferedNext.add(hit);
-                                }
-                            } // contained in mBufferedNext?
-                            hit = messageGrouper[i].getNextHit();
-                        } // for each hit within group
-                    } // for each group
-                } // assuming the first one isn't empty
-
-                seenMsgs.add(Integer.valueOf(msgId));
-                msgId = messageGrouper[0].getNextMessageId(seenMsgs);
-            } while (msgId > 0);
-
-            if (bufferedNext.size() > 0) {
+            Set<ZimbraHit> seen = Sets.newIdentityHashSet();
+            for (int msgId : messageGrouper[0].getMessageIds()) {
+                if (msgId <= 0) {
+                    continue;
+                }
+                for (int i = 0; i < messageGrouper.length; i++) {
+                    for (ZimbraHit hit : messageGrouper[i].getHits(msgId)) {
+                        if (seen.add(hit) && intersectsOthers(i, hit)) {
+                            bufferedNext.add(hit);
+                        }
+                    }
+                }
+            }
+
+            if (!bufferedNext.isEmpty()) {
                 // we've got some hits -- so we can leave now...
                 break TryAgain;
             }
             // no hits -- go back to the top and try again.
         } // while true (for easy retry)
 
-        for (int i = 0; i < bufferedNext.size(); i++) {
-            ZimbraHit hit = bufferedNext.get(i);
+        for (ZimbraHit hit : bufferedNext) {
             ZimbraLog.search.debug("BUFFERED: %s", hit);
         }
     }
 
+    private boolean intersectsOthers(int grouper, ZimbraHit hit) {
+        for (int j = 0; j < messageGrouper.length; j++) {
+            if (j == grouper) {
+                continue;
+            }
+            if (hit instanceof MessageHit) {
+                if (!messageGrouper[j].intersectWithBuffer((MessageHit) hit)) {
+                    return false;
+                }
+            } else if (hit instanceof MessagePartHit) {
+                if (!messageGrouper[j].intersectWithBuffer((MessagePartHit) hit)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     @Override
     public ZimbraHit peekNext() throws ServiceException {
         if (noHits) {
             return null;
         } else {
             bufferNextHits();
-            if (bufferedNext.size() > 0) {
-                return bufferedNext.get(0);
-            } else {
-                return null;
-            }
+            return bufferedNext.peek();
         }
     }
 
@@ -168,37 +173,23 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
     }
 
     /**
-     * Responsible for grouping sub-results with the same sort value into a chunk
-     * so that they can then be combined
-     *
-     * 1) Call buffer() to buffer the next timestamp, or buffer(timestamp) to
-     * buffer a particular timestamp
-     *
-     * 2) Iterate through all the messageId's in the current timestamp
-     *
-     * 3) call getNextHit() to iterate the hits within the current message OR
-     * call intersectWithBuffer() to tell you if the a particular hit intersects
-     * with something within our buffer
-     *
-     * Note: this class is somewhat confusing because there are really two completely
-     * different paths through it: the first Grouper which gathers a bunch of hits and
-     * then is iterated using getNextHit() and then the other groupers which gather hits
-     * and then use intersectWithBuffer.....this is because we're using an N^2
-     * intersection instead of an insertion intersection.....this should be fixed.
+     * Responsible for grouping sub-results with the same sort value into a chunk so that they can then be combined.
+     * <p>
+     * Call {@link #bufferNextHits()} to buffer the next sort value of the first sub-operation, or
+     * {@link #bufferNextHits(ZimbraHit)} to buffer a particular sort value in the others. The buffered hits are
+     * keyed by item id, so {@link #getHits(int)} and {@link #intersectWithBuffer(MessageHit)} are lookups rather than
+     * scans of the whole group -- which matters for sorts with few distinct values (flag, attachment, priority).
      */
     private static final class HitGrouper {
         private final QueryOperation subOp;
         private final SortBy sortOrder;
-        private final List<ZimbraHit> bufferedHit = new ArrayList<ZimbraHit>();
-        private int curMsgId = -1;
+        private final ListMultimap<Integer, ZimbraHit> bufferedHit = LinkedListMultimap.create();
         private ZimbraHit groupHit = null;
-        private int curBufPos = 0; // for iterating the current buffer
 
         @Override
         public String toString() {
-            StringBuffer toRet = new StringBuffer(subOp.toString()).append("\n\t");
-            for (int i = 0; i < bufferedHit.size(); i++) {
-                ZimbraHit hit = bufferedHit.get(i);
+            StringBuilder toRet = new StringBuilder(subOp.toString()).append("\n\t");
+            for (ZimbraHit hit : bufferedHit.values()) {
                 toRet.append(hit.toString()).append("\n\t");
             }
             return toRet.toString();
@@ -212,20 +203,32 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
         void resetIterator() throws ServiceException {
             bufferedHit.clear();
             subOp.resetIterator();
-            curMsgId = -1;
             groupHit = null;
-            curBufPos = 0;
+        }
 
+        /**
+         * Returns the item ids in the current group, in the order the sub-operation returned them.
+         */
+        Set<Integer> getMessageIds() {
+            return bufferedHit.keySet();
         }
 
-        int getNextMessageId(List<Integer> seenMsgs) throws ServiceException {
-            for (int i = 1; i < bufferedHit.size(); i++) {
-                Integer checkId = Integer.valueOf(bufferedHit.get(i).getItemId());
-                if (!seenMsgs.contains(checkId)) {
-                    return checkId.intValue();
-                }
+        List<ZimbraHit> getHits(int msgId) {
+            return bufferedHit.get(msgId);
+        }
+
+        ZimbraHit peekNext() throws ServiceException {
+            return subOp.peekNext();
+        }
+
+        /**
+         * Discards the hits of the sub-operation that sort before the given hit.
+         */
+        void skipBefore(ZimbraHit target) throws ServiceException {
+            ZimbraHit hit;
+            while ((hit = subOp.peekNext()) != null && hit.compareTo(sortOrder, target) < 0) {
+                subOp.getNext();
             }
-            return -1;
         }
 
         /**
@@ -239,27 +242,22 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
                 return false;
             }
             groupHit = subOp.getNext();
-            setMsgId(groupHit.getItemId());
-            bufferedHit.add(groupHit);
+            bufferedHit.put(groupHit.getItemId(), groupHit);
 
             // step 2: buffer all hits with the current stamp
             while (subOp.hasNext()) {
                 ZimbraHit hit = subOp.peekNext();
 
                 if (hit.compareTo(sortOrder, groupHit) == 0) {
-                    bufferedHit.add(hit);
+                    bufferedHit.put(hit.getItemId(), hit);
                     // go to next one:
                     ZimbraHit check = subOp.getNext();
                     assert (check == hit);
                 } else {
-                    return !bufferedHit.isEmpty();
+                    break;
                 }
             }
-            return !bufferedHit.isEmpty();
-        }
-
-        int getCurMsgId() {
-            return curMsgId;
+            return true;
         }
 
         /**
@@ -274,49 +272,17 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
             return groupHit;
         }
 
-        void setMsgId(int msgId) {
-            curMsgId = msgId;
-            curBufPos = 0;
-        }
-
-        ZimbraHit getNextHit() throws ServiceException {
-            while (curBufPos < bufferedHit.size()) {
-                if (bufferedHit.get(curBufPos).getItemId() == curMsgId) {
-                    curBufPos++;
-                    return bufferedHit.get(curBufPos - 1);
-                }
-                curBufPos++;
-            }
-            return null;
-        }
-
-        boolean intersectWithBuffer(MessageHit hit) throws ServiceException {
-            int hitMsgId = hit.getItemId();
-            for (int i = 0; i < bufferedHit.size(); i++) {
-                if (bufferedHit.get(i).getItemId() == hitMsgId) {
-                    return true;
-                }
-            }
-            return false;
+        boolean intersectWithBuffer(MessageHit hit) {
+            return bufferedHit.containsKey(hit.getItemId());
         }
 
         /**
          * Return TRUE if passed-in Hit intersects with something within my group.
          */
-        boolean intersectWithBuffer(MessagePartHit hit) throws ServiceException {
-            int hitMsgId = hit.getItemId();
-            for (int i = 0; i < bufferedHit.size(); i++) {
-                ZimbraHit bufHit = bufferedHit.get(i);
-                if (bufHit.getItemId() == hitMsgId) {
-                    if (bufHit instanceof MessagePartHit) {
-                        MessagePartHit mph = (MessagePartHit) bufHit;
-                        if (mph == hit) {
-                            return true;
-                        }
-                    } else {
-                        // msgID's must be equal
-                        return true;
-                    }
+        boolean intersectWithBuffer(MessagePartHit hit) {
+            for (ZimbraHit bufHit : bufferedHit.get(hit.getItemId())) {
+                if (!(bufHit instanceof MessagePartHit) || bufHit == hit) {
+                    return true;
                 }
             }
             return false;
@@ -329,31 +295,23 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
             groupHit = curHit;
             bufferedHit.clear();
 
-            if (!subOp.hasNext()) {
-                return false;
-            }
-
             ZimbraHit newStamp = null;
             while ((newStamp = subOp.peekNext()) != null) {
                 int result = newStamp.compareTo(sortOrder, groupHit);
                 if (result == 0) {
-                    bufferedHit.add(newStamp);
-                    // go to nex thit
+                    bufferedHit.put(newStamp.getItemId(), newStamp);
+                    // go to next hit
                     ZimbraHit check = subOp.getNext();
                     assert (check == newStamp);
                 } else if (result < 0) {
                     // newstamp is logically "Before" current...skip it
-                    // mNextHit = null;
-                    subOp.getNext(); // skip next hit
+                    subOp.getNext();
                 } else {
-                    // newstamp is after us. Current doesn't match, but don't
-                    // skip newStamp,
-                    // we might still get to it.
-                    //mNextHit = newStamp;
-                    return bufferedHit.size() > 0;
+                    // newstamp is after us. Current doesn't match, but don't skip newStamp, we might still get to it.
+                    break;
                 }
             }
-            return bufferedHit.size() > 0;
+            return !bufferedHit.isEmpty();
         }
     }
 
@@ -682,7 +640,7 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
     public Object clone() {
         assert(messageGrouper == null);
         IntersectionQueryOperation result = (IntersectionQueryOperation) super.clone();
-        result.bufferedNext = new ArrayList<ZimbraHit>(1);
+        result.bufferedNext = new ArrayDeque<ZimbraHit>();
         result.operations = new ArrayList<QueryOperation>(operations.size());
         for (QueryOperation op : operations) {
             result.operations.add((QueryOperation) op.clone());
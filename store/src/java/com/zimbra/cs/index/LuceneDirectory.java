@@ -135,7 +135,7 @@ public final class LuceneDirectory extends Directory {
 
     @Override
     public IndexOutput createOutput(String name) throws IOException {
-        return new LuceneIndexOutput(directory.createOutput(name));
+        return new LuceneIndexOutput(directory.createOutput(name), MergeThrottle.isMerging());
     }
 
     @Override
@@ -253,11 +253,15 @@ public final class LuceneDirectory extends Directory {
     }
 
     private static final class LuceneIndexOutput extends IndexOutput {
+        private static final int THROTTLE_CHUNK = 64 * 1024;
         private final IndexOutput output;
         private boolean disableCounters = LC.zimbra_index_disable_perf_counters.booleanValue();
+        private final boolean throttle; // written by a merge
+        private int unthrottled = 0;
 
-        LuceneIndexOutput(IndexOutput out) {
+        LuceneIndexOutput(IndexOutput out, boolean merge) {
             output = out;
+            throttle = merge;
         }
 
         @Override
@@ -265,6 +269,7 @@ public final class LuceneDirectory extends Directory {
             if (!disableCounters) {
                 ZimbraPerf.COUNTER_IDX_BYTES_WRITTEN.increment(1);
             }
+            throttle(1);
             output.writeByte(b);
         }
 
@@ -273,6 +278,7 @@ public final class LuceneDirectory extends Directory {
             if (!disableCounters) {
                 ZimbraPerf.COUNTER_IDX_BYTES_WRITTEN.increment(len);
             }
+            throttle(len);
             output.writeBytes(b, len);
         }
 
@@ -281,9 +287,23 @@ public final class LuceneDirectory extends Directory {
             if (!disableCounters) {
                 ZimbraPerf.COUNTER_IDX_BYTES_WRITTEN.increment(len);
             }
+            throttle(len);
             output.writeBytes(b, offset, len);
         }
 
+        /**
+         * Merge output goes through the server-wide merge rate limit in chunks, as most writes are a few bytes.
+         */
+        private void throttle(int len) {
+            if (throttle) {
+                unthrottled += len;
+                if (unthrottled >= THROTTLE_CHUNK) {
+                    MergeThrottle.getInstance().write(unthrottled);
+                    unthrottled = 0;
+                }
+            }
+        }
+
         @Override
         public void flush() throws IOException {
             output.flush();
@@ -291,6 +311,10 @@ public final class LuceneDirectory extends Directory {
 
         @Override
         public void close() throws IOException {
+            if (throttle && unthrottled > 0) {
+                MergeThrottle.getInstance().write(unthrottled);
+                unthrottled = 0;
+            }
             output.close();
         }
 
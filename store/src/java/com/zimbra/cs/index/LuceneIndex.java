@@ -22,11 +22,11 @@ import java.io.PrintStream;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -39,6 +39,7 @@ import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.LogByteSizeMergePolicy;
 import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.MergePolicy;
 import org.apache.lucene.index.SerialMergeScheduler;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermEnum;
@@ -66,6 +67,7 @@ import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxIndex;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.IOUtil;
 import com.zimbra.cs.volume.Volume;
 import com.zimbra.cs.volume.VolumeManager;
@@ -117,7 +119,19 @@ public final class LuceneIndex extends IndexStore {
     private final Mailbox mailbox;
     private final LuceneDirectory luceneDirectory;
     private final AtomicBoolean pendingDelete = new AtomicBoolean(false);
+    private final AtomicBoolean mergeQueued = new AtomicBoolean(false);
     private final WriterInfo writerInfo = new WriterInfo();
+    /**
+     * Serializes opening and reopening of the cached searcher. Kept apart from the index monitor so that searches
+     * never wait for a writer to commit or close.
+     */
+    private final Object searcherLock = new Object();
+    /**
+     * Bumped on every successful commit, and when the cached searcher is evicted or the index deleted. A cached
+     * searcher opened at an older generation may not see the latest changes and is reopened before it is handed out
+     * again.
+     */
+    private final AtomicLong generation = new AtomicLong();
 
     /**
      * Holds information related to writers to the index.
@@ -215,27 +229,31 @@ public final class LuceneIndex extends IndexStore {
         return MoreObjects.toStringHelper(this).add("mbox", mailbox.getId()).add("dir", luceneDirectory).toString();
     }
 
-    private synchronized void doDeleteIndex() throws IOException {
+    /**
+     * Holds {@link #searcherLock} while the files go away so that no searcher is opened or reopened on a half deleted
+     * index. The searcher lock is taken before the index monitor, the same order as a searcher open that ends up in
+     * {@link #repair(Throwable)}.
+     */
+    private void doDeleteIndex() throws IOException {
         assert(writerInfo.getWriterRef() == null);
         ZimbraLog.index.debug("Deleting index %s", luceneDirectory);
-        if (mailbox.isGalSyncMailbox()) {
-            IOUtil.closeQuietly(GAL_SEARCHER_CACHE.remove(mailbox.getId()));
-        } else {
-            SEARCHER_CACHE.asMap().remove(mailbox.getId());
-        }
-
-        String[] files;
-        try {
-            files = luceneDirectory.listAll();
-        } catch (NoSuchDirectoryException ignore) {
-            return;
-        } catch (IOException e) {
-            ZimbraLog.index.warn("Failed to delete index: %s", luceneDirectory, e);
-            return;
-        }
+        synchronized (searcherLock) {
+            uncacheSearcher();
+            synchronized (this) {
+                String[] files;
+                try {
+                    files = luceneDirectory.listAll();
+                } catch (NoSuchDirectoryException ignore) {
+                    return;
+                } catch (IOException e) {
+                    ZimbraLog.index.warn("Failed to delete index: %s", luceneDirectory, e);
+                    return;
+                }
 
-        for (String file : files) {
-            luceneDirectory.deleteFile(file);
+                for (String file : files) {
+                    luceneDirectory.deleteFile(file);
+                }
+            }
         }
     }
 
@@ -262,7 +280,7 @@ public final class LuceneIndex extends IndexStore {
      * file system cache.
      */
     @Override
-    public synchronized void warmup() {
+    public void warmup() {
         if (SEARCHER_CACHE.asMap().containsKey(mailbox.getId()) ||
                 GAL_SEARCHER_CACHE.containsKey(mailbox.getId())) {
             return; // already warmed up
@@ -284,6 +302,18 @@ public final class LuceneIndex extends IndexStore {
      */
     @Override
     public void evict() {
+        synchronized (searcherLock) {
+            uncacheSearcher();
+        }
+    }
+
+    /**
+     * Drops the cached searcher. Bumping the generation first keeps a search that picked up the searcher just before
+     * the removal from taking the lock-free path in {@link #openSearcher()}.
+     */
+    private void uncacheSearcher() {
+        assert(Thread.holdsLock(searcherLock));
+        generation.incrementAndGet();
         if (mailbox.isGalSyncMailbox()) {
             IOUtil.closeQuietly(GAL_SEARCHER_CACHE.remove(mailbox.getId()));
         } else {
@@ -373,23 +403,35 @@ public final class LuceneIndex extends IndexStore {
      * @throws IOException if opening an {@link IndexReader} failed
      */
     @Override
-    public synchronized ZimbraIndexSearcher openSearcher() throws IOException {
-        IndexSearcherImpl searcher = null;
-        if (mailbox.isGalSyncMailbox()) {
-            searcher = GAL_SEARCHER_CACHE.get(mailbox.getId());
-        } else {
-            searcher = SEARCHER_CACHE.getIfPresent(mailbox.getId());
-        }
-        if (searcher != null) {
+    public ZimbraIndexSearcher openSearcher() throws IOException {
+        // Concurrent searches share the cached searcher without locking as long as it is up to date.
+        IndexSearcherImpl searcher = getCachedSearcher();
+        if (searcher != null && searcher.getGeneration() == generation.get() && searcher.tryInc()) {
             ZimbraLog.search.debug("CacheHitLuceneSearcher %s", searcher);
-            searcher.inc();
+            ZimbraPerf.HISTOGRAM_IDX_SEARCHER_AGE_MS.increment(searcher.getAge());
             return searcher;
         }
 
+        synchronized (searcherLock) {
+            searcher = refreshSearcher();
+            if (searcher != null && searcher.tryInc()) {
+                ZimbraLog.search.debug("CacheHitLuceneSearcher %s", searcher);
+                ZimbraPerf.HISTOGRAM_IDX_SEARCHER_AGE_MS.increment(searcher.getAge());
+                return searcher;
+            }
+            return openNewSearcher();
+        }
+    }
+
+    private IndexSearcherImpl openNewSearcher() throws IOException {
+        assert(Thread.holdsLock(searcherLock));
+
+        IndexSearcherImpl searcher = null;
         READER_THROTTLE.acquireUninterruptibly();
         long start = System.currentTimeMillis();
+        long gen = generation.get(); // read before opening, so that a concurrent commit leaves the new searcher stale
         try {
-            searcher = new IndexSearcherImpl(openIndexReader(true));
+            searcher = new IndexSearcherImpl(openIndexReader(true), gen, true);
         } catch (IOException e) {
             // Handle the special case of trying to open a not-yet-created index, by opening for write and immediately
             // closing. Index directory should get initialized as a result.
@@ -398,7 +440,7 @@ public final class LuceneIndex extends IndexStore {
                 IndexWriter writer = new IndexWriter(luceneDirectory,
                         getWriterConfig().setOpenMode(IndexWriterConfig.OpenMode.CREATE));
                 IOUtil.closeQuietly(writer);
-                searcher = new IndexSearcherImpl(openIndexReader(false));
+                searcher = new IndexSearcherImpl(openIndexReader(false), gen, true);
             } else {
                 throw e;
             }
@@ -409,13 +451,72 @@ public final class LuceneIndex extends IndexStore {
         }
 
         ZimbraLog.search.debug("OpenLuceneSearcher %s,elapsed=%d", searcher, System.currentTimeMillis() - start);
-        searcher.inc();
+        searcher.tryInc();
+        cacheSearcher(searcher);
+        ZimbraPerf.HISTOGRAM_IDX_SEARCHER_AGE_MS.increment(0L);
+        return searcher;
+    }
+
+    /**
+     * Brings the cached searcher up to date with the last commit. Only the segments that changed since the searcher
+     * was opened are read, the readers of the unchanged segments are shared with the previous searcher. The new
+     * searcher takes over the reader permit of the one it replaces, which is released from the cache and closed once
+     * the searches still using it are done.
+     *
+     * @return the up-to-date cached searcher, or null if there is none
+     */
+    private IndexSearcherImpl refreshSearcher() throws IOException {
+        assert(Thread.holdsLock(searcherLock));
+
+        IndexSearcherImpl searcher = getCachedSearcher();
+        if (searcher == null) {
+            return null;
+        }
+        long gen = generation.get();
+        if (searcher.getGeneration() == gen) {
+            return searcher;
+        }
+        if (!searcher.tryInc()) { // closed by eviction in the meantime
+            return null;
+        }
+        try {
+            long start = System.nanoTime();
+            IndexReader reader = IndexReader.openIfChanged(searcher.getLuceneReader(), true);
+            if (reader == null) { // nothing changed on disk
+                searcher.setGeneration(gen);
+                return searcher;
+            }
+            IndexSearcherImpl newSearcher = new IndexSearcherImpl(reader, gen, searcher.transferPermit());
+            cacheSearcher(newSearcher);
+            long elapsed = System.nanoTime() - start;
+            ZimbraPerf.HISTOGRAM_IDX_SEARCHER_REOPEN_US.increment(TimeUnit.NANOSECONDS.toMicros(elapsed));
+            ZimbraLog.search.debug("ReopenLuceneSearcher %s,age=%d,elapsed=%d", newSearcher, searcher.getAge(),
+                    TimeUnit.NANOSECONDS.toMillis(elapsed));
+            return newSearcher;
+        } finally {
+            searcher.close();
+        }
+    }
+
+    private IndexSearcherImpl getCachedSearcher() {
+        if (mailbox.isGalSyncMailbox()) {
+            return GAL_SEARCHER_CACHE.get(mailbox.getId());
+        } else {
+            return SEARCHER_CACHE.getIfPresent(mailbox.getId());
+        }
+    }
+
+    private void cacheSearcher(IndexSearcherImpl searcher) {
         if (mailbox.isGalSyncMailbox()) {
+            //make sure that we close the previous value associated with the key
             IOUtil.closeQuietly(GAL_SEARCHER_CACHE.put(mailbox.getId(), searcher));
         } else {
+            // Bug: 69870
+            // No need to close the previous value associated with the key here.
+            // CacheBuilder sends a callback using removalListener onRemoval(..)
+            // which eventually closes IndexSearcher
             SEARCHER_CACHE.asMap().put(mailbox.getId(), searcher);
         }
-        return searcher;
     }
 
     /**
@@ -500,6 +601,7 @@ public final class LuceneIndex extends IndexStore {
         try {
             try {
                 writerInfo.getWriterRef().get().commit();
+                generation.incrementAndGet();
             } catch (CorruptIndexException e) {
                 try {
                     writerInfo.getWriterRef().get().close(false);
@@ -516,10 +618,14 @@ public final class LuceneIndex extends IndexStore {
                 repair(e);
                 throw e; // fail to commit regardless of the repair
             }
-            mailbox.index.submit(task); // merge must run in background
-            success = true;
-        } catch (RejectedExecutionException e) {
-            ZimbraLog.index.warn("Skipping merge because all index threads are busy");
+            // merge must run in background, and one queued merge picks up the segments of every commit before it
+            if (!mergeQueued.compareAndSet(false, true)) {
+                ZimbraLog.index.debug("Merge is already queued");
+            } else if (MergeThrottle.getInstance().submit(task)) {
+                success = true;
+            } else {
+                mergeQueued.set(false);
+            }
         } finally {
             if (!success) {
                 writerInfo.getWriterRef().dec();
@@ -581,7 +687,7 @@ public final class LuceneIndex extends IndexStore {
 
     /**
      * Only one background thread that holds the lock may process a merge for the given writer. Other concurrent
-     * attempts simply skip the merge.
+     * attempts simply skip the merge. Each merge goes through the server-wide {@link MergeThrottle}.
      */
     private static final class MergeScheduler extends SerialMergeScheduler {
         private final ReentrantLock lock = new ReentrantLock();
@@ -615,7 +721,10 @@ public final class LuceneIndex extends IndexStore {
         @Override
         public void merge(IndexWriter writer) throws CorruptIndexException, IOException {
             if (lock.isHeldByCurrentThread()) {
-                super.merge(writer);
+                MergePolicy.OneMerge merge;
+                while ((merge = writer.getNextMerge()) != null) {
+                    MergeThrottle.getInstance().merge(writer, merge);
+                }
             }
         }
 
@@ -633,10 +742,12 @@ public final class LuceneIndex extends IndexStore {
      * In order to minimize delay caused by merges, merges are processed only in background threads. Writers triggered
      * by batch threshold or search commit the changes before processing merges, so that the changes are available to
      * readers without long delay that merges likely cause. Merge threads don't block other writer threads running in
-     * foreground. Another indexing using the same writer may start even while the merge is in progress.
+     * foreground. Another indexing using the same writer may start even while the merge is in progress. While the
+     * server is busy, the task gives up its merge thread and waits in {@link MergeThrottle#defer(Runnable)}.
      */
     private final class MergeTask extends MailboxIndex.IndexTask {
         private final IndexWriterRef ref;
+        private final long queued = System.currentTimeMillis();
 
         MergeTask(IndexWriterRef ref) {
             super(ref.getIndex().mailbox);
@@ -645,6 +756,25 @@ public final class LuceneIndex extends IndexStore {
 
         @Override
         public void exec() throws IOException {
+            final MergeThrottle throttle = MergeThrottle.getInstance();
+            try {
+                if (throttle.isDeferred(luceneDirectory, queued)) {
+                    throttle.defer(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!throttle.submit(MergeTask.this)) {
+                                mergeQueued.set(false);
+                                ref.dec();
+                            }
+                        }
+                    });
+                    return;
+                }
+            } catch (IOException e) {
+                ZimbraLog.index.warn("Failed to get the index size, merging now", e);
+            }
+            mergeQueued.set(false); // commits from now on need another merge
+
             IndexWriter writer = ref.get();
             MergeScheduler scheduler = (MergeScheduler) writer.getConfig().getMergeScheduler();
             try {
@@ -794,31 +924,19 @@ public final class LuceneIndex extends IndexStore {
             this.writer = writer;
         }
 
+        /**
+         * Commits the changes and, if a searcher is cached for this index, reopens it right away so that the next
+         * search sees the changes without paying for the reopen. If the reopen fails the searcher stays stale and
+         * is reopened by the next {@link LuceneIndex#openSearcher()}.
+         */
         @Override
         public void close() throws IOException {
             writer.index.commitWriter();
-            ZimbraIndexSearcher searcher = null;
-            if (writer.getIndex().mailbox.isGalSyncMailbox()) {
-                searcher = GAL_SEARCHER_CACHE.get(writer.getIndex().mailbox.getId());
-            } else {
-                searcher = SEARCHER_CACHE.getIfPresent(writer.getIndex().mailbox.getId());
-            }
-            if (searcher != null) {
-                ZimbraLuceneIndexReader ndxReader = (ZimbraLuceneIndexReader)searcher.getIndexReader();
-                IndexReader newReader = IndexReader.openIfChanged(ndxReader.getLuceneReader(), true);
-                if (newReader != null) {
-                    if (writer.getIndex().mailbox.isGalSyncMailbox()) {
-                        //make sure that we close the previous value associated with the key
-                        IOUtil.closeQuietly(GAL_SEARCHER_CACHE.put(writer.getIndex().mailbox.getId(),
-                                new IndexSearcherImpl(newReader)));
-                    } else {
-                        // Bug: 69870
-                        // No need to close the previous value associated with the key here.
-                        // CacheBuilder sends a callback using removalListener onRemoval(..)
-                        // which eventually closes IndexSearcher
-                        SEARCHER_CACHE.asMap().put(writer.getIndex().mailbox.getId(),
-                            new IndexSearcherImpl(newReader));
-                    }
+            synchronized (writer.index.searcherLock) {
+                try {
+                    writer.index.refreshSearcher();
+                } catch (IOException e) {
+                    ZimbraLog.search.warn("Failed to reopen IndexSearcher", e);
                 }
             }
         }
@@ -941,16 +1059,61 @@ public final class LuceneIndex extends IndexStore {
      */
     private static final class IndexSearcherImpl implements ZimbraIndexSearcher {
         private final AtomicInteger count = new AtomicInteger(1);
+        private final AtomicBoolean holdsPermit;
         private final IndexSearcher luceneSearcher;
         private final ZimbraIndexReader luceneReader;
+        private final long openedAt = System.currentTimeMillis();
+        private volatile long generation;
 
-        IndexSearcherImpl(IndexReader reader) {
+        /**
+         * @param holdsPermit true if this searcher owns a {@link LuceneIndex#READER_THROTTLE} permit, which is
+         *  released when this searcher is closed
+         */
+        IndexSearcherImpl(IndexReader reader, long generation, boolean holdsPermit) {
             luceneSearcher = new IndexSearcher(reader);
             luceneReader = new ZimbraLuceneIndexReader(luceneSearcher.getIndexReader());
+            this.generation = generation;
+            this.holdsPermit = new AtomicBoolean(holdsPermit);
         }
 
-        void inc() {
-            count.incrementAndGet();
+        /**
+         * Increments the reference count unless this searcher has already been closed.
+         *
+         * @return false if this searcher is closed and must not be used
+         */
+        boolean tryInc() {
+            while (true) {
+                int current = count.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (count.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Hands the reader permit over to the searcher that replaces this one.
+         */
+        boolean transferPermit() {
+            return holdsPermit.getAndSet(false);
+        }
+
+        long getGeneration() {
+            return generation;
+        }
+
+        void setGeneration(long value) {
+            generation = value;
+        }
+
+        long getAge() {
+            return System.currentTimeMillis() - openedAt;
+        }
+
+        IndexReader getLuceneReader() {
+            return luceneSearcher.getIndexReader();
         }
 
         @Override
@@ -961,7 +1124,9 @@ public final class LuceneIndex extends IndexStore {
                     IOUtil.closeQuietly(luceneSearcher);
                 } finally {
                     IOUtil.closeQuietly(getIndexReader());
-                    READER_THROTTLE.release();
+                    if (holdsPermit.getAndSet(false)) {
+                        READER_THROTTLE.release();
+                    }
                 }
             }
         }
@@ -1006,6 +1171,8 @@ public final class LuceneIndex extends IndexStore {
     public static final class ZimbraLuceneIndexReader implements ZimbraIndexReader {
 
         private final IndexReader luceneReader;
+        private final TermExpansionCache expansions =
+                new TermExpansionCache(LC.zimbra_index_wildcard_cache_max_terms.longValue());
 
         private ZimbraLuceneIndexReader(IndexReader indexReader) {
             luceneReader = indexReader;
@@ -1036,6 +1203,14 @@ public final class LuceneIndex extends IndexStore {
             return new LuceneTermValueEnumeration(field, firstTermValue);
         }
 
+        /**
+         * Expansions are cached for the life of this reader, which is replaced whenever the index changes.
+         */
+        @Override
+        public List<String> expandPrefix(String field, String prefix, int max) throws IOException {
+            return expansions.expand(this, field, prefix, max);
+        }
+
         private final class LuceneTermValueEnumeration implements TermFieldEnumeration {
             private TermEnum termEnumeration;
             private final String field;
@@ -43,7 +43,6 @@ import com.google.common.collect.Sets;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
-import com.zimbra.cs.index.ZimbraIndexReader.TermFieldEnumeration;
 import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
@@ -88,6 +87,7 @@ public final class LuceneQueryOperation extends QueryOperation {
     private ZimbraTopDocs hits;
     private int topDocsLen = 0; // number of hits fetched
     private int topDocsChunkSize = 2000; // how many hits to fetch per step in Lucene
+    private String planReason;
     private ZimbraIndexSearcher searcher;
     private Sort sort;
 
@@ -221,10 +221,12 @@ public final class LuceneQueryOperation extends QueryOperation {
     }
 
     /**
-     * Returns {@code true} if we think this query is best evaluated DB-FIRST.
+     * Returns {@code true} if we think this query is best evaluated DB-FIRST. The estimates the decision was based on
+     * are available from {@link #getPlanReason()} afterwards.
      */
     boolean shouldExecuteDbFirst() {
         if (searcher == null || luceneQuery == null) {
+            planReason = "no index searcher";
             return true;
         }
 
@@ -238,9 +240,11 @@ public final class LuceneQueryOperation extends QueryOperation {
                 ZimbraLog.search.debug("LuceneDocFreq freq=%d,cutoff=%d(%d%%),elapsed=%d",
                         freq, docsCutoff, (int) (100 * DB_FIRST_TERM_FREQ_PERC), System.currentTimeMillis() - start);
                 if (freq > docsCutoff) {
+                    planReason = "docFreq=" + freq + ">cutoff=" + docsCutoff;
                     return true;
                 }
             } catch (IOException e) {
+                planReason = "docFreq failed";
                 return false;
             }
         }
@@ -257,22 +261,36 @@ public final class LuceneQueryOperation extends QueryOperation {
                 if (targetFolders != null && targetFolders.size() > 0) {
                     long itemCount = getTotalItemCount(targetFolders);
                     ZimbraLog.search.debug("lucene hits=%d, folders item count=%d", getTotalHitCount(), itemCount);
-                    if (itemCount < getTotalHitCount())
+                    if (itemCount < getTotalHitCount()) {
+                        planReason = "folderItems=" + itemCount + "<luceneHits=" + getTotalHitCount();
                         return true; // run DB-FIRST
+                    }
                 }
 
                 int dbHitCount = dbOp.getDbHitCount();
                 ZimbraLog.search.debug("EstimatedHits lucene=%d,db=%d", getTotalHitCount(), dbHitCount);
                 if (dbHitCount < getTotalHitCount()) {
+                    planReason = "dbHits=" + dbHitCount + "<luceneHits=" + getTotalHitCount();
                     return true; // run DB-FIRST
                 }
+                planReason = "luceneHits=" + getTotalHitCount() + "<=dbHits=" + dbHitCount;
+            } else {
+                planReason = "luceneHits=" + getTotalHitCount();
             }
             return false;
         } catch (ServiceException e) {
+            planReason = "estimate failed";
             return false;
         }
     }
 
+    /**
+     * Returns the estimate that decided the last {@link #shouldExecuteDbFirst()}, for logging.
+     */
+    String getPlanReason() {
+        return planReason;
+    }
+
     private long getTotalItemCount(Set<Folder> folders) {
         long total = 0;
         for (Folder f : folders)
@@ -425,26 +443,15 @@ public final class LuceneQueryOperation extends QueryOperation {
                     mquery.add(terms);
                     continue;
                 }
-                List<Term> expanded = Lists.newArrayList();
-                try (TermFieldEnumeration itr = searcher.getIndexReader()
-                    .getTermsForField(base.field(), base.text())) {
-                    while (itr.hasMoreElements()) {
-                        BrowseTerm term = itr.nextElement();
-                        if (term != null && term.getText().startsWith(base.text())) {
-                            if (expanded.size() >= max) { // too many terms
-                                                          // expanded
-                                break;
-                            }
-                            expanded.add(new Term(base.field(), term.getText()));
-                        } else {
-                            break;
-                        }
-                    }
-                }
+                List<String> expanded = searcher.getIndexReader().expandPrefix(base.field(), base.text(), max);
                 if (expanded.isEmpty()) {
                     return null;
                 } else {
-                    mquery.add(expanded.toArray(new Term[expanded.size()]));
+                    Term[] expandedTerms = new Term[expanded.size()];
+                    for (int i = 0; i < expandedTerms.length; i++) {
+                        expandedTerms[i] = base.createTerm(expanded.get(i));
+                    }
+                    mquery.add(expandedTerms);
                 }
             }
             return mquery;
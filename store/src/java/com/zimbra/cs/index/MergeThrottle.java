@@ -0,0 +1,280 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.io.IOException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.store.Directory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.stats.Counter;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Server-wide scheduling of Lucene segment merges.
+ * <p>
+ * Merges of all mailboxes run on a small pool of merge threads instead of the index threads, and at most
+ * {@link LC#zimbra_index_merge_max_concurrent} of them run at once. When more merges are waiting for a slot, the
+ * smallest goes first. At most {@link LC#zimbra_index_merge_queue_size} merge tasks wait for a merge thread; when the
+ * queue is full a merge is skipped, and picked up by the next commit of that index. Merges of indexes larger than
+ * {@link LC#zimbra_index_merge_small_kb} are deferred, for up to {@link LC#zimbra_index_merge_max_defer_ms}, while the
+ * average SOAP and IMAP request latency is above {@link LC#zimbra_index_merge_busy_latency_ms}. A deferred merge waits
+ * off the merge threads and is queued again later. The bytes merges write are limited to
+ * {@link LC#zimbra_index_merge_max_mb_per_sec} across the server.
+ */
+public final class MergeThrottle {
+    private static final MergeThrottle INSTANCE = new MergeThrottle(LC.zimbra_index_merge_threads.intValue(),
+            LC.zimbra_index_merge_queue_size.intValue(), ZimbraPerf.STOPWATCH_SOAP, ZimbraPerf.STOPWATCH_IMAP);
+    private static final ThreadLocal<Boolean> MERGING = new ThreadLocal<Boolean>();
+    private static final long BUSY_SAMPLE_MS = 1000L;
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledThreadPoolExecutor deferred;
+    private final Counter[] latencies;
+    private final PriorityQueue<Ticket> waiting = new PriorityQueue<Ticket>();
+    private long sequence = 0;
+    private int running = 0;
+    private long sampledAt = 0;
+    private long sampledCount = 0;
+    private long sampledTotal = 0;
+    private boolean busy = false;
+    private RateLimiter limiter;
+    private int limiterMBps = 0;
+
+    @VisibleForTesting
+    MergeThrottle(int threads, int queueSize, Counter... latencies) {
+        threads = Math.max(threads, 1);
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(queueSize, 1)),
+                new ThreadFactoryBuilder().setNameFormat("IndexMerge-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        deferred = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("IndexMergeDefer-%d").setDaemon(true).build());
+        deferred.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        deferred.allowCoreThreadTimeOut(true);
+        this.latencies = latencies;
+    }
+
+    static MergeThrottle getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the number of merges waiting for a merge thread or a merge slot, or deferred while the server is busy.
+     */
+    public static int getBacklog() {
+        return INSTANCE.executor.getQueue().size() + INSTANCE.deferred.getQueue().size() +
+                INSTANCE.getWaitingCount();
+    }
+
+    /**
+     * Queues a merge task to a merge thread, unless {@link LC#zimbra_index_merge_queue_size} merge tasks are waiting
+     * already.
+     *
+     * @return false if the task was not queued, in which case the caller still owns it
+     */
+    boolean submit(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (executor.isShutdown()) {
+                ZimbraLog.index.warn("Skipping merge because merge threads are shut down");
+            } else {
+                ZimbraLog.index.debug("Skipping merge because the merge queue is full");
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Runs the task once the server has had another chance to quiet down. The task isn't holding a merge thread in
+     * the meantime; it is expected to {@link #submit(Runnable)} itself again.
+     */
+    void defer(Runnable task) {
+        deferred.schedule(task, BUSY_SAMPLE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns true if merges of the index in the directory, first queued at {@code queued}, should be deferred. Only
+     * an index larger than {@link LC#zimbra_index_merge_small_kb} may have a merge that large, and no merge is
+     * deferred for longer than {@link LC#zimbra_index_merge_max_defer_ms}.
+     */
+    boolean isDeferred(Directory dir, long queued) throws IOException {
+        if (System.currentTimeMillis() - queued >= LC.zimbra_index_merge_max_defer_ms.longValue() || !isBusy()) {
+            return false;
+        }
+        long small = LC.zimbra_index_merge_small_kb.longValue() * 1024L;
+        long size = 0;
+        for (String name : dir.listAll()) {
+            size += dir.fileLength(name);
+            if (size > small) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the current thread is writing a merged segment, whose output should be passed through
+     * {@link #write(long)}.
+     */
+    static boolean isMerging() {
+        return MERGING.get() != null;
+    }
+
+    /**
+     * Runs the merge once a merge slot is available.
+     */
+    void merge(IndexWriter writer, MergePolicy.OneMerge merge) throws CorruptIndexException, IOException {
+        long bytes = merge.totalBytesSize();
+        long start = System.currentTimeMillis();
+        boolean interrupted = admit(bytes);
+        ZimbraPerf.HISTOGRAM_IDX_MERGE_WAIT_MS.increment(System.currentTimeMillis() - start);
+        MERGING.set(Boolean.TRUE);
+        start = ZimbraPerf.STOPWATCH_IDX_MERGE.start();
+        try {
+            writer.merge(merge);
+        } finally {
+            MERGING.remove();
+            ZimbraPerf.STOPWATCH_IDX_MERGE.stop(start);
+            ZimbraPerf.COUNTER_IDX_MERGE_BYTES.increment(bytes);
+            release();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Blocks until a merge slot is available. The merge has already been handed out by the writer, so it has to run
+     * even if the thread is interrupted while waiting.
+     *
+     * @return true if the thread was interrupted while waiting
+     */
+    @VisibleForTesting
+    synchronized boolean admit(long bytes) {
+        Ticket ticket = new Ticket(bytes, sequence++);
+        waiting.add(ticket);
+        boolean interrupted = false;
+        while (waiting.peek() != ticket || running >= Math.max(LC.zimbra_index_merge_max_concurrent.intValue(), 1)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        waiting.poll();
+        running++;
+        notifyAll(); // the next one in line may be able to start too
+        return interrupted;
+    }
+
+    @VisibleForTesting
+    synchronized void release() {
+        running--;
+        notifyAll();
+    }
+
+    @VisibleForTesting
+    synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    @VisibleForTesting
+    synchronized int getRunningCount() {
+        return running;
+    }
+
+    /**
+     * Returns true if requests took longer than {@link LC#zimbra_index_merge_busy_latency_ms} on average since the
+     * last sample. Samples are taken at most once a second.
+     */
+    @VisibleForTesting
+    synchronized boolean isBusy() {
+        long now = System.currentTimeMillis();
+        if (now - sampledAt >= BUSY_SAMPLE_MS) {
+            long count = 0;
+            long total = 0;
+            for (Counter latency : latencies) {
+                count += latency.getCount();
+                total += latency.getTotal();
+            }
+            long threshold = LC.zimbra_index_merge_busy_latency_ms.longValue();
+            busy = threshold > 0 && count > sampledCount && (total - sampledTotal) / (count - sampledCount) > threshold;
+            sampledAt = now;
+            sampledCount = count;
+            sampledTotal = total;
+        }
+        return busy;
+    }
+
+    /**
+     * Blocks while merges are writing faster than {@link LC#zimbra_index_merge_max_mb_per_sec}.
+     */
+    void write(long bytes) {
+        RateLimiter rate = getRateLimiter();
+        if (rate != null && bytes > 0) {
+            rate.acquire((int) Math.min(bytes, Integer.MAX_VALUE));
+        }
+    }
+
+    private synchronized RateLimiter getRateLimiter() {
+        int mbps = LC.zimbra_index_merge_max_mb_per_sec.intValue();
+        if (mbps <= 0) {
+            limiter = null;
+        } else if (limiter == null) {
+            limiter = RateLimiter.create(mbps * 1024.0 * 1024.0);
+        } else if (mbps != limiterMBps) {
+            limiter.setRate(mbps * 1024.0 * 1024.0);
+        }
+        limiterMBps = mbps;
+        return limiter;
+    }
+
+    private static final class Ticket implements Comparable<Ticket> {
+        final long bytes;
+        final long seq;
+
+        Ticket(long bytes, long seq) {
+            this.bytes = bytes;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Ticket other) {
+            if (bytes != other.bytes) {
+                return bytes < other.bytes ? -1 : 1;
+            }
+            return seq < other.seq ? -1 : seq == other.seq ? 0 : 1;
+        }
+    }
+
+}
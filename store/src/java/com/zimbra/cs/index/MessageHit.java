@@ -62,6 +62,13 @@ public final class MessageHit extends ZimbraHit {
         document = doc;
     }
 
+    /**
+     * Returns the Lucene document the hit was read from, or null.
+     */
+    Document getLuceneDocument() {
+        return document;
+    }
+
     int getFolderId() throws ServiceException {
         return getMessage().getFolderId();
     }
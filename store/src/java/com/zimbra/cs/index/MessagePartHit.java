@@ -53,6 +53,13 @@ public final class MessagePartHit extends ZimbraHit {
         }
     }
 
+    /**
+     * Returns the Lucene document the hit was read from, or null.
+     */
+    Document getLuceneDocument() {
+        return document;
+    }
+
     @Override
     public int getConversationId() throws ServiceException {
         return getMessageResult().getConversationId();
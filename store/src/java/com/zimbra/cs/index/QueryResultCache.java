@@ -0,0 +1,535 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.IOUtil;
+
+/**
+ * Keeps the hits of recent searches, so that a search re-issued by a client refreshing its view or paging through the
+ * results doesn't run the query again.
+ * <p>
+ * Entries are keyed by mailbox ID, the change ID of the mailbox before the search and
+ * {@link ZimbraQuery#toResultCacheKey()}. Any change to the mailbox increments its change ID, so entries of older
+ * change IDs are never hit again and age out. An entry holds the hits from the top of the result set, in order, as
+ * they were read by the search that created it, up to {@link LC#zimbra_search_result_cache_max_hits_per_query}. A
+ * search served from the entry runs the query again only if it reads past the cached hits.
+ * <p>
+ * Hits are mutable and hold on to the results, items and Lucene documents of the search that produced them, so an
+ * entry only keeps what is needed to build them again: item IDs, sort values, fetched values and the few stored
+ * Lucene fields the hits read. Every search served from the cache builds its own hits.
+ *
+ * @see ResultsPager
+ */
+public final class QueryResultCache {
+
+    /**
+     * Runs the search without the cache.
+     */
+    public interface Executor {
+        ZimbraQueryResults execute() throws ServiceException;
+    }
+
+    /** stored Lucene fields read by {@link MessageHit}, {@link MessagePartHit} and {@link DocumentHit} */
+    private static final String[] HIT_FIELDS = {
+        LuceneFields.L_PARTNAME, LuceneFields.L_FILENAME, LuceneFields.L_MIMETYPE, LuceneFields.L_VERSION,
+        LuceneFields.L_SORT_DATE
+    };
+    private static final int MAX_HITS_PER_QUERY = LC.zimbra_search_result_cache_max_hits_per_query.intValue();
+    private static final Cache<String, Entry> CACHE = LC.zimbra_search_result_cache_max_hits.intValue() > 0 ?
+            CacheBuilder.newBuilder()
+            .maximumWeight(LC.zimbra_search_result_cache_max_hits.intValue())
+            .weigher(new Weigher<String, Entry>() {
+                @Override
+                public int weigh(String key, Entry entry) {
+                    return entry.weight + 1;
+                }
+            })
+            .expireAfterWrite(LC.zimbra_search_result_cache_ttl.intValue(), TimeUnit.SECONDS)
+            .build() : null;
+
+    private QueryResultCache() {
+    }
+
+    /**
+     * Returns the cache key of the query, or null if its hits are not cached.
+     *
+     * @param changeId change ID of the mailbox read before the query was parsed
+     */
+    public static String getKey(Mailbox mbox, int changeId, ZimbraQuery query) throws ServiceException {
+        if (CACHE == null) {
+            return null;
+        }
+        String key = query.toResultCacheKey();
+        return key == null ? null : mbox.getId() + ":" + changeId + ":" + key;
+    }
+
+    /**
+     * Returns the cached hits for the key, or null if there are none.
+     *
+     * @param executor runs the search again, in case the caller reads past the cached hits
+     */
+    public static ZimbraQueryResults get(Mailbox mbox, String key, Executor executor) {
+        Entry entry = CACHE.getIfPresent(key);
+        ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE.increment(entry != null ? 100 : 0);
+        if (entry == null) {
+            return null;
+        }
+        ZimbraLog.search.debug("Search result cache hit hits=%d,complete=%b", entry.hits.size(), entry.complete);
+        return new CachedQueryResults(mbox, entry, executor);
+    }
+
+    /**
+     * Returns results that record the hits read from {@code results}, and cache them when closed unless the mailbox
+     * has changed in the meantime.
+     */
+    public static ZimbraQueryResults record(Mailbox mbox, int changeId, String key, ZimbraQueryResults results) {
+        return new RecordingQueryResults(mbox, changeId, key, results);
+    }
+
+    private enum HitType {
+        CONVERSATION, MESSAGE, MESSAGE_PART, CONTACT, NOTE, APPOINTMENT, TASK, DOCUMENT
+    }
+
+    /**
+     * What it takes to build a hit again.
+     */
+    private static final class CachedHit {
+        private final HitType type;
+        private final int id;
+        private final Object sortValue;
+        private final int modseq;
+        private final int parentId;
+        private final Map<String, String> fields; // stored fields of the Lucene document, null if there was none
+        private final List<CachedHit> children; // message hits of a conversation, matched parts of a message
+        private final int weight;
+
+        private CachedHit(HitType type, ZimbraHit hit, Document doc, List<CachedHit> children)
+                throws ServiceException {
+            this.type = type;
+            this.id = hit.getItemId();
+            this.sortValue = hit.sortValue;
+            this.modseq = hit.cachedModseq;
+            this.parentId = hit.cachedParentId;
+            if (doc != null) {
+                ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+                for (String name : HIT_FIELDS) {
+                    String value = doc.get(name);
+                    if (value != null) {
+                        builder.put(name, value);
+                    }
+                }
+                this.fields = builder.build();
+            } else {
+                this.fields = null;
+            }
+            this.children = children;
+            int w = 1;
+            for (CachedHit child : children) {
+                w += child.weight;
+            }
+            this.weight = w;
+        }
+
+        /**
+         * Returns what it takes to build the hit again, or null if the hit can't be cached.
+         */
+        static CachedHit of(ZimbraHit hit) throws ServiceException {
+            if (!hit.isLocal()) {
+                return null;
+            }
+            List<CachedHit> children = Collections.emptyList();
+            if (hit instanceof ConversationHit) {
+                children = of(((ConversationHit) hit).getMessageHits());
+                return children != null ? new CachedHit(HitType.CONVERSATION, hit, null, children) : null;
+            } else if (hit instanceof MessageHit) {
+                MessageHit msgHit = (MessageHit) hit;
+                if (msgHit.getMatchedMimePartNames() != null) {
+                    children = of(msgHit.getMatchedMimePartNames());
+                }
+                return children != null ?
+                        new CachedHit(HitType.MESSAGE, hit, msgHit.getLuceneDocument(), children) : null;
+            } else if (hit instanceof MessagePartHit) {
+                return new CachedHit(HitType.MESSAGE_PART, hit, ((MessagePartHit) hit).getLuceneDocument(), children);
+            } else if (hit instanceof ContactHit) {
+                return new CachedHit(HitType.CONTACT, hit, null, children);
+            } else if (hit instanceof NoteHit) {
+                return new CachedHit(HitType.NOTE, hit, null, children);
+            } else if (hit instanceof TaskHit) {
+                return new CachedHit(HitType.TASK, hit, null, children);
+            } else if (hit instanceof CalendarItemHit) {
+                return new CachedHit(HitType.APPOINTMENT, hit, null, children);
+            } else if (hit instanceof DocumentHit) {
+                return new CachedHit(HitType.DOCUMENT, hit, ((DocumentHit) hit).getLuceneDocument(), children);
+            }
+            return null;
+        }
+
+        private static List<CachedHit> of(Collection<? extends ZimbraHit> hits) throws ServiceException {
+            List<CachedHit> result = new ArrayList<CachedHit>(hits.size());
+            for (ZimbraHit hit : hits) {
+                CachedHit cached = of(hit);
+                if (cached == null) {
+                    return null;
+                }
+                result.add(cached);
+            }
+            return result;
+        }
+
+        /**
+         * Builds the hit again, owned by {@code results}.
+         */
+        ZimbraHit toHit(Mailbox mbox, ZimbraQueryResultsImpl results) {
+            ZimbraHit hit;
+            switch (type) {
+                case CONVERSATION:
+                    ConversationHit convHit = results.getConversationHit(mbox, id, sortValue);
+                    for (CachedHit child : children) {
+                        convHit.addMessageHit((MessageHit) child.toHit(mbox, results));
+                    }
+                    hit = convHit;
+                    break;
+                case MESSAGE:
+                    MessageHit msgHit = results.getMessageHit(mbox, id, null, toDocument(), sortValue);
+                    for (CachedHit child : children) {
+                        msgHit.addPart((MessagePartHit) child.toHit(mbox, results));
+                    }
+                    hit = msgHit;
+                    break;
+                case MESSAGE_PART:
+                    hit = results.getMessagePartHit(mbox, id, null, toDocument(), sortValue);
+                    break;
+                case CONTACT:
+                    hit = results.getContactHit(mbox, id, null, sortValue);
+                    break;
+                case NOTE:
+                    hit = results.getNoteHit(mbox, id, null, sortValue);
+                    break;
+                case APPOINTMENT:
+                    hit = results.getAppointmentHit(mbox, id, null, sortValue);
+                    break;
+                case TASK:
+                    hit = results.getTaskHit(mbox, id, null, sortValue);
+                    break;
+                case DOCUMENT:
+                    hit = results.getDocumentHit(mbox, id, null, toDocument(), sortValue);
+                    break;
+                default:
+                    throw new IllegalStateException(type.name());
+            }
+            if (modseq > 0) {
+                hit.cacheModifiedSequence(modseq);
+            }
+            if (parentId != 0) {
+                hit.cacheParentId(parentId);
+            }
+            return hit;
+        }
+
+        private Document toDocument() {
+            if (fields == null) {
+                return null;
+            }
+            Document doc = new Document();
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                doc.add(new Field(field.getKey(), field.getValue(), Field.Store.YES, Field.Index.NO));
+            }
+            return doc;
+        }
+    }
+
+    private static final class Entry {
+        private final List<CachedHit> hits;
+        private final boolean complete; // hits are all hits of the search
+        private final SortBy sortBy;
+        private final List<QueryInfo> resultInfo;
+        private final boolean preSorted;
+        // how the results that produced the hits were set up, which the hits built again are owned by
+        private final Set<MailItem.Type> hitTypes;
+        private final SortBy hitSortBy;
+        private final SearchParams.Fetch hitFetch;
+        private final int weight;
+
+        Entry(List<CachedHit> hits, boolean complete, SortBy sortBy, List<QueryInfo> resultInfo, boolean preSorted,
+                ZimbraQueryResultsImpl hitResults) {
+            this.hits = hits;
+            this.complete = complete;
+            this.sortBy = sortBy;
+            this.resultInfo = resultInfo;
+            this.preSorted = preSorted;
+            this.hitTypes = hitResults != null ? hitResults.getTypes() : null;
+            this.hitSortBy = hitResults != null ? hitResults.getSortBy() : sortBy;
+            this.hitFetch = hitResults != null ? hitResults.getFetchMode() : null;
+            int w = 0;
+            for (CachedHit hit : hits) {
+                w += hit.weight;
+            }
+            this.weight = w;
+        }
+    }
+
+    private static final class RecordingQueryResults implements ZimbraQueryResults {
+        private final Mailbox mailbox;
+        private final int changeId;
+        private final String key;
+        private final ZimbraQueryResults results;
+        private final List<CachedHit> hits = new ArrayList<CachedHit>();
+        private ZimbraQueryResultsImpl hitResults; // owner of the recorded hits
+        private int position = 0; // number of the hit getNext() returns
+        private boolean complete = false;
+        private boolean cacheable = true;
+
+        RecordingQueryResults(Mailbox mbox, int changeId, String key, ZimbraQueryResults results) {
+            this.mailbox = mbox;
+            this.changeId = changeId;
+            this.key = key;
+            this.results = results;
+        }
+
+        private ZimbraHit record(ZimbraHit hit) throws ServiceException {
+            if (position == hits.size() && cacheable) {
+                if (hit == null) {
+                    complete = true;
+                } else if (hits.size() < MAX_HITS_PER_QUERY) {
+                    CachedHit cached = CachedHit.of(hit);
+                    if (cached == null ||
+                            (hitResults != null && hitResults.getSortBy() != hit.getResults().getSortBy())) {
+                        cacheable = false; // can't be built again the same way
+                    } else {
+                        hitResults = hit.getResults();
+                        hits.add(cached);
+                    }
+                }
+            }
+            if (hit != null) {
+                position++;
+            }
+            return hit;
+        }
+
+        @Override
+        public void resetIterator() throws ServiceException {
+            results.resetIterator();
+            position = 0;
+        }
+
+        @Override
+        public ZimbraHit getNext() throws ServiceException {
+            return record(results.getNext());
+        }
+
+        @Override
+        public ZimbraHit peekNext() throws ServiceException {
+            return results.peekNext();
+        }
+
+        /**
+         * Walks up to the hit, so that the hits it skips are recorded as well.
+         */
+        @Override
+        public ZimbraHit skipToHit(int hitNo) throws ServiceException {
+            resetIterator();
+            for (int i = 0; i < hitNo; i++) {
+                if (!hasNext()) {
+                    return null;
+                }
+                getNext();
+            }
+            return getNext();
+        }
+
+        @Override
+        public boolean hasNext() throws ServiceException {
+            if (results.hasNext()) {
+                return true;
+            }
+            if (position == hits.size()) {
+                complete = true;
+            }
+            return false;
+        }
+
+        @Override
+        public SortBy getSortBy() {
+            return results.getSortBy();
+        }
+
+        @Override
+        public List<QueryInfo> getResultInfo() {
+            return results.getResultInfo();
+        }
+
+        @Override
+        public long getCursorOffset() {
+            return results.getCursorOffset();
+        }
+
+        @Override
+        public boolean isPreSorted() {
+            return results.isPreSorted();
+        }
+
+        @Override
+        public void close() throws IOException {
+            List<QueryInfo> resultInfo = results.getResultInfo();
+            Entry entry = new Entry(ImmutableList.copyOf(hits), complete, results.getSortBy(),
+                    resultInfo != null ? ImmutableList.copyOf(resultInfo) : null, results.isPreSorted(), hitResults);
+            results.close();
+            hitResults = null;
+            if (cacheable && (complete || !hits.isEmpty()) && mailbox.getLastChangeID() == changeId) {
+                CACHE.put(key, entry);
+            }
+        }
+    }
+
+    private static final class CachedQueryResults implements ZimbraQueryResults {
+        private final Mailbox mailbox;
+        private final Entry entry;
+        private final Executor executor;
+        private final ZimbraQueryResultsImpl hitResults; // owner of the hits built from the entry
+        private final ZimbraHit[] hits;
+        private int position = 0; // number of the hit getNext() returns
+        private ZimbraQueryResults fallback;
+        private int fallbackPosition = -1;
+
+        CachedQueryResults(Mailbox mbox, Entry entry, Executor executor) {
+            this.mailbox = mbox;
+            this.entry = entry;
+            this.executor = executor;
+            this.hitResults = new EmptyQueryResults(entry.hitTypes, entry.hitSortBy, entry.hitFetch);
+            this.hits = new ZimbraHit[entry.hits.size()];
+        }
+
+        private ZimbraHit hit(int hitNo) {
+            if (hits[hitNo] == null) {
+                hits[hitNo] = entry.hits.get(hitNo).toHit(mailbox, hitResults);
+            }
+            return hits[hitNo];
+        }
+
+        /**
+         * Runs the search again for the hits past the cached ones, positioned at the current hit.
+         */
+        private ZimbraQueryResults fallback() throws ServiceException {
+            if (fallback == null) {
+                ZimbraLog.search.debug("Search result cache miss past hit %d", position);
+                fallback = executor.execute();
+                fallbackPosition = 0;
+            }
+            if (fallbackPosition != position) {
+                if (position == 0) {
+                    fallback.resetIterator();
+                } else {
+                    fallback.skipToHit(position - 1);
+                }
+                fallbackPosition = position;
+            }
+            return fallback;
+        }
+
+        @Override
+        public void resetIterator() {
+            position = 0;
+        }
+
+        @Override
+        public ZimbraHit getNext() throws ServiceException {
+            if (position < hits.length) {
+                return hit(position++);
+            }
+            if (entry.complete) {
+                return null;
+            }
+            ZimbraHit hit = fallback().getNext();
+            if (hit != null) {
+                position++;
+                fallbackPosition++;
+            }
+            return hit;
+        }
+
+        @Override
+        public ZimbraHit peekNext() throws ServiceException {
+            if (position < hits.length) {
+                return hit(position);
+            }
+            if (entry.complete) {
+                return null;
+            }
+            return fallback().peekNext();
+        }
+
+        @Override
+        public ZimbraHit skipToHit(int hitNo) throws ServiceException {
+            position = entry.complete ? Math.min(hitNo, hits.length) : hitNo;
+            return getNext();
+        }
+
+        @Override
+        public boolean hasNext() throws ServiceException {
+            return peekNext() != null;
+        }
+
+        @Override
+        public SortBy getSortBy() {
+            return entry.sortBy;
+        }
+
+        @Override
+        public List<QueryInfo> getResultInfo() {
+            return entry.resultInfo;
+        }
+
+        @Override
+        public long getCursorOffset() {
+            return -1;
+        }
+
+        @Override
+        public boolean isPreSorted() {
+            return entry.preSorted;
+        }
+
+        @Override
+        public void close() {
+            IOUtil.closeQuietly(fallback);
+        }
+    }
+}
@@ -898,6 +898,7 @@ public final class SearchParams implements Cloneable, ZimbraSearchParams {
             result.cursor = new Cursor(cursor);
         }
         result.inDumpster = inDumpster;
+        result.quick = quick;
         return result;
     }
 
@@ -0,0 +1,134 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.zimbra.cs.index.ZimbraIndexReader.TermFieldEnumeration;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Prefix expansions of the term dictionary of one index reader, so that repeated wildcard searches -- typically an
+ * autocomplete narrowing its prefix a character at a time -- don't enumerate the terms again.
+ * <p>
+ * A complete expansion of a prefix also answers every longer prefix, so a lookup first walks the shorter prefixes of
+ * the requested one, which is O(prefix length) cache probes, before falling back to the term dictionary. The cache
+ * belongs to a reader and is dropped with it, so it never outlives the segments it was built from.
+ */
+final class TermExpansionCache {
+
+    private final Cache<String, Expansion> cache;
+
+    TermExpansionCache(long maxTerms) {
+        cache = CacheBuilder.newBuilder().maximumWeight(maxTerms).weigher(new Weigher<String, Expansion>() {
+            @Override
+            public int weigh(String key, Expansion value) {
+                return value.terms.size() + 1;
+            }
+        }).build();
+    }
+
+    /**
+     * Returns up to {@code max} terms of {@code field} starting with {@code prefix}, in term order.
+     */
+    List<String> expand(ZimbraIndexReader reader, String field, String prefix, int max) throws IOException {
+        long start = System.nanoTime();
+        String key = key(field, prefix);
+        Expansion result = cache.getIfPresent(key);
+        if (result != null && result.covers(max)) {
+            ZimbraPerf.COUNTER_IDX_WILDCARD_CACHE.increment(100);
+        } else {
+            result = narrow(field, prefix);
+            if (result != null) {
+                ZimbraPerf.COUNTER_IDX_WILDCARD_CACHE.increment(100);
+            } else {
+                ZimbraPerf.COUNTER_IDX_WILDCARD_CACHE.increment(0);
+                result = enumerate(reader, field, prefix, max);
+            }
+            cache.put(key, result);
+        }
+        ZimbraPerf.HISTOGRAM_IDX_WILDCARD_EXPAND_US.increment(
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        return result.limit(max);
+    }
+
+    private Expansion narrow(String field, String prefix) {
+        for (int len = prefix.length() - 1; len >= 0; len--) {
+            Expansion parent = cache.getIfPresent(key(field, prefix.substring(0, len)));
+            if (parent != null && parent.complete) {
+                List<String> terms = new ArrayList<String>();
+                for (String term : parent.terms) {
+                    if (term.startsWith(prefix)) {
+                        terms.add(term);
+                    }
+                }
+                return new Expansion(terms, true);
+            }
+        }
+        return null;
+    }
+
+    private static String key(String field, String prefix) {
+        return field + '\u0000' + prefix;
+    }
+
+    /**
+     * Enumerates up to {@code max} terms of {@code field} starting with {@code prefix} from the term dictionary.
+     */
+    static Expansion enumerate(ZimbraIndexReader reader, String field, String prefix, int max) throws IOException {
+        List<String> terms = new ArrayList<String>();
+        try (TermFieldEnumeration itr = reader.getTermsForField(field, prefix)) {
+            while (itr.hasMoreElements()) {
+                BrowseTerm term = itr.nextElement();
+                if (term == null || !term.getText().startsWith(prefix)) {
+                    break;
+                }
+                if (terms.size() >= max) { // too many terms expanded
+                    return new Expansion(terms, false);
+                }
+                terms.add(term.getText());
+            }
+        }
+        return new Expansion(terms, true);
+    }
+
+    static final class Expansion {
+        final List<String> terms;
+        final boolean complete; // false if the expansion stopped at the limit
+
+        Expansion(List<String> terms, boolean complete) {
+            this.terms = Collections.unmodifiableList(terms);
+            this.complete = complete;
+        }
+
+        boolean covers(int max) {
+            return complete || terms.size() >= max;
+        }
+
+        List<String> limit(int max) {
+            return terms.size() <= max ? terms : terms.subList(0, max);
+        }
+    }
+
+}
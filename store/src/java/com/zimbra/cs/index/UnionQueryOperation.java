@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 import com.google.common.collect.ImmutableSet;
@@ -37,6 +38,7 @@ public final class UnionQueryOperation extends CombiningQueryOperation {
 
     private boolean atStart = true; // don't re-fill buffer twice if they call hasNext() then reset() w/o actually getting next
     private ZimbraHit cachedNextHit = null;
+    private PriorityQueue<Head> heads = null;
 
     @Override
     public long getCursorOffset() {
@@ -60,6 +62,7 @@ public final class UnionQueryOperation extends CombiningQueryOperation {
                 q.resetIterator();
             }
             cachedNextHit = null;
+            heads = null;
             internalGetNext();
         }
     }
@@ -94,34 +97,59 @@ public final class UnionQueryOperation extends CombiningQueryOperation {
                 // no more results!
 
             } else {
-                // mergesort: loop through QueryOperations and find the "best" hit
-                int currentBestHitOffset = -1;
-                ZimbraHit currentBestHit = null;
-                for (int i = 0; i < operations.size(); i++) {
-                    QueryOperation op = operations.get(i);
-                    if (op.hasNext()) {
-                        if (currentBestHitOffset == -1) {
-                            currentBestHitOffset = i;
-                            currentBestHit = op.peekNext();
-                        } else {
-                            ZimbraHit opNext = op.peekNext();
-                            int result = opNext.compareTo(context.getResults().getSortBy(), currentBestHit);
-                            if (result < 0) {
-                                // "before"
-                                currentBestHitOffset = i;
-                                currentBestHit = opNext;
-                            }
-                        }
+                // k-way merge: the heap holds each sub-operation that still has hits, ordered by its next hit
+                if (heads == null) {
+                    heads = new PriorityQueue<Head>(Math.max(operations.size(), 1));
+                    for (int i = 0; i < operations.size(); i++) {
+                        offer(operations.get(i), i);
                     }
                 }
-                if (currentBestHitOffset > -1) {
-                    cachedNextHit = operations.get(currentBestHitOffset).getNext();
-                    assert(cachedNextHit == currentBestHit);
+                Head best = heads.poll();
+                if (best != null) {
+                    cachedNextHit = best.op.getNext();
+                    assert(cachedNextHit == best.hit);
+                    offer(best.op, best.index);
                 }
             }
         }
     }
 
+    private void offer(QueryOperation op, int index) throws ServiceException {
+        ZimbraHit hit = op.peekNext();
+        if (hit != null) {
+            heads.add(new Head(op, index, hit, context.getResults().getSortBy()));
+        }
+    }
+
+    /**
+     * Next hit of a sub-operation. Ties on the sort field go to the earlier sub-operation, so the merged order is the
+     * same as that of the linear scan this replaces.
+     */
+    private static final class Head implements Comparable<Head> {
+        final QueryOperation op;
+        final int index;
+        final ZimbraHit hit;
+        final SortBy sort;
+
+        Head(QueryOperation op, int index, ZimbraHit hit, SortBy sort) {
+            this.op = op;
+            this.index = index;
+            this.hit = hit;
+            this.sort = sort;
+        }
+
+        @Override
+        public int compareTo(Head other) {
+            int result;
+            try {
+                result = hit.compareTo(sort, other.hit);
+            } catch (ServiceException e) {
+                ZimbraLog.search.error("Failed to compare %s and %s", hit, other.hit, e);
+                result = 0;
+            }
+            return result != 0 ? result : index - other.index;
+        }
+    }
 
     @Override
     public void close() throws IOException {
@@ -303,6 +331,7 @@ public final class UnionQueryOperation extends CombiningQueryOperation {
     public Object clone() {
         assert(cachedNextHit == null);
         UnionQueryOperation result = (UnionQueryOperation) super.clone();
+        result.heads = null;
         result.operations = new ArrayList<QueryOperation>(operations.size());
         for (QueryOperation op : operations) {
             result.operations.add((QueryOperation) op.clone());
@@ -140,6 +140,14 @@ public final class ZimbraAnalyzer extends Analyzer {
     }
 
     private TokenStream tokenStream(String field, Reader reader, Analyzer analyzer) {
+        TokenStream stream = fieldTokenStream(field, reader);
+        return stream != null ? stream : analyzer.tokenStream(field, new HalfwidthKanaVoicedMappingFilter(reader));
+    }
+
+    /**
+     * Returns the token stream of a field that has its own tokenizer, or null if the field goes through the analyzer.
+     */
+    private TokenStream fieldTokenStream(String field, Reader reader) {
         if (field.equals(LuceneFields.L_H_MESSAGE_ID)) {
             return new KeywordTokenizer(reader);
         } else if (field.equals(LuceneFields.L_ATTACHMENTS) || field.equals(LuceneFields.L_MIMETYPE)) {
@@ -160,7 +168,7 @@ public final class ZimbraAnalyzer extends Analyzer {
         } else if (field.equals(LuceneFields.L_FILENAME)) {
             return new FilenameTokenizer(reader);
         } else {
-            return analyzer.tokenStream(field, new HalfwidthKanaVoicedMappingFilter((reader)));
+            return null;
         }
     }
 
@@ -169,8 +177,10 @@ public final class ZimbraAnalyzer extends Analyzer {
     }
 
     @Override
-    public TokenStream reusableTokenStream(String field, Reader reader) {
-        return tokenStream(field, reader);
+    public TokenStream reusableTokenStream(String field, Reader reader) throws IOException {
+        TokenStream stream = fieldTokenStream(field, reader);
+        return stream != null ? stream :
+            defaultAnalyzer.reusableTokenStream(field, new HalfwidthKanaVoicedMappingFilter(reader));
     }
 
     private static final class ForwardingAnalyzer extends Analyzer {
@@ -19,6 +19,7 @@ package com.zimbra.cs.index;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.Enumeration;
+import java.util.List;
 
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermEnum;
@@ -45,6 +46,12 @@ public interface ZimbraIndexReader extends Closeable, Cloneable {
      */
     public TermFieldEnumeration getTermsForField(String field, String firstTermValue) throws IOException;
 
+    /**
+     * Returns up to {@code max} values of terms with {@code field} that start with {@code prefix}, ordered by
+     * String.compareTo(). The returned list must not be modified.
+     */
+    public List<String> expandPrefix(String field, String prefix, int max) throws IOException;
+
     public interface TermFieldEnumeration extends Enumeration<BrowseTerm>, Closeable {
     }
 }
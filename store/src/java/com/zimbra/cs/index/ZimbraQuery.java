@@ -758,7 +758,9 @@ public final class ZimbraQuery {
      * WARNING: You **MUST** call {@link ZimbraQueryResults#close()} when you are done with them!
      */
     public ZimbraQueryResults execute() throws ServiceException {
-        compile();
+        if (operation == null) {
+            compile();
+        }
 
         Set<QueryTarget> targets = operation.getQueryTargets();
         assert(operation instanceof UnionQueryOperation || QueryTarget.getExplicitTargetCount(targets) <= 1);
@@ -933,6 +935,30 @@ public final class ZimbraQuery {
         return operation.toQueryString();
     }
 
+    /**
+     * Returns a string identifying the hits of this query for {@link QueryResultCache}, or null if they must not be
+     * cached. Cursor searches are narrowed by the cursor, searches of other mailboxes see changes that the change
+     * ID of this mailbox doesn't reflect, and IMAP fetches would load every item to build their hits again.
+     */
+    String toResultCacheKey() throws ServiceException {
+        if (octxt == null || params.getCursor() != null || params.getFetchMode() == SearchParams.Fetch.IMAP) {
+            return null;
+        }
+        if (operation == null) {
+            compile();
+        }
+        if (operation == null || QueryTarget.hasExternalTarget(operation.getQueryTargets())) {
+            return null;
+        }
+        Account authAcct = octxt.getAuthenticatedUser();
+        return Joiner.on('|').useForNull("").join(authAcct != null ? authAcct.getId() : null,
+                octxt.isUsingAdminPrivileges(), operation.toQueryString(), params.getTypes(), params.getSortBy(),
+                params.getFetchMode(), params.isQuick(), params.inDumpster(), params.getIncludeTagDeleted(),
+                params.getIncludeTagMuted(), params.getAllowableTaskStatuses(), params.getCalItemExpandStart(),
+                params.getCalItemExpandEnd(), params.getLocale(),
+                params.getTimeZone() != null ? params.getTimeZone().getID() : null);
+    }
+
     public String toSanitizedtring() throws ServiceException {
         StringBuilder out = new StringBuilder();
         for (Query clause : clauses) {
@@ -1400,10 +1400,17 @@ public final class NormalizeTokenFilter extends CharFilter {
     }
 
     public static String normalize(String value) {
-        StringBuilder result = new StringBuilder();
-        for (int i = 0; i < value.length(); i++)
-            result.append((char) NormalizeTokenFilter.normalize(value.charAt(i), i + 1 < value.length() ? value.charAt(i + 1) : 0));
-
-        return result.toString();
+        char[] result = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            char n = (char) normalize(c, i + 1 < value.length() ? value.charAt(i + 1) : 0);
+            if (n != c && result == null) { // copy only once something actually changes
+                result = value.toCharArray();
+            }
+            if (result != null) {
+                result[i] = n;
+            }
+        }
+        return result == null ? value : new String(result);
     }
 }
@@ -19,10 +19,10 @@ package com.zimbra.cs.index.analysis;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
@@ -61,9 +61,11 @@ import com.zimbra.common.mime.InternetAddress;
  * @author ysasaki
  */
 public final class RFC822AddressTokenStream extends TokenStream {
-    private final List<String> tokens = new LinkedList<String>();
+    private final List<String> tokens = new ArrayList<String>();
     private Iterator<String> itr;
     private final CharTermAttribute termAttr = addAttribute(CharTermAttribute.class);
+    private int maxTokenLength;
+    private int maxTokenCount;
 
     public RFC822AddressTokenStream(String raw) {
         if (Strings.isNullOrEmpty(raw)) {
@@ -76,6 +78,8 @@ public final class RFC822AddressTokenStream extends TokenStream {
         } catch (UnsupportedEncodingException e) {
             decoded = raw;
         }
+        maxTokenLength = LC.zimbra_index_rfc822address_max_token_length.intValue();
+        maxTokenCount = LC.zimbra_index_rfc822address_max_token_count.intValue();
 
         // casually parse addresses, then tokenize them
         Set<String> emails = new HashSet<String>();
@@ -160,8 +164,7 @@ public final class RFC822AddressTokenStream extends TokenStream {
     }
 
     private void add(String token) {
-        if (token.length() <= LC.zimbra_index_rfc822address_max_token_length.intValue() &&
-                tokens.size() < LC.zimbra_index_rfc822address_max_token_count.intValue()) {
+        if (token.length() <= maxTokenLength && tokens.size() < maxTokenCount) {
             tokens.add(token);
         }
     }
@@ -18,9 +18,11 @@ package com.zimbra.cs.index.analysis;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.util.Collections;
 import java.util.Set;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArraySet;
 import org.apache.lucene.analysis.CharReader;
 import org.apache.lucene.analysis.StopAnalyzer;
 import org.apache.lucene.analysis.StopFilter;
@@ -30,7 +32,6 @@ import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
 
-import com.google.common.base.CharMatcher;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
@@ -49,42 +50,80 @@ import com.zimbra.cs.index.LuceneIndex;
  */
 public final class UniversalAnalyzer extends Analyzer {
 
-    private Tokenizer savedTokenizer;
-    private TokenStream savedTokenStream;
+    private static volatile StopWords stopWords = new StopWords(Collections.emptySet(), CharArraySet.EMPTY_SET);
 
     @Override
     public TokenStream tokenStream(String field, Reader in) {
-        return createTokenStream(createTokenizer(in));
+        return createTokenStream(createTokenizer(in), getStopWords());
     }
 
+    /**
+     * Returns this thread's token stream, reset to read from {@code in}. The tokenizer, its lexer buffer and the
+     * filter chain are created once per thread and reused for every field of every document, instead of being
+     * allocated for each field.
+     */
     @Override
-    public final TokenStream reusableTokenStream(String field, Reader in)
-        throws IOException {
-
-        if (savedTokenizer != null && savedTokenStream != null) {
-            savedTokenizer.reset(new NormalizeTokenFilter(CharReader.get(in)));
-        } else {
-            savedTokenizer = createTokenizer(in);
-            savedTokenStream = createTokenStream(savedTokenizer);
+    public final TokenStream reusableTokenStream(String field, Reader in) throws IOException {
+        CharArraySet words = getStopWords();
+        SavedStreams saved = (SavedStreams) getPreviousTokenStream();
+        if (saved != null && saved.stopWords == words) {
+            saved.tokenizer.reset(new NormalizeTokenFilter(CharReader.get(in)));
+        } else { // first use on this thread, or the stop words have changed since
+            saved = new SavedStreams();
+            saved.tokenizer = createTokenizer(in);
+            saved.stream = createTokenStream(saved.tokenizer, words);
+            saved.stopWords = words;
+            setPreviousTokenStream(saved);
         }
-        return savedTokenStream;
+        return saved.stream;
     }
 
     private Tokenizer createTokenizer(Reader in) {
         return new UniversalTokenizer(new NormalizeTokenFilter(CharReader.get(in)));
     }
 
-    private TokenStream createTokenStream(Tokenizer tokenizer) {
+    private TokenStream createTokenStream(Tokenizer tokenizer, CharArraySet words) {
         TokenStream result = new UniversalTokenFilter(tokenizer);
-        Set stopWords = StopAnalyzer.ENGLISH_STOP_WORDS_SET;
+        // disable position increment for backward compatibility
+        result = new StopFilter(LuceneIndex.VERSION, result, words);
+        return result;
+    }
+
+    /**
+     * Returns the configured stop words. The {@link CharArraySet} is only rebuilt when the configuration changes, so
+     * that {@link StopFilter} doesn't copy the stop words for every token stream.
+     */
+    private static CharArraySet getStopWords() {
+        Set<?> words = StopAnalyzer.ENGLISH_STOP_WORDS_SET;
         try {
-        	stopWords = Provisioning.getInstance().getConfig().getMultiAttrSet(Provisioning.A_zimbraDefaultAnalyzerStopWords);
+            words = Provisioning.getInstance().getConfig().getMultiAttrSet(
+                    Provisioning.A_zimbraDefaultAnalyzerStopWords);
         } catch (ServiceException e) {
-        	ZimbraLog.index.error("Failed to retrieve stop words from LDAP", e);
+            ZimbraLog.index.error("Failed to retrieve stop words from LDAP", e);
         }
-        // disable position increment for backward compatibility
-        result = new StopFilter(LuceneIndex.VERSION, result, stopWords);
-        return result;
+        StopWords cached = stopWords;
+        if (!cached.source.equals(words)) {
+            cached = new StopWords(words,
+                    CharArraySet.unmodifiableSet(new CharArraySet(LuceneIndex.VERSION, words, false)));
+            stopWords = cached;
+        }
+        return cached.set;
+    }
+
+    private static final class StopWords {
+        final Set<?> source;
+        final CharArraySet set;
+
+        StopWords(Set<?> source, CharArraySet set) {
+            this.source = source;
+            this.set = set;
+        }
+    }
+
+    private static final class SavedStreams {
+        Tokenizer tokenizer;
+        TokenStream stream;
+        CharArraySet stopWords;
     }
 
     private static class UniversalTokenFilter extends TokenFilter {
@@ -110,9 +149,15 @@ public final class UniversalAnalyzer extends Analyzer {
                     termAttr.setLength(len - 2);
                 }
             } else if (type == UniversalTokenizer.TokenType.ACRONYM.name()) {
-                // remove dots from acronyms
-                String replace = CharMatcher.is('.').removeFrom(termAttr);
-                termAttr.setEmpty().append(replace);
+                // remove dots from acronyms, in place
+                char[] buf = termAttr.buffer();
+                int len = 0;
+                for (int i = 0; i < termAttr.length(); i++) {
+                    if (buf[i] != '.') {
+                        buf[len++] = buf[i];
+                    }
+                }
+                termAttr.setLength(len);
             }
 
             return true;
@@ -77,6 +77,18 @@ public class ElasticSearchConnector {
         return statusCode;
     }
 
+    /**
+     * Records the status and body of a response to a request sent through the asynchronous HTTP client, so that
+     * they can be inspected the same way as after {@link #executeMethod(HttpRequestBase)}.
+     */
+    public int handleResponse(HttpRequestBase method, HttpResponse response) throws IOException {
+        statusCode = response.getStatusLine().getStatusCode();
+        body = EntityUtils.toString(response.getEntity());
+        ZimbraLog.elasticsearch.trace("ElasticSearch request:%s %s - statusCode=%d\nRESPONSE BODY=%s",
+                method.getMethod(), method.getURI(), statusCode, body);
+        return statusCode;
+    }
+
     public class ZimbraElasticSearchDownException extends IndexStoreException {
         private static final long serialVersionUID = -1564956672861500861L;
 
@@ -17,23 +17,32 @@
 package com.zimbra.cs.index.elasticsearch;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.concurrent.Semaphore;
 
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
@@ -59,8 +68,10 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
+import com.zimbra.common.httpclient.ZimbraHttpClientManager;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.util.ZimbraLog;
@@ -95,10 +106,14 @@ import com.zimbra.cs.mailbox.Mailbox;
 public final class ElasticSearchIndex extends IndexStore {
 
     private final static String indexType = "zimbra";
+    /** {@code _bulk} action line for a document with an automatically generated ID */
+    private static final byte[] BULK_INDEX_ACTION = "{\"index\":{}}\n".getBytes(Charsets.UTF_8);
     private final Mailbox mailbox;
     private final String key;
     private final String indexUrl;
     private boolean haveMappingInfo = false;
+    /** true if documents may have been written since the index was last refreshed */
+    private volatile boolean dirty = true;
 
     private ElasticSearchIndex(Mailbox mbox) {
         this.mailbox = mbox;
@@ -110,7 +125,9 @@ public final class ElasticSearchIndex extends IndexStore {
         if (haveMappingInfo) {
             return;
         }
-        if (!refreshIndexIfNecessary()) {
+        if (refreshIndex()) {
+            haveMappingInfo = true; // the index already exists, created with our mapping
+        } else {
             try {
                 ElasticSearchConnector connector = new ElasticSearchConnector();
                 JSONObject mappingInfo = createMappingInfo();
@@ -120,7 +137,7 @@ public final class ElasticSearchIndex extends IndexStore {
                 int statusCode = connector.executeMethod(putMethod);
                 if (statusCode == HttpStatus.SC_OK) {
                     haveMappingInfo = true;
-                    refreshIndexIfNecessary(); // Sometimes searches don't seem to honor mapping info.  Try to force it
+                    refreshIndex(); // Sometimes searches don't seem to honor mapping info.  Try to force it
                 } else {
                     ZimbraLog.index.error("Problem Setting mapping information for index with key=%s httpstatus=%d",
                             key, statusCode);
@@ -134,10 +151,20 @@ public final class ElasticSearchIndex extends IndexStore {
     }
 
     /**
-     * By default, ElasticSearch refreshes every second (configurable?).  Can force it using this.
-     * TODO: Perhaps only do this if we've written something in the last second?
+     * By default, ElasticSearch refreshes every second (configurable?).  Forces a refresh if anything was written to
+     * the index since the last one, so that searches see the changes right away.
      */
-    private boolean refreshIndexIfNecessary() {
+    private void refreshIndexIfNecessary() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        if (!refreshIndex()) {
+            dirty = true;
+        }
+    }
+
+    private boolean refreshIndex() {
         String url = String.format("%s_refresh", indexUrl);
         HttpGet method = new HttpGet(ElasticSearchConnector.actualUrl(url));
         try {
@@ -430,10 +457,27 @@ public final class ElasticSearchIndex extends IndexStore {
         }
     }
 
+    /**
+     * Collects added documents into {@code _bulk} requests, which are sent asynchronously as soon as they reach
+     * {@link LC#zimbra_index_elasticsearch_bulk_max_docs} documents or
+     * {@link LC#zimbra_index_elasticsearch_bulk_max_bytes} bytes. At most
+     * {@link LC#zimbra_index_elasticsearch_bulk_max_in_flight} requests are awaiting a response at any time.
+     * The index is not refreshed by the indexer, the next search refreshes it if needed.
+     */
     private final class ElasticSearchIndexer implements Indexer {
+        private final int maxBulkDocs = Math.max(1, LC.zimbra_index_elasticsearch_bulk_max_docs.intValue());
+        private final int maxBulkBytes = LC.zimbra_index_elasticsearch_bulk_max_bytes.intValue();
+        private final int maxInFlight = Math.max(1, LC.zimbra_index_elasticsearch_bulk_max_in_flight.intValue());
+        private final Semaphore inFlight = new Semaphore(maxInFlight);
+        private ByteArrayOutputStream bulk = new ByteArrayOutputStream();
+        private List<Integer> bulkItemIds = Lists.newArrayList(); // mailbox item ID of each document in bulk
 
+        /**
+         * Sends the pending documents and waits until ElasticSearch has responded to all of them.
+         */
         @Override
         public void close() {
+            flush();
         }
 
         @Override
@@ -566,9 +610,6 @@ public final class ElasticSearchIndex extends IndexStore {
             }
 
             for (IndexDocument doc : docs) {
-                // Note: using automatic ID generation
-                String url = String.format("%s%s/", indexUrl, indexType);
-                HttpPost method = new HttpPost(ElasticSearchConnector.actualUrl(url));
                 JSONObject jsonObj = new JSONObject();
                 // doc can be shared by multiple threads if multiple mailboxes are referenced in a single email
                 synchronized (doc) {
@@ -578,45 +619,145 @@ public final class ElasticSearchIndex extends IndexStore {
                         addFieldToDocument(jsonObj, field);
                     }
                 }
-                try {
-                    method.setEntity(new StringEntity(jsonObj.toString(),
-                            MimeConstants.CT_APPLICATION_JSON, MimeConstants.P_CHARSET_UTF8));
-                    ElasticSearchConnector connector = new ElasticSearchConnector();
-                    int statusCode = connector.executeMethod(method);
-                    if (statusCode != HttpStatus.SC_CREATED) {
-                        ZimbraLog.index.error("Problem indexing document with id=%d httpstatus=%d",
-                                item.getId(), statusCode);
-                    }
-                } catch (IOException e) {
-                    ZimbraLog.index.error("Problem indexing document with id=%d", item.getId());
+                // Note: using automatic ID generation
+                byte[] source = jsonObj.toString().getBytes(Charsets.UTF_8);
+                if (!bulkItemIds.isEmpty() &&
+                        bulk.size() + BULK_INDEX_ACTION.length + source.length + 1 > maxBulkBytes) {
+                    sendBulk();
+                }
+                bulk.write(BULK_INDEX_ACTION);
+                bulk.write(source);
+                bulk.write('\n');
+                bulkItemIds.add(item.getId());
+                if (bulkItemIds.size() >= maxBulkDocs) {
+                    sendBulk();
                 }
             }
         }
 
         /**
-         * Delete all documents associated with each mailbox blob ID in the provided list.
+         * Delete all documents associated with each mailbox blob ID in the provided list, using one delete by query
+         * request per {@code zimbra_index_elasticsearch_bulk_max_docs} IDs so that the query string stays within URL
+         * and boolean clause limits. Pending documents are sent first, as they may belong to the items being deleted.
          */
         @Override
         public void deleteDocument(List<Integer> ids) {
-            refreshIndexIfNecessary();
-            String url = String.format("%s%s/_query", indexUrl, indexType);
-            for (Integer id : ids) {
-
-                String query = String.format("%s:%s", LuceneFields.L_MAILBOX_BLOB_ID, id.toString());
-                StringBuilder urlBuilder = new StringBuilder()
-                .append(ElasticSearchConnector.actualUrl(url)).append("q=")
-                .append(query);
-                HttpDelete method = new HttpDelete(ElasticSearchConnector.actualUrl(url));
-                try {
-                    ElasticSearchConnector connector = new ElasticSearchConnector();
-                    int statusCode = connector.executeMethod(method);
-                    if (statusCode == HttpStatus.SC_OK) {
-                        ZimbraLog.index.debug("Deleted documents with id=%d", id);
-                    } else {
-                        ZimbraLog.index.error("Problem deleting documents with id=%d httpstatus=%d", id, statusCode);
+            if (ids.isEmpty()) {
+                return;
+            }
+            flush();
+            try {
+                for (List<Integer> chunk : Lists.partition(ids, maxBulkDocs)) {
+                    deleteByQuery(chunk);
+                }
+            } finally {
+                dirty = true;
+            }
+        }
+
+        private void deleteByQuery(List<Integer> ids) {
+            String query = String.format("%s:(%s)", LuceneFields.L_MAILBOX_BLOB_ID, Joiner.on(" OR ").join(ids));
+            String url;
+            try {
+                url = String.format("%s%s/_query?q=%s", indexUrl, indexType, URLEncoder.encode(query, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            HttpDelete method = new HttpDelete(ElasticSearchConnector.actualUrl(url));
+            try {
+                ElasticSearchConnector connector = new ElasticSearchConnector();
+                int statusCode = connector.executeMethod(method);
+                if (statusCode == HttpStatus.SC_OK) {
+                    ZimbraLog.index.debug("Deleted documents with ids=%s", ids);
+                } else {
+                    ZimbraLog.index.error("Problem deleting documents with ids=%s httpstatus=%d", ids, statusCode);
+                }
+            } catch (IOException e) {
+                ZimbraLog.index.error("Problem deleting documents with ids=%s", ids);
+            }
+        }
+
+        /**
+         * Sends the pending documents and waits for the responses to all requests sent by this indexer.
+         */
+        private void flush() {
+            sendBulk();
+            inFlight.acquireUninterruptibly(maxInFlight);
+            inFlight.release(maxInFlight);
+        }
+
+        /**
+         * Sends the pending documents as one {@code _bulk} request without waiting for the response, blocking only
+         * if {@link #maxInFlight} requests are already awaiting one.
+         */
+        private void sendBulk() {
+            if (bulkItemIds.isEmpty()) {
+                return;
+            }
+            final List<Integer> itemIds = bulkItemIds;
+            final HttpPost method = new HttpPost(ElasticSearchConnector.actualUrl(
+                    String.format("%s%s/_bulk", indexUrl, indexType)));
+            method.setEntity(new ByteArrayEntity(bulk.toByteArray(),
+                    ContentType.create(MimeConstants.CT_APPLICATION_JSON, Charsets.UTF_8)));
+            bulk = new ByteArrayOutputStream();
+            bulkItemIds = Lists.newArrayList();
+
+            inFlight.acquireUninterruptibly();
+            dirty = true;
+            try {
+                ZimbraHttpClientManager.getInstance().getInternalAsyncHttpClient().execute(method,
+                        new FutureCallback<HttpResponse>() {
+                    @Override
+                    public void completed(HttpResponse response) {
+                        try {
+                            checkBulkResponse(method, response, itemIds);
+                        } finally {
+                            dirty = true;
+                            inFlight.release();
+                        }
                     }
-                } catch (IOException e) {
-                    ZimbraLog.index.error("Problem deleting documents with id=%d", id);
+
+                    @Override
+                    public void failed(Exception e) {
+                        ZimbraLog.index.error("Problem indexing documents with ids=%s", itemIds, e);
+                        inFlight.release();
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        ZimbraLog.index.error("Indexing documents with ids=%s cancelled", itemIds);
+                        inFlight.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                inFlight.release();
+                ZimbraLog.index.error("Problem indexing documents with ids=%s", itemIds, e);
+            }
+        }
+
+        private void checkBulkResponse(HttpRequestBase method, HttpResponse response, List<Integer> itemIds) {
+            ElasticSearchConnector connector = new ElasticSearchConnector();
+            try {
+                int statusCode = connector.handleResponse(method, response);
+                if (statusCode != HttpStatus.SC_OK) {
+                    ZimbraLog.index.error("Problem indexing documents with ids=%s httpstatus=%d", itemIds, statusCode);
+                    return;
+                }
+            } catch (IOException e) {
+                ZimbraLog.index.error("Problem indexing documents with ids=%s", itemIds, e);
+                return;
+            }
+            if (!connector.getBooleanAtJsonPath(new String[] {"errors"}, false)) {
+                ZimbraLog.index.debug("Indexed %d documents", itemIds.size());
+                return;
+            }
+            JSONArray items = connector.getArrayAtJsonPath(new String[] {"items"});
+            for (int i = 0; items != null && i < items.length() && i < itemIds.size(); i++) {
+                JSONObject result = items.optJSONObject(i);
+                result = result == null ? null : result.optJSONObject("index");
+                if (result != null && result.has("error")) {
+                    ZimbraLog.index.error("Problem indexing document with id=%d httpstatus=%d error=%s",
+                            itemIds.get(i), result.optInt("status"), result.opt("error"));
                 }
             }
         }
@@ -668,6 +809,21 @@ public final class ElasticSearchIndex extends IndexStore {
             return new ElasticSearchTermValueEnumeration(field, firstTermValue);
         }
 
+        @Override
+        public List<String> expandPrefix(String field, String prefix, int max) throws IOException {
+            List<String> result = new ArrayList<String>();
+            try (TermFieldEnumeration values = getTermsForField(field, prefix)) {
+                while (values.hasMoreElements() && result.size() < max) {
+                    BrowseTerm term = values.nextElement();
+                    if (term == null || !term.getText().startsWith(prefix)) {
+                        break;
+                    }
+                    result.add(term.getText());
+                }
+            }
+            return result;
+        }
+
         /**
          * Relies on ElasticSearch plugin elasticsearch-index-termlist being installed.
          * Note that that currently doesn't support doc frequency information
@@ -573,6 +573,12 @@ public class ZimbraLmtpBackend implements LmtpBackend {
                         Mailbox mbox = rd.mbox;
                         ParsedMessage pm = rd.pm;
                         List<ItemId> addedMessageIds = null;
+                        if (mbox.index.isBackedUp()) {
+                            ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox is waiting to be indexed.",
+                                    envSender, rcptEmail);
+                            reply = LmtpReply.TEMPORARY_FAILURE;
+                            break;
+                        }
                         ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
                         boolean acquiredLock;
                         try {
@@ -0,0 +1,485 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact binary form of {@link Metadata}, used where the encoded value never has to be stored in a text column
+ * (e.g. the memcached item cache).  Well-known keys are written as a single-byte index, integers as zigzag varints,
+ * and every nested map and list is length-prefixed so that it can be skipped on decode and only expanded when it is
+ * first accessed.
+ * <p>
+ * Layout: {@code MAGIC VERSION value}, where a value is one of
+ * <ul>
+ *  <li>{@code T_MAP length count (key value)*}</li>
+ *  <li>{@code T_LIST length count value*}</li>
+ *  <li>{@code T_LONG zigzag-varint}</li>
+ *  <li>{@code T_STRING length utf8-bytes}</li>
+ *  <li>{@code T_KEY index} (a string from {@link #KEYS})</li>
+ * </ul>
+ * As with {@link com.zimbra.common.util.BEncoding}, anything that is not a map, list or integral number is stored
+ * as its {@code toString()}.
+ */
+final class CompactMetadata {
+
+    static final byte MAGIC = (byte) 0xCD;
+    static final byte VERSION = 1;
+
+    private static final byte T_MAP = 1;
+    private static final byte T_LIST = 2;
+    private static final byte T_LONG = 3;
+    private static final byte T_STRING = 4;
+    private static final byte T_KEY = 5;
+
+    /**
+     * Interned keys.  The position of a key is part of the wire format: never reorder or remove entries, only
+     * append to the end of the array.
+     */
+    private static final String[] KEYS = {
+        // MailItem.UnderlyingData
+        "id", "tp", "pid", "fid", "pfid", "idx", "imap", "loc", "dgst", "dt", "sz", "uc", "fg", "tg", "sbj", "nm",
+        "meta", "modm", "modc", "dc",
+        // Metadata
+        Metadata.FN_ATTRS, Metadata.FN_RIGHTS_MAP, Metadata.FN_ACCOUNT_ID, Metadata.FN_COLOR, Metadata.FN_CREATOR,
+        Metadata.FN_MIME_TYPE, Metadata.FN_DRAFT, Metadata.FN_ENTRIES, Metadata.FN_FRAGMENT, Metadata.FN_FIELDS,
+        Metadata.FN_DELETED, Metadata.FN_DELETED_UNREAD, Metadata.FN_RECENT, Metadata.FN_RECENT_CUTOFF,
+        Metadata.FN_REMOTE_ID, Metadata.FN_INV, Metadata.FN_LAST_DATE, Metadata.FN_MODSEQ, Metadata.FN_NODES,
+        Metadata.FN_PREFIX, Metadata.FN_PARTICIPANTS, Metadata.FN_QUERY, Metadata.FN_RAW_SUBJ,
+        Metadata.FN_REVISIONS, Metadata.FN_RETENTION_POLICY, Metadata.FN_SENDER, Metadata.FN_SYNC_DATE,
+        Metadata.FN_TOTAL_SIZE, Metadata.FN_RECIPIENTS, Metadata.FN_UID, Metadata.FN_UIDNEXT, Metadata.FN_URL,
+        Metadata.FN_METADATA_VERSION, Metadata.FN_VERSION, Metadata.FN_VIEW, Metadata.FN_EXTRA_DATA,
+        // ACL grants
+        "g", "r", "e", "ge", "ie"
+    };
+
+    private static final Map<String, Integer> KEY_INDEX = new HashMap<String, Integer>();
+    static {
+        for (int i = 0; i < KEYS.length; i++) {
+            if (!KEY_INDEX.containsKey(KEYS[i])) {
+                KEY_INDEX.put(KEYS[i], i);
+            }
+        }
+    }
+
+    private CompactMetadata() {
+    }
+
+    static boolean isCompact(byte[] data) {
+        return data != null && data.length >= 2 && data[0] == MAGIC;
+    }
+
+    static byte[] encode(Map<?, ?> map) {
+        Output out = new Output(256);
+        out.write(MAGIC);
+        out.write(VERSION);
+        encodeValue(out, map);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes the top-level map.  Nested maps and lists are returned unexpanded, but the whole encoding is checked
+     * up front, so expanding them later can't fail.
+     *
+     * @throws IllegalArgumentException if {@code data} is not a valid encoding
+     */
+    static Map<Object, Object> decode(byte[] data) {
+        if (!isCompact(data)) {
+            throw new IllegalArgumentException("not compact metadata");
+        }
+        if (data[1] != VERSION) {
+            throw new IllegalArgumentException("unsupported compact metadata version " + data[1]);
+        }
+        Input in = new Input(data, 2, data.length);
+        if (in.peekByte() != T_MAP) {
+            throw new IllegalArgumentException("compact metadata does not start with a map");
+        }
+        checkValue(in);
+        if (in.pos != data.length) {
+            throw new IllegalArgumentException("extra bytes at end of compact metadata");
+        }
+
+        in = new Input(data, 3, data.length);
+        int end = in.readLength();
+        Map<Object, Object> result = new HashMap<Object, Object>();
+        readMap(new Input(data, in.pos, in.pos + end), result);
+        return result;
+    }
+
+    private static void encodeValue(Output out, Object value) {
+        if (value instanceof Map) {
+            Output body = new Output(64);
+            int count = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (entry.getKey() != null && entry.getValue() != null) {
+                    encodeKey(body, entry.getKey().toString());
+                    encodeValue(body, entry.getValue());
+                    count++;
+                }
+            }
+            writeContainer(out, T_MAP, count, body);
+        } else if (value instanceof List) {
+            Output body = new Output(64);
+            int count = 0;
+            for (Object item : (List<?>) value) {
+                if (item != null) {
+                    encodeValue(body, item);
+                    count++;
+                }
+            }
+            writeContainer(out, T_LIST, count, body);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            long n = ((Number) value).longValue();
+            out.write(T_LONG);
+            out.writeVarLong((n << 1) ^ (n >> 63));
+        } else {
+            writeString(out, value.toString());
+        }
+    }
+
+    private static void encodeKey(Output out, String key) {
+        Integer index = KEY_INDEX.get(key);
+        if (index != null) {
+            out.write(T_KEY);
+            out.writeVarLong(index);
+        } else {
+            writeString(out, key);
+        }
+    }
+
+    private static void writeString(Output out, String value) {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.write(T_STRING);
+        out.writeVarLong(utf8.length);
+        out.write(utf8, 0, utf8.length);
+    }
+
+    private static void writeContainer(Output out, byte type, int count, Output body) {
+        Output header = new Output(5);
+        header.writeVarLong(count);
+        out.write(type);
+        out.writeVarLong(header.size() + body.size());
+        out.write(header.buffer(), 0, header.size());
+        out.write(body.buffer(), 0, body.size());
+    }
+
+    /** Walks over one encoded value without building it, checking that it and everything nested in it is valid. */
+    private static void checkValue(Input in) {
+        byte type = in.readByte();
+        switch (type) {
+            case T_MAP:
+            case T_LIST: {
+                int length = in.readLength();
+                Input body = new Input(in.buf, in.pos, in.pos + length);
+                int count = body.readLength();
+                for (int i = 0; i < count; i++) {
+                    if (type == T_MAP) {
+                        byte keyType = body.peekByte();
+                        if (keyType != T_STRING && keyType != T_KEY) {
+                            throw new IllegalArgumentException("non-string key in compact metadata");
+                        }
+                        checkValue(body);
+                    }
+                    checkValue(body);
+                }
+                body.checkConsumed();
+                in.skip(length);
+                break;
+            }
+            case T_LONG:
+                in.readVarLong();
+                break;
+            case T_STRING:
+                in.skip(in.readLength());
+                break;
+            case T_KEY: {
+                long index = in.readVarLong();
+                if (index < 0 || index >= KEYS.length) {
+                    throw new IllegalArgumentException("unknown interned key " + index);
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("unknown compact metadata type " + type);
+        }
+    }
+
+    private static void readMap(Input in, Map<Object, Object> result) {
+        int count = in.readLength();
+        for (int i = 0; i < count; i++) {
+            Object key = readValue(in);
+            if (!(key instanceof String)) {
+                throw new IllegalArgumentException("non-string key in compact metadata");
+            }
+            result.put(key, readValue(in));
+        }
+        in.checkConsumed();
+    }
+
+    private static void readList(Input in, List<Object> result) {
+        int count = in.readLength();
+        for (int i = 0; i < count; i++) {
+            result.add(readValue(in));
+        }
+        in.checkConsumed();
+    }
+
+    private static Object readValue(Input in) {
+        byte type = in.readByte();
+        switch (type) {
+            case T_MAP: {
+                int length = in.readLength();
+                LazyMap map = new LazyMap(in.buf, in.pos, in.pos + length);
+                in.skip(length);
+                return map;
+            }
+            case T_LIST: {
+                int length = in.readLength();
+                LazyList list = new LazyList(in.buf, in.pos, in.pos + length);
+                in.skip(length);
+                return list;
+            }
+            case T_LONG: {
+                long n = in.readVarLong();
+                return Long.valueOf((n >>> 1) ^ -(n & 1));
+            }
+            case T_STRING: {
+                int length = in.readLength();
+                String value = new String(in.buf, in.pos, length, StandardCharsets.UTF_8);
+                in.skip(length);
+                return value;
+            }
+            case T_KEY: {
+                long index = in.readVarLong();
+                if (index < 0 || index >= KEYS.length) {
+                    throw new IllegalArgumentException("unknown interned key " + index);
+                }
+                return KEYS[(int) index];
+            }
+            default:
+                throw new IllegalArgumentException("unknown compact metadata type " + type);
+        }
+    }
+
+    /**
+     * Nested map that keeps a reference to its encoded bytes and is only decoded the first time it is accessed.
+     * Cached items are shared between threads, so the first access decodes under the map's monitor.
+     */
+    private static final class LazyMap extends AbstractMap<Object, Object> {
+        private byte[] buf;
+        private final int start;
+        private final int end;
+        private volatile Map<Object, Object> map;
+
+        LazyMap(byte[] buf, int start, int end) {
+            this.buf = buf;
+            this.start = start;
+            this.end = end;
+        }
+
+        private Map<Object, Object> map() {
+            Map<Object, Object> result = map;
+            if (result == null) {
+                synchronized (this) {
+                    result = map;
+                    if (result == null) {
+                        result = new HashMap<Object, Object>();
+                        readMap(new Input(buf, start, end), result);
+                        map = result;
+                        buf = null;
+                    }
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public Set<Map.Entry<Object, Object>> entrySet() {
+            return map().entrySet();
+        }
+
+        @Override
+        public int size() {
+            return map().size();
+        }
+
+        @Override
+        public Object get(Object key) {
+            return map().get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return map().containsKey(key);
+        }
+
+        @Override
+        public Object put(Object key, Object value) {
+            return map().put(key, value);
+        }
+
+        @Override
+        public Object remove(Object key) {
+            return map().remove(key);
+        }
+    }
+
+    /**
+     * Nested list that keeps a reference to its encoded bytes and is only decoded the first time it is accessed.
+     * Cached items are shared between threads, so the first access decodes under the list's monitor.
+     */
+    private static final class LazyList extends AbstractList<Object> {
+        private byte[] buf;
+        private final int start;
+        private final int end;
+        private volatile List<Object> list;
+
+        LazyList(byte[] buf, int start, int end) {
+            this.buf = buf;
+            this.start = start;
+            this.end = end;
+        }
+
+        private List<Object> list() {
+            List<Object> result = list;
+            if (result == null) {
+                synchronized (this) {
+                    result = list;
+                    if (result == null) {
+                        result = new ArrayList<Object>();
+                        readList(new Input(buf, start, end), result);
+                        list = result;
+                        buf = null;
+                    }
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public Object get(int index) {
+            return list().get(index);
+        }
+
+        @Override
+        public int size() {
+            return list().size();
+        }
+
+        @Override
+        public Object set(int index, Object element) {
+            return list().set(index, element);
+        }
+
+        @Override
+        public void add(int index, Object element) {
+            list().add(index, element);
+        }
+
+        @Override
+        public Object remove(int index) {
+            return list().remove(index);
+        }
+    }
+
+    private static final class Output extends ByteArrayOutputStream {
+        Output(int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+    }
+
+    private static final class Input {
+        final byte[] buf;
+        int pos;
+        final int end;
+
+        Input(byte[] buf, int start, int end) {
+            if (start < 0 || end > buf.length || start > end) {
+                throw new IllegalArgumentException("truncated compact metadata");
+            }
+            this.buf = buf;
+            this.pos = start;
+            this.end = end;
+        }
+
+        byte readByte() {
+            byte b = peekByte();
+            pos++;
+            return b;
+        }
+
+        byte peekByte() {
+            if (pos >= end) {
+                throw new IllegalArgumentException("truncated compact metadata");
+            }
+            return buf[pos];
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("malformed varint in compact metadata");
+        }
+
+        int readLength() {
+            long length = readVarLong();
+            if (length < 0 || length > end - pos) {
+                throw new IllegalArgumentException("invalid length in compact metadata");
+            }
+            return (int) length;
+        }
+
+        void skip(int length) {
+            if (length > end - pos) {
+                throw new IllegalArgumentException("truncated compact metadata");
+            }
+            pos += length;
+        }
+
+        void checkConsumed() {
+            if (pos != end) {
+                throw new IllegalArgumentException("extra bytes in compact metadata container");
+            }
+        }
+    }
+}
@@ -1381,6 +1381,7 @@ public class Folder extends MailItem implements FolderStore {
         } else {
             info.cascadeIds = DbMailItem.markDeletionTargets(this, info.modifiedIds);
         }
+        mMailbox.markModifiedInBulk();
         if (info.cascadeIds != null) {
             info.modifiedIds.removeAll(info.cascadeIds);
         }
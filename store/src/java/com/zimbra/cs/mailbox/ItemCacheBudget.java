@@ -0,0 +1,184 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.MapMaker;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Server-wide memory budget shared by the per-mailbox {@link MailItem} caches.
+ * <p>
+ * Each mailbox's item cache is bounded by an estimate of the bytes it holds. Every cache is guaranteed room for a
+ * minimum number of items ({@link LC#zimbra_mailbox_active_cache}, or {@link LC#zimbra_mailbox_galsync_cache} for a
+ * GAL sync mailbox), and the rest of the budget is shared out in proportion to how much each cache has been used
+ * recently, so that busy mailboxes get more than idle ones. Capacities are recomputed periodically, growing the busy
+ * caches and shrinking the idle ones. The floors take precedence over the budget when many mailboxes are loaded;
+ * {@link Mailbox} also trims the caches of mailboxes without listeners to a few items, so idle caches rarely fill
+ * their floor. This replaces the {@link java.lang.ref.SoftReference} that used to guard the item cache, which let a
+ * single GC under memory pressure drop the cache of every mailbox at once.
+ */
+final class ItemCacheBudget {
+    /** rough heap cost of a cached {@link MailItem} and its {@link MailItem.UnderlyingData}, excluding strings */
+    static final int ITEM_OVERHEAD = 512;
+    /** typical weight of a cached item, used to turn the per-cache item floors into bytes */
+    static final int AVERAGE_ITEM_WEIGHT = 2 * ITEM_OVERHEAD;
+    private static final long SHARE_REFRESH_INTERVAL = 10 * Constants.MILLIS_PER_SECOND;
+
+    static final Weigher<MailItem> WEIGHER = new Weigher<MailItem>() {
+        @Override
+        public int weightOf(MailItem item) {
+            return weigh(item);
+        }
+    };
+
+    /** Recent use of one cache and the least it may be shrunk to. */
+    static final class Tracker {
+        private final AtomicLong accesses = new AtomicLong();
+        private volatile long minShare;
+        private long activity = 0; // decaying count of accesses, only touched by rebalance()
+
+        private Tracker(boolean galSync) {
+            minShare = minShare(galSync);
+        }
+
+        /** Counts one get or put on the cache. */
+        void record() {
+            accesses.incrementAndGet();
+        }
+
+        void setGalSync(boolean galSync) {
+            minShare = minShare(galSync);
+        }
+
+        long getMinShare() {
+            return minShare;
+        }
+    }
+
+    private static final long budget = initBudget();
+    // weak keys are compared by identity; a WeakHashMap would use AbstractMap.equals() and fold all empty caches
+    // into one entry
+    private static final Map<ConcurrentLinkedHashMap<?, ?>, Tracker> caches =
+            new MapMaker().weakKeys().<ConcurrentLinkedHashMap<?, ?>, Tracker>makeMap();
+    private static volatile long shareTimestamp = 0;
+
+    private ItemCacheBudget() {
+    }
+
+    private static long initBudget() {
+        long mb = LC.zimbra_mailbox_item_cache_budget.longValue();
+        long bytes = mb > 0 ? mb * 1024 * 1024 : Runtime.getRuntime().maxMemory() / 20;
+        ZimbraLog.cache.info("item cache budget is %d bytes", bytes);
+        return Math.max(bytes, 1);
+    }
+
+    static long minShare(boolean galSync) {
+        int items = galSync ? LC.zimbra_mailbox_galsync_cache.intValue() : LC.zimbra_mailbox_active_cache.intValue();
+        return Math.max((long) items * AVERAGE_ITEM_WEIGHT, AVERAGE_ITEM_WEIGHT);
+    }
+
+    /**
+     * Returns the estimated heap cost of a cached item: a fixed overhead for the objects themselves plus the
+     * strings hanging off its {@link MailItem.UnderlyingData}. Encoded metadata is counted twice because most item
+     * types also keep the decoded form.
+     */
+    static int weigh(MailItem item) {
+        MailItem.UnderlyingData data = item.getUnderlyingData();
+        long chars = length(data.getSubject()) + length(data.name) + length(data.locator) + length(data.uuid)
+                + length(data.getBlobDigest()) + length(data.getPrevFolders()) + 2L * length(data.metadata);
+        for (String tag : data.getTags()) {
+            chars += length(tag);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, ITEM_OVERHEAD + 2 * chars);
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    /**
+     * Starts tracking a mailbox's item map against the budget and sets its initial capacity: whatever part of the
+     * budget the other caches don't hold, and at least the minimum share.
+     */
+    static Tracker register(ConcurrentLinkedHashMap<?, ?> cache, boolean galSync) {
+        Tracker tracker = new Tracker(galSync);
+        long used = 0;
+        for (ConcurrentLinkedHashMap<?, ?> other : caches.keySet()) {
+            used += other.capacity();
+        }
+        cache.setCapacity(Math.max(budget - used, tracker.getMinShare()));
+        caches.put(cache, tracker);
+        return tracker;
+    }
+
+    /** Recomputes the capacities of all caches if they haven't been recently. */
+    static void maybeRebalance() {
+        if (System.currentTimeMillis() - shareTimestamp > SHARE_REFRESH_INTERVAL) {
+            rebalance();
+        }
+    }
+
+    /**
+     * Sets the capacity of every cache to its minimum share plus a part of the rest of the budget proportional to
+     * its recent activity. Activity decays by half every time, so a mailbox that goes idle gives up its space over
+     * a few periods. Caches of mailboxes that have been garbage collected may still be counted until the map cleans
+     * them up, which only makes the other capacities smaller.
+     */
+    static synchronized void rebalance() {
+        shareTimestamp = System.currentTimeMillis();
+        long floors = 0;
+        long activity = 0;
+        for (Tracker tracker : caches.values()) {
+            tracker.activity = tracker.activity / 2 + tracker.accesses.getAndSet(0);
+            floors += tracker.getMinShare();
+            activity += tracker.activity;
+        }
+        long spare = Math.max(budget - floors, 0);
+        int count = Math.max(caches.size(), 1);
+        for (Map.Entry<ConcurrentLinkedHashMap<?, ?>, Tracker> entry : caches.entrySet()) {
+            Tracker tracker = entry.getValue();
+            long extra = activity > 0 ? (long) (spare * ((double) tracker.activity / activity)) : spare / count;
+            entry.getKey().setCapacity(tracker.getMinShare() + extra);
+        }
+    }
+
+    @VisibleForTesting
+    static void unregisterAll() {
+        caches.clear();
+    }
+
+    static long getBudget() {
+        return budget;
+    }
+
+    /** Returns the estimated number of bytes currently held by all item caches. */
+    static long getWeightedSize() {
+        long total = 0;
+        for (ConcurrentLinkedHashMap<?, ?> cache : caches.keySet()) {
+            total += cache.weightedSize();
+        }
+        return total;
+    }
+}
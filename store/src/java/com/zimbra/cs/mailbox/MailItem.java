@@ -3219,6 +3219,7 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
 
                 // we're doing an old-item expunge or the like rather than a single delete/empty op
                 info.cascadeIds = DbMailItem.markDeletionTargets(mbox, info.itemIds.getIds(EnumSet.of(Type.MESSAGE, Type.CHAT)), info.modifiedIds);
+                mbox.markModifiedInBulk();
                 if (info.cascadeIds != null) {
                     info.modifiedIds.removeAll(info.cascadeIds);
                 }
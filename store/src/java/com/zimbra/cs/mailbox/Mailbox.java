@@ -21,7 +21,7 @@ import java.io.InputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.lang.ref.SoftReference;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -32,6 +32,7 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -42,6 +43,7 @@ import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
@@ -57,6 +59,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
 import com.zimbra.client.ZFolder;
 import com.zimbra.client.ZMailbox;
 import com.zimbra.client.ZMailbox.Options;
@@ -110,6 +113,8 @@ import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
 import com.zimbra.cs.account.ShareLocator;
 import com.zimbra.cs.datasource.DataSourceManager;
+import com.zimbra.cs.db.Db;
+import com.zimbra.cs.db.DbChangeLog;
 import com.zimbra.cs.db.DbDataSource;
 import com.zimbra.cs.db.DbMailItem;
 import com.zimbra.cs.db.DbMailItem.QueryParams;
@@ -372,6 +377,7 @@ public class Mailbox implements MailboxStore {
         int depth = 0;
         boolean active;
         DbConnection conn = null;
+        DbConnection readConn = null;
         RedoableOp recorder = null;
         List<IndexItemEntry> indexItems = new ArrayList<IndexItemEntry>();
         ItemCache itemCache = null;
@@ -386,6 +392,7 @@ public class Mailbox implements MailboxStore {
         int contacts = NO_CHANGE;
         int accessed = NO_CHANGE;
         int recent = NO_CHANGE;
+        boolean bulkModified = false; // items outside the dirty set were modified by a bulk UPDATE
         Pair<String, Metadata> config = null;
 
         PendingLocalModifications dirty = new PendingLocalModifications();
@@ -448,6 +455,18 @@ public class Mailbox implements MailboxStore {
             return conn;
         }
 
+        DbConnection getReadConnection() throws ServiceException {
+            if (readConn == null) {
+                readConn = DbPool.getReplicaConnection(Mailbox.this);
+                if (readConn == null) {
+                    readConn = getConnection(); // the replica hasn't caught up with this mailbox
+                } else {
+                    ZimbraLog.mailbox.debug("  fetching new read-only DB connection");
+                }
+            }
+            return readConn;
+        }
+
         RedoableOp getRedoPlayer() {
             return (octxt == null ? null : octxt.getPlayer());
         }
@@ -486,8 +505,13 @@ public class Mailbox implements MailboxStore {
 
         void reset() {
             DbPool.quietClose(conn);
+            if (readConn != null && readConn != conn) {
+                DbPool.quietRollback(readConn);
+                DbPool.quietClose(readConn);
+            }
             this.active = false;
             this.conn = null;
+            this.readConn = null;
             this.octxt = null;
             this.tcon = null;
             this.imap = null;
@@ -498,6 +522,7 @@ public class Mailbox implements MailboxStore {
             this.contacts = NO_CHANGE;
             this.accessed = NO_CHANGE;
             this.recent = NO_CHANGE;
+            this.bulkModified = false;
             this.sync = null;
             this.config = null;
             this.deletes = null;
@@ -597,16 +622,32 @@ public class Mailbox implements MailboxStore {
         }
     }
 
+    /**
+     * Per-mailbox cache of {@link MailItem}s, bounded by the mailbox's share of the server-wide
+     * {@link ItemCacheBudget}.
+     */
     private static class ItemCache {
-        private final Map<Integer /* id */, MailItem> mapById;
+        private final ConcurrentLinkedHashMap<Integer /* id */, MailItem> mapById;
         private final Map<String /* uuid */, Integer /* id */> uuid2id;
+        private final ItemCacheBudget.Tracker tracker;
         private final Mailbox mbox;
         private boolean isAlwaysOn = false;
 
         public ItemCache(Mailbox mbox) {
-            mapById = new ConcurrentLinkedHashMap.Builder<Integer, MailItem>().maximumWeightedCapacity(
-                            MAX_ITEM_CACHE_WITH_LISTENERS).build();
             uuid2id = new ConcurrentHashMap<String, Integer>(MAX_ITEM_CACHE_WITH_LISTENERS);
+            mapById = new ConcurrentLinkedHashMap.Builder<Integer, MailItem>()
+                            .maximumWeightedCapacity(ItemCacheBudget.getBudget()).weigher(ItemCacheBudget.WEIGHER)
+                            .listener(new EvictionListener<Integer, MailItem>() {
+                                @Override
+                                public void onEviction(Integer id, MailItem item) {
+                                    String uuid = item.getUuid();
+                                    if (uuid != null) {
+                                        uuid2id.remove(uuid, id);
+                                    }
+                                    ZimbraPerf.COUNTER_MBOX_ITEM_CACHE_EVICTIONS.increment();
+                                }
+                            }).build();
+            tracker = ItemCacheBudget.register(mapById, mbox.isGalSyncMailbox());
             this.mbox = mbox;
             this.isAlwaysOn = Zimbra.isAlwaysOn();
         }
@@ -619,6 +660,8 @@ public class Mailbox implements MailboxStore {
                     ZimbraLog.mailbox.error("error while writing item to cache", e);
                 }
             } else {
+                tracker.record();
+                ItemCacheBudget.maybeRebalance();
                 int id = item.getId();
                 mapById.put(id, item);
                 String uuid = item.getUuid();
@@ -638,6 +681,7 @@ public class Mailbox implements MailboxStore {
                 }
                 return item;
             } else {
+                tracker.record();
                 return mapById.get(id);
             }
         }
@@ -653,6 +697,7 @@ public class Mailbox implements MailboxStore {
                 return item;
             } else {
                 // Always fetch item from mapById map to preserve LRU's access time ordering.
+                tracker.record();
                 Integer id = uuid2id.get(uuid);
                 return id != null ? mapById.get(id) : null;
             }
@@ -743,7 +788,7 @@ public class Mailbox implements MailboxStore {
 
     private FolderCache mFolderCache;
     private Map<Object, Tag> mTagCache;
-    private SoftReference<ItemCache> mItemCache = new SoftReference<ItemCache>(null);
+    private volatile ItemCache mItemCache = null;
     private final Map<String, Integer> mConvHashes = new ConcurrentLinkedHashMap.Builder<String, Integer>()
                     .maximumWeightedCapacity(MAX_MSGID_CACHE).build();
     private final Map<String, Integer> mSentMessageIDs = new ConcurrentLinkedHashMap.Builder<String, Integer>()
@@ -753,6 +798,9 @@ public class Mailbox implements MailboxStore {
     private volatile boolean open = false;
     private boolean galSyncMailbox = false;
     private volatile boolean requiresWriteLock = true;
+    private final AtomicReference<String> replicationPosition = new AtomicReference<String>();
+    private static final int CHANGE_LOG_UNKNOWN = Integer.MIN_VALUE;
+    private volatile int changeLogHorizon = CHANGE_LOG_UNKNOWN;
 
     protected Mailbox(MailboxData data) {
         mId = data.id;
@@ -766,6 +814,10 @@ public class Mailbox implements MailboxStore {
 
     public void setGalSyncMailbox(boolean galSyncMailbox) {
         this.galSyncMailbox = galSyncMailbox;
+        ItemCache cache = mItemCache;
+        if (cache != null) {
+            cache.tracker.setGalSync(galSyncMailbox);
+        }
     }
 
     public boolean isGalSyncMailbox() {
@@ -1219,6 +1271,63 @@ public class Mailbox implements MailboxStore {
                         currentChange().changeId);
     }
 
+    /**
+     * Returns {@code true} if no change has been committed after {@code lastSync}, without taking the mailbox lock
+     * when no writer is active. A {@code false} return means either "changed" or "could not tell", so callers must
+     * re-check under the lock.
+     *
+     * @see MailboxLock#tryOptimisticRead()
+     */
+    private boolean isUnchangedSince(int lastSync) {
+        if (requiresWriteLock() || maintenance != null) {
+            return false;
+        }
+        long stamp = lock.tryOptimisticRead();
+        if (stamp == 0L) {
+            return false;
+        }
+        boolean unchanged = lastSync >= getLastChangeID();
+        return lock.validate(stamp) && unchanged;
+    }
+
+    /** A read of the folder and tag caches that is safe to attempt without holding the mailbox lock. */
+    private interface OptimisticRead<T> {
+        /** Returns the result, or {@code null} if the caller has to take the locked path. */
+        T read() throws ServiceException;
+    }
+
+    /**
+     * Runs {@code read} against the in-memory folder and tag caches without taking the mailbox lock when no writer
+     * is active. Only the mailbox owner qualifies, since ACL checks need the transaction's operation context. The
+     * caches may change underneath {@code read}, so any exception it throws is discarded along with its result if a
+     * writer took the lock in the meantime. A {@code null} return means "could not tell", so callers must redo the
+     * read under the lock.
+     *
+     * @see MailboxLock#tryOptimisticRead()
+     */
+    private <T> T readOptimistically(OperationContext octxt, OptimisticRead<T> read) {
+        if (requiresWriteLock() || maintenance != null || !isOwner(octxt)) {
+            return null;
+        }
+        long stamp = lock.tryOptimisticRead();
+        if (stamp == 0L) {
+            return null;
+        }
+        T result;
+        try {
+            result = read.read();
+        } catch (ServiceException | RuntimeException e) {
+            return null;
+        }
+        return lock.validate(stamp) ? result : null;
+    }
+
+    private boolean isOwner(OperationContext octxt) {
+        Account authuser = octxt != null ? octxt.getAuthenticatedUser() : null;
+        // XXX: in Mailbox, authuser is set to null if authuser == owner.
+        return authuser == null || getAccountId().equals(authuser.getId());
+    }
+
     private void setOperationChangeID(int changeFromRedo) throws ServiceException {
         if (currentChange().changeId != MailboxChange.NO_CHANGE) {
             if (currentChange().changeId == changeFromRedo) {
@@ -1687,6 +1796,125 @@ public class Mailbox implements MailboxStore {
         return currentChange().getConnection();
     }
 
+    /**
+     * Returns the connection for a read-only query in the current transaction.  In a read transaction this is a read
+     * replica connection when {@link DbPool#getReplicaConnection(Mailbox)} returns one; otherwise it is the
+     * transaction's own connection from {@link #getOperationConnection()}.
+     */
+    public DbConnection getReadOperationConnection() throws ServiceException {
+        MailboxChange change = currentChange();
+        if (!change.isActive()) {
+            throw ServiceException.FAILURE("cannot fetch Connection outside transaction", new Exception());
+        }
+        if (change.writeChange || !DbPool.hasReplica()) {
+            return change.getConnection();
+        }
+        return change.getReadConnection();
+    }
+
+    /**
+     * Returns {@code true} if every item changed after {@code lastSync} is in the change log, so that sync queries can
+     * read the log instead of scanning for modified items.  Must be called inside a transaction.
+     *
+     * @see DbChangeLog
+     */
+    public boolean isChangeLogged(long lastSync) throws ServiceException {
+        return DbChangeLog.isEnabled() && lastSync >= getChangeLogHorizon();
+    }
+
+    private int getChangeLogHorizon() throws ServiceException {
+        int horizon = changeLogHorizon;
+        if (horizon == CHANGE_LOG_UNKNOWN) {
+            horizon = changeLogHorizon = DbChangeLog.getHorizon(getOperationConnection(), this, mData.lastChangeId);
+        }
+        return horizon;
+    }
+
+    /**
+     * Appends the items touched by the current transaction to the change log.  This runs just before the commit, so
+     * the log entries commit or roll back together with the change.  The first logged change starts the log.  With
+     * the log disabled nothing is written; the horizon is looked up again once it is re-enabled, which finds the log
+     * no longer has every change.
+     */
+    private void logChanges() throws ServiceException {
+        MailboxChange change = currentChange();
+        if (change.changeId == MailboxChange.NO_CHANGE) {
+            return;
+        }
+        if (!DbChangeLog.isEnabled()) {
+            changeLogHorizon = CHANGE_LOG_UNKNOWN;
+            return;
+        }
+        Map<Integer, Integer> changes = new LinkedHashMap<Integer, Integer>();
+        if (change.dirty.created != null) {
+            for (PendingModifications.ModificationKey mkey : change.dirty.created.keySet()) {
+                if (mkey.getItemId() > 0 && getAccountId().equals(mkey.getAccountId())) {
+                    changes.put(mkey.getItemId(), Change.ALL_FIELDS);
+                }
+            }
+        }
+        if (change.dirty.modified != null) {
+            for (Map.Entry<PendingModifications.ModificationKey, Change> entry : change.dirty.modified.entrySet()) {
+                PendingModifications.ModificationKey mkey = entry.getKey();
+                if (mkey.getItemId() > 0 && getAccountId().equals(mkey.getAccountId())) {
+                    Integer mask = changes.get(mkey.getItemId());
+                    changes.put(mkey.getItemId(), (mask == null ? 0 : mask) | entry.getValue().why);
+                }
+            }
+        }
+        DbConnection conn = getOperationConnection();
+        if (change.bulkModified) {
+            for (int id : DbChangeLog.getModifiedItems(conn, this, change.changeId)) {
+                if (!changes.containsKey(id)) {
+                    changes.put(id, Change.ALL_FIELDS);
+                }
+            }
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+        if (getChangeLogHorizon() == DbChangeLog.NO_HORIZON) {
+            DbChangeLog.start(conn, this, mData.lastChangeId);
+            changeLogHorizon = mData.lastChangeId;
+        }
+        DbChangeLog.append(conn, this, change.changeId, changes);
+    }
+
+    /**
+     * Notes that the current change modified items with a bulk UPDATE that doesn't mark them dirty, e.g. renaming a
+     * tag, so that the change log looks them up by their <tt>mod_metadata</tt>.
+     */
+    void markModifiedInBulk() {
+        currentChange().bulkModified = true;
+    }
+
+    /**
+     * Returns the primary's replication position after the last database commit that changed this mailbox, or
+     * <tt>null</tt> if it isn't known.
+     *
+     * @see Db#getReplicationPosition(DbConnection)
+     */
+    public String getReplicationPosition() {
+        return replicationPosition.get();
+    }
+
+    /**
+     * Sets the replication position unless a commit has recorded one in the meantime, and returns the position.
+     */
+    public String initReplicationPosition(String position) {
+        return replicationPosition.compareAndSet(null, position) ? position : replicationPosition.get();
+    }
+
+    private void recordReplicationPosition(DbConnection conn) {
+        String position = null;
+        try {
+            position = Db.getInstance().getReplicationPosition(conn);
+        } catch (SQLException e) {
+            ZimbraLog.mailbox.warn("unable to get the replication position", e);
+        }
+        replicationPosition.set(position); // if unknown, the next replica read looks up the current position
+    }
+
     private void setOperationConnection(DbConnection conn) throws ServiceException {
         if (!currentChange().isActive()) {
             throw ServiceException.FAILURE("cannot set Connection outside transaction", new Exception());
@@ -1830,10 +2058,10 @@ public class Mailbox implements MailboxStore {
         }
 
         // keep a hard reference to the item cache to avoid having it GCed during the op
-        ItemCache cache = mItemCache.get();
+        ItemCache cache = mItemCache;
         if (cache == null) {
             cache = new ItemCache(this);
-            mItemCache = new SoftReference<ItemCache>(cache);
+            mItemCache = cache;
             ZimbraLog.cache.debug("created a new MailItem cache for mailbox " + getId());
         }
         currentChange().itemCache = cache;
@@ -1987,6 +2215,11 @@ public class Mailbox implements MailboxStore {
         }
     }
 
+    /** Returns the estimated number of bytes held by the item caches of all loaded mailboxes. */
+    public static long getItemCacheBytes() {
+        return ItemCacheBudget.getWeightedSize();
+    }
+
     private ItemCache getItemCache() throws ServiceException {
         if (!currentChange().isActive()) {
             throw ServiceException.FAILURE("cannot access item cache outside a transaction active="
@@ -1998,7 +2231,7 @@ public class Mailbox implements MailboxStore {
     private void clearItemCache() {
         if (currentChange().isActive()) {
             currentChange().itemCache.clear();
-        } else {
+        } else if (mItemCache != null) {
             mItemCache.clear();
         }
         try {
@@ -2801,7 +3034,7 @@ public class Mailbox implements MailboxStore {
         }
         assert (currentChange().depth == 0);
 
-        ItemCache cache = mItemCache.get();
+        ItemCache cache = mItemCache;
         FolderCache folders = mFolderCache == null || Collections.disjoint(pms.changedTypes, FOLDER_TYPES) ? mFolderCache
                         : snapshotFolders();
 
@@ -2887,8 +3120,19 @@ public class Mailbox implements MailboxStore {
         return getItemById(octxt, id, type, false);
     }
 
-    public MailItem getItemById(OperationContext octxt, int id, MailItem.Type type, boolean fromDumpster)
+    public MailItem getItemById(OperationContext octxt, final int id, final MailItem.Type type, boolean fromDumpster)
                     throws ServiceException {
+        if (!fromDumpster && isCachedType(type)) {
+            MailItem item = readOptimistically(octxt, new OptimisticRead<MailItem>() {
+                @Override
+                public MailItem read() throws ServiceException {
+                    return (mFolderCache == null || mTagCache == null) ? null : getCachedItem(id, type);
+                }
+            });
+            if (item != null) {
+                return item;
+            }
+        }
         boolean success = false;
         try {
             // tag/folder caches are populated in beginTransaction...
@@ -3485,14 +3729,34 @@ public class Mailbox implements MailboxStore {
         return getItemList(octxt, type, folderId, SortBy.NONE);
     }
 
-    public List<MailItem> getItemList(OperationContext octxt, MailItem.Type type, int folderId, SortBy sort)
-                    throws ServiceException {
+    public List<MailItem> getItemList(OperationContext octxt, final MailItem.Type type, final int folderId,
+                    SortBy sort) throws ServiceException {
         List<MailItem> result;
         boolean success = false;
 
         if (type == MailItem.Type.UNKNOWN) {
             return Collections.emptyList();
         }
+        if (type == MailItem.Type.FOLDER || type == MailItem.Type.SEARCHFOLDER || type == MailItem.Type.MOUNTPOINT
+                        || type == MailItem.Type.TAG) {
+            result = readOptimistically(octxt, new OptimisticRead<List<MailItem>>() {
+                @Override
+                public List<MailItem> read() {
+                    if (mFolderCache == null || mTagCache == null
+                                    || (folderId != -1 && mFolderCache.get(folderId) == null)) {
+                        return null;
+                    }
+                    return listCachedItems(type, folderId);
+                }
+            });
+            if (result != null) {
+                Comparator<MailItem> comp = MailItem.getComparator(sort);
+                if (comp != null) {
+                    Collections.sort(result, comp);
+                }
+                return result;
+            }
+        }
         try {
             // tag/folder caches are populated in beginTransaction...
             beginReadTransaction("getItemList", octxt);
@@ -3512,27 +3776,8 @@ public class Mailbox implements MailboxStore {
                 case FOLDER:
                 case SEARCHFOLDER:
                 case MOUNTPOINT:
-                    result = new ArrayList<MailItem>(mFolderCache.size());
-                    for (Folder subfolder : mFolderCache.values()) {
-                        if (subfolder.getType() == type || type == MailItem.Type.FOLDER) {
-                            if (folder == null || subfolder.getFolderId() == folderId) {
-                                result.add(subfolder);
-                            }
-                        }
-                    }
-                    success = true;
-                    break;
                 case TAG:
-                    if (folderId != -1 && folderId != ID_FOLDER_TAGS) {
-                        return Collections.emptyList();
-                    }
-                    result = new ArrayList<MailItem>(mTagCache.size() / 2);
-                    for (Map.Entry<Object, Tag> entry : mTagCache.entrySet()) {
-                        Tag tag = entry.getValue();
-                        if (entry.getKey() instanceof String && tag.isListed()) {
-                            result.add(tag);
-                        }
-                    }
+                    result = listCachedItems(type, folderId);
                     success = true;
                     break;
                 case FLAG:
@@ -3580,6 +3825,33 @@ public class Mailbox implements MailboxStore {
         return result;
     }
 
+    /** Lists the folders or tags of the given type from the folder and tag caches, unsorted. */
+    private List<MailItem> listCachedItems(MailItem.Type type, int folderId) {
+        List<MailItem> result;
+        if (type == MailItem.Type.TAG) {
+            if (folderId != -1 && folderId != ID_FOLDER_TAGS) {
+                return new ArrayList<MailItem>();
+            }
+            result = new ArrayList<MailItem>(mTagCache.size() / 2);
+            for (Map.Entry<Object, Tag> entry : mTagCache.entrySet()) {
+                Tag tag = entry.getValue();
+                if (entry.getKey() instanceof String && tag.isListed()) {
+                    result.add(tag);
+                }
+            }
+        } else {
+            result = new ArrayList<MailItem>(mFolderCache.size());
+            for (Folder subfolder : mFolderCache.values()) {
+                if (subfolder.getType() == type || type == MailItem.Type.FOLDER) {
+                    if (folderId == -1 || subfolder.getFolderId() == folderId) {
+                        result.add(subfolder);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
     /** returns the list of IDs of items of the given type in the given folder. */
     public List<Integer> listItemIds(OperationContext octxt, MailItem.Type type, int folderId) throws ServiceException {
         boolean success = false;
@@ -3849,6 +4121,9 @@ public class Mailbox implements MailboxStore {
     }
 
     public List<Folder> getModifiedFolders(final int lastSync, final MailItem.Type type) throws ServiceException {
+        if (isUnchangedSince(lastSync)) {
+            return Collections.emptyList();
+        }
         lock.lock(false);
         try {
             if (lastSync >= getLastChangeID()) {
@@ -3877,6 +4152,9 @@ public class Mailbox implements MailboxStore {
     }
 
     public List<Tag> getModifiedTags(OperationContext octxt, int lastSync) throws ServiceException {
+        if (isUnchangedSince(lastSync)) {
+            return Collections.emptyList();
+        }
         lock.lock(false);
         try {
             if (lastSync >= getLastChangeID()) {
@@ -3996,6 +4274,9 @@ public class Mailbox implements MailboxStore {
      */
     public Pair<List<Integer>, TypedIdList> getModifiedItems(OperationContext octxt, int lastSync, int sinceDate,
             MailItem.Type type, Set<Integer> folderIds, int lastDeleteSync, int limit) throws ServiceException {
+        if (isUnchangedSince(lastSync)) {
+            return new Pair<List<Integer>, TypedIdList>(Collections.<Integer> emptyList(), new TypedIdList());
+        }
         lock.lock(false);
         try {
             if (lastSync >= getLastChangeID()) {
@@ -4038,6 +4319,9 @@ public class Mailbox implements MailboxStore {
      */
     public int getModifiedItemsCount(OperationContext octxt, int lastSync, int sinceDate,
             MailItem.Type type, Set<Integer> folderIds) throws ServiceException {
+        if (isUnchangedSince(lastSync)) {
+            return 0;
+        }
         lock.lock(false);
         try {
             if (lastSync >= getLastChangeID()) {
@@ -4251,16 +4535,29 @@ public class Mailbox implements MailboxStore {
             path = path.substring(0, path.length() - 1); // strip off the optional trailing "/"
         }
 
+        final String[] segments = path.isEmpty() ? new String[0] : path.split("/");
+        Folder cached = readOptimistically(octxt, new OptimisticRead<Folder>() {
+            @Override
+            public Folder read() {
+                Folder folder = mFolderCache == null ? null : mFolderCache.get(ID_FOLDER_USER_ROOT);
+                for (int i = 0; i < segments.length && folder != null; i++) {
+                    folder = folder.findSubfolder(segments[i]);
+                }
+                return folder;
+            }
+        });
+        if (cached != null) {
+            return cached;
+        }
+
         Folder folder = getFolderById(null, ID_FOLDER_USER_ROOT);
 
         boolean success = false;
         try {
             beginReadTransaction("getFolderByPath", octxt); // for ACL check
-            if (!path.isEmpty()) {
-                for (String segment : path.split("/")) {
-                    if ((folder = folder.findSubfolder(segment)) == null) {
-                        break;
-                    }
+            for (String segment : segments) {
+                if ((folder = folder.findSubfolder(segment)) == null) {
+                    break;
                 }
             }
 
@@ -9069,6 +9366,15 @@ public class Mailbox implements MailboxStore {
                 }
             }
 
+            if (DbChangeLog.isEnabled()) {
+                int horizon = getLastChangeID() - LC.zimbra_change_log_max_changes.intValue();
+                if (horizon > getChangeLogHorizon()) {
+                    int dropped = DbChangeLog.compact(getOperationConnection(), this, horizon);
+                    changeLogHorizon = horizon;
+                    ZimbraLog.purge.debug("compacted %d change log entries up to change %d", dropped, horizon);
+                }
+            }
+
             // record the purge time.
             if (purgedAll) {
                 DbMailbox.updateLastPurgeAt(this, System.currentTimeMillis());
@@ -9604,6 +9910,7 @@ public class Mailbox implements MailboxStore {
                 // update mailbox size, folder unread/message counts
                 try {
                     snapshotCounts();
+                    logChanges();
                 } catch (ServiceException e) {
                     exception = e;
                     success = false;
@@ -9631,6 +9938,7 @@ public class Mailbox implements MailboxStore {
                 redoRecorder.log(true);
             }
             boolean dbCommitSuccess = false;
+            boolean wrote = currentChange().writeChange || currentChange().hasChanges();
             try {
                 // Commit the main transaction in database.
                 if (conn != null) {
@@ -9664,6 +9972,9 @@ public class Mailbox implements MailboxStore {
                     return;
                 }
             }
+            if (wrote && DbPool.hasReplica()) {
+                recordReplicationPosition(conn);
+            }
 
             if (needRedo) {
                 // Write commit record for main transaction. By writing the commit record for main transaction before
@@ -9990,6 +10301,8 @@ public class Mailbox implements MailboxStore {
         if (change == null) {
             return null;
         }
+        // the change log may have been started or compacted in the rolled-back transaction
+        changeLogHorizon = CHANGE_LOG_UNKNOWN;
         try {
             // rolling back changes, so purge dirty items from the various caches
             for (Map<?, ?> map : new Map[] {change.dirty.created, change.dirty.deleted, change.dirty.modified}) {
@@ -18,20 +18,30 @@ package com.zimbra.cs.mailbox;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.Analyzer;
@@ -41,6 +51,7 @@ import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimaps;
+import com.google.common.collect.Ordering;
 import com.google.common.collect.SetMultimap;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.localconfig.LC;
@@ -63,6 +74,7 @@ import com.zimbra.cs.index.IndexStore;
 import com.zimbra.cs.index.Indexer;
 import com.zimbra.cs.index.LuceneFields;
 import com.zimbra.cs.index.LuceneIndex;
+import com.zimbra.cs.index.QueryResultCache;
 import com.zimbra.cs.index.ReSortingQueryResults;
 import com.zimbra.cs.index.SearchParams;
 import com.zimbra.cs.index.SortBy;
@@ -74,6 +86,7 @@ import com.zimbra.cs.index.ZimbraQueryResults;
 import com.zimbra.cs.mailbox.MailItem.Type;
 import com.zimbra.cs.mailbox.MailItem.UnderlyingData;
 import com.zimbra.cs.mailbox.Mailbox.IndexItemEntry;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.Zimbra;
 
 /**
@@ -87,16 +100,34 @@ public final class MailboxIndex {
     private static final int MAX_TX_ITEMS = LC.zimbra_index_max_transaction_items.intValue();
     private static final long FAILURE_DELAY = LC.zimbra_index_deferred_items_failure_delay.intValue() * 1000;
 
+    // Mailboxes with deferred items wait here for an index thread. A mailbox is queued at most once, and indexes at
+    // most zimbra_index_batch_items_per_turn items per turn before going to the back of the queue, so that one large
+    // backlog doesn't hold the index threads while other mailboxes wait. The deferred items themselves stay recorded in
+    // mail_item, so nothing is lost with the queue on restart.
     private static final ThreadPoolExecutor INDEX_EXECUTOR = new ThreadPoolExecutor(
             LC.zimbra_index_threads.intValue(), LC.zimbra_index_threads.intValue(),
-            Long.MAX_VALUE, TimeUnit.NANOSECONDS, new SynchronousQueue<Runnable>(),
+            Long.MAX_VALUE, TimeUnit.NANOSECONDS, new LinkedBlockingQueue<Runnable>(),
             new ThreadFactoryBuilder().setNameFormat("Index-%d").setDaemon(true).build());
     // Re-index threads are created on demand basis. The number of threads are capped.
     private static final ExecutorService REINDEX_EXECUTOR = new ThreadPoolExecutor(
             0, LC.zimbra_reindex_threads.intValue(), 0L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
             new ThreadFactoryBuilder().setNameFormat("ReIndex-%d").setDaemon(true).build());
+    // Fetch and tokenize items for indexItemList(), so that a single mailbox isn't bound to one core.
+    private static final int PARSE_THREADS = LC.zimbra_index_parse_threads.intValue();
+    private static final int PARSE_QUEUE_DEPTH = Math.max(LC.zimbra_index_parse_queue_depth.intValue(), 1);
+    private static final ThreadPoolExecutor PARSE_EXECUTOR = new ThreadPoolExecutor(
+            Math.max(PARSE_THREADS, 1), Math.max(PARSE_THREADS, 1), 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder().setNameFormat("IndexParse-%d").setDaemon(true).build());
+    static {
+        PARSE_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
 
     private volatile long lastFailedTime = -1;
+    private final AtomicBoolean batchQueued = new AtomicBoolean(false);
+    private volatile long deferredSince = 0; // when the oldest deferred item was queued, 0 if there is none
+    // when each deferred item was queued, oldest first
+    private final Map<Integer, Long> deferredTimes = new LinkedHashMap<Integer, Long>(); // guarded by this
     // Only one thread may run index at a time.
     private final Semaphore indexLock = new Semaphore(1);
     private final Mailbox mailbox;
@@ -157,23 +188,46 @@ public final class MailboxIndex {
      * @param params Search Parameters
      * @return search result
      */
-    public ZimbraQueryResults search(SoapProtocol proto, OperationContext octx, SearchParams params)
+    public ZimbraQueryResults search(final SoapProtocol proto, final OperationContext octx, SearchParams params)
             throws ServiceException {
         assert(mailbox.lock.isUnlocked());
         assert(octx != null);
 
+        // read before parsing, so that a change made while the query is parsed or run isn't cached as not seen
+        int changeId = mailbox.getLastChangeID();
+        final SearchParams original = (SearchParams) params.clone();
         ZimbraQuery query = new ZimbraQuery(octx, proto, mailbox, params);
         Set<MailItem.Type> types = toIndexTypes(params.getTypes());
         // no need to index if the search doesn't involve Lucene
-        if (!params.isQuick() && query.hasTextOperation() && getDeferredCount(types) > 0) {
-            try {
-                // don't wait if an indexing is in progress by other thread
-                indexDeferredItems(types, new BatchStatus(), false);
-            } catch (ServiceException e) {
-                ZimbraLog.index.error("Failed to index deferred items", e);
+        if (query.hasTextOperation() && getDeferredCount(types) > 0) {
+            if (!params.isQuick()) {
+                try {
+                    // don't wait if an indexing is in progress by other thread
+                    indexDeferredItems(types, new BatchStatus(), false);
+                } catch (ServiceException e) {
+                    ZimbraLog.index.error("Failed to index deferred items", e);
+                }
+            }
+            // text hits may still be missing some items, which doesn't show in the change ID
+            if (getDeferredCount(types) > 0) {
+                return search(query);
             }
         }
-        return search(query);
+
+        String key = QueryResultCache.getKey(mailbox, changeId, query);
+        if (key == null) {
+            return search(query);
+        }
+        ZimbraQueryResults results = QueryResultCache.get(mailbox, key, new QueryResultCache.Executor() {
+            @Override
+            public ZimbraQueryResults execute() throws ServiceException {
+                return search(new ZimbraQuery(octx, proto, mailbox, (SearchParams) original.clone()));
+            }
+        });
+        if (results != null) {
+            return results;
+        }
+        return QueryResultCache.record(mailbox, changeId, key, search(query));
     }
 
     public ZimbraQueryResults search(OperationContext octxt, String queryString, Set<MailItem.Type> types,
@@ -325,15 +379,41 @@ public final class MailboxIndex {
     }
 
     /**
-     * Submits a task to {@link #INDEX_EXECUTOR}.
+     * Submits a task to {@link #INDEX_EXECUTOR}. The task waits behind the mailboxes already queued for indexing.
      *
      * @param task index task
-     * @throws RejectedExecutionException if all index threads are busy
      */
     public void submit(IndexTask task) {
         INDEX_EXECUTOR.submit(task);
     }
 
+    /**
+     * Returns the number of mailboxes waiting for an index thread.
+     */
+    public static int getQueueSize() {
+        return INDEX_EXECUTOR.getQueue().size();
+    }
+
+    /**
+     * Returns true if so many mailboxes are waiting for an index thread that new mail for this mailbox should be held
+     * back until its own turn has come. Mailboxes that aren't waiting keep accepting mail.
+     *
+     * @see LC#zimbra_index_lmtp_backpressure_queue_size
+     */
+    public boolean isBackedUp() {
+        int max = LC.zimbra_index_lmtp_backpressure_queue_size.intValue();
+        return max > 0 && batchQueued.get() && getQueueSize() >= max;
+    }
+
+    /**
+     * Returns how long this mailbox has had unindexed items, i.e. the age of the oldest item that may still be
+     * missing from the index, or 0 if every item is indexed.
+     */
+    public long getIndexLagMillis() {
+        long since = deferredSince;
+        return since > 0 ? System.currentTimeMillis() - since : 0;
+    }
+
     void setIndexingSuspended( boolean suspended) {
         ZimbraLog.index.info("indexSuspended set to %s.  Current deferred count %s", suspended,
                 getDeferredCount(EnumSet.noneOf(MailItem.Type.class)));
@@ -364,10 +444,21 @@ public final class MailboxIndex {
         // If there was a failure, we trigger indexing even if the deferred count is still low.
         if ((lastFailedTime >= 0 && System.currentTimeMillis() - lastFailedTime > FAILURE_DELAY) ||
                 getDeferredCount(EnumSet.noneOf(MailItem.Type.class)) >= getBatchThreshold()) {
+            queueBatch();
+        }
+    }
+
+    /**
+     * Queues this mailbox for a batch index turn, unless it is queued already; edits that arrive while it waits are
+     * picked up by the same turn.
+     */
+    private void queueBatch() {
+        if (batchQueued.compareAndSet(false, true)) {
             try {
-                INDEX_EXECUTOR.submit(new BatchIndexTask());
-            } catch (RejectedExecutionException e) {
-                ZimbraLog.index.warn("Skipping batch index because all index threads are busy");
+                INDEX_EXECUTOR.execute(new BatchIndexTask());
+            } catch (RejectedExecutionException e) { // shutting down
+                batchQueued.set(false);
+                ZimbraLog.index.warn("Skipping batch index because the index executor is shut down");
             }
         }
     }
@@ -392,6 +483,14 @@ public final class MailboxIndex {
      */
     private void indexDeferredItems(Set<MailItem.Type> types, BatchStatus status, boolean wait)
             throws ServiceException {
+        indexDeferredItems(types, status, wait, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Index up to {@code limit} deferred items, oldest first.
+     */
+    private void indexDeferredItems(Set<MailItem.Type> types, BatchStatus status, boolean wait, int limit)
+            throws ServiceException {
         assert(mailbox.lock.isUnlocked());
         if ((indexStore != null) && indexStore.isPendingDelete()) {
             ZimbraLog.index.debug("index delete is in progress by other thread, skipping");
@@ -408,6 +507,9 @@ public final class MailboxIndex {
         try {
             long start = System.currentTimeMillis();
             Collection<Integer> ids = getDeferredIds(types);
+            if (ids.size() > limit) {
+                ids = Ordering.natural().leastOf(ids, limit);
+            }
             indexItemList(ids, status);
 
             long elapsed = System.currentTimeMillis() - start;
@@ -534,8 +636,9 @@ public final class MailboxIndex {
                     avg = elapsed / status.getProcessed();
                     mps = avg > 0 ? 1000 / avg : 0;
                 }
-                ZimbraLog.index.info("Re-index completed items=%d,failed=%d,elapsed=%d (avg %d ms/item, %d items/sec)",
-                        status.getTotal(), status.getFailed(), elapsed, avg, mps);
+                ZimbraLog.index.info("Re-index completed items=%d,failed=%d,elapsed=%d (avg %d ms/item, %d items/sec)," +
+                        "parse=%d ms,write=%d ms", status.getTotal(), status.getFailed(), elapsed, avg, mps,
+                        status.getParseMillis(), status.getWriteMillis());
                 onCompletion();
             } catch (ServiceException e) {
                 if (e.getCode() == ServiceException.INTERRUPTED) {
@@ -714,9 +817,10 @@ public final class MailboxIndex {
     }
 
     /**
-     * Index a potentially very large list of {@link MailItem}s. Iterate through the list of items, fetch each one and
-     * call generateIndexData(). Buffer the items, IndexData into a chunk and when the chunk gets sufficiently large,
-     * run a Mailbox transaction to actually do the indexing
+     * Index a potentially very large list of {@link MailItem}s. The items are fetched and their IndexData generated
+     * on {@link #PARSE_EXECUTOR} threads, at most {@link #PARSE_QUEUE_DEPTH} items ahead of this thread, which
+     * collects the results in the original order into a chunk and when the chunk gets sufficiently large, runs a
+     * Mailbox transaction to actually do the indexing.
      *
      * @param ids item IDs to index
      * @param status progress will be written to the status
@@ -734,80 +838,200 @@ public final class MailboxIndex {
         List<Mailbox.IndexItemEntry> chunk = new ArrayList<Mailbox.IndexItemEntry>();
         long chunkByteSize = 0;
         int i = 0;
-        for (int id : ids) {
-            i++;
-            status.addProcessed(1);
-
-            // Fetch the item and generate the list of Lucene documents to index. Do this without holding the Mailbox
-            // lock. Once we've accumulated a "chunk" of items, do a mailbox transaction to actually add them to the
-            // index.
-            ZimbraLog.index.debug("Tokenizing id=%d", id);
-            MailItem item = null;
-            try {
-                mailbox.beginReadTransaction("IndexItemList-Fetch", null);
-                item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, false);
-            } catch (MailServiceException.NoSuchItemException e) { // fallback to dumpster
-                try {
-                    item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, true);
-                } catch (MailServiceException.NoSuchItemException again) { // The item has just been deleted.
-                    ZimbraLog.index.debug("deferred item no longer exist id=%d", id);
-                    removeDeferredId(id);
-                    continue;
-                }
-            } catch (MailServiceException e) {
-                // fetch without metadata because reindex will regenerate metadata
-                if (MailServiceException.INVALID_METADATA.equals(e.getCode()) && isReIndexInProgress()) {
-                    UnderlyingData ud = DbMailItem.getById(mailbox, id, MailItem.Type.UNKNOWN, false);
-                    ud.metadata = null; // ignore corrupted metadata
-                    item = mailbox.getItem(ud);
+        Iterator<Integer> pending = ids.iterator();
+        Deque<Future<ParsedItem>> queue = new ArrayDeque<Future<ParsedItem>>();
+        try {
+            while (true) {
+                ParsedItem parsed;
+                if (PARSE_THREADS > 1) {
+                    // the queue depth is the backpressure on the tokenizing threads
+                    while (queue.size() < PARSE_QUEUE_DEPTH && pending.hasNext()) {
+                        queue.add(PARSE_EXECUTOR.submit(new ParseTask(pending.next())));
+                    }
+                    status.setQueueDepth(queue.size());
+                    if (queue.isEmpty()) {
+                        break;
+                    }
+                    parsed = await(queue.poll());
+                } else if (pending.hasNext()) {
+                    parsed = parse(pending.next());
                 } else {
-                    throw e;
+                    break;
+                }
+                i++;
+                status.addProcessed(1);
+                status.addParsed(parsed.nanos);
+
+                switch (parsed.outcome) {
+                    case DELETED:
+                        removeDeferredId(parsed.id);
+                        continue;
+                    case TEMPORARY_FAILURE:
+                        lastFailedTime = System.currentTimeMillis();
+                        status.addFailed(1);
+                        continue;
+                    case FAILED:
+                        status.addFailed(1);
+                        continue;
+                    default:
+                        break;
+                }
+                chunk.add(parsed.entry);
+                chunkByteSize += parsed.entry.item.getSize();
+
+                if (chunkByteSize > MAX_TX_BYTES || chunk.size() >= MAX_TX_ITEMS) {
+                    indexChunk(chunk, status, i, ids.size());
+                    chunkByteSize = 0;
                 }
-            } catch (Exception e) {
-                ZimbraLog.index.warn("Failed to fetch deferred item id=%d", id, e);
-                status.addFailed(1);
-                continue;
-            } finally {
-                mailbox.endTransaction(item != null);
             }
-            try {
-                chunk.add(new Mailbox.IndexItemEntry(item, item.generateIndexData()));
-            } catch (MailItem.TemporaryIndexingException e) {
-                ZimbraLog.index.warn("Temporary index failure id=%d", id, e);
-                lastFailedTime = System.currentTimeMillis();
-                status.addFailed(1);
-                continue;
+            if (!chunk.isEmpty()) {
+                indexChunk(chunk, status, i, ids.size());
             }
-            chunkByteSize += item.getSize();
+        } finally {
+            // don't leave tokenizing threads working on this mailbox behind, e.g. when cancelled
+            for (Future<ParsedItem> future : queue) {
+                if (!future.cancel(false)) {
+                    try {
+                        future.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    } catch (ExecutionException ignore) {
+                    }
+                }
+            }
+            status.setQueueDepth(0);
+        }
+    }
 
-            if (i == ids.size() || chunkByteSize > MAX_TX_BYTES || chunk.size() >= MAX_TX_ITEMS) {
-                // we have a chunk of items and their corresponding index data -- add them to the index
-                try {
-                    ZimbraLog.index.debug("Batch progress %d/%d", i, ids.size());
+    /**
+     * Adds a chunk of items and their corresponding index data to the index in one mailbox transaction, then clears
+     * the chunk.
+     */
+    private void indexChunk(List<Mailbox.IndexItemEntry> chunk, BatchStatus status, int progress, int total)
+            throws ServiceException {
+        try {
+            ZimbraLog.index.debug("Batch progress %d/%d", progress, total);
 
-                    if (status.isCancelled()) {
-                        throw ServiceException.INTERRUPTED("cancelled");
-                    }
+            if (status.isCancelled()) {
+                throw ServiceException.INTERRUPTED("cancelled");
+            }
 
-                    try {
-                        boolean success = false;
-                        try {
-                            mailbox.beginTransaction("IndexItemList-Commit", null);
-                            for (Mailbox.IndexItemEntry entry : chunk) {
-                                mailbox.addIndexItemToCurrentChange(entry);
-                            }
-                            success = true;
-                        } finally {
-                            mailbox.endTransaction(success);
-                        }
-                    } catch (ServiceException e) {
-                        ZimbraLog.index.warn("Failed to index chunk=%s", chunk, e);
-                        status.addFailed(chunk.size());
+            long start = System.nanoTime();
+            try {
+                boolean success = false;
+                try {
+                    mailbox.beginTransaction("IndexItemList-Commit", null);
+                    for (Mailbox.IndexItemEntry entry : chunk) {
+                        mailbox.addIndexItemToCurrentChange(entry);
                     }
+                    success = true;
                 } finally {
-                    chunk.clear();
-                    chunkByteSize = 0;
+                    mailbox.endTransaction(success);
                 }
+            } catch (ServiceException e) {
+                ZimbraLog.index.warn("Failed to index chunk=%s", chunk, e);
+                status.addFailed(chunk.size());
+            }
+            status.addWritten(chunk.size(), System.nanoTime() - start);
+        } finally {
+            chunk.clear();
+        }
+    }
+
+    /**
+     * Fetches the item and generates the list of Lucene documents to index. Do this without holding the Mailbox lock,
+     * except for the read transaction to fetch the item, so that several items may be tokenized concurrently.
+     */
+    private ParsedItem parse(int id) throws ServiceException {
+        long start = System.nanoTime();
+        ZimbraLog.index.debug("Tokenizing id=%d", id);
+        MailItem item = null;
+        try {
+            mailbox.beginReadTransaction("IndexItemList-Fetch", null);
+            item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, false);
+        } catch (MailServiceException.NoSuchItemException e) { // fallback to dumpster
+            try {
+                item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, true);
+            } catch (MailServiceException.NoSuchItemException again) { // The item has just been deleted.
+                ZimbraLog.index.debug("deferred item no longer exist id=%d", id);
+                return new ParsedItem(id, ParsedItem.Outcome.DELETED, null, System.nanoTime() - start);
+            }
+        } catch (MailServiceException e) {
+            // fetch without metadata because reindex will regenerate metadata
+            if (MailServiceException.INVALID_METADATA.equals(e.getCode()) && isReIndexInProgress()) {
+                UnderlyingData ud = DbMailItem.getById(mailbox, id, MailItem.Type.UNKNOWN, false);
+                ud.metadata = null; // ignore corrupted metadata
+                item = mailbox.getItem(ud);
+            } else {
+                throw e;
+            }
+        } catch (Exception e) {
+            ZimbraLog.index.warn("Failed to fetch deferred item id=%d", id, e);
+            return new ParsedItem(id, ParsedItem.Outcome.FAILED, null, System.nanoTime() - start);
+        } finally {
+            mailbox.endTransaction(item != null);
+        }
+        try {
+            Mailbox.IndexItemEntry entry = new Mailbox.IndexItemEntry(item, item.generateIndexData());
+            return new ParsedItem(id, ParsedItem.Outcome.INDEXABLE, entry, System.nanoTime() - start);
+        } catch (MailItem.TemporaryIndexingException e) {
+            ZimbraLog.index.warn("Temporary index failure id=%d", id, e);
+            return new ParsedItem(id, ParsedItem.Outcome.TEMPORARY_FAILURE, null, System.nanoTime() - start);
+        }
+    }
+
+    private static ParsedItem await(Future<ParsedItem> future) throws ServiceException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ServiceException.INTERRUPTED("interrupted while waiting for tokenized items");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceException) {
+                throw (ServiceException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ServiceException.FAILURE("Failed to tokenize item", cause);
+        }
+    }
+
+    /**
+     * Result of {@link MailboxIndex#parse(int)}. Side effects such as status updates are left to the thread that
+     * writes the index.
+     */
+    private static final class ParsedItem {
+        enum Outcome { INDEXABLE, DELETED, FAILED, TEMPORARY_FAILURE }
+
+        final int id;
+        final Outcome outcome;
+        final Mailbox.IndexItemEntry entry;
+        final long nanos;
+
+        ParsedItem(int id, Outcome outcome, Mailbox.IndexItemEntry entry, long nanos) {
+            this.id = id;
+            this.outcome = outcome;
+            this.entry = entry;
+            this.nanos = nanos;
+        }
+    }
+
+    private final class ParseTask implements Callable<ParsedItem> {
+        private final int id;
+
+        ParseTask(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public ParsedItem call() throws ServiceException {
+            ZimbraLog.addMboxToContext(mailbox.getId());
+            try {
+                return parse(id);
+            } finally {
+                ZimbraLog.clearContext();
             }
         }
     }
@@ -1071,7 +1295,7 @@ public final class MailboxIndex {
         boolean success = false;
         try {
             mailbox.beginReadTransaction("search", null);
-            result = new DbSearch(mailbox, inDumpster).search(mailbox.getOperationConnection(),
+            result = new DbSearch(mailbox, inDumpster).search(mailbox.getReadOperationConnection(),
                     constraints, sort, offset, size, fetch);
             if (fetch == DbSearch.FetchMode.MAIL_ITEM) {
                 // Convert UnderlyingData to MailItem
@@ -1213,16 +1437,37 @@ public final class MailboxIndex {
 
     private SetMultimap<MailItem.Type, Integer> getDeferredIds() throws ServiceException {
         if (deferredIds == null) {
-            DbConnection conn = DbPool.getConnection(mailbox);
-            try {
-                deferredIds = DbMailItem.getIndexDeferredIds(conn, mailbox);
-            } finally {
-                conn.closeQuietly();
+            synchronized (this) {
+                if (deferredIds == null) {
+                    SetMultimap<MailItem.Type, Integer> ids;
+                    DbConnection conn = DbPool.getConnection(mailbox);
+                    try {
+                        ids = DbMailItem.getIndexDeferredIds(conn, mailbox);
+                    } finally {
+                        conn.closeQuietly();
+                    }
+                    // items left over from before the mailbox was loaded count from now, the others keep their time
+                    Set<Integer> pending = ImmutableSet.copyOf(ids.values());
+                    deferredTimes.keySet().retainAll(pending);
+                    long now = System.currentTimeMillis();
+                    for (Integer id : pending) {
+                        if (!deferredTimes.containsKey(id)) {
+                            deferredTimes.put(id, now);
+                        }
+                    }
+                    updateDeferredSince();
+                    deferredIds = ids;
+                }
             }
         }
         return deferredIds;
     }
 
+    private void updateDeferredSince() {
+        assert(Thread.holdsLock(this));
+        deferredSince = deferredTimes.isEmpty() ? 0 : deferredTimes.values().iterator().next();
+    }
+
     private synchronized Collection<Integer> getDeferredIds(Set<MailItem.Type> types) throws ServiceException {
         SetMultimap<MailItem.Type, Integer> ids = getDeferredIds();
         if (ids == null || ids.isEmpty()) {
@@ -1257,6 +1502,10 @@ public final class MailboxIndex {
                 break;
         }
 
+        if (!deferredTimes.containsKey(item.getId())) { // an item changed again keeps its place
+            deferredTimes.put(item.getId(), System.currentTimeMillis());
+            updateDeferredSince();
+        }
         if (deferredIds == null) {
             return;
         }
@@ -1267,6 +1516,8 @@ public final class MailboxIndex {
 
     synchronized void removeDeferredId(int id) {
         assert id > 0 : id;
+        deferredTimes.remove(id);
+        updateDeferredSince();
         if (deferredIds == null) {
             return;
         }
@@ -1274,6 +1525,10 @@ public final class MailboxIndex {
     }
 
     synchronized void removeDeferredId(Collection<Integer> ids) {
+        for (Integer id : ids) {
+            deferredTimes.remove(id);
+        }
+        updateDeferredSince();
         if (deferredIds == null) {
             return;
         }
@@ -1304,6 +1559,10 @@ public final class MailboxIndex {
         private int total = -1;
         private int processed = 0;
         private int failed = 0;
+        private long parseNanos = 0;
+        private int written = 0;
+        private long writeNanos = 0;
+        private int queueDepth = 0;
 
         void setTotal(int value) {
             total = value;
@@ -1317,6 +1576,21 @@ public final class MailboxIndex {
             failed += delta;
         }
 
+        /** Records the time spent fetching and tokenizing one item. */
+        void addParsed(long nanos) {
+            parseNanos += nanos;
+        }
+
+        /** Records a chunk of items written to the index. */
+        void addWritten(int count, long nanos) {
+            written += count;
+            writeNanos += nanos;
+        }
+
+        void setQueueDepth(int value) {
+            queueDepth = value;
+        }
+
         public int getTotal() {
             return total;
         }
@@ -1329,6 +1603,26 @@ public final class MailboxIndex {
             return failed;
         }
 
+        /** Total time the tokenizing threads spent on this batch. */
+        public long getParseMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(parseNanos);
+        }
+
+        /** Number of items in chunks that have been written to the index. */
+        public int getWritten() {
+            return written;
+        }
+
+        /** Time spent writing chunks to the index. */
+        public long getWriteMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(writeNanos);
+        }
+
+        /** Number of items currently being tokenized or waiting to be written. */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
         boolean isCancelled() {
             return false;
         }
@@ -1339,17 +1633,26 @@ public final class MailboxIndex {
                 .add("total", getTotal())
                 .add("processed", getProcessed())
                 .add("failed", getFailed())
+                .add("parseMs", getParseMillis())
+                .add("written", getWritten())
+                .add("writeMs", getWriteMillis())
+                .add("queue", getQueueDepth())
                 .toString();
         }
     }
 
     /**
-     * Re-index progress information. The counters are thread safe.
+     * Re-index progress information. The counters are only updated by the thread writing the index, but may be read
+     * from any thread.
      */
     public static final class ReIndexStatus extends BatchStatus {
         private volatile int total = -1;
         private volatile int processed = 0;
         private volatile int failed = 0;
+        private volatile long parseNanos = 0;
+        private volatile int written = 0;
+        private volatile long writeNanos = 0;
+        private volatile int queueDepth = 0;
         private volatile boolean cancel = false;
 
         private ReIndexStatus() {
@@ -1364,7 +1667,8 @@ public final class MailboxIndex {
         void addProcessed(int delta) {
             processed += delta;
             if (processed % 2000 == 0) {
-                ZimbraLog.index.info("Re-index progress %d/%d", processed, total);
+                ZimbraLog.index.info("Re-index progress %d/%d (parse %d ms, written %d in %d ms, queue %d)",
+                        processed, total, getParseMillis(), written, getWriteMillis(), queueDepth);
             }
         }
 
@@ -1373,6 +1677,22 @@ public final class MailboxIndex {
             failed += delta;
         }
 
+        @Override
+        void addParsed(long nanos) {
+            parseNanos += nanos;
+        }
+
+        @Override
+        void addWritten(int count, long nanos) {
+            written += count;
+            writeNanos += nanos;
+        }
+
+        @Override
+        void setQueueDepth(int value) {
+            queueDepth = value;
+        }
+
         @Override
         public int getTotal() {
             return total;
@@ -1388,6 +1708,26 @@ public final class MailboxIndex {
             return failed;
         }
 
+        @Override
+        public long getParseMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(parseNanos);
+        }
+
+        @Override
+        public int getWritten() {
+            return written;
+        }
+
+        @Override
+        public long getWriteMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(writeNanos);
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
         void cancel() {
             cancel = true;
         }
@@ -1431,7 +1771,16 @@ public final class MailboxIndex {
 
         @Override
         protected void exec() throws Exception {
-            indexDeferredItems(EnumSet.noneOf(MailItem.Type.class), new BatchStatus(), false);
+            batchQueued.set(false); // edits from now on need another turn
+            ZimbraPerf.HISTOGRAM_IDX_LAG_MS.increment(getIndexLagMillis());
+            BatchStatus status = new BatchStatus();
+            int limit = Math.max(LC.zimbra_index_batch_items_per_turn.intValue(), 1);
+            indexDeferredItems(EnumSet.noneOf(MailItem.Type.class), status, false, limit);
+            // more left than one turn's worth: go to the back of the queue
+            if (status.getTotal() >= limit && lastFailedTime < 0 &&
+                    getDeferredCount(EnumSet.noneOf(MailItem.Type.class)) > 0) {
+                queueBatch();
+            }
         }
 
     }
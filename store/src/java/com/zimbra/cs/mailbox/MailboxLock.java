@@ -19,6 +19,7 @@ package com.zimbra.cs.mailbox;
 import java.util.EmptyStackException;
 import java.util.Stack;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
 
 import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
 
@@ -39,12 +40,19 @@ import com.zimbra.cs.zookeeper.CuratorManager;
  * thrown. {@code Mailbox.beginTransaction()}) internally acquires the mailbox lock and it's released by
  * {@code Mailbox.endTransaction()}, so that you don't have to explicitly call {@link #lock()} and {@link #release()}
  * wrapping a mailbox transaction.
+ * <p>
+ * Read-only accessors that only look at a handful of in-memory fields can avoid the lock entirely using
+ * {@link #tryOptimisticRead()} and {@link #validate(long)}: the stamp is invalidated whenever a writer acquires the
+ * lock, in which case the caller falls back to {@link #lock(boolean)}.
  *
  */
 public final class MailboxLock {
     private final ZLock zLock = DebugConfig.debugMailboxLock ? new DebugZLock() : new ZLock();
     private InterProcessSemaphoreMutex dLock = null;
     private final Stack<Boolean> lockStack = new Stack<Boolean>();
+    /** held in write mode by the outermost writer of {@link #zLock}; only used to validate optimistic reads */
+    private final StampedLock writeStamp = new StampedLock();
+    private long writeStampHeld = 0L;
     private Mailbox mbox;
 
     public MailboxLock(String id, Mailbox mbox) {
@@ -80,6 +88,39 @@ public final class MailboxLock {
         }
     }
 
+    private void beginWrite() {
+        if (zLock.getWriteHoldCount() == 1) {
+            writeStampHeld = writeStamp.writeLock();
+        }
+    }
+
+    private void endWrite() {
+        if (zLock.getWriteHoldCount() == 1 && writeStampHeld != 0L) {
+            writeStamp.unlockWrite(writeStampHeld);
+            writeStampHeld = 0L;
+        }
+    }
+
+    /**
+     * Returns a stamp for a lock-free read of mailbox state, or zero if a writer currently holds the lock (or
+     * optimistic reads are disabled). The values read after this call are only consistent if {@link #validate(long)}
+     * subsequently returns {@code true} for the stamp.
+     */
+    public long tryOptimisticRead() {
+        if (!LC.zimbra_mailbox_lock_optimistic_read.booleanValue()) {
+            return 0L;
+        }
+        return writeStamp.tryOptimisticRead();
+    }
+
+    /**
+     * Returns {@code true} if no writer has acquired the lock since the given stamp was issued by
+     * {@link #tryOptimisticRead()}.
+     */
+    public boolean validate(long stamp) {
+        return stamp != 0L && writeStamp.validate(stamp);
+    }
+
     int getHoldCount() {
         return zLock.getReadHoldCount() + zLock.getWriteHoldCount();
     }
@@ -169,6 +210,9 @@ public final class MailboxLock {
                     return;
                 }
                 lockStack.push(write);
+                if (write) {
+                    beginWrite();
+                }
                 try {
                     acquireDistributedLock(write);
                 } catch (ServiceException e) {
@@ -198,6 +242,9 @@ public final class MailboxLock {
                     return;
                 }
                 lockStack.push(write);
+                if (write) {
+                    beginWrite();
+                }
                 try {
                     acquireDistributedLock(write);
                 } catch (ServiceException e) {
@@ -236,6 +283,7 @@ public final class MailboxLock {
         releaseDistributedLock(write);
         if (write) {
             assert(zLock.getWriteHoldCount() > 0);
+            endWrite();
             zLock.writeLock().unlock();
         } else {
             zLock.readLock().unlock();
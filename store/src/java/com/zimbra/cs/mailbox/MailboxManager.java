@@ -804,7 +804,7 @@ public class MailboxManager {
 
         DbConnection conn = null;
         try {
-            conn = DbPool.getConnection();
+            conn = DbPool.getReadConnection(null);
             return DbMailbox.getMailboxSizes(conn, requested);
         } finally {
             if (conn != null)
@@ -16,6 +16,7 @@ package com.zimbra.cs.mailbox;
  * ***** END LICENSE BLOCK *****
  */
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.memcached.MemcachedKey;
 import com.zimbra.common.util.memcached.MemcachedMap;
@@ -98,11 +99,16 @@ public class MemcachedItemCache {
 
         @Override
         public Object serialize(Metadata value) {
-            return value.toString();
+            // servers that predate the compact encoding only understand the BEncoded string form, so
+            // zimbra_mailbox_item_cache_compact_metadata must be turned off while any of them share this memcached
+            return LC.zimbra_mailbox_item_cache_compact_metadata.booleanValue() ? value.toByteArray() : value.toString();
         }
 
         @Override
         public Metadata deserialize(Object obj) throws ServiceException {
+            if (obj instanceof byte[]) {
+                return new Metadata((byte[]) obj);
+            }
             return new Metadata((String) obj);
         }
     }
@@ -18,14 +18,22 @@ package com.zimbra.cs.mailbox;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
@@ -42,25 +50,85 @@ import com.zimbra.cs.store.MailboxBlob;
 import com.zimbra.cs.store.StoreManager;
 import com.zimbra.cs.util.JMSession;
 
+/**
+ * Server-wide cache of parsed message structures, keyed by blob digest.
+ * <p>
+ * Parsed messages and their expanded (TNEF/uuencode converted or decrypted) variants are kept in two separate
+ * concurrent LRU maps, each bounded by its own byte budget ({@code zimbra_message_cache_max_mb} and
+ * {@code zimbra_message_cache_expanded_max_mb}) as well as by {@code zimbraMessageCacheSize} entries.  Concurrent
+ * misses on the same digest share a single load, and expansion is serialized per message rather than across the
+ * whole cache.
+ */
 public class MessageCache {
 
     private static final Log sLog = LogFactory.getLog(MessageCache.class);
 
+    /** Rough heap cost of a parsed {@link MimeMessage} structure, on top of any content held in memory. */
+    private static final int NODE_OVERHEAD = 1024;
+
     private static final class CacheNode {
-        CacheNode()  { }
-        MimeMessage message;
-        MimeMessage expanded;
-        Map<Integer, String> smimeAccessInfo = new HashMap<Integer, String>();
-        long size = 0;
+        CacheNode(MimeMessage message, long size)  {
+            this.message = message;
+            this.size = size;
+        }
+        final MimeMessage message;
+        volatile MimeMessage expanded;
+        final Map<Integer, String> smimeAccessInfo = Collections.synchronizedMap(new HashMap<Integer, String>());
+        /** bytes of message content held in memory; zero for messages streamed from disk */
+        final long size;
+        /** bytes of expanded content held in memory; only meaningful while {@link #expanded} differs from
+         *  {@link #message} */
+        volatile long expandedSize = 0;
     }
 
+    private static final EvictionListener<String, CacheNode> MESSAGE_EVICTION =
+            new EvictionListener<String, CacheNode>() {
+        @Override
+        public void onEviction(String digest, CacheNode node) {
+            sLog.debug("Pruning digest %s from the cache.", digest);
+            sExpanded.remove(digest, node);
+        }
+    };
+
+    private static final EvictionListener<String, CacheNode> EXPANDED_EVICTION =
+            new EvictionListener<String, CacheNode>() {
+        @Override
+        public void onEviction(String digest, CacheNode node) {
+            sLog.debug("Pruning expanded message for digest %s from the cache.", digest);
+            // Runs on the thread doing the put, which may hold the monitor of another node, so this must not take
+            // the evicted node's monitor.  Readers copy node.expanded once and never see it change under them.
+            node.expanded = null;
+            node.expandedSize = 0;
+            node.smimeAccessInfo.clear();
+        }
+    };
+
     /** Cache mapping message digest to the corresponding message structure. */
-    private static Map<String, CacheNode> sCache = new LinkedHashMap<String, CacheNode>(150, (float) 0.75, true);
+    private static final ConcurrentLinkedHashMap<String, CacheNode> sCache =
+            new ConcurrentLinkedHashMap.Builder<String, CacheNode>()
+            .maximumWeightedCapacity(Long.MAX_VALUE - Integer.MAX_VALUE)
+            .weigher(new Weigher<CacheNode>() {
+                @Override
+                public int weightOf(CacheNode node) {
+                    return (int) Math.min(Integer.MAX_VALUE, NODE_OVERHEAD + node.size);
+                }
+            }).listener(MESSAGE_EVICTION).build();
+    /** Subset of {@link #sCache} whose expanded message is distinct from the original, weighted by the expanded
+     *  content so that it is accounted against its own budget. */
+    private static final ConcurrentLinkedHashMap<String, CacheNode> sExpanded =
+            new ConcurrentLinkedHashMap.Builder<String, CacheNode>()
+            .maximumWeightedCapacity(Long.MAX_VALUE - Integer.MAX_VALUE)
+            .weigher(new Weigher<CacheNode>() {
+                @Override
+                public int weightOf(CacheNode node) {
+                    return (int) Math.min(Integer.MAX_VALUE, NODE_OVERHEAD + node.expandedSize);
+                }
+            }).listener(EXPANDED_EVICTION).build();
+    /** Loads in progress, so that concurrent misses on the same digest only fetch and parse the blob once. */
+    private static final ConcurrentMap<String, FutureTask<CacheNode>> sLoading =
+            new ConcurrentHashMap<String, FutureTask<CacheNode>>();
     /** Maximum number of items in {@link #sCache}. */
-    private static int sMaxCacheSize;
-    /** Number of bytes of message data stored in the cache.  This value includes only
-     * messages that are read into memory, not streamed from disk. */
-    private volatile static long sDataSize = 0;
+    private static volatile int sMaxCacheSize;
 
     static {
         try {
@@ -72,24 +140,27 @@ public class MessageCache {
 
     public static void loadSettings() throws ServiceException {
         sMaxCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
-        ZimbraLog.cache.info("setting message cache size to " + sMaxCacheSize);
+        long maxBytes = LC.zimbra_message_cache_max_mb.longValue() * 1024 * 1024;
+        long maxExpandedBytes = LC.zimbra_message_cache_expanded_max_mb.longValue() * 1024 * 1024;
+        sCache.setCapacity(maxBytes);
+        sExpanded.setCapacity(maxExpandedBytes);
+        trimToCount();
+        ZimbraLog.cache.info("setting message cache size to %d messages, %d bytes (%d bytes expanded)",
+                sMaxCacheSize, maxBytes, maxExpandedBytes);
     }
 
     /** Returns the number of messages in the cache. */
     public static int getSize() {
-        synchronized (sCache) {
-            return sCache.size();
-        }
+        return sCache.size();
     }
 
     public static boolean contains(String digest) {
-        synchronized (sCache) {
-            return sCache.containsKey(digest);
-        }
+        return sCache.containsKey(digest);
     }
 
+    /** Returns the estimated number of bytes held by the cache, including expanded messages. */
     public static long getDataSize() {
-        return sDataSize;
+        return sCache.weightedSize() + sExpanded.weightedSize();
     }
 
     /** Uncaches any data associated with the given item.  This must be done
@@ -124,12 +195,10 @@ public class MessageCache {
      *  stale data. */
     public static void purge(String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.remove(digest);
-                if (node != null) {
-                    sLog.debug("Purged digest %s from the message cache.", digest);
-                    sDataSize -= node.size;
-                }
+            CacheNode node = sCache.remove(digest);
+            sExpanded.remove(digest);
+            if (node != null) {
+                sLog.debug("Purged digest %s from the message cache.", digest);
             }
         }
     }
@@ -150,49 +219,25 @@ public class MessageCache {
      * @see com.zimbra.cs.mime.UUEncodeConverter */
     static MimeMessage getMimeMessage(MailItem item, boolean expand) throws ServiceException {
         String digest = item.getDigest();
-        CacheNode cnode = null;
         boolean cacheHit = true;
-        boolean newNode = false;
-        InputStream in = null;
         int mboxId = item.getMailboxId();
         boolean isEncrypted = false;
 
-        synchronized (sCache) {
-            cnode = sCache.get(digest);
-            if (cnode == null) {
-                newNode = true;
-                cnode = new CacheNode();
-            }
+        CacheNode cnode = sCache.get(digest);
+        if (cnode == null) {
+            cacheHit = false;
+            cnode = load(item, digest);
         }
 
-        try {
-            if (cnode.message == null) {
-                sLog.debug("Loading MimeMessage for item %d.", item.getId());
-                cacheHit = false;
-                try {
-                    in = fetchFromStore(item);
-                    cnode.message = new Mime.FixedMimeMessage(JMSession.getSession(), in);
-                    if (item.getSize() < MESSAGE_CACHE_DISK_STREAMING_THRESHOLD) {
-                        cnode.size = item.getSize();
-                        // Not the best place to increment the data size, but cacheItem()
-                        // won't get called if we're expanding a message for an existing
-                        // node.
-                        sDataSize += cnode.size;
-                    }
-                } finally {
-                    ByteUtil.closeStream(in);
-                }
-            }
-
-            if (expand) {
+        if (expand) {
+            synchronized (cnode) {
                 sLog.debug("Expanding MimeMessage for item %d.", item.getId());
+                MimeMessage expanded = cnode.expanded;
                 try {
                     MimeMessage decryptedMimeMessage = null;
                     if (item instanceof Message) {
                         // if the mime is encrypted; decrypt it first
-                        if (cnode.message != null) {
-                            isEncrypted = Mime.isEncrypted(cnode.message.getContentType());
-                        }
+                        isEncrypted = Mime.isEncrypted(cnode.message.getContentType());
                         if (isEncrypted) {
                             if (isSmimeFeatureToggled(item.getMailbox(), cnode)) {
                                 sLog.debug(
@@ -200,35 +245,42 @@ public class MessageCache {
                                     mboxId, item.getDigest());
                                 cnode.smimeAccessInfo.remove(mboxId);
                             }
-                            if (cnode.expanded == null || !cnode.smimeAccessInfo.containsKey(mboxId)) {
+                            if (expanded == null || !cnode.smimeAccessInfo.containsKey(mboxId)) {
                                 cacheHit = false;
                                 decryptedMimeMessage = doDecryption(item, cnode, mboxId);
                             }
                         }
                     }
                     //expand if the message has not yet been expanded or if the message is decrypted successfully
-                    if (cnode.expanded == null || (decryptedMimeMessage != null && cnode.expanded != decryptedMimeMessage)) {
+                    if (expanded == null || (decryptedMimeMessage != null && expanded != decryptedMimeMessage)) {
                         cacheHit = false;
-                        expandMessage(item, cnode, decryptedMimeMessage);
+                        expanded = expandMessage(item, cnode, decryptedMimeMessage);
                     }
                 } catch (Exception e) {
                     // if the conversion bombs for any reason, revert to the original
                     sLog.warn("MIME converter failed for message %d.  Reverting to original.", item.getId(), e);
-                    cnode.expanded = cnode.message;
+                    expanded = cnode.message;
+                    cnode.expanded = expanded;
+                }
+                if (cacheHit) {
+                    sExpanded.get(digest); // refresh LRU position
+                    ZimbraPerf.COUNTER_MBOX_MSG_CACHE_EXPANDED.increment(100);
+                } else {
+                    ZimbraPerf.COUNTER_MBOX_MSG_CACHE_EXPANDED.increment(0);
                 }
-            }
 
-            if (newNode) {
-                cacheItem(digest, cnode);
+                if (isEncrypted && (!cnode.smimeAccessInfo.containsKey(mboxId)
+                    || cnode.smimeAccessInfo.get(mboxId) != null)) {
+                    return logAccess(item, expand, cacheHit, cnode.message);
+                }
+                return logAccess(item, expand, cacheHit, expanded);
             }
-        } catch (IOException e) {
-            throw ServiceException.FAILURE("IOException while retrieving content for item " + item.getId(), e);
-        } catch (MessagingException e) {
-            throw ServiceException.FAILURE("MessagingException while creating MimeMessage for item " + item.getId(), e);
-        } finally {
-            ByteUtil.closeStream(in);
+        } else {
+            return logAccess(item, expand, cacheHit, cnode.message);
         }
+    }
 
+    private static MimeMessage logAccess(MailItem item, boolean expand, boolean cacheHit, MimeMessage result) {
         if (cacheHit) {
             sLog.debug("Cache hit for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
             ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(100);
@@ -236,15 +288,60 @@ public class MessageCache {
             sLog.debug("Cache miss for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
             ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(0);
         }
+        return result;
+    }
 
-        if (expand) {
-            if (isEncrypted && (!cnode.smimeAccessInfo.containsKey(mboxId)
-                || cnode.smimeAccessInfo.get(mboxId) != null)) {
-                return cnode.message;
+    /** Parses the item's blob and caches the result.  If another thread is already loading the same digest, waits
+     *  for that load instead of parsing the blob a second time. */
+    private static CacheNode load(final MailItem item, final String digest) throws ServiceException {
+        FutureTask<CacheNode> task = new FutureTask<CacheNode>(new Callable<CacheNode>() {
+            @Override
+            public CacheNode call() throws ServiceException {
+                CacheNode cached = sCache.get(digest);
+                if (cached != null) {
+                    return cached;
+                }
+                sLog.debug("Loading MimeMessage for item %d.", item.getId());
+                InputStream in = null;
+                try {
+                    in = fetchFromStore(item);
+                    MimeMessage message = new Mime.FixedMimeMessage(JMSession.getSession(), in);
+                    long size = item.getSize() < MESSAGE_CACHE_DISK_STREAMING_THRESHOLD ? item.getSize() : 0;
+                    CacheNode cnode = new CacheNode(message, size);
+                    cacheItem(digest, cnode);
+                    return cnode;
+                } catch (IOException e) {
+                    throw ServiceException.FAILURE("IOException while retrieving content for item " + item.getId(), e);
+                } catch (MessagingException e) {
+                    throw ServiceException.FAILURE("MessagingException while creating MimeMessage for item " + item.getId(), e);
+                } finally {
+                    ByteUtil.closeStream(in);
+                }
+            }
+        });
+
+        FutureTask<CacheNode> loader = sLoading.putIfAbsent(digest, task);
+        if (loader == null) {
+            loader = task;
+            try {
+                task.run();
+            } finally {
+                sLoading.remove(digest, task);
             }
-            return cnode.expanded;
         } else {
-            return cnode.message;
+            sLog.debug("Waiting for concurrent load of digest %s.", digest);
+        }
+
+        try {
+            return loader.get();
+        } catch (InterruptedException e) {
+            throw ServiceException.INTERRUPTED("interrupted while loading content for item " + item.getId());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceException) {
+                throw (ServiceException) cause;
+            }
+            throw ServiceException.FAILURE("error while loading content for item " + item.getId(), cause);
         }
     }
 
@@ -266,7 +363,9 @@ public class MessageCache {
         return false;
     }
 
-    private static void expandMessage(MailItem item, CacheNode cnode, MimeMessage decryptedMimeMessage)
+    /** Must be called with the monitor of {@code cnode} held.  Returns the expanded message, which may already have
+     *  been cleared from {@code cnode} by a concurrent eviction. */
+    private static MimeMessage expandMessage(MailItem item, CacheNode cnode, MimeMessage decryptedMimeMessage)
         throws MessagingException, ServiceException {
         MimeMessage mimeToExpand = cnode.message;
         if (decryptedMimeMessage != null) {
@@ -284,13 +383,17 @@ public class MessageCache {
         ExpandMimeMessage expander = new ExpandMimeMessage(
             decodedMimeMessage != null ? decodedMimeMessage : mimeToExpand);
         expander.expand();
-        cnode.expanded = expander.getExpanded();
-        if (cnode.expanded != cnode.message) {
-            sDataSize += cnode.size;
-            cnode.size *= 2;
+        MimeMessage expanded = expander.getExpanded();
+        cnode.expanded = expanded;
+        if (expanded != cnode.message) {
+            // converted messages are materialized in memory, even when the original is streamed from disk
+            cnode.expandedSize = item.getSize();
+            sExpanded.put(item.getDigest(), cnode);
         }
+        return expanded;
     }
 
+    /** Must be called with the monitor of {@code cnode} held. */
     private static MimeMessage doDecryption(MailItem item, CacheNode cnode, int mboxId) {
         MimeMessage decryptedMimeMessage = null;
         if (SmimeHandler.getHandler() != null) {
@@ -354,47 +457,51 @@ public class MessageCache {
      */
     public static void cacheMessage(String digest, MimeMessage original, MimeMessage expanded) {
         sLog.debug("Caching existing MimeMessage, digest=%s.", digest);
-        CacheNode cnode = new CacheNode();
-        cnode.message = original;
+        CacheNode cnode = new CacheNode(original, 0);
         cnode.expanded = expanded;
         cacheItem(digest, cnode);
+        if (expanded != null && expanded != original) {
+            try {
+                cnode.expandedSize = Math.max(expanded.getSize(), 0);
+            } catch (MessagingException e) {
+                sLog.debug("unable to determine size of expanded message %s", digest, e);
+            }
+            sExpanded.put(digest, cnode);
+        }
     }
 
     private static void cacheItem(String digest, CacheNode cnode) {
         sLog.debug("Caching MimeMessage for digest %s.", digest);
-        synchronized (sCache) {
-            sCache.put(digest, cnode);
-            // Cache data size was incremented in getMimeMessage().
-
-            // trim the cache if needed
-            if (sCache.size() > sMaxCacheSize) {
-                Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-                while (sCache.size() > sMaxCacheSize && it.hasNext()) {
-                    Map.Entry<String, CacheNode> entry = it.next();
-                    sLog.debug("Pruning digest %s from the cache.", entry.getKey());
-                    it.remove();
-                    sDataSize -= entry.getValue().size;
-                }
+        CacheNode old = sCache.put(digest, cnode);
+        if (old != null) {
+            sExpanded.remove(digest, old);
+        }
+        trimToCount();
+    }
+
+    /** Enforces the {@code zimbraMessageCacheSize} entry limit on top of the byte budget. */
+    private static void trimToCount() {
+        int excess = sCache.size() - sMaxCacheSize;
+        if (excess > 0) {
+            for (String digest : sCache.ascendingKeySetWithLimit(excess)) {
+                sLog.debug("Pruning digest %s from the cache.", digest);
+                purge(digest);
             }
         }
     }
 
     public static void removeDecryptedMessages(int mboxId) {
         sLog.debug("Start removing decrypted messages for mboxId=%d", mboxId);
-        synchronized (sCache) {
-            Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, CacheNode> entry = it.next();
-                CacheNode cacheNode = entry.getValue();
-                try {
-                    if (Mime.isEncrypted(cacheNode.message.getContentType())
-                        && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
-                        cacheNode.smimeAccessInfo.remove(mboxId);
-                    }
-                } catch (MessagingException e) {
-                    sLog.warn("MessagingException while checking content type for cache node with digest = %s",
-                        entry.getKey(), e);
+        for (Map.Entry<String, CacheNode> entry : sCache.entrySet()) {
+            CacheNode cacheNode = entry.getValue();
+            try {
+                if (Mime.isEncrypted(cacheNode.message.getContentType())
+                    && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
+                    cacheNode.smimeAccessInfo.remove(mboxId);
                 }
+            } catch (MessagingException e) {
+                sLog.warn("MessagingException while checking content type for cache node with digest = %s",
+                    entry.getKey(), e);
             }
         }
         sLog.debug("Removed decrypted messages for mboxId=%d", mboxId);
@@ -402,11 +509,9 @@ public class MessageCache {
 
     public static String getDecryptionError(int id, String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.get(digest);
-                if (node != null) {
-                    return node.smimeAccessInfo.get(id);
-                }
+            CacheNode node = sCache.get(digest);
+            if (node != null) {
+                return node.smimeAccessInfo.get(id);
             }
         }
         return null;
@@ -183,6 +183,27 @@ public final class Metadata {
         }
     }
 
+    /**
+     * Decodes either the compact binary form produced by {@link #toByteArray()} or the UTF-8 bytes of a legacy
+     * BEncoded string.
+     */
+    public Metadata(byte[] encoded) throws MailServiceException {
+        this(encoded, (Integer) null);
+    }
+
+    public Metadata(byte[] encoded, Integer associatedItemId) throws MailServiceException {
+        this.associatedItemId = associatedItemId;
+        if (!CompactMetadata.isCompact(encoded)) {
+            map = new Metadata(encoded == null ? null : new String(encoded, Charsets.UTF_8), associatedItemId).map;
+            return;
+        }
+        try {
+            map = CompactMetadata.decode(encoded);
+        } catch (IllegalArgumentException e) {
+            throw MailServiceException.INVALID_METADATA("<" + encoded.length + " bytes of compact metadata>", e);
+        }
+    }
+
     public boolean containsKey(String key) {
         return map.containsKey(key);
     }
@@ -355,6 +376,14 @@ public final class Metadata {
         return result;
     }
 
+    /**
+     * Returns the compact binary encoding of this object.  Only use this where the result is stored as binary;
+     * anything persisted in a text column must keep using {@link #toString()}.
+     */
+    public byte[] toByteArray() {
+        return CompactMetadata.encode(map);
+    }
+
     public String prettyPrint() {
         StringBuilder sb = new StringBuilder(2048);
         prettyEncode(sb, map, 0);
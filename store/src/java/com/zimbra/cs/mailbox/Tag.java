@@ -344,6 +344,7 @@ public class Tag extends MailItem implements ZimbraTag {
         mData.name = newName;
         contentChanged();
         DbTag.renameTag(this);
+        mMailbox.markModifiedInBulk();
         // dump entire item cache because tag names on cached items are now stale
         mMailbox.purge(Type.MESSAGE);
         // any folder that contains items might have seen some of its contents change
@@ -355,6 +356,7 @@ public class Tag extends MailItem implements ZimbraTag {
         ZimbraLog.mailop.debug("Removing %s from all items.", getMailopContext(this));
         // remove the tag from all items in the database
         DbTag.deleteTag(this);
+        mMailbox.markModifiedInBulk();
         // any folder that contains items might have seen some of its contents change
         touchAllFolders();
         // dump entire item cache because tag names on cached items are now stale
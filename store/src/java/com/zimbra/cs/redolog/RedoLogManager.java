@@ -30,6 +30,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
@@ -38,11 +39,13 @@ import com.zimbra.cs.db.Db;
 import com.zimbra.cs.mailbox.MailServiceException;
 import com.zimbra.cs.redolog.logger.FileLogReader;
 import com.zimbra.cs.redolog.logger.FileLogWriter;
+import com.zimbra.cs.redolog.logger.GroupCommitLogWriter;
 import com.zimbra.cs.redolog.logger.LogWriter;
 import com.zimbra.cs.redolog.op.AbortTxn;
 import com.zimbra.cs.redolog.op.Checkpoint;
 import com.zimbra.cs.redolog.op.CommitTxn;
 import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.redolog.util.ParallelRedoPlayer;
 import com.zimbra.cs.util.Zimbra;
 import com.zimbra.znative.IO;
 
@@ -166,6 +169,9 @@ public class RedoLogManager {
     public LogWriter createLogWriter(RedoLogManager redoMgr,
                                         File logfile,
                                         long fsyncIntervalMS) {
+        if (LC.zimbra_redolog_group_commit.booleanValue()) {
+            return new GroupCommitLogWriter(redoMgr, logfile);
+        }
         return new FileLogWriter(redoMgr, logfile, fsyncIntervalMS);
     }
 
@@ -221,7 +227,11 @@ public class RedoLogManager {
             try {
                 mLogWriter.open();
                 mRolloverMgr.initSequence(mLogWriter.getSequence());
-                RedoPlayer redoPlayer = new RedoPlayer(true);
+                int recoveryThreads = LC.zimbra_redolog_recovery_threads.intValue();
+                RedoPlayer redoPlayer = recoveryThreads > 1 ?
+                        new ParallelRedoPlayer(true, false, false, false, recoveryThreads,
+                                LC.zimbra_redolog_recovery_queue_capacity.intValue(), false) :
+                        new RedoPlayer(true);
                 try {
                     numRecoveredOps = redoPlayer.runCrashRecovery(this, postStartupRecoveryOps);
                 } finally {
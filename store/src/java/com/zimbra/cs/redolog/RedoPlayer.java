@@ -29,6 +29,7 @@ import java.util.Set;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
@@ -62,6 +63,10 @@ public class RedoPlayer {
     protected boolean handleMailboxConflict;
     protected ConcurrentMap<Integer, Integer> mailboxConflicts = new ConcurrentHashMap<Integer, Integer>();
 
+    // replay throughput; number of ops redone and when the first one started
+    private final AtomicLong mReplayCount = new AtomicLong();
+    private volatile long mReplayStart;
+
     public RedoPlayer(boolean writable) {
         this(writable, false, false, false, false);
     }
@@ -78,6 +83,15 @@ public class RedoPlayer {
 
     public void shutdown() {
         mOpsMap.clear();
+        logReplayRate("Replayed");
+    }
+
+    private void logReplayRate(String verb) {
+        long count = mReplayCount.getAndSet(0);
+        if (count > 0) {
+            long elapsed = Math.max(System.currentTimeMillis() - mReplayStart, 1);
+            ZimbraLog.redolog.info("%s %d ops in %dms (%.1f ops/sec)", verb, count, elapsed, count * 1000.0 / elapsed);
+        }
     }
 
     public void scanLog(File logfile, boolean redoCommitted, Map<Integer, Integer> mboxIDsMap,
@@ -350,12 +364,34 @@ public class RedoPlayer {
      * @throws Exception
      */
     protected void playOp(RedoableOp op) throws Exception {
+        execute(op);
+    }
+
+    /**
+     * Redoes the operation, remapping its mailbox if mailbox conflict handling is on.  Safe to call from
+     * multiple threads.
+     */
+    protected void execute(RedoableOp op) throws Exception {
+        countReplay();
         if (handleMailboxConflict) {
             redoOpWithMboxConflict(op);
         } else {
             op.redo();
         }
     }
+
+    private void countReplay() {
+        if (mReplayCount.getAndIncrement() == 0) {
+            mReplayStart = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Waits until every operation handed to {@link #playOp} or {@link #recoverOp} has finished.  Ops are
+     * executed synchronously here, so there is nothing to wait for.
+     */
+    protected void awaitReplay() throws ServiceException {
+    }
     
     protected void redoOpWithMboxConflict(RedoableOp op) throws Exception {
         try {
@@ -433,33 +469,44 @@ public class RedoPlayer {
                     continue;
                 }
 
-                if (ZimbraLog.redolog.isInfoEnabled())
-                    ZimbraLog.redolog.info("REDOING: " + op);
-
-                boolean success = false;
-                try {
-                    op.redo();
-                    success = true;
-                } catch (Exception e) {
-                    ZimbraLog.redolog.error("Redo failed for [" + op + "]." +
-                            "  Backend state of affected item is indeterminate." +
-                            "  Marking operation as aborted and moving on.", e);
-                } finally {
-                    if (success) {
-                        CommitTxn commit = new CommitTxn(op);
-                        redoLogMgr.logOnly(commit, true);
-                    } else {
-                        AbortTxn abort = new AbortTxn(op);
-                        redoLogMgr.logOnly(abort, true);
-                    }
-                }
+                recoverOp(redoLogMgr, op);
             }
+            awaitReplay();
             mOpsMap.clear();
         }
+        logReplayRate("Redid");
 
         return numOps;
     }
 
+    /**
+     * Redoes an uncommitted operation found during crash recovery, then logs a commit record for it, or an
+     * abort record if the redo failed.
+     */
+    protected void recoverOp(RedoLogManager redoLogMgr, RedoableOp op) {
+        if (ZimbraLog.redolog.isInfoEnabled())
+            ZimbraLog.redolog.info("REDOING: " + op);
+
+        boolean success = false;
+        try {
+            countReplay();
+            op.redo();
+            success = true;
+        } catch (Exception e) {
+            ZimbraLog.redolog.error("Redo failed for [" + op + "]." +
+                    "  Backend state of affected item is indeterminate." +
+                    "  Marking operation as aborted and moving on.", e);
+        } finally {
+            if (success) {
+                CommitTxn commit = new CommitTxn(op);
+                redoLogMgr.logOnly(commit, true);
+            } else {
+                AbortTxn abort = new AbortTxn(op);
+                redoLogMgr.logOnly(abort, true);
+            }
+        }
+    }
+
     /**
      * Returns a copy of the pending ops map.
      * @return
@@ -33,6 +33,7 @@ import com.zimbra.cs.redolog.RedoCommitCallback;
 import com.zimbra.cs.redolog.RedoConfig;
 import com.zimbra.cs.redolog.RedoLogManager;
 import com.zimbra.cs.redolog.RolloverManager;
+import com.zimbra.cs.redolog.TransactionId;
 import com.zimbra.cs.redolog.op.CommitTxn;
 import com.zimbra.cs.redolog.op.RedoableOp;
 import com.zimbra.cs.util.Zimbra;
@@ -365,8 +366,7 @@ public class FileLogWriter implements LogWriter {
     	mNoStat = b;
     }
 
-    @SuppressWarnings("unchecked")
-    @Override public synchronized File rollover(LinkedHashMap /*<TxnId, RedoableOp>*/ activeOps)
+    @Override public synchronized File rollover(LinkedHashMap<TransactionId, RedoableOp> activeOps)
     throws IOException {
         RolloverManager romgr = mRedoLogMgr.getRolloverManager();
 
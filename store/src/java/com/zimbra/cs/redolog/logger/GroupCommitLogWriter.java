@@ -0,0 +1,490 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2019 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.redolog.CommitId;
+import com.zimbra.cs.redolog.RedoCommitCallback;
+import com.zimbra.cs.redolog.RedoConfig;
+import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.RolloverManager;
+import com.zimbra.cs.redolog.TransactionId;
+import com.zimbra.cs.redolog.op.CommitTxn;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * File-based {@link LogWriter} that does group commit instead of fsyncing on a timer.
+ * <p>
+ * Logging threads serialize their record into a byte array and publish it into a bounded multi-producer
+ * ring buffer without taking any lock.  A single writer thread drains everything published so far, writes it
+ * with one gathering write, fsyncs once for the whole batch, runs the commit callbacks in log order and then
+ * wakes up the synchronous callers in the batch.  While an fsync is in progress new records simply accumulate
+ * in the ring and go out with the next batch, so the batch size grows with load and there is no fixed sleep.
+ * <p>
+ * The on-disk format is identical to {@link FileLogWriter}'s; the two writers are interchangeable.
+ */
+public class GroupCommitLogWriter implements LogWriter {
+
+    private static String sServerId;
+    static {
+        try {
+            sServerId = Provisioning.getInstance().getLocalServer().getId();
+        } catch (ServiceException e) {
+            ZimbraLog.redolog.error("Unable to get local server ID", e);
+            sServerId = "unknown";
+        }
+    }
+
+    private static final int RING_SIZE = 4096;  // must be a power of 2
+    private static final int MAX_BATCH = 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final RedoLogManager mRedoLogMgr;
+    private final FileHeader mHeader;   // also guards mRAF
+    private final boolean mFsyncDisabled;
+
+    private File mFile;
+    private RandomAccessFile mRAF;
+    private volatile boolean mOpen;
+    private volatile long mCreateTime;
+    private volatile long mLastLogTime;
+    private final AtomicLong mSize = new AtomicLong();  // file size plus records not yet written
+    private long mFirstOpTstamp;    // writer thread only, while open
+    private long mLastOpTstamp;     // writer thread only, while open
+
+    private final AtomicReferenceArray<Record> mRing = new AtomicReferenceArray<Record>(RING_SIZE);
+    private final AtomicLong mClaimed = new AtomicLong();   // next ring sequence to hand out
+    private volatile long mConsumed;    // every sequence below this has been taken by the writer thread
+    private volatile WriterThread mWriter;
+
+    // for gathering some stats; nonessential for functionality
+    private final AtomicLong mLogCount = new AtomicLong();
+    private long mFsyncCount;
+
+    public GroupCommitLogWriter(RedoLogManager redoLogMgr, File logfile) {
+        mRedoLogMgr = redoLogMgr;
+        mHeader = new FileHeader(sServerId);
+        mFile = logfile;
+        mSize.set(mFile.length());
+        mLastLogTime = mFile.lastModified();
+        mFsyncDisabled = DebugConfig.disableRedoLogFsync;
+    }
+
+    @Override public long getSequence() {
+        synchronized (mHeader) {
+            return mHeader.getSequence();
+        }
+    }
+
+    @Override public long getSize() {
+        return mSize.get();
+    }
+
+    @Override public long getCreateTime() {
+        return mCreateTime;
+    }
+
+    @Override public long getLastLogTime() {
+        return mLastLogTime;
+    }
+
+    @Override public boolean isEmpty() throws IOException {
+        return getSize() <= FileHeader.HEADER_LEN;
+    }
+
+    @Override public boolean exists() {
+        return mFile.exists();
+    }
+
+    @Override public String getAbsolutePath() {
+        return mFile.getAbsolutePath();
+    }
+
+    @Override public boolean renameTo(File dest) {
+        return mFile.renameTo(dest);
+    }
+
+    @Override public boolean delete() {
+        return mFile.delete();
+    }
+
+    @Override public synchronized void open() throws IOException {
+        if (mOpen) {
+            return;
+        }
+        synchronized (mHeader) {
+            mRAF = new RandomAccessFile(mFile, "rw");
+            if (mRAF.length() >= FileHeader.HEADER_LEN) {
+                mHeader.read(mRAF);
+                mCreateTime = mHeader.getCreateTime();
+                if (mCreateTime == 0) {
+                    mCreateTime = System.currentTimeMillis();
+                    mHeader.setCreateTime(mCreateTime);
+                }
+                mFirstOpTstamp = mHeader.getFirstOpTstamp();
+                mLastOpTstamp = mHeader.getLastOpTstamp();
+            } else {
+                mCreateTime = System.currentTimeMillis();
+                mHeader.setCreateTime(mCreateTime);
+                mHeader.setSequence(mRedoLogMgr.getCurrentLogSequence());
+                mFirstOpTstamp = mLastOpTstamp = 0;
+            }
+            mHeader.setOpen(true);
+            mHeader.write(mRAF);
+
+            // go to the end of file, so we can append
+            long len = mRAF.length();
+            mRAF.seek(len);
+            mSize.set(len);
+        }
+        mFsyncCount = 0;
+        mLogCount.set(0);
+        mWriter = new WriterThread();
+        mWriter.start();
+        mOpen = true;
+    }
+
+    @Override public synchronized void close() throws IOException {
+        if (!mOpen) {
+            return;
+        }
+        mOpen = false;
+        mWriter.stopThread();  // drains every record published before this point
+        mWriter = null;
+
+        synchronized (mHeader) {
+            if (mLastOpTstamp != 0) {
+                mHeader.setLastOpTstamp(mLastOpTstamp);
+            }
+            mHeader.setOpen(false);
+            mHeader.setFileSize(mRAF.length());
+            mHeader.write(mRAF);
+
+            mRAF.getChannel().force(true);
+            mRAF.close();
+            mRAF = null;
+        }
+
+        if (mLogCount.get() > 0 && ZimbraLog.redolog.isDebugEnabled()) {
+            ZimbraLog.redolog.debug("Logged: " + mLogCount.get() + " items, " + mFsyncCount + " fsyncs");
+        }
+    }
+
+    /**
+     * Appends the supplied bytes to the ring buffer.  If <tt>synchronous</tt> is true, waits until the
+     * group commit that covers the record has been fsynced; otherwise returns right away and the record goes
+     * out with the next batch.
+     */
+    @Override public void log(RedoableOp op, InputStream data, boolean synchronous) throws IOException {
+        if (!mOpen) {
+            throw new IOException("Redolog file closed");
+        }
+        // Read the data in the calling thread so that nothing is serialized while the writer thread is busy.
+        byte[] bytes = ByteUtil.getContent(data, 1024);
+
+        RedoCommitCallback callback = null;
+        CommitId cid = null;
+        if (op instanceof CommitTxn) {
+            callback = ((CommitTxn) op).getCallback();
+            if (callback != null) {
+                // made only after the commit record has been fsynced
+                cid = new CommitId(mRedoLogMgr.getRolloverManager().getCurrentSequence(), (CommitTxn) op);
+            }
+        }
+
+        Record rec = new Record(bytes, op.getTimestamp(), callback, cid, synchronous ? Thread.currentThread() : null);
+        mSize.addAndGet(bytes.length);
+        mLastLogTime = System.currentTimeMillis();
+        mLogCount.incrementAndGet();
+        publish(rec);
+        if (synchronous) {
+            await(rec);
+        }
+    }
+
+    /**
+     * Waits until everything logged so far has been written and fsynced.
+     */
+    @Override public void flush() throws IOException {
+        if (!mOpen) {
+            return;
+        }
+        Record barrier = new Record(null, 0, null, null, Thread.currentThread());
+        publish(barrier);
+        await(barrier);
+    }
+
+    private void publish(Record rec) throws IOException {
+        long seq = mClaimed.getAndIncrement();
+        // The ring is full: wait for the writer to catch up.  This only happens when the disk can't keep up.
+        while (seq - mConsumed >= RING_SIZE) {
+            checkWriter();
+            LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(50));
+        }
+        mRing.set((int) (seq & (RING_SIZE - 1)), rec);
+        WriterThread writer = mWriter;
+        if (writer != null && writer.mIdle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void await(Record rec) throws IOException {
+        boolean interrupted = false;
+        while (!rec.mDone) {
+            checkWriter();
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            ZimbraLog.redolog.info("Thread interrupted during group commit");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkWriter() throws IOException {
+        WriterThread writer = mWriter;
+        if (writer == null || !writer.isAlive()) {
+            throw new IOException("Redolog file closed");
+        }
+    }
+
+    /**
+     * Takes every record published contiguously from {@link #mConsumed} onward, up to {@link #MAX_BATCH}.
+     */
+    private void drain(List<Record> batch) {
+        long next = mConsumed;
+        while (batch.size() < MAX_BATCH) {
+            int slot = (int) (next & (RING_SIZE - 1));
+            Record rec = mRing.get(slot);
+            if (rec == null) {
+                break;
+            }
+            mRing.set(slot, null);
+            batch.add(rec);
+            next++;
+        }
+        mConsumed = next;
+    }
+
+    private boolean hasPublished() {
+        return mRing.get((int) (mConsumed & (RING_SIZE - 1))) != null;
+    }
+
+    private void commit(List<Record> batch) throws IOException {
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(batch.size());
+        synchronized (mHeader) {
+            for (Record rec : batch) {
+                if (rec.mData == null) {
+                    continue;
+                }
+                mLastOpTstamp = Math.max(rec.mTstamp, mLastOpTstamp);
+                if (mFirstOpTstamp == 0) {
+                    // Record first transaction in header.
+                    mFirstOpTstamp = rec.mTstamp;
+                    mHeader.setFirstOpTstamp(mFirstOpTstamp);
+                    mHeader.setLastOpTstamp(mLastOpTstamp);
+                    long pos = mRAF.getFilePointer();
+                    mHeader.write(mRAF);
+                    mRAF.seek(pos);
+                }
+                buffers.add(ByteBuffer.wrap(rec.mData));
+            }
+
+            FileChannel channel = mRAF.getChannel();
+            ByteBuffer[] srcs = buffers.toArray(new ByteBuffer[buffers.size()]);
+            long remaining = 0;
+            for (ByteBuffer buf : srcs) {
+                remaining += buf.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(srcs);
+            }
+
+            if (!mFsyncDisabled) {
+                long start = System.nanoTime();
+                channel.force(false);
+                ZimbraPerf.HISTOGRAM_REDO_FSYNC_US.increment(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                mFsyncCount++;
+            }
+        }
+        ZimbraPerf.HISTOGRAM_REDO_COMMIT_BATCH.increment(batch.size());
+
+        // Callbacks are made in log order, and only after the commit records are on disk.
+        for (Record rec : batch) {
+            if (rec.mCallback != null) {
+                try {
+                    rec.mCallback.callback(rec.mCommitId);
+                } catch (OutOfMemoryError e) {
+                    Zimbra.halt("out of memory", e);
+                } catch (Throwable t) {
+                    ZimbraLog.misc.error("Error while making commit callback", t);
+                }
+            }
+        }
+        for (Record rec : batch) {
+            rec.mDone = true;
+            if (rec.mWaiter != null) {
+                LockSupport.unpark(rec.mWaiter);
+            }
+        }
+    }
+
+    @Override public synchronized File rollover(LinkedHashMap<TransactionId, RedoableOp> activeOps)
+    throws IOException {
+        RolloverManager romgr = mRedoLogMgr.getRolloverManager();
+
+        long lastSeq = getSequence();
+
+        // Close current log, so it's impossible for its content to change.
+        close();
+
+        romgr.incrementSequence();
+
+        String currentPath = mFile.getAbsolutePath();
+
+        // Open a temporary logger.
+        File tempLogfile = new File(mFile.getParentFile(), romgr.getTempFilename(lastSeq + 1));
+        FileLogWriter tempLogger = new FileLogWriter(mRedoLogMgr, tempLogfile, 0);
+        tempLogger.open();
+        tempLogger.noStat(true);
+
+        // Rewrite change entries for all active operations, maintaining
+        // their order of occurrence.  (LinkedHashMap ensures ordering.)
+        for (RedoableOp op : activeOps.values()) {
+            tempLogger.log(op, op.getInputStream(), false);
+        }
+        tempLogger.close();
+
+        // Rename the current log to rolled-over name.
+        File rolloverFile = romgr.getRolloverFile(lastSeq);
+        if (RedoConfig.redoLogDeleteOnRollover()) {
+            // Delete the current log.  We don't need to hold on to the
+            // indexing-only log files after rollover.
+            if (!mFile.delete())
+                throw new IOException("Unable to delete current redo log " + mFile.getAbsolutePath());
+        } else {
+            File destDir = rolloverFile.getParentFile();
+            if (destDir != null && !destDir.exists())
+                destDir.mkdirs();
+            if (!mFile.renameTo(rolloverFile))
+                throw new IOException("Unable to rename current redo log to " + rolloverFile.getAbsolutePath());
+        }
+
+        // Rename the temporary logger to current logfile name.
+        String tempPath = tempLogfile.getAbsolutePath();
+        mFile = new File(currentPath);
+        if (!tempLogfile.renameTo(mFile))
+            throw new IOException("Unable to rename " + tempPath + " to " + currentPath);
+
+        // Reopen current log.
+        open();
+
+        return rolloverFile;
+    }
+
+    private static final class Record {
+        final byte[] mData;     // null for a flush() barrier
+        final long mTstamp;
+        final RedoCommitCallback mCallback;
+        final CommitId mCommitId;
+        final Thread mWaiter;   // null for asynchronous records
+        volatile boolean mDone;
+
+        Record(byte[] data, long tstamp, RedoCommitCallback callback, CommitId cid, Thread waiter) {
+            mData = data;
+            mTstamp = tstamp;
+            mCallback = callback;
+            mCommitId = cid;
+            mWaiter = waiter;
+        }
+    }
+
+    private class WriterThread extends Thread {
+        private volatile boolean mRunning = true;
+        volatile boolean mIdle;
+
+        WriterThread() {
+            super("GroupCommitLogWriter-" + System.currentTimeMillis());
+            setDaemon(true);
+        }
+
+        @Override public void run() {
+            ZimbraLog.redolog.info("Starting group commit writer for %s", mFile.getAbsolutePath());
+            List<Record> batch = new ArrayList<Record>();
+            while (true) {
+                drain(batch);
+                if (batch.isEmpty()) {
+                    if (!mRunning && mConsumed == mClaimed.get()) {
+                        break;
+                    }
+                    mIdle = true;
+                    if (!hasPublished()) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    mIdle = false;
+                    continue;
+                }
+                try {
+                    commit(batch);
+                } catch (IOException e) {
+                    Zimbra.halt("Error while writing " + mFile.getAbsolutePath() + "; Aborting.", e);
+                }
+                batch.clear();
+            }
+            ZimbraLog.redolog.info("group commit writer exiting");
+        }
+
+        // Stop the writer thread once it has drained the ring.  Wait until the thread really stops.
+        void stopThread() {
+            mRunning = false;
+            LockSupport.unpark(this);
+            try {
+                while (isAlive()) {
+                    join(Constants.MILLIS_PER_MINUTE);
+                    if (isAlive()) {
+                        ZimbraLog.redolog.info("waiting for %s to finish.", getName());
+                    }
+                }
+            } catch (InterruptedException e) {
+                ZimbraLog.redolog.warn("InterruptedException while stopping %s", getName(), e);
+            }
+        }
+    }
+}
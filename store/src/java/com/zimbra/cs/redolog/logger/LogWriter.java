@@ -28,6 +28,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.LinkedHashMap;
 
+import com.zimbra.cs.redolog.TransactionId;
 import com.zimbra.cs.redolog.op.RedoableOp;
 
 /**
@@ -132,7 +133,7 @@ public interface LogWriter {
      * @return java.io.File object for rolled over logfile
      * @throws IOException
      */
-    public File rollover(LinkedHashMap /*<TxnId, RedoableOp>*/ activeOps)
+    public File rollover(LinkedHashMap<TransactionId, RedoableOp> activeOps)
     throws IOException;
 
     /**
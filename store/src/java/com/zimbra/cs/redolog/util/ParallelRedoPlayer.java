@@ -18,14 +18,22 @@
 package com.zimbra.cs.redolog.util;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.redolog.RedoLogManager;
 import com.zimbra.cs.redolog.RedoPlayer;
 import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.redolog.op.StoreIncomingBlob;
 import com.zimbra.cs.util.Zimbra;
 
+/**
+ * Replays ops on a pool of player threads.  Ops for the same mailbox always go to the same thread, so they are
+ * played back in log order; ops that aren't scoped to a single mailbox are run by the calling thread behind a
+ * barrier that waits for every queued op to finish first.  Used both for log playback and for crash recovery.
+ */
 public class ParallelRedoPlayer extends RedoPlayer {
 
     private PlayerThread[] mPlayerThreads;
@@ -49,37 +57,100 @@ public class ParallelRedoPlayer extends RedoPlayer {
     @Override public void shutdown() {
         ZimbraLog.redolog.debug("Shutting down ParallelRedoPlayer");
         try {
-            super.shutdown();
-        } finally {
             for (int i = 0; i < mPlayerThreads.length; i++) {
                 mPlayerThreads[i].shutdown();
             }
+        } finally {
+            super.shutdown();
         }
         ZimbraLog.redolog.debug("ParallelRedoPlayer shutdown complete");
     }
 
-    @Override protected void playOp(RedoableOp op) throws Exception {
+    @Override protected void playOp(final RedoableOp op) throws Exception {
         checkError();
-        int mboxId = op.getMailboxId();
-        if (mboxId == RedoableOp.MAILBOX_ID_ALL || mboxId == RedoableOp.UNKNOWN_ID) {
+        if (!isMailboxScoped(op)) {
             // Multi-mailbox ops are executed by the main thread to prevent later ops
             // that depend on this op's result aren't run out of order.
+            awaitQueuedOps(op);
             if (ZimbraLog.redolog.isDebugEnabled())
                 ZimbraLog.redolog.info("Executing: " + op.toString());
-            op.redo();
+            execute(op);
         } else {
             // Ops for the same mailbox must be played back in order.  To ensure that,
             // all ops for the same mailbox are sent to the same player thread.  The
             // ops are added to the thread's internal queue and played back in order.
             // This assignment of ops to threads will result in uneven distribution.
-            int index = Math.abs(mboxId % mPlayerThreads.length);
-            PlayerThread player = mPlayerThreads[index];
-            RedoTask task = new RedoTask(op);
             if (ZimbraLog.redolog.isDebugEnabled())
                 ZimbraLog.redolog.info("Enqueuing: " + op.toString());
+            enqueue(op, new RedoTask(op) {
+                @Override void run() throws Exception {
+                    if (ZimbraLog.redolog.isDebugEnabled()) {
+                        ZimbraLog.redolog.info("Executing: " + op.toString());
+                    }
+                    execute(op);
+                }
+            });
+        }
+    }
+
+    @Override protected void recoverOp(final RedoLogManager redoLogMgr, final RedoableOp op) {
+        if (!isMailboxScoped(op)) {
             try {
-                player.enqueue(task);
-            } catch (InterruptedException e) {}
+                awaitQueuedOps(op);
+            } catch (ServiceException e) {
+                ZimbraLog.redolog.warn("Error waiting for pending redo ops before " + op, e);
+            }
+            super.recoverOp(redoLogMgr, op);
+        } else {
+            enqueue(op, new RedoTask(op) {
+                @Override void run() {
+                    ParallelRedoPlayer.super.recoverOp(redoLogMgr, op);
+                }
+            });
+        }
+    }
+
+    @Override protected void awaitReplay() throws ServiceException {
+        barrier();
+        checkError();
+    }
+
+    private static boolean isMailboxScoped(RedoableOp op) {
+        int mboxId = op.getMailboxId();
+        return mboxId != RedoableOp.MAILBOX_ID_ALL && mboxId != RedoableOp.UNKNOWN_ID;
+    }
+
+    /**
+     * Called before running a non-mailbox op in the calling thread.  Server-wide ops (volume changes etc.)
+     * must not overtake anything logged before them, so wait for the player threads to go idle.
+     * StoreIncomingBlob only writes a new blob that later ops depend on, and doesn't depend on anything
+     * queued before it, so it doesn't need the barrier; skipping it keeps delivery-heavy logs parallel.
+     */
+    private void awaitQueuedOps(RedoableOp op) throws ServiceException {
+        if (!(op instanceof StoreIncomingBlob)) {
+            barrier();
+        }
+    }
+
+    private void enqueue(RedoableOp op, RedoTask task) {
+        int index = Math.abs(op.getMailboxId() % mPlayerThreads.length);
+        try {
+            mPlayerThreads[index].enqueue(task);
+        } catch (InterruptedException e) {}
+    }
+
+    /**
+     * Waits until every player thread has finished the tasks queued before this call.
+     */
+    private void barrier() throws ServiceException {
+        CountDownLatch latch = new CountDownLatch(mPlayerThreads.length);
+        try {
+            for (int i = 0; i < mPlayerThreads.length; i++) {
+                mPlayerThreads[i].enqueue(new BarrierTask(latch));
+            }
+            latch.await();
+        } catch (InterruptedException e) {
+            throw ServiceException.FAILURE("interrupted while waiting for redo player threads", e);
         }
     }
 
@@ -111,6 +182,7 @@ public class ParallelRedoPlayer extends RedoPlayer {
         public RedoTask(RedoableOp op)  { mOp = op; }
         public RedoableOp getOp()       { return mOp; }
         public boolean isShutdownTask() { return false; }
+        void run() throws Exception     { }
     }
 
     /**
@@ -122,6 +194,15 @@ public class ParallelRedoPlayer extends RedoPlayer {
         public boolean isShutdownTask() { return true; }
     }
 
+    /**
+     * Special task that signals when a thread has drained everything queued ahead of it.
+     */
+    private static class BarrierTask extends RedoTask {
+        private final CountDownLatch mLatch;
+        public BarrierTask(CountDownLatch latch) { super(null); mLatch = latch; }
+        @Override void run()                     { mLatch.countDown(); }
+    }
+
     private class PlayerThread extends Thread {
         private BlockingQueue<RedoTask> mQueue;
 
@@ -157,7 +238,7 @@ public class ParallelRedoPlayer extends RedoPlayer {
                 if (task.isShutdownTask())
                     break;
 
-                if (hadError()) {
+                if (hadError() && !(task instanceof BarrierTask)) {
                     // If there was an error, keep consuming from the queue without executing anything.
                     // This thread must consume all tasks until shutdown task is received.  If this
                     // thread stopped consuming, the producer may not be able to enqueue the shutdown
@@ -167,14 +248,7 @@ public class ParallelRedoPlayer extends RedoPlayer {
 
                 RedoableOp op = task.getOp();
                 try {
-                    if (ZimbraLog.redolog.isDebugEnabled()) {
-                        ZimbraLog.redolog.info("Executing: " + op.toString());
-                    }
-                    if (handleMailboxConflict) {
-                        redoOpWithMboxConflict(op);
-                    } else {
-                        op.redo();
-                    }
+                    task.run();
                 } catch (OutOfMemoryError oome) {
                     Zimbra.halt("Out of memory while executing redo op", oome);
                 } catch (Throwable e) {
@@ -98,7 +98,9 @@ import com.zimbra.cs.util.Zimbra;
  * delivery) or system operations (volume ops) are executed by the main thread.
  * This is necessary to guarantee that latermailbox-specific operations that
  * depend on the non-mailbox-specific operation (e.g. CreateMessage that links
- * to blob stored by StoreIncomingBlob) are not started out of order.
+ * to blob stored by StoreIncomingBlob) are not started out of order.  System
+ * operations additionally wait for all queued mailbox operations to finish
+ * before they run.
  *
  * Specify --queueCapacity <number of ops> to set the capacity of the operation
  * queue used by each replay thread.  Default capacity is 100.  This parameter
@@ -85,6 +85,14 @@ public final class NioConnection {
         session.setAttribute(SaslFilter.DISABLE_ENCRYPTION_ONCE, true);
     }
 
+    /**
+     * Returns true if nothing in the filter chain transforms outgoing bytes, so file content can be written to the
+     * socket as is.
+     */
+    public boolean isPlaintext() {
+        return !session.getFilterChain().contains(SslFilter.class) && !session.getFilterChain().contains(SaslFilter.class);
+    }
+
     public void send(Object obj) {
         session.write(obj);
     }
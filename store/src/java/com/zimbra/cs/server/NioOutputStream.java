@@ -17,10 +17,14 @@
 
 package com.zimbra.cs.server;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.DefaultFileRegion;
+import org.apache.mina.core.future.IoFutureListener;
 import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
 
@@ -79,6 +83,41 @@ public final class NioOutputStream extends OutputStream {
         buf.put((byte) b);
     }
 
+    /**
+     * Writes {@code count} bytes of {@code channel} starting at {@code position} as a MINA file region, so the I/O
+     * processor transfers them straight from the file to the socket.  The caller must make sure there is no filter
+     * in the chain that needs to see the bytes (e.g. TLS or SASL encryption).  {@code resource} is closed once the
+     * region has been written, or right away if it could not be queued.
+     */
+    public synchronized void writeFile(FileChannel channel, long position, long count, final Closeable resource)
+    throws IOException {
+        WriteFuture future;
+        long writeBytes;
+        try {
+            flush();
+            writeBytes = session.getScheduledWriteBytes();
+            future = session.write(new DefaultFileRegion(channel, position, count));
+        } catch (IOException | RuntimeException e) {
+            close(resource);
+            throw e;
+        }
+        future.addListener(new IoFutureListener<WriteFuture>() {
+            @Override
+            public void operationComplete(WriteFuture future) {
+                close(resource);
+            }
+        });
+        awaitScheduledWrites(writeBytes, future);
+    }
+
+    private static void close(Closeable resource) {
+        try {
+            resource.close();
+        } catch (IOException e) {
+            ZimbraLog.nio.debug("unable to close %s", resource, e);
+        }
+    }
+
     @Override
     public synchronized void flush() throws IOException {
         if (buf.position() > 0) {
@@ -91,6 +130,10 @@ public final class NioOutputStream extends OutputStream {
     private synchronized void writeToSession(Object output) throws IOException {
         long writeBytes = session.getScheduledWriteBytes();
         WriteFuture future = session.write(output);
+        awaitScheduledWrites(writeBytes, future);
+    }
+
+    private void awaitScheduledWrites(long writeBytes, WriteFuture future) throws IOException {
         if (writeBytes > maxScheduledBytes) {
             ZimbraLog.nio.debug("IOSession has %d scheduled write bytes; waiting for buffer to catch up", writeBytes);
             long start = System.currentTimeMillis();
@@ -86,7 +86,7 @@ public class GetMailboxStats extends AdminDocumentHandler {
         List<Mailbox.MailboxData> result = null;
         DbConnection conn = null;
         try {
-            conn = DbPool.getConnection();
+            conn = DbPool.getReadConnection(null);
             result = DbMailbox.getMailboxRawData(conn);
         } finally {
             DbPool.quietClose(conn);
@@ -41,8 +41,11 @@ implements StatsDumperDataSource {
     }
     
     public void addStat(String commandName, long startTime) {
-        Counter counter = getCounter(commandName);
-        counter.increment(System.currentTimeMillis() - startTime);
+        addElapsed(commandName, System.currentTimeMillis() - startTime);
+    }
+
+    public void addElapsed(String commandName, long millis) {
+        getCounter(commandName).increment(millis);
     }
     
     private Counter getCounter(String commandName) {
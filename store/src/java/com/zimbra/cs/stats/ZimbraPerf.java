@@ -40,6 +40,8 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Accumulator;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.stats.DeltaCalculator;
+import com.zimbra.common.stats.Histogram;
+import com.zimbra.common.stats.PercentileCalculator;
 import com.zimbra.common.stats.RealtimeStats;
 import com.zimbra.common.stats.RealtimeStatsCallback;
 import com.zimbra.common.stats.StatsDumper;
@@ -67,6 +69,12 @@ public class ZimbraPerf {
     @Description("InnoDB buffer pool hit rate")
     public static final String RTS_INNODB_BP_HIT_RATE = "innodb_bp_hit_rate";
 
+    @Description("Prepared statement cache hit rate")
+    public static final String RTS_DB_STMT_CACHE_HIT_RATE = "db_stmt_cache_hit_rate";
+
+    @Description("Average time (microseconds) the JDBC driver took to prepare a statement that wasn't cached")
+    public static final String RTS_DB_PREPARE_US_AVG = "db_prepare_us_avg";
+
     @Description("Number of LMTP connections")
     public static final String RTS_LMTP_CONN = "lmtp_conn";
 
@@ -112,12 +120,27 @@ public class ZimbraPerf {
     @Description("Number of message structures cached in memory")
     public static final String RTS_MSG_CACHE_SIZE = "msg_cache_size";
 
+    @Description("Estimated number of bytes held by the message cache, including expanded messages")
+    public static final String RTS_MSG_CACHE_BYTES = "msg_cache_bytes";
+
+    @Description("Estimated number of bytes held by the mailbox item caches")
+    public static final String RTS_ITEM_CACHE_BYTES = "item_cache_bytes";
+
+    @Description("Number of mailboxes waiting for an index thread")
+    public static final String RTS_IDX_QUEUE_SIZE = "idx_queue_size";
+
+    @Description("Number of index segment merges waiting to run")
+    public static final String RTS_IDX_MERGE_BACKLOG = "idx_merge_backlog";
+
     @Description("Number of open file descriptors that reference message content")
     public static final String RTS_FD_CACHE_SIZE = "fd_cache_size";
 
     @Description("File descriptor cache hit rate")
     public static final String RTS_FD_CACHE_HIT_RATE = "fd_cache_hit_rate";
 
+    @Description("Number of bytes of message content memory-mapped by the file descriptor cache")
+    public static final String RTS_FD_CACHE_MAPPED_BYTES = "fd_cache_mapped_bytes";
+
     // LDAP provisioning caches.
     @Description("LDAP ACL cache hit rate")
     public static final String RTS_ACL_CACHE_HIT_RATE = "acl_cache_hit_rate";
@@ -183,9 +206,16 @@ public class ZimbraPerf {
     public static final StopWatch STOPWATCH_MBOX_GET = new StopWatch();         // Mailbox accessor response time
     public static final Counter COUNTER_MBOX_CACHE = new Counter();           // Mailbox cache hit rate
     public static final Counter COUNTER_MBOX_MSG_CACHE = new Counter();
+    public static final Counter COUNTER_MBOX_MSG_CACHE_EXPANDED = new Counter();
     public static final Counter COUNTER_MBOX_ITEM_CACHE = new Counter();
+    public static final Counter COUNTER_MBOX_ITEM_CACHE_EVICTIONS = new Counter();
+    public static final Counter COUNTER_SEARCH_RESULT_CACHE = new Counter();
+    public static final Counter COUNTER_IDX_WILDCARD_CACHE = new Counter();
+    public static final Counter COUNTER_DB_STMT_REQUESTS = new Counter();
+    public static final Counter COUNTER_DB_STMT_PREPARE_US = new Counter();
     public static final StopWatch STOPWATCH_SOAP = new StopWatch();
     public static final StopWatch STOPWATCH_IMAP = new StopWatch();
+    public static final Counter COUNTER_IMAP_ZERO_COPY_BYTES = new Counter();
     public static final StopWatch STOPWATCH_POP = new StopWatch();
     public static final Counter COUNTER_IDX_WRT = new Counter();
     public static final Counter COUNTER_IDX_WRT_OPENED = new Counter();
@@ -197,7 +227,18 @@ public class ZimbraPerf {
     public static final Counter COUNTER_IDX_BYTES_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_SEEK_RATE = new Counter();
+    public static final Counter COUNTER_FD_CACHE_OPENS = new Counter();
+    public static final Counter COUNTER_FD_CACHE_HITS = new Counter();
     public static final StopWatch STOPWATCH_EWS = new StopWatch();
+    public static final Histogram HISTOGRAM_REDO_COMMIT_BATCH = new Histogram();
+    public static final Histogram HISTOGRAM_REDO_FSYNC_US = new Histogram();
+    public static final Histogram HISTOGRAM_IDX_SEARCHER_REOPEN_US = new Histogram();
+    public static final Histogram HISTOGRAM_IDX_SEARCHER_AGE_MS = new Histogram();
+    public static final Histogram HISTOGRAM_IDX_WILDCARD_EXPAND_US = new Histogram();
+    public static final Histogram HISTOGRAM_IDX_LAG_MS = new Histogram();
+    public static final StopWatch STOPWATCH_IDX_MERGE = new StopWatch();
+    public static final Counter COUNTER_IDX_MERGE_BYTES = new Counter();
+    public static final Histogram HISTOGRAM_IDX_MERGE_WAIT_MS = new Histogram();
 
     public static final ActivityTracker SOAP_TRACKER = new ActivityTracker("soap.csv");
     public static final ActivityTracker IMAP_TRACKER = new ActivityTracker("imap.csv");
@@ -214,13 +255,14 @@ public class ZimbraPerf {
     private static Map<String, String> descriptions = Maps.newTreeMap(String.CASE_INSENSITIVE_ORDER);
 
     private static String[] mboxRealtimeStatsNames = new String[] {
-            RTS_DB_POOL_SIZE, RTS_INNODB_BP_HIT_RATE,
+            RTS_DB_POOL_SIZE, RTS_INNODB_BP_HIT_RATE, RTS_DB_STMT_CACHE_HIT_RATE, RTS_DB_PREPARE_US_AVG,
             RTS_LMTP_CONN, RTS_LMTP_THREADS,
             RTS_POP_CONN, RTS_POP_THREADS, RTS_POP_SSL_CONN, RTS_POP_SSL_THREADS,
             RTS_IMAP_CONN, RTS_IMAP_THREADS, RTS_IMAP_SSL_CONN, RTS_IMAP_SSL_THREADS,
             RTS_HTTP_IDLE_THREADS, RTS_HTTP_THREADS, RTS_SOAP_SESSIONS,
-            RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE,
-            RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE,
+            RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE, RTS_MSG_CACHE_BYTES, RTS_ITEM_CACHE_BYTES, RTS_IDX_QUEUE_SIZE,
+            RTS_IDX_MERGE_BACKLOG,
+            RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE, RTS_FD_CACHE_MAPPED_BYTES,
             RTS_ACL_CACHE_HIT_RATE,
             RTS_ACCOUNT_CACHE_SIZE, RTS_ACCOUNT_CACHE_HIT_RATE,
             RTS_COS_CACHE_SIZE, RTS_COS_CACHE_HIT_RATE,
@@ -282,9 +324,52 @@ public class ZimbraPerf {
     @Description("Message cache hit rate")
     private static final String DC_MBOX_MSG_CACHE = "mbox_msg_cache";
 
+    @Description("Message cache hit rate for expanded (TNEF, uuencode or decrypted) messages")
+    private static final String DC_MBOX_MSG_CACHE_EXPANDED = "mbox_msg_cache_expanded";
+
     @Description("Item cache hit rate")
     private static final String DC_MBOX_ITEM_CACHE = "mbox_item_cache";
 
+    @Description("Number of items evicted from the item caches to stay within the item cache budget")
+    private static final String DC_MBOX_ITEM_CACHE_EVICTIONS = "mbox_item_cache_evictions";
+
+    @Description("Search result cache hit rate")
+    private static final String DC_SEARCH_RESULT_CACHE = "search_result_cache";
+
+    @Description("Wildcard term expansion cache hit rate")
+    private static final String DC_IDX_WILDCARD_CACHE = "idx_wildcard_cache";
+
+    @Description("Number of wildcard term expansions")
+    private static final String DC_IDX_WILDCARD_EXPAND_COUNT = "idx_wildcard_expand_count";
+
+    @Description("Average wildcard term expansion latency (microseconds)")
+    private static final String DC_IDX_WILDCARD_EXPAND_US_AVG = "idx_wildcard_expand_us_avg";
+
+    @Description("99th percentile (upper bucket bound) of wildcard term expansion latency (microseconds)")
+    private static final String DC_IDX_WILDCARD_EXPAND_US_P99 = "idx_wildcard_expand_us_p99";
+
+    @Description("Average age (ms) of the oldest unindexed item of a mailbox when its batch index turn starts")
+    private static final String DC_IDX_LAG_MS_AVG = "idx_lag_ms_avg";
+
+    @Description("99th percentile (upper bucket bound) of the age (ms) of the oldest unindexed item of a mailbox when"
+            + " its batch index turn starts")
+    private static final String DC_IDX_LAG_MS_P99 = "idx_lag_ms_p99";
+
+    @Description("Number of index segment merges")
+    private static final String DC_IDX_MERGE_COUNT = "idx_merge_count";
+
+    @Description("Average duration (ms) of an index segment merge")
+    private static final String DC_IDX_MERGE_MS_AVG = "idx_merge_ms_avg";
+
+    @Description("Number of bytes read by index segment merges")
+    private static final String DC_IDX_MERGE_BYTES = "idx_merge_bytes";
+
+    @Description("Average time (ms) an index segment merge waited for a merge slot")
+    private static final String DC_IDX_MERGE_WAIT_MS_AVG = "idx_merge_wait_ms_avg";
+
+    @Description("99th percentile (upper bucket bound) of the time (ms) an index segment merge waited for a merge slot")
+    private static final String DC_IDX_MERGE_WAIT_MS_P99 = "idx_merge_wait_ms_p99";
+
     @Description("Number of SOAP requests received")
     private static final String DC_SOAP_COUNT = "soap_count";
 
@@ -297,6 +382,9 @@ public class ZimbraPerf {
     @Description("Average processing time (ms) of IMAP requests")
     private static final String DC_IMAP_MS_AVG = "imap_ms_avg";
 
+    @Description("Number of bytes of message content IMAP FETCH sent straight from blob files")
+    private static final String DC_IMAP_ZERO_COPY_BYTES = "imap_zero_copy_bytes";
+
     @Description("Number of POP3 requests received")
     private static final String DC_POP_COUNT = "pop_count";
 
@@ -309,6 +397,12 @@ public class ZimbraPerf {
     @Description("Percentage of file descriptor cache disk reads that required a seek")
     private static final String DC_BIS_SEEK_RATE = "bis_seek_rate";
 
+    @Description("Number of file descriptors opened by the blob file descriptor cache")
+    private static final String DC_FD_CACHE_OPENS = "fd_cache_opens";
+
+    @Description("Number of blob reads served by an already open file descriptor")
+    private static final String DC_FD_CACHE_HITS = "fd_cache_hits";
+
     @Description("Average number of concurrent index writers")
     private static final String DC_IDX_WRT_AVG = "idx_wrt_avg";
 
@@ -339,9 +433,39 @@ public class ZimbraPerf {
     @Description("Number of calendars (folders) in the calendar summary cache LRU in Java heap")
     private static final String DC_CALCACHE_LRU_SIZE = "calcache_lru_size";
 
+    @Description("Number of redo log group commits (one fsync each)")
+    private static final String DC_REDO_COMMIT_COUNT = "redo_commit_count";
+
+    @Description("Average number of redo log records covered by one group commit")
+    private static final String DC_REDO_COMMIT_BATCH_AVG = "redo_commit_batch_avg";
+
+    @Description("99th percentile (upper bucket bound) of redo log records covered by one group commit")
+    private static final String DC_REDO_COMMIT_BATCH_P99 = "redo_commit_batch_p99";
+
+    @Description("Average redo log group commit fsync latency (microseconds)")
+    private static final String DC_REDO_FSYNC_US_AVG = "redo_fsync_us_avg";
+
+    @Description("99th percentile (upper bucket bound) of redo log group commit fsync latency (microseconds)")
+    private static final String DC_REDO_FSYNC_US_P99 = "redo_fsync_us_p99";
+
+    @Description("Number of index searchers reopened incrementally after an index change")
+    private static final String DC_IDX_SEARCHER_REOPEN_COUNT = "idx_searcher_reopen_count";
+
+    @Description("Average index searcher reopen latency (microseconds)")
+    private static final String DC_IDX_SEARCHER_REOPEN_US_AVG = "idx_searcher_reopen_us_avg";
+
+    @Description("99th percentile (upper bucket bound) of index searcher reopen latency (microseconds)")
+    private static final String DC_IDX_SEARCHER_REOPEN_US_P99 = "idx_searcher_reopen_us_p99";
+
+    @Description("Average age (ms) of the index searcher handed out to a search")
+    private static final String DC_IDX_SEARCHER_AGE_MS_AVG = "idx_searcher_age_ms_avg";
+
+    @Description("99th percentile (upper bucket bound) of the age (ms) of the index searcher handed out to a search")
+    private static final String DC_IDX_SEARCHER_AGE_MS_P99 = "idx_searcher_age_ms_p99";
+
     private static CopyOnWriteArrayList<Accumulator> sAccumulators = null;
 
-    private static final long CSV_DUMP_FREQUENCY = Constants.MILLIS_PER_MINUTE;
+    public static final long CSV_DUMP_FREQUENCY = Constants.MILLIS_PER_MINUTE;
     private static boolean sIsInitialized = false;
     private static boolean isPrepared = false;
     /**
@@ -349,6 +473,7 @@ public class ZimbraPerf {
      * {@link DbPool.DbConnection#prepareStatement}.
      */
     private static AtomicInteger sPrepareCount = new AtomicInteger(0);
+    private static final ThreadLocal<String> sCurrentCommand = new ThreadLocal<String>();
 
     public enum ServerID {ZIMBRA, IMAP_DAEMON};
 
@@ -427,6 +552,25 @@ public class ZimbraPerf {
         sPrepareCount.getAndIncrement();
     }
 
+    /**
+     * Returns the SOAP or IMAP command the current thread is executing, or <tt>null</tt>.
+     */
+    public static String getCurrentCommand() {
+        return sCurrentCommand.get();
+    }
+
+    /**
+     * Sets the command the current thread is executing, for attributing slow database queries.  Pass
+     * <tt>null</tt> when the command finishes.
+     */
+    public static void setCurrentCommand(String command) {
+        if (command == null) {
+            sCurrentCommand.remove();
+        } else {
+            sCurrentCommand.set(command);
+        }
+    }
+
     /**
      * Adds the given callback to the list of callbacks that are called
      * during realtime stats collection.
@@ -479,11 +623,31 @@ public class ZimbraPerf {
                                     .setAverageName(DC_MBOX_GET_MS_AVG),
                             new DeltaCalculator(COUNTER_MBOX_CACHE).setAverageName(DC_MBOX_CACHE),
                             new DeltaCalculator(COUNTER_MBOX_MSG_CACHE).setAverageName(DC_MBOX_MSG_CACHE),
+                            new DeltaCalculator(COUNTER_MBOX_MSG_CACHE_EXPANDED)
+                                    .setAverageName(DC_MBOX_MSG_CACHE_EXPANDED),
                             new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE).setAverageName(DC_MBOX_ITEM_CACHE),
+                            new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE_EVICTIONS)
+                                    .setTotalName(DC_MBOX_ITEM_CACHE_EVICTIONS),
+                            new DeltaCalculator(COUNTER_SEARCH_RESULT_CACHE).setAverageName(DC_SEARCH_RESULT_CACHE),
+                            new DeltaCalculator(COUNTER_IDX_WILDCARD_CACHE).setAverageName(DC_IDX_WILDCARD_CACHE),
+                            new DeltaCalculator(HISTOGRAM_IDX_WILDCARD_EXPAND_US)
+                                    .setCountName(DC_IDX_WILDCARD_EXPAND_COUNT)
+                                    .setAverageName(DC_IDX_WILDCARD_EXPAND_US_AVG),
+                            new PercentileCalculator(HISTOGRAM_IDX_WILDCARD_EXPAND_US)
+                                    .addPercentile(99, DC_IDX_WILDCARD_EXPAND_US_P99),
+                            new DeltaCalculator(HISTOGRAM_IDX_LAG_MS).setAverageName(DC_IDX_LAG_MS_AVG),
+                            new PercentileCalculator(HISTOGRAM_IDX_LAG_MS).addPercentile(99, DC_IDX_LAG_MS_P99),
+                            new DeltaCalculator(STOPWATCH_IDX_MERGE).setCountName(DC_IDX_MERGE_COUNT)
+                                    .setAverageName(DC_IDX_MERGE_MS_AVG),
+                            new DeltaCalculator(COUNTER_IDX_MERGE_BYTES).setTotalName(DC_IDX_MERGE_BYTES),
+                            new DeltaCalculator(HISTOGRAM_IDX_MERGE_WAIT_MS).setAverageName(DC_IDX_MERGE_WAIT_MS_AVG),
+                            new PercentileCalculator(HISTOGRAM_IDX_MERGE_WAIT_MS)
+                                    .addPercentile(99, DC_IDX_MERGE_WAIT_MS_P99),
                             new DeltaCalculator(STOPWATCH_SOAP).setCountName(DC_SOAP_COUNT)
                                     .setAverageName(DC_SOAP_MS_AVG),
                             new DeltaCalculator(STOPWATCH_IMAP).setCountName(DC_IMAP_COUNT)
                                     .setAverageName(DC_IMAP_MS_AVG),
+                            new DeltaCalculator(COUNTER_IMAP_ZERO_COPY_BYTES).setTotalName(DC_IMAP_ZERO_COPY_BYTES),
                             new DeltaCalculator(STOPWATCH_POP).setCountName(DC_POP_COUNT)
                                     .setAverageName(DC_POP_MS_AVG),
                             new DeltaCalculator(COUNTER_IDX_WRT).setAverageName(DC_IDX_WRT_AVG),
@@ -503,6 +667,24 @@ public class ZimbraPerf {
                             new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_READ).setTotalName(DC_BIS_READ),
                             new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_SEEK_RATE)
                                     .setAverageName(DC_BIS_SEEK_RATE),
+                            new DeltaCalculator(COUNTER_FD_CACHE_OPENS).setTotalName(DC_FD_CACHE_OPENS),
+                            new DeltaCalculator(COUNTER_FD_CACHE_HITS).setTotalName(DC_FD_CACHE_HITS),
+                            new DeltaCalculator(HISTOGRAM_REDO_COMMIT_BATCH).setCountName(DC_REDO_COMMIT_COUNT)
+                                    .setAverageName(DC_REDO_COMMIT_BATCH_AVG),
+                            new PercentileCalculator(HISTOGRAM_REDO_COMMIT_BATCH)
+                                    .addPercentile(99, DC_REDO_COMMIT_BATCH_P99),
+                            new DeltaCalculator(HISTOGRAM_REDO_FSYNC_US).setAverageName(DC_REDO_FSYNC_US_AVG),
+                            new PercentileCalculator(HISTOGRAM_REDO_FSYNC_US)
+                                    .addPercentile(99, DC_REDO_FSYNC_US_P99),
+                            new DeltaCalculator(HISTOGRAM_IDX_SEARCHER_REOPEN_US)
+                                    .setCountName(DC_IDX_SEARCHER_REOPEN_COUNT)
+                                    .setAverageName(DC_IDX_SEARCHER_REOPEN_US_AVG),
+                            new PercentileCalculator(HISTOGRAM_IDX_SEARCHER_REOPEN_US)
+                                    .addPercentile(99, DC_IDX_SEARCHER_REOPEN_US_P99),
+                            new DeltaCalculator(HISTOGRAM_IDX_SEARCHER_AGE_MS)
+                                    .setAverageName(DC_IDX_SEARCHER_AGE_MS_AVG),
+                            new PercentileCalculator(HISTOGRAM_IDX_SEARCHER_AGE_MS)
+                                    .addPercentile(99, DC_IDX_SEARCHER_AGE_MS_P99),
                             realtimeStats
                     }
                 );
@@ -513,6 +695,7 @@ public class ZimbraPerf {
                     new Accumulator[] {
                             new DeltaCalculator(STOPWATCH_IMAP)
                                     .setCountName(DC_IMAP_COUNT).setAverageName(DC_IMAP_MS_AVG),
+                            new DeltaCalculator(COUNTER_IMAP_ZERO_COPY_BYTES).setTotalName(DC_IMAP_ZERO_COPY_BYTES),
                             realtimeStats
                     }
                 );
@@ -17,78 +17,95 @@
 
 package com.zimbra.cs.store;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.List;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.util.FileCache;
 import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
-import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
+import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
  * Caches file descriptors to blobs in the mail store.  If the blob is compressed,
  * uses a {@link FileCache} to access the uncompressed data.  Cache entries
  * that reference uncompressed blobs keep the file descriptor open until {@link #remove}
  * is called or the cache entry is aged out.
+ * <p>
+ * The read path doesn't take any cache-wide lock: entries live in a concurrent LRU map
+ * and are reference counted, so an entry that is evicted or removed while a thread is
+ * reading from it is closed by the last reader.
  */
 public class FileDescriptorCache
 {
-    private static final Log sLog = LogFactory.getLog(FileDescriptorCache.class);
+    static final Log sLog = LogFactory.getLog(FileDescriptorCache.class);
 
-    // Create the file cache with default LinkedHashMap values, but sorted by last access time.
-    private final LinkedHashMap<String, SharedFile> mCache = new LinkedHashMap<String, SharedFile>(16, 0.75f, true);
-    // Create a concurrent list for the SharedFies for which the mapping has been removed but is still in use by some threads.
-    private final List<SharedFileInfo> mInactiveCache = Collections.synchronizedList(new ArrayList<SharedFileInfo>());
-    private int mMaxSize = 1000;
+    // Least recently used entries are evicted first.
+    private final ConcurrentLinkedHashMap<String, SharedFile> mCache;
+    private volatile long mMmapThreshold = 0;
     private final FileCache<String> mUncompressedFileCache;
     private final Counter mHitRate = new Counter();
-
-    private class SharedFileInfo {
-        public String path;
-        public SharedFile file;
-
-        public SharedFileInfo(String path, SharedFile file) {
-            this.path = path;
-            this.file = file;
-        }
-    }
+    private final AtomicLong mMappedBytes = new AtomicLong();
 
     public FileDescriptorCache(FileCache<String> uncompressedCache) {
         mUncompressedFileCache = uncompressedCache;
+        mCache = new ConcurrentLinkedHashMap.Builder<String, SharedFile>()
+                .maximumWeightedCapacity(1000)
+                .listener(new EvictionListener<String, SharedFile>() {
+                    @Override
+                    public void onEviction(String path, SharedFile file) {
+                        sLog.debug("Evicting file descriptor for %s", path);
+                        retire(path, file);
+                    }
+                })
+                .build();
     }
 
-    public synchronized FileDescriptorCache setMaxSize(int maxSize) {
+    public FileDescriptorCache setMaxSize(int maxSize) {
         if (maxSize < 0)
             throw new IllegalArgumentException("maxSize value of " + maxSize + " is invalid (must be at least 0)");
 
-        mMaxSize = maxSize;
         mHitRate.reset(); // Recalculate hit rate based on the new size.
-        pruneIfNecessary();
+        mCache.setCapacity(maxSize);
+        return this;
+    }
+
+    /**
+     * Blobs whose (uncompressed) size is at least this many bytes are read through a
+     * memory mapping instead of the file descriptor.  <tt>0</tt> disables mapping.
+     */
+    public FileDescriptorCache setMmapThreshold(long bytes) {
+        mMmapThreshold = Math.max(bytes, 0);
         return this;
     }
 
     public FileDescriptorCache loadSettings() throws ServiceException {
         Server server = Provisioning.getInstance().getLocalServer();
         int fileDescriptorCacheSize = server.getMailFileDescriptorCacheSize();
+        long mmapThreshold = LC.zimbra_blob_mmap_threshold_kb.longValue() * 1024;
 
-        sLog.info("Loading settings: %s=%d.",
-            Provisioning.A_zimbraMailFileDescriptorCacheSize, fileDescriptorCacheSize);
+        sLog.info("Loading settings: %s=%d, mmap threshold=%d.",
+            Provisioning.A_zimbraMailFileDescriptorCacheSize, fileDescriptorCacheSize, mmapThreshold);
 
         setMaxSize(fileDescriptorCacheSize);
+        setMmapThreshold(mmapThreshold);
 
         return this;
     }
@@ -97,19 +114,12 @@ public class FileDescriptorCache
      * Closes all file descriptors, clears the cache, and removes any files from
      * the uncompressed cache.
      */
-    public synchronized void shutdown() {
-        Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-        while (iEntries.hasNext()) {
-            Map.Entry<String, SharedFile> entry = iEntries.next();
+    public void shutdown() {
+        for (Map.Entry<String, SharedFile> entry : mCache.entrySet()) {
             String path = entry.getKey();
             SharedFile file = entry.getValue();
-            iEntries.remove();
-            try {
-                boolean success = close(file, path);
-                if (!success)
-                    sLog.warn("Unable to close %s. File is in use.", file);
-            } catch (IOException e) {
-                sLog.warn("Unable to close %s", file, e);
+            if (mCache.remove(path, file) && !retire(path, file)) {
+                sLog.warn("Unable to close %s. File is in use.", file);
             }
         }
     }
@@ -120,25 +130,70 @@ public class FileDescriptorCache
     public int read(String path, long rawSize, long fileOffset, byte[] buf, int bufferOffset, int len)
     throws IOException {
         sLog.debug("Reading %s.  rawSize=%d, fileOffset=%d, bufferOffset=%d, len=%d.", path, rawSize, fileOffset, bufferOffset, len);
-        SharedFile file = null;
-        int numRead;
+        for (int attempt = 0; ; attempt++) {
+            SharedFile file = getSharedFile(path, rawSize);
+            try {
+                return file.read(fileOffset, buf, bufferOffset, len);
+            } catch (ClosedChannelException e) {
+                // Another reader was interrupted, which closes the channel for everybody.  Drop the
+                // entry and retry with a fresh descriptor, unless it was this thread that was interrupted.
+                mCache.remove(path, file);
+                file.retire();
+                if (e instanceof ClosedByInterruptException || attempt > 0) {
+                    throw e;
+                }
+            } finally {
+                if (file.doneReading()) {
+                    closed(path, file);
+                }
+            }
+        }
+    }
+
+    /**
+     * An open descriptor from the cache, handed out by {@link #open} to callers that transfer content straight from
+     * the file's channel.  The descriptor stays open until the lease is closed, even if the cache entry is evicted
+     * or removed in the meantime.
+     */
+    public final class Lease implements Closeable {
+        private final String path;
+        private final SharedFile file;
+        private final AtomicBoolean closed = new AtomicBoolean();
 
-        try {
-            file = getSharedFile(path, rawSize);
-            numRead = file.read(fileOffset, buf, bufferOffset, len);
-        } finally {
-            if (file != null) {
-               file.doneReading();
+        Lease(String path, SharedFile file) {
+            this.path = path;
+            this.file = file;
+        }
+
+        /**
+         * Returns the file's channel.  Only positional operations such as {@link FileChannel#transferTo} may be
+         * used, since the channel is shared with other readers.
+         */
+        public FileChannel getChannel() {
+            return file.getChannel();
+        }
+
+        /**
+         * Releases the descriptor.  Calling this more than once has no effect.
+         */
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true) && file.doneReading()) {
+                closed(path, file);
             }
         }
+    }
 
-        return numRead;
+    /**
+     * Returns a lease on the cached descriptor for the given uncompressed file, opening it if necessary.
+     */
+    public Lease open(String path, long rawSize) throws IOException {
+        sLog.debug("Leasing %s.  rawSize=%d.", path, rawSize);
+        return new Lease(path, getSharedFile(path, rawSize));
     }
 
     boolean contains(String path) {
-        synchronized (this) {
-            return mCache.containsKey(path);
-        }
+        return mCache.containsKey(path);
     }
 
     /**
@@ -146,15 +201,11 @@ public class FileDescriptorCache
      * increments the number of readers for the <tt>SharedFile</tt>.
      */
     private SharedFile getSharedFile(String path, long rawSize) throws IOException {
-        SharedFile sharedFile = null;
-
-        synchronized (this) {
-            sharedFile = mCache.get(path);
-        }
-        if (sharedFile != null) {
+        SharedFile sharedFile = mCache.get(path);
+        if (sharedFile != null && sharedFile.aboutToRead()) {
             sLog.debug("Found existing file descriptor for %s, rawSize=%d.", path, rawSize);
-            sharedFile.aboutToRead();
             mHitRate.increment(100);
+            ZimbraPerf.COUNTER_FD_CACHE_HITS.increment();
             return sharedFile;
         }
 
@@ -176,26 +227,33 @@ public class FileDescriptorCache
                     throw new IOException("Unable to get uncompressed file for " + path);
                 }
             }
-            sharedFile = new SharedFile(uncompressed.file);
+            sharedFile = new SharedFile(uncompressed.file, mMmapThreshold);
         } else {
             sLog.debug("Opening new file descriptor for %s.", path);
-            sharedFile = new SharedFile(file);
+            sharedFile = new SharedFile(file, mMmapThreshold);
         }
+        ZimbraPerf.COUNTER_FD_CACHE_OPENS.increment();
+        mMappedBytes.addAndGet(sharedFile.getMappedSize());
 
-        synchronized (this) {
-            if (mCache.containsKey(path)) {
+        // Register ourselves as a reader before publishing, so an immediate eviction can't close it under us.
+        sharedFile.aboutToRead();
+        while (true) {
+            SharedFile existing = mCache.putIfAbsent(path, sharedFile);
+            if (existing == null) {
+                sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
+                return sharedFile;
+            } else if (existing.aboutToRead()) {
                 sLog.debug("Another thread just opened the same file.  Closing our copy and returning the other one.");
-                sharedFile.close();
-                sharedFile = mCache.get(path);
+                sharedFile.doneReading();
+                if (sharedFile.retire()) {
+                    mMappedBytes.addAndGet(-sharedFile.getMappedSize());
+                }
+                return existing;
             } else {
-                sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
-                mCache.put(path, sharedFile);
+                // the cached copy was closed while we were opening ours; replace it
+                mCache.remove(path, existing);
             }
         }
-        sharedFile.aboutToRead();
-        pruneIfNecessary();
-
-        return sharedFile;
     }
 
     /**
@@ -203,69 +261,40 @@ public class FileDescriptorCache
      * descriptor is not in the cache.
      */
     public void remove(String path) throws IOException {
-        SharedFile file = null;
-
-        synchronized (this) {
-            file = mCache.remove(path);
-        }
-
+        SharedFile file = mCache.remove(path);
         if (file != null) {
-            boolean success = close(file, path);
-            if (!success)
-                mInactiveCache.add(new SharedFileInfo(path, file));
+            retire(path, file);
         } else {
             sLog.debug("Attempted to remove %s but could not find it in the cache.", path);
         }
-
-        // Close if there are any SharedFiles in the inactive cache.
-        quietCloseInactiveCache();
     }
 
     /**
-     * Close the file if it is not in use.
+     * Closes a file that is no longer in the cache if it is not in use.  Otherwise it is
+     * closed when its last reader finishes.
      * @return true if the file is closed, false otherwise.
-     * @throws IOException if there is an error closing the file.
      */
-    private boolean close(SharedFile file, String path) throws IOException {
-        if (file != null) {
-            sLog.debug("Closing file descriptor for %s, %s", path, file);
-
-            if (file.getNumReaders() == 0) {
-                file.close();
-                if (mUncompressedFileCache != null) {
-                    synchronized (this) {
-                        if (!mCache.containsKey(path)) {
-                            mUncompressedFileCache.remove(path);
-                        } else {
-                            sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.");
-                        }
-                    }
-                }
-                return true;
-            }
-            return false;
+    private boolean retire(String path, SharedFile file) {
+        sLog.debug("Closing file descriptor for %s, %s", path, file);
+        if (file.retire()) {
+            closed(path, file);
+            return true;
         }
-        return true;
+        return false;
     }
 
-    private void quietCloseInactiveCache() {
-        synchronized (mInactiveCache) {
-            Iterator<SharedFileInfo> iter = mInactiveCache.iterator();
-            while (iter.hasNext()) {
-                SharedFileInfo info = iter.next();
-                try {
-                    boolean success = close(info.file, info.path);
-                    if (success)
-                        iter.remove();
-                } catch (IOException e) {
-                    ZimbraLog.store.warn("Unable to close file descriptor for " + info.path, e);
-                    iter.remove();
-                }
+    private void closed(String path, SharedFile file) {
+        mMappedBytes.addAndGet(-file.getMappedSize());
+        if (mUncompressedFileCache != null) {
+            if (!mCache.containsKey(path)) {
+                mUncompressedFileCache.remove(path);
+            } else {
+                sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.", path);
             }
         }
     }
 
-    public synchronized int getSize() {
+    public int getSize() {
         return mCache.size();
     }
 
@@ -273,34 +302,10 @@ public class FileDescriptorCache
         return mHitRate.getAverage();
     }
 
-    private void pruneIfNecessary() {
-         if (getSize() <= mMaxSize)
-            return;
-
-        List<Map.Entry<String, SharedFile>> removeList = new ArrayList<Map.Entry<String, SharedFile>>();
-
-        synchronized (this) {
-            Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-            while (iEntries.hasNext() && mCache.size() > mMaxSize) {
-                Map.Entry<String, SharedFile> mapEntry = iEntries.next();
-                iEntries.remove();
-                removeList.add(mapEntry);
-            }
-        }
-        for (Map.Entry<String, SharedFile> mapEntry : removeList) {
-            String path = mapEntry.getKey();
-            SharedFile file = mapEntry.getValue();
-            try {
-                boolean success = close(file, path);
-                if (!success) {
-                    mInactiveCache.add(new SharedFileInfo(path, file));
-                }
-            } catch (IOException e) {
-                ZimbraLog.store.warn("Unable to close file descriptor for " + path, e);
-            }
-        }
-
-        // Close if there are any SharedFiles in the inactive cache.
-        quietCloseInactiveCache();
+    /**
+     * Returns the number of bytes currently memory-mapped by open cache entries.
+     */
+    public long getMappedBytes() {
+        return mMappedBytes.get();
     }
 }
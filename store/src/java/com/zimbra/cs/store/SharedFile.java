@@ -22,37 +22,62 @@ package com.zimbra.cs.store;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
- * Synchronized container for a <tt>RandomAccessFile</tt> object.  Used by multiple
+ * Reference-counted container for an open file.  Used by multiple
  * <tt>BlobInputStream</tt> objects that share a single file descriptor.
+ * Reads are positional, so concurrent readers don't serialize on a shared
+ * file pointer.  Files at or above the mmap threshold are memory-mapped and
+ * read straight from the mapping.
  */
 public class SharedFile {
 
-    private File mFile;
-    private RandomAccessFile mRAF;
-    private long mPos = 0;
-    
+    private static final int CLOSED = -1;
+
+    private final File mFile;
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mMapped;
+
     /**
-     * Keep track of the number of threads that are reading from this file.
-     * We do this so that we don't delete a file that's being read on
-     * Windows (bug 43497).
+     * Number of threads that are reading from this file, or {@link #CLOSED}.
+     * We do this so that we don't close or delete a file that's being read
+     * (bug 43497).
      */
-    private int mNumReaders;
-    
+    private final AtomicInteger mNumReaders = new AtomicInteger();
+
+    /** Set once the file has been dropped from the cache; the last reader closes it. */
+    private volatile boolean mRetired;
+
+    /** End of the last read, used to track how often reads are not sequential. */
+    private volatile long mLastEnd;
+
     /**
      * Remember the file's length, in case we have an open file descriptor and the
      * uncompressed cache deletes this file from disk.
      */
-    private long mLength;
+    private final long mLength;
 
     /**
      * Creates a new <tt>SharedFile</tt> and opens the underlying
      * file descriptor.
      */
     SharedFile(File file)
+    throws IOException {
+        this(file, 0);
+    }
+
+    /**
+     * Creates a new <tt>SharedFile</tt> and opens the underlying file descriptor.
+     * @param mmapThreshold files of at least this many bytes are memory-mapped;
+     *                      <tt>0</tt> disables mapping
+     */
+    SharedFile(File file, long mmapThreshold)
     throws IOException {
         if (file == null) {
             throw new NullPointerException("file cannot be null");
@@ -61,71 +86,120 @@ public class SharedFile {
             throw new IOException(file.getPath() + " does not exist.");
         }
         mFile = file;
-        mLength = file.length();
-        openIfNecessary();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        mChannel = raf.getChannel();
+        mLength = mChannel.size();
+        MappedByteBuffer mapped = null;
+        if (mmapThreshold > 0 && mLength >= mmapThreshold && mLength <= Integer.MAX_VALUE) {
+            try {
+                mapped = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mLength);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+        mMapped = mapped;
     }
 
-    synchronized long getLength() {
+    FileChannel getChannel() {
+        return mChannel;
+    }
+
+    long getLength() {
         return mLength;
     }
-    
-    synchronized int read(long fileOffset, byte[] b, int off, int len)
+
+    /**
+     * Returns the number of bytes memory-mapped for this file, or <tt>0</tt>.
+     */
+    long getMappedSize() {
+        return mMapped == null ? 0 : mLength;
+    }
+
+    int read(long fileOffset, byte[] b, int off, int len)
     throws IOException {
-        int numRead = 0;
-        boolean seeked = false;
-        openIfNecessary();
-        
-        if (mPos != fileOffset) {
-            mRAF.seek(fileOffset);
-            mPos = fileOffset;
-            seeked = true;
+        int numRead;
+        if (mMapped != null) {
+            if (len == 0) {
+                return 0;
+            } else if (fileOffset >= mLength) {
+                return -1;
+            }
+            numRead = (int) Math.min(len, mLength - fileOffset);
+            ByteBuffer view = mMapped.duplicate();
+            view.position((int) fileOffset);
+            view.get(b, off, numRead);
+        } else {
+            numRead = mChannel.read(ByteBuffer.wrap(b, off, len), fileOffset);
         }
-        numRead = mRAF.read(b, off, len);
-        mPos += numRead;
-        
-        if (seeked) {
+
+        if (fileOffset != mLastEnd) {
             ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE.increment(100);
         } else {
             ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE.increment(0);
         }
+        if (numRead > 0) {
+            mLastEnd = fileOffset + numRead;
+        }
         ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_READ.increment();
         return numRead;
     }
-    
-    synchronized void aboutToRead() {
-        mNumReaders++;
-    }
-    
-    synchronized void doneReading() {
-        if (mNumReaders > 0) {
-            mNumReaders--;
+
+    /**
+     * Registers a reader.
+     * @return <tt>false</tt> if the file has already been closed
+     */
+    boolean aboutToRead() {
+        while (true) {
+            int readers = mNumReaders.get();
+            if (readers == CLOSED) {
+                return false;
+            } else if (mNumReaders.compareAndSet(readers, readers + 1)) {
+                return true;
+            }
         }
     }
-    
-    synchronized int getNumReaders() {
-        return mNumReaders;
+
+    /**
+     * Unregisters a reader.  If the file has been retired and this was the
+     * last reader, closes the file.
+     * @return <tt>true</tt> if this call closed the file
+     */
+    boolean doneReading() {
+        int readers = mNumReaders.decrementAndGet();
+        return readers == 0 && mRetired && tryClose();
     }
-    
-    private synchronized void openIfNecessary()
-    throws IOException {
-        if (mRAF == null) {
-            if (!mFile.exists()) {
-                throw new IOException(mFile.getPath() + " does not exist.");
-            }
-            mRAF = new RandomAccessFile(mFile, "r");
-            mPos = 0;
-        }
+
+    int getNumReaders() {
+        return Math.max(mNumReaders.get(), 0);
     }
-    
-    synchronized void close()
-    throws IOException {
-        if (mRAF != null) {
-            mRAF.close();
-            mPos = 0;
-            mRAF = null;
+
+    boolean isClosed() {
+        return mNumReaders.get() == CLOSED;
+    }
+
+    /**
+     * Marks the file as no longer cached and closes it if nobody is reading.
+     * Otherwise the last reader closes it in {@link #doneReading}.
+     * @return <tt>true</tt> if this call closed the file
+     */
+    boolean retire() {
+        mRetired = true;
+        return tryClose();
+    }
+
+    private boolean tryClose() {
+        if (!mNumReaders.compareAndSet(0, CLOSED)) {
+            return false;
         }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            FileDescriptorCache.sLog.warn("Unable to close %s", mFile, e);
+        }
+        return true;
     }
-    
+
     public String toString() {
         return mFile.toString();
     }
@@ -643,7 +643,12 @@ public class SoapEngine {
                 if (delegatedAuth) {
                     handler.logAuditAccess(at.getAdminAccountId(), acctId, acctId);
                 }
-                response = handler.handle(soapReqElem, context);
+                ZimbraPerf.setCurrentCommand(getStatName(soapReqElem));
+                try {
+                    response = handler.handle(soapReqElem, context);
+                } finally {
+                    ZimbraPerf.setCurrentCommand(null);
+                }
                 ZimbraPerf.SOAP_TRACKER.addStat(getStatName(soapReqElem), startTime);
                 long duration = System.currentTimeMillis() - startTime;
                 if (LC.zimbra_slow_logging_enabled.booleanValue() && duration > LC.zimbra_slow_logging_threshold.longValue() &&